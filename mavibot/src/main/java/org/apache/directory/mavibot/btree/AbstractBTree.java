@@ -22,7 +22,11 @@ package org.apache.directory.mavibot.btree;
 
 import java.io.IOException;
 import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Comparator;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
@@ -98,7 +102,7 @@ import org.apache.directory.mavibot.btree.serializer.ElementSerializer;
     protected TransactionManager transactionManager;
 
     /** The size of the stack to use to manage tree searches */
-    private final static int MAX_STACK_DEPTH = 32;
+    /* no qualifier */final static int MAX_STACK_DEPTH = 32;
 
 
     /**
@@ -434,6 +438,10 @@ import org.apache.directory.mavibot.btree.serializer.ElementSerializer;
             {
                 existingValue = ( ( ModifyResult<K, V> ) result ).getModifiedValue();
             }
+            else if ( result instanceof SplitResult )
+            {
+                existingValue = ( ( SplitResult<K, V> ) result ).getModifiedValue();
+            }
 
             // Commit now if it's not a sub-btree
             if ( btreeType != BTreeTypeEnum.PERSISTED_SUB )
@@ -546,6 +554,70 @@ import org.apache.directory.mavibot.btree.serializer.ElementSerializer;
     }
 
 
+    /**
+     * {@inheritDoc}
+     */
+    @SuppressWarnings("unchecked")
+    public List<Tuple<K, V>> getAll( Collection<K> keys ) throws IOException
+    {
+        // Check that we have a TransactionManager
+        if ( transactionManager == null )
+        {
+            throw new BTreeCreationException( "We don't have a transactionLManager" );
+        }
+
+        List<Tuple<K, V>> tuples = new ArrayList<Tuple<K, V>>( keys.size() );
+
+        // Sort the keys, removing the null and duplicated ones
+        K[] sortedKeys = ( K[] ) new Object[keys.size()];
+        int nbKeys = 0;
+
+        for ( K key : keys )
+        {
+            if ( key != null )
+            {
+                sortedKeys[nbKeys++] = key;
+            }
+        }
+
+        Comparator<K> comparator = getKeyComparator();
+        Arrays.sort( sortedKeys, 0, nbKeys, comparator );
+        int nbDistinct = 0;
+
+        for ( int i = 0; i < nbKeys; i++ )
+        {
+            if ( ( nbDistinct == 0 ) || ( comparator.compare( sortedKeys[nbDistinct - 1], sortedKeys[i] ) != 0 ) )
+            {
+                sortedKeys[nbDistinct++] = sortedKeys[i];
+            }
+        }
+
+        if ( nbDistinct == 0 )
+        {
+            return tuples;
+        }
+
+        ReadTransaction<K, V> transaction = beginReadTransaction();
+
+        if ( transaction == null )
+        {
+            return tuples;
+        }
+
+        try
+        {
+            Page<K, V> rootPage = transaction.getBtreeHeader().getRootPage();
+            ( ( AbstractPage<K, V> ) rootPage ).getAll( sortedKeys, 0, nbDistinct, tuples );
+
+            return tuples;
+        }
+        finally
+        {
+            transaction.close();
+        }
+    }
+
+
     /**
      * {@inheritDoc}
      */
@@ -1045,6 +1117,235 @@ import org.apache.directory.mavibot.btree.serializer.ElementSerializer;
     }
 
 
+    /**
+     * {@inheritDoc}
+     */
+    public long count( K from, K to ) throws IOException
+    {
+        // Check that we have a TransactionManager
+        if ( transactionManager == null )
+        {
+            throw new BTreeCreationException( "We don't have a Transaction Manager" );
+        }
+
+        ReadTransaction<K, V> transaction = beginReadTransaction();
+
+        if ( transaction == null )
+        {
+            return 0L;
+        }
+
+        try
+        {
+            Page<K, V> rootPage = transaction.getBtreeHeader().getRootPage();
+
+            long lower = 0L;
+            long upper;
+
+            if ( from != null )
+            {
+                lower = rank( rootPage, from, false );
+            }
+
+            if ( to != null )
+            {
+                upper = rank( rootPage, to, true );
+            }
+            else
+            {
+                upper = ( ( AbstractPage<K, V> ) rootPage ).getCount();
+            }
+
+            return Math.max( 0L, upper - lower );
+        }
+        finally
+        {
+            transaction.close();
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public long rank( K key ) throws IOException
+    {
+        // Check that we have a TransactionManager
+        if ( transactionManager == null )
+        {
+            throw new BTreeCreationException( "We don't have a Transaction Manager" );
+        }
+
+        if ( key == null )
+        {
+            throw new IllegalArgumentException( "Key must not be null" );
+        }
+
+        ReadTransaction<K, V> transaction = beginReadTransaction();
+
+        if ( transaction == null )
+        {
+            return 0L;
+        }
+
+        try
+        {
+            return rank( transaction.getBtreeHeader().getRootPage(), key, false );
+        }
+        finally
+        {
+            transaction.close();
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public TupleCursor<K, V> browseAt( long index ) throws IOException
+    {
+        // Check that we have a TransactionManager
+        if ( transactionManager == null )
+        {
+            throw new BTreeCreationException( "We don't have a Transaction Manager" );
+        }
+
+        if ( index < 0 )
+        {
+            throw new IllegalArgumentException( "The index must not be negative" );
+        }
+
+        ReadTransaction<K, V> transaction = beginReadTransaction();
+
+        if ( transaction == null )
+        {
+            return new EmptyTupleCursor<K, V>();
+        }
+
+        ParentPos<K, V>[] stack = ( ParentPos<K, V>[] ) Array.newInstance( ParentPos.class, MAX_STACK_DEPTH );
+        Page<K, V> rootPage = transaction.getBtreeHeader().getRootPage();
+
+        long nbKeys = ( ( AbstractPage<K, V> ) rootPage ).getCount();
+
+        if ( nbKeys == 0 )
+        {
+            transaction.close();
+
+            return new EmptyTupleCursor<K, V>();
+        }
+
+        if ( index >= nbKeys )
+        {
+            // Position the cursor after the last key
+            TupleCursor<K, V> cursor = rootPage.browse( transaction, stack, 0 );
+            cursor.afterLast();
+
+            return cursor;
+        }
+
+        // Find the key at this position, then browse from it
+        Page<K, V> page = rootPage;
+
+        while ( page.isNode() )
+        {
+            AbstractPage<K, V> node = ( AbstractPage<K, V> ) page;
+            int pos = 0;
+            long count = node.children[0].getCount();
+
+            while ( index >= count )
+            {
+                index -= count;
+                pos++;
+                count = node.children[pos].getCount();
+            }
+
+            page = node.children[pos].getValue();
+        }
+
+        K key = page.getKey( ( int ) index );
+
+        return rootPage.browse( key, transaction, stack, 0 );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public TupleCursor<K, V> browseRange( K from, boolean fromInclusive, K to, boolean toInclusive, boolean reverse )
+        throws IOException
+    {
+        // Check that we have a TransactionManager
+        if ( transactionManager == null )
+        {
+            throw new BTreeCreationException( "We don't have a Transaction Manager" );
+        }
+
+        ReadTransaction<K, V> transaction = beginReadTransaction();
+
+        if ( transaction == null )
+        {
+            return new EmptyTupleCursor<K, V>();
+        }
+
+        Page<K, V> rootPage = transaction.getBtreeHeader().getRootPage();
+
+        if ( rootPage.getNbElems() == 0 )
+        {
+            transaction.close();
+
+            return new EmptyTupleCursor<K, V>();
+        }
+
+        return new RangeTupleCursor<K, V>( transaction, rootPage, from, fromInclusive, to, toInclusive, reverse );
+    }
+
+
+    /**
+     * Computes the number of keys lower than a given key, or lower or equal if the
+     * inclusive flag is set. We go down the tree, adding the number of keys stored in
+     * the children on the left of the one we select.
+     */
+    private long rank( Page<K, V> rootPage, K key, boolean inclusive ) throws IOException
+    {
+        long rank = 0L;
+        Page<K, V> page = rootPage;
+
+        while ( page.isNode() )
+        {
+            AbstractPage<K, V> node = ( AbstractPage<K, V> ) page;
+            int pos = node.findPos( key );
+
+            if ( pos < 0 )
+            {
+                // The key is in the node : all the keys on its left are lower
+                pos = -pos;
+            }
+
+            for ( int i = 0; i < pos; i++ )
+            {
+                rank += node.children[i].getCount();
+            }
+
+            page = node.children[pos].getValue();
+        }
+
+        int pos = ( ( AbstractPage<K, V> ) page ).findPos( key );
+
+        if ( pos < 0 )
+        {
+            // The key has been found
+            pos = -( pos + 1 );
+
+            if ( inclusive )
+            {
+                pos++;
+            }
+        }
+
+        return rank + pos;
+    }
+
+
     /**
      * Create a thread that is responsible of cleaning the transactions when
      * they hit the timeout
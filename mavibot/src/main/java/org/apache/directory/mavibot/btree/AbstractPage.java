@@ -22,9 +22,13 @@ package org.apache.directory.mavibot.btree;
 
 import java.io.IOException;
 import java.lang.reflect.Array;
+import java.util.List;
 
 import org.apache.directory.mavibot.btree.exception.EndOfFileExceededException;
 import org.apache.directory.mavibot.btree.exception.KeyNotFoundException;
+import org.apache.directory.mavibot.btree.serializer.IntSerializer;
+import org.apache.directory.mavibot.btree.serializer.LongSerializer;
+import org.apache.directory.mavibot.btree.serializer.StringSerializer;
 
 
 /**
@@ -59,6 +63,12 @@ import org.apache.directory.mavibot.btree.exception.KeyNotFoundException;
     /** The last {@link PageIO} storing the serialized Page on disk */
     protected long lastOffset = -1L;
 
+    /** The keys as primitive longs, built on the first search when the B-tree keys are Longs or Integers */
+    private volatile long[] longKeys;
+
+    /** The keys out of their holders, built on the first search of an in-memory page */
+    private volatile Object[] flatKeys;
+
 
     /**
      * Creates a default empty AbstractPage
@@ -94,6 +104,30 @@ import org.apache.directory.mavibot.btree.exception.KeyNotFoundException;
     }
 
 
+    /**
+     * Computes the number of keys stored in this page and in its children. For a Node,
+     * this is the sum of the counts its children holders know about.
+     *
+     * @return The number of keys in the subtree
+     */
+    /* no qualifier */long getCount()
+    {
+        if ( isLeaf() )
+        {
+            return nbElems;
+        }
+
+        long count = 0L;
+
+        for ( int pos = 0; pos <= nbElems; pos++ )
+        {
+            count += children[pos].getCount();
+        }
+
+        return count;
+    }
+
+
     /**
      * Sets the number of element in this page
      * @param nbElems The number of elements
@@ -101,6 +135,8 @@ import org.apache.directory.mavibot.btree.exception.KeyNotFoundException;
     /* no qualifier */void setNbElems( int nbElems )
     {
         this.nbElems = nbElems;
+        longKeys = null;
+        flatKeys = null;
     }
 
 
@@ -132,11 +168,11 @@ import org.apache.directory.mavibot.btree.exception.KeyNotFoundException;
         {
             // Here, if we have found the key in the node, then we must go down into
             // the right child, not the left one
-            return children[-pos].getValue().hasKey( key );
+            return getChildPage( -pos ).hasKey( key );
         }
         else
         {
-            Page<K, V> page = children[pos].getValue();
+            Page<K, V> page = getChildPage( pos );
 
             return page.hasKey( key );
         }
@@ -182,7 +218,7 @@ import org.apache.directory.mavibot.btree.exception.KeyNotFoundException;
         // We first stack the current page
         stack[depth++] = new ParentPos<K, V>( this, pos );
 
-        Page<K, V> page = children[pos].getValue();
+        Page<K, V> page = getChildPage( pos );
 
         return page.browse( key, transaction, stack, depth );
     }
@@ -200,11 +236,11 @@ import org.apache.directory.mavibot.btree.exception.KeyNotFoundException;
         {
             // Here, if we have found the key in the node, then we must go down into
             // the right child, not the left one
-            return children[-pos].getValue().contains( key, value );
+            return getChildPage( -pos ).contains( key, value );
         }
         else
         {
-            return children[pos].getValue().contains( key, value );
+            return getChildPage( pos ).contains( key, value );
         }
     }
 
@@ -234,6 +270,25 @@ import org.apache.directory.mavibot.btree.exception.KeyNotFoundException;
         throws IOException;
 
 
+    /**
+     * Inserts a key which is expected to be above all the keys of the B-tree, as it is
+     * the case for B-trees receiving increasing keys. The pages which support it follow
+     * the rightmost path with one comparison per page, instead of a binary search, and
+     * fall back to a standard insertion if the key is not above their keys. This default
+     * implementation is a standard insertion.
+     *
+     * @param key Inserted key
+     * @param value Inserted value
+     * @param revision The new revision for the modified pages
+     * @return Either a modified Page or an Overflow element if the Page was full
+     * @throws IOException If we have an error while trying to access the page
+     */
+    /* no qualifier */InsertResult<K, V> append( K key, V value, long revision ) throws IOException
+    {
+        return insert( key, value, revision );
+    }
+
+
     /**
      * {@inheritDoc}
      */
@@ -245,11 +300,85 @@ import org.apache.directory.mavibot.btree.exception.KeyNotFoundException;
         {
             // Here, if we have found the key in the node, then we must go down into
             // the right child, not the left one
-            return children[-pos].getValue().get( key );
+            return getChildPage( -pos ).get( key );
         }
         else
         {
-            return children[pos].getValue().get( key );
+            return getChildPage( pos ).get( key );
+        }
+    }
+
+
+    /**
+     * Finds the values of some sorted keys in this page and its children. The keys are
+     * dispatched to the children in one pass, so that each child is read only once, whatever
+     * the number of keys it may contain.
+     *
+     * @param searchedKeys The sorted and distinct keys to look for
+     * @param from The position of the first key to look for in this page
+     * @param to The position after the last key to look for in this page
+     * @param tuples The list to which the found tuples are added
+     * @throws IOException If we had an issue while reading a page
+     */
+    /* no qualifier */void getAll( K[] searchedKeys, int from, int to, List<Tuple<K, V>> tuples ) throws IOException
+    {
+        if ( isLeaf() )
+        {
+            for ( int i = from; i < to; i++ )
+            {
+                int pos = findPos( searchedKeys[i] );
+
+                if ( pos < 0 )
+                {
+                    pos = -( pos + 1 );
+                    ValueCursor<V> cursor = getValue( pos ).getCursor();
+                    cursor.beforeFirst();
+                    V value = null;
+
+                    if ( cursor.hasNext() )
+                    {
+                        value = cursor.next();
+                    }
+
+                    cursor.close();
+                    tuples.add( new Tuple<K, V>( getKey( pos ), value ) );
+                }
+            }
+
+            return;
+        }
+
+        int start = from;
+
+        while ( start < to )
+        {
+            // Find the child containing the first key, and all the following keys
+            // which are below the child's upper separator
+            int pos = findPos( searchedKeys[start] );
+
+            if ( pos < 0 )
+            {
+                pos = -pos;
+            }
+
+            int end = start + 1;
+
+            if ( pos < nbElems )
+            {
+                K separator = keys[pos].getKey();
+
+                while ( ( end < to ) && ( compare( searchedKeys[end], separator ) < 0 ) )
+                {
+                    end++;
+                }
+            }
+            else
+            {
+                end = to;
+            }
+
+            ( ( AbstractPage<K, V> ) getChildPage( pos ) ).getAll( searchedKeys, start, end, tuples );
+            start = end;
         }
     }
 
@@ -277,6 +406,19 @@ import org.apache.directory.mavibot.btree.exception.KeyNotFoundException;
     }
 
 
+    /**
+     * Gets the child page at a given position, when descending into a node.
+     *
+     * @param pos The position of the child
+     * @return The child page
+     * @throws IOException If we had an issue while reading the page
+     */
+    /* no qualifier */Page<K, V> getChildPage( int pos ) throws IOException
+    {
+        return children[pos].getValue();
+    }
+
+
     /**
      * Inject a pageHolder into the node, at a given position
      * 
@@ -304,11 +446,11 @@ import org.apache.directory.mavibot.btree.exception.KeyNotFoundException;
         {
             // Here, if we have found the key in the node, then we must go down into
             // the right child, not the left one
-            return children[-pos].getValue().getValues( key );
+            return getChildPage( -pos ).getValues( key );
         }
         else
         {
-            return children[pos].getValue().getValues( key );
+            return getChildPage( pos ).getValues( key );
         }
     }
 
@@ -466,6 +608,8 @@ import org.apache.directory.mavibot.btree.exception.KeyNotFoundException;
     /* no qualifier */void setKey( int pos, KeyHolder<K> key )
     {
         keys[pos] = key;
+        longKeys = null;
+        flatKeys = null;
     }
 
 
@@ -475,6 +619,8 @@ import org.apache.directory.mavibot.btree.exception.KeyNotFoundException;
     /* no qualifier */void setKeys( KeyHolder<K>[] keys )
     {
         this.keys = keys;
+        longKeys = null;
+        flatKeys = null;
     }
 
 
@@ -579,6 +725,50 @@ import org.apache.directory.mavibot.btree.exception.KeyNotFoundException;
             return 0;
         }
 
+        // The pages modified in place are searched through their holders, as they can't
+        // keep copies of their keys : see isModifiedInPlace()
+        if ( isModifiedInPlace() )
+        {
+            return findHolderPos( key );
+        }
+
+        // Long and Integer keys are searched on their primitive values
+        if ( ( key != null ) && ( btree.getKeySerializer() == LongSerializer.INSTANCE ) )
+        {
+            return findPos( ( ( Long ) key ).longValue() );
+        }
+
+        if ( ( key != null ) && ( btree.getKeySerializer() == IntSerializer.INSTANCE ) )
+        {
+            return findPos( ( ( Integer ) key ).longValue() );
+        }
+
+        // String keys read from disk are compared on their serialized form
+        if ( ( key != null ) && ( btree.getKeySerializer() == StringSerializer.INSTANCE )
+            && ( btree instanceof PersistedBTree ) )
+        {
+            return findSerializedPos( key, StringSerializer.INSTANCE.serialize( ( String ) key ) );
+        }
+
+        // The keys of an in-memory page are searched without going through their holders
+        if ( !( btree instanceof PersistedBTree ) )
+        {
+            return findFlatPos( key );
+        }
+
+        return findHolderPos( key );
+    }
+
+
+    /**
+     * Finds the position of the given key in the page, reading each probed key from its
+     * holder, using the same convention as {@link #findPos(Object)}.
+     *
+     * @param key The key to find
+     * @return The position in the page.
+     */
+    private int findHolderPos( K key )
+    {
         int min = 0;
         int max = nbElems - 1;
 
@@ -627,6 +817,215 @@ import org.apache.directory.mavibot.btree.exception.KeyNotFoundException;
     }
 
 
+    /**
+     * Finds the position of the given long key in the page, using the same convention
+     * as {@link #findPos(Object)}. This is only valid for a page which B-tree uses the
+     * {@link LongSerializer} or the {@link IntSerializer} : the binary search is done on a
+     * primitive copy of the keys, so no Long is created nor unboxed while comparing.
+     *
+     * @param key The key to find
+     * @return The position in the page.
+     */
+    /* no qualifier */int findPos( long key )
+    {
+        long[] values = getLongKeys();
+        int min = 0;
+        int max = nbElems - 1;
+
+        while ( min <= max )
+        {
+            int middle = ( min + max ) >>> 1;
+            long value = values[middle];
+
+            if ( value < key )
+            {
+                min = middle + 1;
+            }
+            else if ( value > key )
+            {
+                max = middle - 1;
+            }
+            else
+            {
+                return -( middle + 1 );
+            }
+        }
+
+        return min;
+    }
+
+
+    /**
+     * Finds the position of the given serialized String key in the page, using the same
+     * convention as {@link #findPos(Object)}. This is only valid for a page which B-tree
+     * uses the {@link StringSerializer} : the keys stored in {@link PersistedKeyHolder}s are
+     * compared byte per byte, so they don't get deserialized.
+     *
+     * @param key The key to find
+     * @param raw The serialized key to find
+     * @return The position in the page.
+     */
+    private int findSerializedPos( K key, byte[] raw )
+    {
+        int min = 0;
+        int max = nbElems - 1;
+
+        while ( min <= max )
+        {
+            int middle = ( min + max ) >>> 1;
+            KeyHolder<K> keyHolder = keys[middle];
+            int comp;
+
+            if ( keyHolder instanceof PersistedKeyHolder )
+            {
+                comp = StringSerializer.compare( ( ( PersistedKeyHolder<K> ) keyHolder ).getRaw(), 0, raw, 0 );
+            }
+            else
+            {
+                comp = compare( keyHolder.getKey(), key );
+            }
+
+            if ( comp < 0 )
+            {
+                min = middle + 1;
+            }
+            else if ( comp > 0 )
+            {
+                max = middle - 1;
+            }
+            else
+            {
+                return -( middle + 1 );
+            }
+        }
+
+        return min;
+    }
+
+
+    /**
+     * Finds the position of the given key in an in-memory page, using the same convention
+     * as {@link #findPos(Object)}. The binary search is done on a flat copy of the keys, so
+     * each probe reads the key directly instead of going through its {@link KeyHolder}.
+     *
+     * @param key The key to find
+     * @return The position in the page.
+     */
+    @SuppressWarnings("unchecked")
+    private int findFlatPos( K key )
+    {
+        Object[] values = getFlatKeys();
+        int min = 0;
+        int max = nbElems - 1;
+
+        while ( min <= max )
+        {
+            int middle = ( min + max ) >>> 1;
+            int comp = compare( ( K ) values[middle], key );
+
+            if ( comp < 0 )
+            {
+                min = middle + 1;
+            }
+            else if ( comp > 0 )
+            {
+                max = middle - 1;
+            }
+            else
+            {
+                return -( middle + 1 );
+            }
+        }
+
+        return min;
+    }
+
+
+    /**
+     * Tells if the page belongs to an in-memory B-tree which pages are modified in place. Such
+     * a page can't keep copies of its keys or of its children : a reader searching it without
+     * any lock could store a copy of a page a writer is modifying, and this stale copy would be
+     * used by all the following searches.
+     *
+     * @return true if the page may be modified in place
+     */
+    /* no qualifier */boolean isModifiedInPlace()
+    {
+        return ( btree instanceof InMemoryBTree ) && ( ( InMemoryBTree<K, V> ) btree ).isInPlaceUpdates();
+    }
+
+
+    /**
+     * Gets the flat copy of the keys, building it if needed.
+     *
+     * @return The keys, out of their holders
+     */
+    private Object[] getFlatKeys()
+    {
+        Object[] values = flatKeys;
+
+        if ( ( values == null ) || ( values.length != nbElems ) )
+        {
+            values = new Object[nbElems];
+
+            for ( int i = 0; i < nbElems; i++ )
+            {
+                values[i] = keys[i].getKey();
+            }
+
+            if ( !isModifiedInPlace() )
+            {
+                flatKeys = values;
+            }
+        }
+
+        return values;
+    }
+
+
+    /**
+     * Gets the primitive copy of the keys, building it if needed. The keys of a
+     * PersistedKeyHolder are read from their serialized form, so they don't get
+     * deserialized.
+     *
+     * @return The keys as an array of longs
+     */
+    private long[] getLongKeys()
+    {
+        long[] values = longKeys;
+
+        if ( ( values == null ) || ( values.length != nbElems ) )
+        {
+            values = new long[nbElems];
+
+            for ( int i = 0; i < nbElems; i++ )
+            {
+                KeyHolder<K> keyHolder = keys[i];
+
+                if ( !( keyHolder instanceof PersistedKeyHolder ) )
+                {
+                    values[i] = ( ( Number ) keyHolder.getKey() ).longValue();
+                }
+                else if ( btree.getKeySerializer() == IntSerializer.INSTANCE )
+                {
+                    values[i] = IntSerializer.toInt( ( ( PersistedKeyHolder<K> ) keyHolder ).getRaw(), 0 );
+                }
+                else
+                {
+                    values[i] = LongSerializer.toLong( ( ( PersistedKeyHolder<K> ) keyHolder ).getRaw(), 0 );
+                }
+            }
+
+            if ( !isModifiedInPlace() )
+            {
+                longKeys = values;
+            }
+        }
+
+        return values;
+    }
+
+
     /**
      * {@inheritDoc}
      */
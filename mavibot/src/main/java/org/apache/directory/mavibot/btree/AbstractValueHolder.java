@@ -84,11 +84,31 @@ import org.apache.directory.mavibot.btree.serializer.ElementSerializer;
         }
         else
         {
-            return new ValueArrayCursor<V>( valueArray );
+            return new ValueArrayCursor<V>( valueArray, valueSerializer.getComparator() );
         }
     }
 
 
+    /**
+     * Gets a cursor on top of the values, reusing a cursor which isn't used anymore when
+     * the values are stored in an array.
+     *
+     * @param cursor The cursor to reuse, if possible. It may be null
+     * @return a cursor on top of the values
+     */
+    /* no qualifier */ValueCursor<V> getCursor( ValueCursor<V> cursor )
+    {
+        if ( ( valueBtree == null ) && ( cursor instanceof ValueArrayCursor ) )
+        {
+            ( ( ValueArrayCursor<V> ) cursor ).reset( valueArray );
+
+            return cursor;
+        }
+
+        return getCursor();
+    }
+
+
     /**
      * Find the position of a given value in the array, or the position where we
      * would insert the element (in this case, the position will be negative).
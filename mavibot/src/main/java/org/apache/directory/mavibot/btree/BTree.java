@@ -21,7 +21,9 @@ package org.apache.directory.mavibot.btree;
 
 
 import java.io.IOException;
+import java.util.Collection;
 import java.util.Comparator;
+import java.util.List;
 
 import org.apache.directory.mavibot.btree.exception.KeyNotFoundException;
 import org.apache.directory.mavibot.btree.serializer.ElementSerializer;
@@ -167,6 +169,21 @@ public interface BTree<K, V>
     V get( long revision, K key ) throws IOException, KeyNotFoundException;
 
 
+    /**
+     * Finds the values associated with a set of keys. The keys are sorted, and the tree
+     * is browsed once for all of them in the same read transaction : a page which is on
+     * the path of many keys is read only once. This is much cheaper than a get() for each
+     * key when there are many keys.<br/>
+     * As with get(), only the first value is returned when the key has many values.
+     *
+     * @param keys The keys we are looking for
+     * @return The tuples for the keys found in the B-tree, in ascending key order. The
+     * missing keys and the duplicated ones are ignored
+     * @throws IOException If there was an issue while fetching data from the disk
+     */
+    List<Tuple<K, V>> getAll( Collection<K> keys ) throws IOException;
+
+
     /**
      * Checks if the given key exists.
      *
@@ -265,6 +282,60 @@ public interface BTree<K, V>
     KeyCursor<K> browseKeys() throws IOException, KeyNotFoundException;
 
 
+    /**
+     * Counts the keys between two bounds, both included. When the B-tree nodes know the
+     * number of keys of each of their children, this is done in O(log n).
+     *
+     * @param from The lower bound, or null to start from the first key
+     * @param to The upper bound, or null to count up to the last key
+     * @return The number of keys in the range
+     * @throws IOException If we had an issue while reading the B-tree from disk
+     */
+    long count( K from, K to ) throws IOException;
+
+
+    /**
+     * Gives the position of a key in the B-tree, which is the number of keys lower than
+     * this key. The key does not have to be present in the B-tree.
+     *
+     * @param key The key we are looking for
+     * @return The number of keys lower than the given key
+     * @throws IOException If we had an issue while reading the B-tree from disk
+     */
+    long rank( K key ) throws IOException;
+
+
+    /**
+     * Creates a cursor starting on the key at the given position. The first key is at
+     * position 0. If the position is above the number of keys, the cursor is set after
+     * the last key.
+     *
+     * @param index The position of the first key to browse
+     * @return A cursor on the B-tree
+     * @throws IOException If we had an issue while reading the B-tree from disk
+     */
+    TupleCursor<K, V> browseAt( long index ) throws IOException;
+
+
+    /**
+     * Creates a cursor on the keys between two bounds. The cursor stops by itself when
+     * it reaches a bound, without reading the leaf that follows the range. When the
+     * reverse flag is set, the cursor is positioned after the upper bound, and should be
+     * read using the hasPrev() and prev() methods ; otherwise it is positioned before the
+     * lower bound.
+     *
+     * @param from The lower bound, or null to start from the first key
+     * @param fromInclusive Tells if the lower bound is part of the range
+     * @param to The upper bound, or null to go up to the last key
+     * @param toInclusive Tells if the upper bound is part of the range
+     * @param reverse Tells if the cursor is positioned at the end of the range
+     * @return A cursor on the range
+     * @throws IOException If we had an issue while reading the B-tree from disk
+     */
+    TupleCursor<K, V> browseRange( K from, boolean fromInclusive, K to, boolean toInclusive, boolean reverse )
+        throws IOException;
+
+
     /**
      * @return the key comparator
      */
@@ -36,6 +36,8 @@ import java.util.concurrent.atomic.AtomicInteger;
  * +--------------------+-------------+
  * | BtreeHeaderOffset  | 8 bytes     |
  * +--------------------+-------------+
+ * | BloomFilterOffset  | 8 bytes     | (only if the B-tree has a Bloom filter)
+ * +--------------------+-------------+
  * </pre>
  * Each B-tree Header will be written starting on a new page.
  * In memory, a B-tree Header store a bit more of information :
@@ -0,0 +1,201 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.mavibot.btree;
+
+
+import org.apache.directory.mavibot.btree.serializer.ElementSerializer;
+
+
+/**
+ * A Bloom filter on the keys of a B-tree. It tells if a key might be present in the
+ * B-tree, or if it's definitively absent, without reading any page. We use 10 bits per
+ * key and 7 hash functions, which gives around 1% of false positives as long as the
+ * number of keys stays below the filter capacity.
+ * <p>
+ * The positions are computed from the serialized key, so two keys the comparator
+ * considers as equal must be serialized the same way. Keys can't be removed from a Bloom
+ * filter : the deleted keys remain in it until it's rebuilt.
+ *
+ * @param <K> The type for the Key
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+/* no qualifier */class BloomFilter<K>
+{
+    /** The number of bits used for each key */
+    private static final int BITS_PER_KEY = 10;
+
+    /** The number of hash functions */
+    private static final int NB_HASHES = 7;
+
+    /** The minimal number of keys a filter is sized for */
+    /* no qualifier */static final long MIN_CAPACITY = 1024L;
+
+    /** The serializer used to get the bytes we hash */
+    private ElementSerializer<K> keySerializer;
+
+    /** The bits */
+    private long[] bits;
+
+    /** The number of bits */
+    private long nbBits;
+
+    /** The number of hash functions */
+    private int nbHashes;
+
+
+    /**
+     * Creates a new empty BloomFilter
+     *
+     * @param keySerializer The key serializer
+     * @param capacity The number of keys the filter will contain
+     */
+    /* no qualifier */BloomFilter( ElementSerializer<K> keySerializer, long capacity )
+    {
+        this( keySerializer, NB_HASHES, new long[getNbLongs( capacity )] );
+    }
+
+
+    /**
+     * Creates a new BloomFilter with some existing bits
+     *
+     * @param keySerializer The key serializer
+     * @param nbHashes The number of hash functions
+     * @param bits The bits
+     */
+    /* no qualifier */BloomFilter( ElementSerializer<K> keySerializer, int nbHashes, long[] bits )
+    {
+        this.keySerializer = keySerializer;
+        this.nbHashes = nbHashes;
+        this.bits = bits;
+        nbBits = ( long ) bits.length * 64;
+    }
+
+
+    /**
+     * @return The number of longs needed to store the bits for the given number of keys
+     */
+    private static int getNbLongs( long capacity )
+    {
+        long nbBits = Math.max( capacity, MIN_CAPACITY ) * BITS_PER_KEY;
+
+        return ( int ) ( ( nbBits + 63 ) / 64 );
+    }
+
+
+    /**
+     * Adds a key in the filter. The bits are only set, so a reader checking a key
+     * concurrently will at worst see the key as present before it has been inserted.
+     *
+     * @param key The key to add
+     */
+    /* no qualifier */void add( K key )
+    {
+        long hash = hash( key );
+        long hash1 = hash & 0x00000000FFFFFFFFL;
+        long hash2 = hash >>> 32;
+
+        for ( int i = 0; i < nbHashes; i++ )
+        {
+            long pos = ( hash1 + i * hash2 ) % nbBits;
+
+            bits[( int ) ( pos >>> 6 )] |= 1L << pos;
+        }
+    }
+
+
+    /**
+     * Tells if a key might be present.
+     *
+     * @param key The key we are looking for
+     * @return false if the key has never been added, true if it may have been added
+     */
+    /* no qualifier */boolean mightContain( K key )
+    {
+        long hash = hash( key );
+        long hash1 = hash & 0x00000000FFFFFFFFL;
+        long hash2 = hash >>> 32;
+
+        for ( int i = 0; i < nbHashes; i++ )
+        {
+            long pos = ( hash1 + i * hash2 ) % nbBits;
+
+            if ( ( bits[( int ) ( pos >>> 6 )] & ( 1L << pos ) ) == 0L )
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+
+    /**
+     * A 64 bits FNV-1a hash of the serialized key, with a final mix so that the two
+     * halves of the result can be used as independent hashes.
+     */
+    private long hash( K key )
+    {
+        byte[] bytes = keySerializer.serialize( key );
+        long hash = 0xcbf29ce484222325L;
+
+        for ( byte b : bytes )
+        {
+            hash ^= b & 0xFF;
+            hash *= 0x100000001b3L;
+        }
+
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+
+        return hash;
+    }
+
+
+    /**
+     * @return The number of keys this filter can contain before its false positive rate
+     * grows
+     */
+    /* no qualifier */long getCapacity()
+    {
+        return nbBits / BITS_PER_KEY;
+    }
+
+
+    /**
+     * @return The number of hash functions
+     */
+    /* no qualifier */int getNbHashes()
+    {
+        return nbHashes;
+    }
+
+
+    /**
+     * @return The bits
+     */
+    /* no qualifier */long[] getBits()
+    {
+        return bits;
+    }
+}
@@ -22,10 +22,8 @@ package org.apache.directory.mavibot.btree;
 
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.lang.reflect.Array;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
@@ -34,14 +32,14 @@ import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Set;
-import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.RecursiveAction;
 
-import org.apache.directory.mavibot.btree.comparator.IntComparator;
+import org.apache.directory.mavibot.btree.exception.BTreeOperationException;
 import org.apache.directory.mavibot.btree.exception.EndOfFileExceededException;
 import org.apache.directory.mavibot.btree.exception.KeyNotFoundException;
-import org.apache.directory.mavibot.btree.serializer.IntSerializer;
 
 
 /**
@@ -189,44 +187,25 @@ public class BulkLoader<K, V>
     {
         File file = File.createTempFile( "sortedUnique", "data" );
         file.deleteOnExit();
-        FileOutputStream fos = new FileOutputStream( file );
+        TupleRunWriter<K, V> writer = new TupleRunWriter<K, V>( btree, file );
 
-        // Number of read elements
-        int nbReads = 0;
-
-        // Flush the tuples on disk
-        while ( dataIterator.hasNext() )
+        try
         {
-            nbReads++;
-
-            // grab a tuple
-            Tuple<K, Set<V>> tuple = dataIterator.next();
-
-            // Serialize the key
-            byte[] bytesKey = btree.getKeySerializer().serialize( tuple.key );
-            fos.write( IntSerializer.serialize( bytesKey.length ) );
-            fos.write( bytesKey );
-
-            // Serialize the number of values
-            int nbValues = tuple.getValue().size();
-            fos.write( IntSerializer.serialize( nbValues ) );
-
-            // Serialize the values
-            for ( V value : tuple.getValue() )
+            // Flush the tuples on disk
+            while ( dataIterator.hasNext() )
             {
-                byte[] bytesValue = btree.getValueSerializer().serialize( value );
-
-                // Serialize the value
-                fos.write( IntSerializer.serialize( bytesValue.length ) );
-                fos.write( bytesValue );
+                writer.write( dataIterator.next() );
             }
         }
+        finally
+        {
+            writer.close();
+        }
 
-        fos.flush();
-        fos.close();
+        int nbReads = writer.getNbTuples();
 
-        FileInputStream fis = new FileInputStream( file );
-        Iterator<Tuple<K, Set<V>>> uniqueIterator = createUniqueFileIterator( btree, fis );
+        Iterator<Tuple<K, Set<V>>> uniqueIterator = createUniqueFileIterator( new TupleRunReader<K, V>( btree,
+            file ) );
         SortedFile sortedFile = new SortedFile( file, nbReads );
 
         Tuple<Iterator<Tuple<K, Set<V>>>, SortedFile> result = new Tuple<Iterator<Tuple<K, Set<V>>>, SortedFile>(
@@ -279,7 +258,7 @@ public class BulkLoader<K, V>
 
         // Now that we have processed all the data, we can start storing them in the btree
         Iterator<Tuple<K, Set<V>>> dataIterator = null;
-        FileInputStream[] streams = null;
+        TupleRunReader<K, V>[] readers = null;
         BTree<K, V> resultBTree = null;
 
         if ( inMemory )
@@ -293,14 +272,14 @@ public class BulkLoader<K, V>
         {
             // We first have to build an iterator over the files
             int nbFiles = sortedFiles.size();
-            streams = new FileInputStream[nbFiles];
+            readers = newArray( TupleRunReader.class, nbFiles );
 
             for ( int i = 0; i < nbFiles; i++ )
             {
-                streams[i] = new FileInputStream( sortedFiles.get( i ) );
+                readers[i] = new TupleRunReader<K, V>( btree, sortedFiles.get( i ) );
             }
 
-            dataIterator = createIterator( btree, streams );
+            dataIterator = createIterator( btree, readers );
 
             // Process the files, and construct one single file with an iterator
             Tuple<Iterator<Tuple<K, Set<V>>>, SortedFile> result = processFiles( btree, dataIterator );
@@ -310,22 +289,273 @@ public class BulkLoader<K, V>
 
         // Ok, we have an iterator over sorted elements, we can now load them in the 
         // target btree.
-        // Now, close the FileInputStream, and delete them if we have some
+        // Now, close the run files, and delete them if we have some
         if ( !inMemory )
         {
             int nbFiles = sortedFiles.size();
 
             for ( int i = 0; i < nbFiles; i++ )
             {
-                streams[i].close();
+                readers[i].close();
                 sortedFiles.get( i ).delete();
             }
         }
 
+        // The Bloom filter does not contain the loaded keys
+        if ( resultBTree instanceof PersistedBTree )
+        {
+            ( ( PersistedBTree<K, V> ) resultBTree ).rebuildBloomFilter();
+        }
+
         return resultBTree;
     }
 
 
+    /**
+     * Merge data into an existing persisted BTree. The incoming tuples are sorted as they are
+     * by the {@link #load(BTree, Iterator, int)} method, then merged with the tuples read from
+     * the B-tree, and the result is stored into new dense pages, built bottom-up. The new root
+     * page is published in one single revision, so that the readers either see the previous
+     * content, or the merged one.
+     * <br/>
+     * When a key exists in both the B-tree and the incoming data, its values are gathered if the
+     * B-tree accepts duplicate values, otherwise the incoming values replace the existing ones.
+     * <br/>
+     * The tuples are inserted one by one into the other kinds of B-tree.
+     *
+     * @param btree The persisted BTree in which we want to merge the data
+     * @param iterator The iterator over the data to merge
+     * @param chunkSize The number of elements we may store in memory at each iteration
+     * @return The B-tree containing the merged data
+     * @throws IOException If there is a problem while processing the data
+     * @throws KeyNotFoundException If the B-tree can't be browsed
+     */
+    public static <K, V> BTree<K, V> merge( BTree<K, V> btree, Iterator<Tuple<K, V>> iterator, int chunkSize )
+        throws IOException, KeyNotFoundException
+    {
+        if ( btree == null )
+        {
+            throw new RuntimeException( "Invalid BTree : it's null" );
+        }
+
+        if ( iterator == null )
+        {
+            // Nothing to do...
+            return btree;
+        }
+
+        if ( !( btree instanceof PersistedBTree ) || ( btree.getType() != BTreeTypeEnum.PERSISTED ) )
+        {
+            while ( iterator.hasNext() )
+            {
+                Tuple<K, V> tuple = iterator.next();
+                btree.insert( tuple.getKey(), tuple.getValue() );
+            }
+
+            return btree;
+        }
+
+        PersistedBTree<K, V> persistedBTree = ( PersistedBTree<K, V> ) btree;
+        RecordManager recordManager = persistedBTree.getRecordManager();
+
+        // First sort the incoming tuples, using intermediate files if they don't fit in memory
+        List<File> sortedFiles = new ArrayList<File>();
+        List<Tuple<K, V>> tuples = new ArrayList<Tuple<K, V>>( chunkSize );
+        readElements( btree, iterator, sortedFiles, tuples, chunkSize );
+
+        int nbFiles = sortedFiles.size();
+        TupleRunReader<K, V>[] readers = newArray( TupleRunReader.class, nbFiles );
+        Iterator<Tuple<K, Set<V>>> dataIterator = null;
+
+        // Nobody must modify the B-tree while we are reading and rebuilding it
+        recordManager.beginTransaction();
+
+        try
+        {
+            if ( nbFiles == 0 )
+            {
+                dataIterator = createTupleIterator( btree, tuples );
+            }
+            else
+            {
+                for ( int i = 0; i < nbFiles; i++ )
+                {
+                    readers[i] = new TupleRunReader<K, V>( btree, sortedFiles.get( i ) );
+                }
+
+                dataIterator = createIterator( btree, readers );
+            }
+
+            // Merge the existing tuples with the incoming ones into one single sorted file,
+            // which gives us the number of elements of the new B-tree
+            Tuple<Iterator<Tuple<K, Set<V>>>, SortedFile> result = null;
+            TupleCursor<K, V> cursor = btree.browse();
+
+            try
+            {
+                result = processFiles( btree, createMergeIterator( btree, createCursorIterator( btree, cursor ),
+                    dataIterator ) );
+            }
+            finally
+            {
+                cursor.close();
+            }
+
+            // The pages of the current revision will be reclaimed, with the sub-btrees
+            // storing their values
+            List<Long> offsets = new ArrayList<Long>();
+            collectPageOffsets( persistedBTree.getRootPage(), offsets );
+            long[] copiedPages = new long[offsets.size()];
+
+            for ( int i = 0; i < copiedPages.length; i++ )
+            {
+                copiedPages[i] = offsets.get( i );
+            }
+
+            // Build the new pages, and switch the root page
+            Page<K, V> rootPage = buildPages( btree, result.key, result.value.nbValues );
+            result.value.file.delete();
+
+            persistedBTree.switchRootPage( rootPage, result.value.nbValues, copiedPages );
+
+            recordManager.commit();
+        }
+        catch ( IOException ioe )
+        {
+            recordManager.rollback();
+
+            throw ioe;
+        }
+        catch ( KeyNotFoundException knfe )
+        {
+            recordManager.rollback();
+
+            throw knfe;
+        }
+        catch ( RuntimeException re )
+        {
+            recordManager.rollback();
+
+            throw re;
+        }
+        finally
+        {
+            for ( int i = 0; i < nbFiles; i++ )
+            {
+                if ( readers[i] != null )
+                {
+                    readers[i].close();
+                }
+
+                sortedFiles.get( i ).delete();
+            }
+        }
+
+        // The Bloom filter does not contain the merged keys
+        persistedBTree.rebuildBloomFilter();
+
+        return btree;
+    }
+
+
+    /**
+     * Builds all the pages of a persisted B-tree from sorted data, and writes them on disk,
+     * without modifying the B-tree header.
+     *
+     * @return The written root page
+     */
+    private static <K, V> Page<K, V> buildPages( BTree<K, V> btree, Iterator<Tuple<K, Set<V>>> dataIterator,
+        int nbElems ) throws IOException
+    {
+        if ( nbElems > btree.getPageSize() )
+        {
+            return buildLevels( btree, dataIterator, nbElems );
+        }
+
+        // All the elements fit in one leaf
+        Page<K, V> rootPage = null;
+
+        if ( nbElems == 0 )
+        {
+            rootPage = BTreeFactory.createLeaf( btree, 0L, 0 );
+        }
+        else
+        {
+            LevelInfo<K, V> leafLevel = computeLevel( btree, nbElems, LevelEnum.LEAF );
+
+            while ( dataIterator.hasNext() )
+            {
+                injectInLeaf( btree, dataIterator.next(), leafLevel );
+            }
+
+            rootPage = leafLevel.getCurrentPage();
+        }
+
+        ( ( PersistedBTree<K, V> ) btree ).getRecordManager().writePage( btree, rootPage, 0L );
+
+        return rootPage;
+    }
+
+
+    /**
+     * Gathers the offsets of all the pages under a given page. Only the nodes are read, the
+     * offsets of the leaves are taken from their parent, unless the B-tree accepts duplicate
+     * values : the leaves are then read, as the values they store in sub-btrees are rebuilt
+     * too, and the pages of these sub-btrees are gathered as well.
+     */
+    private static <K, V> void collectPageOffsets( Page<K, V> page, List<Long> offsets ) throws IOException
+    {
+        AbstractPage<K, V> currentPage = ( AbstractPage<K, V> ) page;
+        offsets.add( currentPage.getOffset() );
+        boolean allowDuplicates = currentPage.getBtree().isAllowDuplicates();
+
+        if ( page.isLeaf() )
+        {
+            if ( allowDuplicates )
+            {
+                collectSubBtreeOffsets( ( PersistedLeaf<K, V> ) page, offsets );
+            }
+
+            return;
+        }
+
+        boolean leafChildren = currentPage.getPage( 0 ).isLeaf() && !allowDuplicates;
+
+        for ( int i = 0; i <= currentPage.getNbElems(); i++ )
+        {
+            if ( leafChildren )
+            {
+                offsets.add( ( ( PersistedPageHolder<K, V> ) currentPage.children[i] ).getOffset() );
+            }
+            else
+            {
+                collectPageOffsets( currentPage.getPage( i ), offsets );
+            }
+        }
+    }
+
+
+    /**
+     * Gathers the offsets of the header, the informations and the pages of the sub-btrees
+     * storing the values of a leaf.
+     */
+    private static <K, V> void collectSubBtreeOffsets( PersistedLeaf<K, V> leaf, List<Long> offsets )
+        throws IOException
+    {
+        for ( int pos = 0; pos < leaf.getNbElems(); pos++ )
+        {
+            BTree<V, V> subBtree = ( ( PersistedValueHolder<V> ) leaf.getValue( pos ) ).getSubBtree();
+
+            if ( subBtree != null )
+            {
+                offsets.add( ( ( PersistedBTree<V, V> ) subBtree ).getBtreeOffset() );
+                offsets.add( ( ( PersistedBTree<V, V> ) subBtree ).getBtreeInfoOffset() );
+                collectPageOffsets( subBtree.getRootPage(), offsets );
+            }
+        }
+    }
+
+
     /**
      * Creates a node leaf LevelInfo based on the number of elements in the lower level. We can store
      * up to PageSize + 1 references to pages in a node.
@@ -535,11 +765,29 @@ public class BulkLoader<K, V>
     }
 
 
+    /**
+     * Serializes a page into PageIOs allocated at the end of the file, and adds them to the
+     * current extent. The pages are written on disk when the extent is full, or when the
+     * writer is flushed. The copied pages B-tree is not updated : those pages don't
+     * exist in any older revision.
+     */
+    private static <K, V> PageHolder<K, V> writePage( BTree<K, V> btree, Page<K, V> page, ExtentWriter writer )
+        throws IOException
+    {
+        PageIO[] pageIos = ( ( PersistedBTree<K, V> ) btree ).getRecordManager().serializePage( btree, 0L, page,
+            true );
+        writer.write( pageIos );
+
+        return new PersistedPageHolder<K, V>( btree, page, pageIos[0].getOffset(),
+            pageIos[pageIos.length - 1].getOffset() );
+    }
+
+
     /**
      * Inject a page reference into the root page.
      */
     private static <K, V> void injectInRoot( BTree<K, V> btree, Page<K, V> page, PageHolder<K, V> pageHolder,
-        LevelInfo<K, V> level ) throws IOException
+        LevelInfo<K, V> level, ExtentWriter writer ) throws IOException
     {
         PersistedNode<K, V> node = ( PersistedNode<K, V> ) level.getCurrentPage();
 
@@ -558,12 +806,10 @@ public class BulkLoader<K, V>
             level.incNbAddedElems();
 
             // Check that we haven't added the last element. If so,
-            // we have to write the page on disk and update the btree
+            // we have to write the page on disk
             if ( level.getNbAddedElems() == level.getNbElems() )
             {
-                PageHolder<K, V> rootHolder = ( ( PersistedBTree<K, V> ) btree ).getRecordManager().writePage(
-                    btree, node, 0L );
-                ( ( PersistedBTree<K, V> ) btree ).setRootPage( rootHolder.getValue() );
+                writePage( btree, node, writer );
             }
         }
 
@@ -575,7 +821,7 @@ public class BulkLoader<K, V>
      * Inject a page reference into a Node. This method will recurse if needed.
      */
     private static <K, V> void injectInNode( BTree<K, V> btree, Page<K, V> page, List<LevelInfo<K, V>> levels,
-        int levelIndex )
+        int levelIndex, ExtentWriter writer )
         throws IOException
     {
         int pageSize = btree.getPageSize();
@@ -583,13 +829,13 @@ public class BulkLoader<K, V>
         PersistedNode<K, V> node = ( PersistedNode<K, V> ) level.getCurrentPage();
 
         // We first have to write the page on disk
-        PageHolder<K, V> pageHolder = ( ( PersistedBTree<K, V> ) btree ).getRecordManager().writePage( btree, page, 0L );
+        PageHolder<K, V> pageHolder = writePage( btree, page, writer );
 
         // First deal with a node that has less than PageSize elements at this level.
         // It will become the root node.
         if ( level.getNbElems() <= pageSize + 1 )
         {
-            injectInRoot( btree, page, pageHolder, level );
+            injectInRoot( btree, page, pageHolder, level, writer );
 
             return;
         }
@@ -627,7 +873,7 @@ public class BulkLoader<K, V>
                 //PageHolder<K, V> rootHolder = ( ( PersistedBTree<K, V> ) btree ).getRecordManager().writePage(
                 //    btree, node, 0L );
                 //( ( PersistedBTree<K, V> ) btree ).setRootPage( rootHolder.getValue() );
-                injectInNode( btree, node, levels, levelIndex + 1 );
+                injectInNode( btree, node, levels, levelIndex + 1, writer );
 
                 return;
             }
@@ -638,7 +884,7 @@ public class BulkLoader<K, V>
                 {
                     // yes. We have to write the node on disk, update its parent
                     // and create a new current node
-                    injectInNode( btree, node, levels, levelIndex + 1 );
+                    injectInNode( btree, node, levels, levelIndex + 1, writer );
 
                     // The page is full, we have to create a new one, with a size depending on the remaining elements
                     if ( level.getNbAddedElems() < level.getNbElemsLimit() )
@@ -697,7 +943,7 @@ public class BulkLoader<K, V>
                     if ( level.getNbAddedElems() == level.getNbElems() )
                     {
                         // Yes, we have to update the parent
-                        injectInNode( btree, node, levels, levelIndex + 1 );
+                        injectInNode( btree, node, levels, levelIndex + 1, writer );
                     }
                 }
                 else
@@ -726,7 +972,7 @@ public class BulkLoader<K, V>
                     if ( level.getCurrentPos() == node.getNbElems() + 1 )
                     {
                         // Yes, we have to update the parent
-                        injectInNode( btree, node, levels, levelIndex + 1 );
+                        injectInNode( btree, node, levels, levelIndex + 1, writer );
 
                         // An create a new one
                         level.setCurrentPage( BTreeFactory.createNode( btree, 0L, pageSize / 2 ) );
@@ -740,7 +986,7 @@ public class BulkLoader<K, V>
                 if ( level.getNbAddedElems() == level.getNbElems() )
                 {
                     // We are done with the page
-                    injectInNode( btree, node, levels, levelIndex + 1 );
+                    injectInNode( btree, node, levels, levelIndex + 1, writer );
                 }
                 else
                 {
@@ -769,7 +1015,7 @@ public class BulkLoader<K, V>
                     if ( level.getCurrentPos() == node.getNbElems() + 1 )
                     {
                         // Yes, we have to update the parent
-                        injectInNode( btree, node, levels, levelIndex + 1 );
+                        injectInNode( btree, node, levels, levelIndex + 1, writer );
 
                         // An create a new one
                         level.setCurrentPage( BTreeFactory.createNode( btree, 0L, pageSize / 2 ) );
@@ -858,13 +1104,37 @@ public class BulkLoader<K, V>
             return bulkLoadSinglePage( btree, dataIterator, nbElems );
         }
 
+        Page<K, V> rootPage = buildLevels( btree, dataIterator, nbElems );
+        ( ( PersistedBTree<K, V> ) btree ).setRootPage( rootPage );
+
+        // Update the btree with the nb of added elements, and write it$
+        BTreeHeader<K, V> btreeHeader = ( ( AbstractBTree<K, V> ) btree ).getBtreeHeader();
+        btreeHeader.setNbElems( nbElems );
+
+        return btree;
+    }
+
+
+    /**
+     * Builds the leaves and the nodes of a B-tree containing more than one page from the
+     * sorted data, and writes them on disk.
+     *
+     * @return The written root page
+     */
+    private static <K, V> Page<K, V> buildLevels( BTree<K, V> btree, Iterator<Tuple<K, Set<V>>> dataIterator,
+        int nbElems ) throws IOException
+    {
+        int pageSize = btree.getPageSize();
+
         // Ok, we will need more than one page to store the elements, which
         // means we also will need more than one level.
         // First, compute the needed number of levels.
         List<LevelInfo<K, V>> levels = computeLevels( btree, nbElems );
 
-        // Now, let's fill the levels
+        // Now, let's fill the levels. The pages are gathered in large extents written at the end of the file
         LevelInfo<K, V> leafLevel = levels.get( 0 );
+        ExtentWriter writer = new ExtentWriter( ( ( PersistedBTree<K, V> ) btree ).getRecordManager(),
+            ExtentWriter.DEFAULT_EXTENT_SIZE );
 
         while ( dataIterator.hasNext() )
         {
@@ -880,7 +1150,7 @@ public class BulkLoader<K, V>
                 // The page is completed, update the parent's node and create a new current page
                 if ( leafLevel.getCurrentPos() == pageSize )
                 {
-                    injectInNode( btree, leafLevel.getCurrentPage(), levels, 1 );
+                    injectInNode( btree, leafLevel.getCurrentPage(), levels, 1, writer );
 
                     // The page is full, we have to create a new one
                     leafLevel.setCurrentPage( BTreeFactory
@@ -918,7 +1188,7 @@ public class BulkLoader<K, V>
 
                     // Now inject the page into the node
                     Page<K, V> currentPage = leafLevel.getCurrentPage();
-                    injectInNode( btree, currentPage, levels, 1 );
+                    injectInNode( btree, currentPage, levels, 1, writer );
 
                     // Create a new page for the remaining elements
                     nbToAdd = pageSize / 2;
@@ -937,7 +1207,7 @@ public class BulkLoader<K, V>
 
                     // And update the parent node
                     Page<K, V> levelCurrentPage = leafLevel.getCurrentPage();
-                    injectInNode( btree, levelCurrentPage, levels, 1 );
+                    injectInNode( btree, levelCurrentPage, levels, 1, writer );
 
                     // We are done
                     break;
@@ -959,7 +1229,7 @@ public class BulkLoader<K, V>
                     }
 
                     // Now inject the page into the node
-                    injectInNode( btree, leafLevel.getCurrentPage(), levels, 1 );
+                    injectInNode( btree, leafLevel.getCurrentPage(), levels, 1, writer );
 
                     // and we are done
                     break;
@@ -967,11 +1237,11 @@ public class BulkLoader<K, V>
             }
         }
 
-        // Update the btree with the nb of added elements, and write it$
-        BTreeHeader<K, V> btreeHeader = ( ( AbstractBTree<K, V> ) btree ).getBtreeHeader();
-        btreeHeader.setNbElems( nbElems );
+        // All the pages must be on disk before the root page is published
+        writer.flush();
 
-        return btree;
+        // The root page is the only page of the upper level
+        return levels.get( levels.size() - 1 ).getCurrentPage();
     }
 
 
@@ -988,33 +1258,20 @@ public class BulkLoader<K, V>
 
         File file = File.createTempFile( "sorted", Integer.toString( fileNb ) );
         file.deleteOnExit();
-        FileOutputStream fos = new FileOutputStream( file );
+        TupleRunWriter<K, V> writer = new TupleRunWriter<K, V>( btree, file );
 
-        // Flush the tuples on disk
-        for ( Tuple<K, Set<V>> tuple : sortedTuples )
+        try
         {
-            // Serialize the key
-            byte[] bytesKey = btree.getKeySerializer().serialize( tuple.key );
-            fos.write( IntSerializer.serialize( bytesKey.length ) );
-            fos.write( bytesKey );
-
-            // Serialize the number of values
-            int nbValues = tuple.getValue().size();
-            fos.write( IntSerializer.serialize( nbValues ) );
-
-            // Serialize the values
-            for ( V value : tuple.getValue() )
+            // Flush the tuples on disk
+            for ( Tuple<K, Set<V>> tuple : sortedTuples )
             {
-                byte[] bytesValue = btree.getValueSerializer().serialize( value );
-
-                // Serialize the value
-                fos.write( IntSerializer.serialize( bytesValue.length ) );
-                fos.write( bytesValue );
+                writer.write( tuple );
             }
         }
-
-        fos.flush();
-        fos.close();
+        finally
+        {
+            writer.close();
+        }
 
         return file;
     }
@@ -1058,7 +1315,7 @@ public class BulkLoader<K, V>
 
         // Now, sort the map, by extracting all the key/values from the map
         int size = mapTuples.size();
-        Tuple<K, Set<V>>[] sortedTuples = new Tuple[size];
+        Tuple<K, Set<V>>[] sortedTuples = newArray( Tuple.class, size );
         int pos = 0;
 
         // We create an array containing all the elements
@@ -1070,13 +1327,31 @@ public class BulkLoader<K, V>
             pos++;
         }
 
-        // And we sort the array
-        Arrays.sort( sortedTuples, tupleComparator );
+        // And we sort the array, using the fork-join pool we are running in, or the common pool
+        if ( size > 1 )
+        {
+            Tuple<K, Set<V>>[] buffer = newArray( Tuple.class, size );
+            new SortTask<Tuple<K, Set<V>>>( sortedTuples, buffer, 0, size, tupleComparator ).invoke();
+        }
 
         return sortedTuples;
     }
 
 
+    /**
+     * Creates an array of a generic type
+     *
+     * @param type The class of the array elements
+     * @param size The array size
+     * @return The created array
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> T[] newArray( Class<?> type, int size )
+    {
+        return ( T[] ) Array.newInstance( type, size );
+    }
+
+
     /**
      * Build an iterator over an array of sorted tuples, in memory
      */
@@ -1122,151 +1397,217 @@ public class BulkLoader<K, V>
     }
 
 
-    private static <K, V> Tuple<K, Set<V>> fetchTuple( BTree<K, V> btree, FileInputStream fis )
+    /**
+     * Build an iterator over the tuples of a B-tree, gathering the values of each key in a set
+     */
+    private static <K, V> Iterator<Tuple<K, Set<V>>> createCursorIterator( final BTree<K, V> btree,
+        final TupleCursor<K, V> cursor )
     {
-        try
+        Iterator<Tuple<K, Set<V>>> tupleIterator = new Iterator<Tuple<K, Set<V>>>()
         {
-            if ( fis.available() == 0 )
+            /** The first tuple of the next key, already read from the cursor */
+            private Tuple<K, V> pending;
+
+
+            @Override
+            public Tuple<K, Set<V>> next()
             {
-                return null;
-            }
+                try
+                {
+                    if ( pending == null )
+                    {
+                        pending = cursor.next();
+                    }
 
-            Tuple<K, Set<V>> tuple = new Tuple<K, Set<V>>();
-            tuple.value = new TreeSet<V>();
+                    Tuple<K, Set<V>> tuple = new Tuple<K, Set<V>>();
+                    tuple.key = pending.getKey();
+                    tuple.value = new TreeSet<V>( btree.getValueComparator() );
+                    tuple.value.add( pending.getValue() );
+                    pending = null;
 
-            byte[] intBytes = new byte[4];
+                    // Gather the values of the same key
+                    while ( cursor.hasNext() )
+                    {
+                        Tuple<K, V> next = cursor.next();
 
-            // Read the key length
-            fis.read( intBytes );
-            int keyLength = IntSerializer.deserialize( intBytes );
+                        if ( btree.getKeyComparator().compare( next.getKey(), tuple.key ) != 0 )
+                        {
+                            pending = next;
+                            break;
+                        }
 
-            // Read the key
-            byte[] keyBytes = new byte[keyLength];
-            fis.read( keyBytes );
-            K key = btree.getKeySerializer().fromBytes( keyBytes );
-            tuple.key = key;
+                        tuple.value.add( next.getValue() );
+                    }
+
+                    return tuple;
+                }
+                catch ( IOException ioe )
+                {
+                    throw new BTreeOperationException( ioe );
+                }
+            }
 
-            // get the number of values
-            fis.read( intBytes );
-            int nbValues = IntSerializer.deserialize( intBytes );
 
-            // Serialize the values
-            for ( int i = 0; i < nbValues; i++ )
+            @Override
+            public boolean hasNext()
             {
-                // Read the value length
-                fis.read( intBytes );
-                int valueLength = IntSerializer.deserialize( intBytes );
-
-                // Read the value
-                byte[] valueBytes = new byte[valueLength];
-                fis.read( valueBytes );
-                V value = btree.getValueSerializer().fromBytes( valueBytes );
-                tuple.value.add( value );
+                try
+                {
+                    return ( pending != null ) || cursor.hasNext();
+                }
+                catch ( IOException ioe )
+                {
+                    throw new BTreeOperationException( ioe );
+                }
             }
 
-            return tuple;
-        }
-        catch ( IOException ioe )
-        {
-            return null;
-        }
+
+            @Override
+            public void remove()
+            {
+            }
+        };
+
+        return tupleIterator;
     }
 
 
     /**
-     * Build an iterator over an array of sorted tuples, from files on the disk
-     * @throws FileNotFoundException 
+     * Build an iterator merging the sorted tuples of a B-tree with sorted incoming tuples. The
+     * values of a key present in both are gathered if the B-tree accepts duplicate values,
+     * otherwise the incoming values are kept.
      */
-    private static <K, V> Iterator<Tuple<K, Set<V>>> createIterator( final BTree<K, V> btree,
-        final FileInputStream[] streams )
-        throws FileNotFoundException
+    private static <K, V> Iterator<Tuple<K, Set<V>>> createMergeIterator( final BTree<K, V> btree,
+        final Iterator<Tuple<K, Set<V>>> existing, final Iterator<Tuple<K, Set<V>>> incoming )
     {
-        // The number of files we have to read from
-        final int nbFiles = streams.length;
+        Iterator<Tuple<K, Set<V>>> tupleIterator = new Iterator<Tuple<K, Set<V>>>()
+        {
+            /** The current tuple of each iterator */
+            private Tuple<K, Set<V>> existingTuple = existing.hasNext() ? existing.next() : null;
+            private Tuple<K, Set<V>> incomingTuple = incoming.hasNext() ? incoming.next() : null;
 
-        // We will read only one element at a time from each file
-        final Tuple<K, Set<V>>[] readTuples = new Tuple[nbFiles];
-        final TreeMap<Tuple<K, Integer>, Set<V>> candidates =
-            new TreeMap<Tuple<K, Integer>, Set<V>>(
-                new TupleComparator<K, Integer>( btree.getKeyComparator(), IntComparator.INSTANCE ) );
 
-        // Read the tuple from each files
-        for ( int i = 0; i < nbFiles; i++ )
-        {
-            while ( true )
+            @Override
+            public Tuple<K, Set<V>> next()
             {
-                readTuples[i] = fetchTuple( btree, streams[i] );
+                Tuple<K, Set<V>> tuple = null;
 
-                if ( readTuples[i] != null )
+                if ( existingTuple == null )
                 {
-                    Tuple<K, Integer> candidate = new Tuple<K, Integer>( readTuples[i].key, i, btree.getKeySerializer()
-                        .getComparator() );
+                    tuple = incomingTuple;
+                    incomingTuple = incoming.hasNext() ? incoming.next() : null;
 
-                    if ( !candidates.containsKey( candidate ) )
-                    {
-                        candidates.put( candidate, readTuples[i].getValue() );
-                        break;
-                    }
-                    else
-                    {
-                        // We have to merge the pulled tuple with the existing one, and read one more tuple
-                        Set<V> oldValues = candidates.get( candidate );
-                        oldValues.addAll( readTuples[i].getValue() );
-                    }
+                    return tuple;
+                }
+
+                if ( incomingTuple == null )
+                {
+                    tuple = existingTuple;
+                    existingTuple = existing.hasNext() ? existing.next() : null;
+
+                    return tuple;
+                }
+
+                int comparison = btree.getKeyComparator().compare( existingTuple.key, incomingTuple.key );
+
+                if ( comparison < 0 )
+                {
+                    tuple = existingTuple;
+                    existingTuple = existing.hasNext() ? existing.next() : null;
+                }
+                else if ( comparison > 0 )
+                {
+                    tuple = incomingTuple;
+                    incomingTuple = incoming.hasNext() ? incoming.next() : null;
                 }
                 else
                 {
-                    break;
+                    tuple = incomingTuple;
+
+                    if ( btree.isAllowDuplicates() )
+                    {
+                        tuple.value.addAll( existingTuple.value );
+                    }
+
+                    existingTuple = existing.hasNext() ? existing.next() : null;
+                    incomingTuple = incoming.hasNext() ? incoming.next() : null;
                 }
+
+                return tuple;
             }
-        }
 
-        Iterator<Tuple<K, Set<V>>> tupleIterator = new Iterator<Tuple<K, Set<V>>>()
-        {
+
             @Override
-            public Tuple<K, Set<V>> next()
+            public boolean hasNext()
+            {
+                return ( existingTuple != null ) || ( incomingTuple != null );
+            }
+
+
+            @Override
+            public void remove()
             {
-                // Get the first candidate
-                Tuple<K, Integer> tupleCandidate = candidates.firstKey();
+            }
+        };
+
+        return tupleIterator;
+    }
 
-                // Remove it from the set
-                candidates.remove( tupleCandidate );
 
-                // Get the the next tuple from the stream we just got the tuple from
-                Tuple<K, Set<V>> tuple = readTuples[tupleCandidate.value];
+    /**
+     * Build an iterator over an array of sorted tuples, from files on the disk. The runs are merged
+     * using a priority queue of their current tuples : the smallest key is pulled, and the values of
+     * the tuples having the same key in the other runs are gathered with its values.
+     */
+    private static <K, V> Iterator<Tuple<K, Set<V>>> createIterator( final BTree<K, V> btree,
+        final TupleRunReader<K, V>[] readers ) throws IOException
+    {
+        final Comparator<K> keyComparator = btree.getKeyComparator();
 
-                // fetch the next tuple from the file we just read teh candidate from 
-                while ( true )
+        // The current tuple of each run, ordered by key, then by run
+        final PriorityQueue<RunHead<K, V>> heads = new PriorityQueue<RunHead<K, V>>( Math.max( 1, readers.length ),
+            new Comparator<RunHead<K, V>>()
+            {
+                @Override
+                public int compare( RunHead<K, V> head1, RunHead<K, V> head2 )
                 {
-                    // fetch it from the disk and store it into its reader
-                    readTuples[tupleCandidate.value] = fetchTuple( btree, streams[tupleCandidate.value] );
+                    int result = keyComparator.compare( head1.tuple.getKey(), head2.tuple.getKey() );
 
-                    if ( readTuples[tupleCandidate.value] == null )
+                    if ( result != 0 )
                     {
-                        // No more tuple for this file
-                        break;
+                        return result;
                     }
 
-                    if ( readTuples[tupleCandidate.value] != null )
-                    {
-                        // And store it into the candidate set
-                        Set<V> oldValues = candidates.get( readTuples[tupleCandidate.value] );
+                    return head1.runNb - head2.runNb;
+                }
+            } );
 
-                        if ( oldValues != null )
-                        {
-                            // We already have another element with the same key, merge them
-                            oldValues.addAll( readTuples[tupleCandidate.value].value );
-                        }
-                        else
-                        {
-                            Tuple<K, Integer> newTuple = new Tuple<K, Integer>( readTuples[tupleCandidate.value].key,
-                                tupleCandidate.value );
-                            candidates.put( newTuple, readTuples[tupleCandidate.value].getValue() );
+        // Read the first tuple from each run
+        for ( int i = 0; i < readers.length; i++ )
+        {
+            Tuple<K, Set<V>> tuple = readers[i].read();
 
-                            // and exit the loop
-                            break;
-                        }
-                    }
+            if ( tuple != null )
+            {
+                heads.add( new RunHead<K, V>( i, tuple ) );
+            }
+        }
+
+        Iterator<Tuple<K, Set<V>>> tupleIterator = new Iterator<Tuple<K, Set<V>>>()
+        {
+            @Override
+            public Tuple<K, Set<V>> next()
+            {
+                RunHead<K, V> head = heads.poll();
+                Tuple<K, Set<V>> tuple = head.tuple;
+                advance( head );
+
+                // Gather the values of the same key stored in the other runs
+                while ( !heads.isEmpty() && ( keyComparator.compare( heads.peek().tuple.getKey(), tuple.getKey() ) == 0 ) )
+                {
+                    RunHead<K, V> other = heads.poll();
+                    tuple.getValue().addAll( other.tuple.getValue() );
+                    advance( other );
                 }
 
                 // We can now return the found value
@@ -1274,11 +1615,32 @@ public class BulkLoader<K, V>
             }
 
 
+            /**
+             * Read the next tuple of a run, and put it back in the queue if any
+             */
+            private void advance( RunHead<K, V> head )
+            {
+                try
+                {
+                    head.tuple = readers[head.runNb].read();
+                }
+                catch ( IOException ioe )
+                {
+                    throw new BTreeOperationException( ioe );
+                }
+
+                if ( head.tuple != null )
+                {
+                    heads.add( head );
+                }
+            }
+
+
             @Override
             public boolean hasNext()
             {
                 // Check that we have at least one element to read
-                return !candidates.isEmpty();
+                return !heads.isEmpty();
             }
 
 
@@ -1294,23 +1656,42 @@ public class BulkLoader<K, V>
 
 
     /**
-     * Build an iterator over an array of sorted tuples, from files on the disk
-     * @throws FileNotFoundException 
+     * Build an iterator over the sorted tuples of one single file on the disk. The file is closed
+     * when all its tuples have been read.
      */
-    private static <K, V> Iterator<Tuple<K, Set<V>>> createUniqueFileIterator( final BTree<K, V> btree,
-        final FileInputStream stream )
-        throws FileNotFoundException
+    private static <K, V> Iterator<Tuple<K, Set<V>>> createUniqueFileIterator( final TupleRunReader<K, V> reader )
+        throws IOException
     {
+        final Tuple<K, Set<V>> first = reader.read();
+
+        if ( first == null )
+        {
+            reader.close();
+        }
+
         Iterator<Tuple<K, Set<V>>> tupleIterator = new Iterator<Tuple<K, Set<V>>>()
         {
-            boolean hasNext = true;
+            private Tuple<K, Set<V>> nextTuple = first;
 
 
             @Override
             public Tuple<K, Set<V>> next()
             {
-                // Get the tuple from the stream
-                Tuple<K, Set<V>> tuple = fetchTuple( btree, stream );
+                Tuple<K, Set<V>> tuple = nextTuple;
+
+                try
+                {
+                    nextTuple = reader.read();
+
+                    if ( nextTuple == null )
+                    {
+                        reader.close();
+                    }
+                }
+                catch ( IOException ioe )
+                {
+                    throw new BTreeOperationException( ioe );
+                }
 
                 // We can now return the found value
                 return tuple;
@@ -1321,14 +1702,7 @@ public class BulkLoader<K, V>
             public boolean hasNext()
             {
                 // Check that we have at least one element to read
-                try
-                {
-                    return stream.available() > 0;
-                }
-                catch ( IOException e )
-                {
-                    return false;
-                }
+                return nextTuple != null;
             }
 
 
@@ -1343,6 +1717,103 @@ public class BulkLoader<K, V>
     }
 
 
+    /**
+     * The current tuple of a run being merged
+     */
+    private static class RunHead<K, V>
+    {
+        /** The run number */
+        private final int runNb;
+
+        /** The tuple read from the run */
+        private Tuple<K, Set<V>> tuple;
+
+
+        private RunHead( int runNb, Tuple<K, Set<V>> tuple )
+        {
+            this.runNb = runNb;
+            this.tuple = tuple;
+        }
+    }
+
+
+    /**
+     * A fork-join merge sort. The two halves of a range are sorted in parallel, then merged
+     * using a temporary array. The small ranges are sorted sequentially.
+     */
+    private static class SortTask<T> extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        /** The size under which a range is sorted sequentially */
+        private static final int THRESHOLD = 8192;
+
+        /** The array to sort */
+        private final T[] array;
+
+        /** The temporary array used while merging */
+        private final T[] buffer;
+
+        /** The first position of the range, included */
+        private final int from;
+
+        /** The last position of the range, excluded */
+        private final int to;
+
+        /** The comparator */
+        private final Comparator<? super T> comparator;
+
+
+        private SortTask( T[] array, T[] buffer, int from, int to, Comparator<? super T> comparator )
+        {
+            this.array = array;
+            this.buffer = buffer;
+            this.from = from;
+            this.to = to;
+            this.comparator = comparator;
+        }
+
+
+        @Override
+        protected void compute()
+        {
+            if ( to - from <= THRESHOLD )
+            {
+                Arrays.sort( array, from, to, comparator );
+
+                return;
+            }
+
+            int middle = ( from + to ) >>> 1;
+
+            invokeAll( new SortTask<T>( array, buffer, from, middle, comparator ),
+                new SortTask<T>( array, buffer, middle, to, comparator ) );
+
+            // Merge the two sorted halves
+            int left = from;
+            int right = middle;
+            int pos = from;
+
+            while ( ( left < middle ) && ( right < to ) )
+            {
+                if ( comparator.compare( array[right], array[left] ) < 0 )
+                {
+                    buffer[pos++] = array[right++];
+                }
+                else
+                {
+                    buffer[pos++] = array[left++];
+                }
+            }
+
+            System.arraycopy( array, left, buffer, pos, middle - left );
+            pos += middle - left;
+            System.arraycopy( array, right, buffer, pos, to - right );
+            System.arraycopy( buffer, from, array, from, to - from );
+        }
+    }
+
+
     /**
      * Compact a given persisted BTree, making it dense. All the values will be stored 
      * in newly created pages, each one of them containing as much elements
@@ -0,0 +1,200 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.mavibot.btree;
+
+
+/**
+ * Encodes a sorted set of distinct longs in a compact form : the first value is stored
+ * as a zigzag varint, and each following value as the varint of its difference with the
+ * previous one. Close values, like the entry IDs associated with an index key, then take
+ * one or two bytes each instead of twelve for a length-prefixed serialized Long.
+ * <p>
+ * A varint stores 7 bits per byte, the high bit being set on every byte but the last one.
+ * The differences are computed modulo 2^64, so any sorted set of longs can be encoded.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+/* no qualifier */final class CompressedLongValues
+{
+    /**
+     * Private constructor : this class only has static methods
+     */
+    private CompressedLongValues()
+    {
+    }
+
+
+    /**
+     * Encodes the given values, which must be sorted in ascending order and distinct.
+     *
+     * @param values The values to encode
+     * @return The encoded values
+     */
+    /* no qualifier */static byte[] encode( Long[] values )
+    {
+        int size = 0;
+        long previous = 0L;
+
+        for ( int i = 0; i < values.length; i++ )
+        {
+            long value = values[i];
+            size += getVarLongSize( delta( i, value, previous ) );
+            previous = value;
+        }
+
+        byte[] raw = new byte[size];
+        int pos = 0;
+        previous = 0L;
+
+        for ( int i = 0; i < values.length; i++ )
+        {
+            long value = values[i];
+            long delta = delta( i, value, previous );
+
+            while ( ( delta & ~0x7FL ) != 0L )
+            {
+                raw[pos++] = ( byte ) ( ( delta & 0x7FL ) | 0x80L );
+                delta >>>= 7;
+            }
+
+            raw[pos++] = ( byte ) delta;
+            previous = value;
+        }
+
+        return raw;
+    }
+
+
+    /**
+     * Decodes the values into the given array, which size must be the number of encoded values.
+     *
+     * @param raw The encoded values
+     * @param values The array receiving the decoded values
+     */
+    /* no qualifier */static void decode( byte[] raw, Long[] values )
+    {
+        int pos = 0;
+        long previous = 0L;
+
+        for ( int i = 0; i < values.length; i++ )
+        {
+            long delta = 0L;
+            int shift = 0;
+            byte b;
+
+            do
+            {
+                b = raw[pos++];
+                delta |= ( b & 0x7FL ) << shift;
+                shift += 7;
+            }
+            while ( b < 0 );
+
+            previous = value( i, delta, previous );
+            values[i] = previous;
+        }
+    }
+
+
+    /**
+     * Tells if the encoded values contain the given value. The values are decoded one by
+     * one, without creating any Long, and we stop as soon as we get past the value.
+     *
+     * @param raw The encoded values
+     * @param value The value we are looking for
+     * @return true if the value is present
+     */
+    /* no qualifier */static boolean contains( byte[] raw, long value )
+    {
+        int pos = 0;
+        int i = 0;
+        long previous = 0L;
+
+        while ( pos < raw.length )
+        {
+            long delta = 0L;
+            int shift = 0;
+            byte b;
+
+            do
+            {
+                b = raw[pos++];
+                delta |= ( b & 0x7FL ) << shift;
+                shift += 7;
+            }
+            while ( b < 0 );
+
+            previous = value( i++, delta, previous );
+
+            if ( previous >= value )
+            {
+                return previous == value;
+            }
+        }
+
+        return false;
+    }
+
+
+    /**
+     * Computes what is stored for the value at the given position : the zigzag encoded
+     * value for the first one, the difference with the previous value otherwise.
+     */
+    private static long delta( int pos, long value, long previous )
+    {
+        if ( pos == 0 )
+        {
+            return ( value << 1 ) ^ ( value >> 63 );
+        }
+
+        return value - previous;
+    }
+
+
+    /**
+     * Computes the value at the given position from what has been stored.
+     */
+    private static long value( int pos, long delta, long previous )
+    {
+        if ( pos == 0 )
+        {
+            return ( delta >>> 1 ) ^ -( delta & 1L );
+        }
+
+        return previous + delta;
+    }
+
+
+    /**
+     * @return The number of bytes needed to store the given value as a varint
+     */
+    private static int getVarLongSize( long value )
+    {
+        int size = 1;
+
+        while ( ( value & ~0x7FL ) != 0L )
+        {
+            value >>>= 7;
+            size++;
+        }
+
+        return size;
+    }
+}
@@ -171,6 +171,15 @@ public class EmptyValueCursor<V> implements ValueCursor<V>
     }
 
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void seek( V value ) throws IOException
+    {
+    }
+
+
     /**
      * {@inheritDoc}
      */
@@ -0,0 +1,121 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.mavibot.btree;
+
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+
+/**
+ * Gathers PageIOs stored at consecutive offsets into a large buffer, and writes them
+ * with a single call when the buffer is full, or when a PageIO is not contiguous with the
+ * previous one. This is used when a lot of pages are written in sequence, typically when
+ * a whole B-tree is stored in a fresh area of the file.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+/* no qualifier */class ExtentWriter
+{
+    /** The default size of an extent, in bytes */
+    /* no qualifier */static final int DEFAULT_EXTENT_SIZE = 1024 * 1024;
+
+    /** The RecordManager we write into */
+    private RecordManager recordManager;
+
+    /** The buffer gathering the PageIOs */
+    private ByteBuffer extent;
+
+    /** The offset of the first PageIO in the buffer */
+    private long extentOffset = RecordManager.NO_PAGE;
+
+
+    /**
+     * Creates a new ExtentWriter
+     *
+     * @param recordManager The RecordManager we write into
+     * @param extentSize The maximum number of bytes written at once
+     */
+    /* no qualifier */ExtentWriter( RecordManager recordManager, int extentSize )
+    {
+        this.recordManager = recordManager;
+
+        int pageSize = recordManager.getPageSize();
+        int nbPages = Math.max( 1, extentSize / pageSize );
+
+        extent = ByteBuffer.allocateDirect( nbPages * pageSize );
+    }
+
+
+    /**
+     * Adds some PageIOs to the current extent. They will be written later, when the extent
+     * is full, when a non contiguous PageIO is added, or when the writer is flushed.
+     *
+     * @param pageIos The PageIOs to write
+     * @throws IOException If the write failed
+     */
+    /* no qualifier */void write( PageIO... pageIos ) throws IOException
+    {
+        for ( PageIO pageIo : pageIos )
+        {
+            long expectedOffset = extentOffset + extent.position();
+
+            if ( ( extent.position() > 0 ) && ( ( pageIo.getOffset() != expectedOffset ) || !extent.hasRemaining() ) )
+            {
+                flush();
+            }
+
+            if ( extent.position() == 0 )
+            {
+                extentOffset = pageIo.getOffset();
+            }
+
+            ByteBuffer data = pageIo.getData();
+            data.rewind();
+            extent.put( data );
+            data.rewind();
+        }
+    }
+
+
+    /**
+     * Writes the pending PageIOs on disk.
+     *
+     * @throws IOException If the write failed
+     */
+    /* no qualifier */void flush() throws IOException
+    {
+        if ( extent.position() == 0 )
+        {
+            return;
+        }
+
+        extent.flip();
+        long position = extentOffset;
+
+        while ( extent.hasRemaining() )
+        {
+            position += recordManager.fileChannel.write( extent, position );
+        }
+
+        extent.clear();
+        extentOffset = RecordManager.NO_PAGE;
+    }
+}
@@ -0,0 +1,514 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.mavibot.btree;
+
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * A class used to compact the file managed by a RecordManager while it is in use.
+ * <p>
+ * The live pages stored at the end of the file are moved into the free pages located
+ * before them. A page is moved by writing a copy of it, and of all its parents, as a
+ * new revision of its B-tree, exactly like an update would do : the replaced pages are
+ * stored into the copiedPages B-tree, and they are released by the {@link PageReclaimer}
+ * when no read transaction is using their revision anymore. Once the end of the file
+ * only contains free pages, the file is truncated.
+ * <p>
+ * At most <em>maxPagesPerStep</em> pages are moved in a single transaction, and the
+ * compactor can pause between two transactions, so that the writers are never blocked
+ * for long. The sub-btrees used to store duplicate values are not moved.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class FileCompactor
+{
+    /** The LoggerFactory used by this class */
+    protected static final Logger LOG = LoggerFactory.getLogger( FileCompactor.class );
+
+    /** The default number of pages moved in a single transaction */
+    public static final int DEFAULT_MAX_PAGES_PER_STEP = 64;
+
+    /** The maximum number of passes done by a compaction */
+    private static final int MAX_PASSES = 4;
+
+    /** the record manager */
+    private RecordManager rm;
+
+    /** The number of pages moved in a single transaction */
+    private int maxPagesPerStep = DEFAULT_MAX_PAGES_PER_STEP;
+
+    /** The delay to wait for between two transactions, in ms */
+    private long pause = 0L;
+
+    /** a flag set when the compaction has to be stopped */
+    private volatile boolean stopped = false;
+
+    /**
+     * The state of a step : the pages which have been moved in the current transaction,
+     * and the key to restart from in the next transaction.
+     */
+    private static class Step<K, V>
+    {
+        /** The B-tree being relocated */
+        private PersistedBTree<K, V> btree;
+
+        /** The revision used for the new pages */
+        private long revision;
+
+        /** The pages stored at or after this offset have to be moved */
+        private long limit;
+
+        /** The key to start from, null to start from the leftmost key */
+        private K from;
+
+        /** The key the next step will start from */
+        private K resumeKey;
+
+        /** Set to true when the maximum number of pages for this step has been reached */
+        private boolean exhausted;
+
+        /** The pages replaced during this step */
+        private List<Page<K, V>> copiedPages = new ArrayList<Page<K, V>>();
+    }
+
+
+    /**
+     * Creates a new instance of FileCompactor.
+     *
+     * @param rm the record manager
+     */
+    public FileCompactor( RecordManager rm )
+    {
+        this.rm = rm;
+    }
+
+
+    /**
+     * Compacts the file. The live pages stored at the end of the file are moved into the
+     * free pages, then the file is truncated.
+     *
+     * @return The number of bytes the file has been shrunk by
+     * @throws IOException If the compaction failed
+     */
+    public long compact() throws IOException
+    {
+        long released = 0L;
+        stopped = false;
+
+        for ( int pass = 0; ( pass < MAX_PASSES ) && !stopped; pass++ )
+        {
+            // Free the pages copied by the previous updates
+            rm.reclaimPages();
+
+            int nbMoved = relocate();
+
+            // Now free the pages we have replaced, and release the end of the file
+            rm.reclaimPages();
+            long nbReleased = truncate();
+
+            LOG.debug( "Compaction pass {} : {} pages moved, {} bytes released", pass, nbMoved, nbReleased );
+
+            released += nbReleased;
+
+            if ( ( nbMoved == 0 ) || ( nbReleased == 0L ) )
+            {
+                break;
+            }
+        }
+
+        // Rewrite the Bloom filters, and release the space used by the previous ones
+        if ( rebuildBloomFilters() )
+        {
+            rm.reclaimPages();
+            released += truncate();
+        }
+
+        return released;
+    }
+
+
+    /**
+     * Rebuild the Bloom filters from the current keys, so that they don't contain the
+     * deleted keys anymore, and write them on disk.
+     *
+     * @return true if at least one Bloom filter has been written
+     */
+    private boolean rebuildBloomFilters() throws IOException
+    {
+        boolean rebuilt = false;
+
+        for ( String name : rm.getManagedTrees() )
+        {
+            BTree<?, ?> btree = rm.getManagedTree( name );
+
+            if ( ( btree instanceof PersistedBTree ) && ( ( PersistedBTree<?, ?> ) btree ).hasBloomFilter() )
+            {
+                rm.beginTransaction();
+
+                try
+                {
+                    ( ( PersistedBTree<?, ?> ) btree ).rebuildBloomFilter();
+                    rm.writeBloomFilter( ( PersistedBTree<?, ?> ) btree );
+                    rm.commit();
+                    rebuilt = true;
+                }
+                catch ( IOException ioe )
+                {
+                    rm.rollback();
+                    throw ioe;
+                }
+            }
+        }
+
+        return rebuilt;
+    }
+
+
+    /**
+     * Stops a running compaction. The current transaction is completed.
+     */
+    public void stop()
+    {
+        stopped = true;
+    }
+
+
+    /**
+     * Move the pages of all the B-trees which are stored after the limit.
+     *
+     * @return The number of moved pages
+     */
+    private int relocate() throws IOException
+    {
+        List<BTree<?, ?>> btrees = new ArrayList<BTree<?, ?>>();
+
+        for ( String name : rm.getManagedTrees() )
+        {
+            BTree<?, ?> btree = rm.getManagedTree( name );
+
+            if ( ( btree != null ) && ( btree.getType() == BTreeTypeEnum.PERSISTED ) )
+            {
+                btrees.add( btree );
+            }
+        }
+
+        btrees.add( rm.btreeOfBtrees );
+        btrees.add( rm.copiedPageBtree );
+
+        // If all the free pages were at the end of the file, the live pages would be
+        // stored before this limit
+        long limit;
+
+        rm.beginTransaction();
+
+        try
+        {
+            int nbFreePages = rm.orderFreePages();
+            limit = rm.getEndOfFileOffset() - ( long ) nbFreePages * rm.getPageSize();
+            rm.commit();
+        }
+        catch ( IOException ioe )
+        {
+            rm.rollback();
+            throw ioe;
+        }
+
+        int nbMoved = 0;
+
+        for ( BTree<?, ?> btree : btrees )
+        {
+            if ( stopped )
+            {
+                break;
+            }
+
+            nbMoved += relocate( ( PersistedBTree<?, ?> ) btree, limit );
+        }
+
+        return nbMoved;
+    }
+
+
+    /**
+     * Move the pages of a B-tree which are stored after the limit, in as many
+     * transactions as needed.
+     *
+     * @param btree The B-tree to relocate
+     * @param limit The pages stored at or after this offset will be moved
+     * @return The number of moved pages
+     */
+    private <K, V> int relocate( PersistedBTree<K, V> btree, long limit ) throws IOException
+    {
+        int nbMoved = 0;
+        K from = null;
+
+        while ( !stopped )
+        {
+            Step<K, V> step = new Step<K, V>();
+
+            rm.beginTransaction();
+
+            try
+            {
+                // Make sure the new pages will be allocated at the beginning of the file
+                rm.orderFreePages();
+
+                if ( ( rm.firstFreePage == RecordManager.NO_PAGE ) || ( rm.firstFreePage >= limit ) )
+                {
+                    // There is no room left before the limit
+                    rm.commit();
+
+                    break;
+                }
+
+                step.btree = btree;
+                step.revision = btree.getRevision() + 1;
+                step.limit = limit;
+                step.from = from;
+
+                Page<K, V> rootPage = btree.getRootPage();
+                Page<K, V> newRootPage = relocate( step, rootPage );
+                long btreeHeaderOffset = btree.getBtreeHeader().getBTreeHeaderOffset();
+
+                if ( ( newRootPage == null ) && rm.isStoredAfter( btreeHeaderOffset, btreeHeaderOffset, limit ) )
+                {
+                    // The B-tree header is written again when we create a new revision
+                    newRootPage = copy( step, rootPage );
+                }
+
+                if ( newRootPage != null )
+                {
+                    btree.relocateRootPage( newRootPage, step.revision, step.copiedPages );
+                }
+
+                rm.commit();
+            }
+            catch ( IOException ioe )
+            {
+                rm.rollback();
+                throw ioe;
+            }
+
+            nbMoved += step.copiedPages.size();
+
+            if ( !step.exhausted )
+            {
+                // We are done with this B-tree
+                break;
+            }
+
+            from = step.resumeKey;
+
+            pause();
+        }
+
+        return nbMoved;
+    }
+
+
+    /**
+     * Move a page if it's stored after the limit, or if one of its children has been moved.
+     *
+     * @param step The current step
+     * @param page The page to move
+     * @return The new page, or null if the page hasn't been moved
+     */
+    private <K, V> Page<K, V> relocate( Step<K, V> step, Page<K, V> page ) throws IOException
+    {
+        AbstractPage<K, V> newPage = null;
+
+        if ( page.isNode() )
+        {
+            PersistedNode<K, V> node = ( PersistedNode<K, V> ) page;
+            int start = 0;
+
+            if ( step.from != null )
+            {
+                start = node.findPos( step.from );
+
+                if ( start < 0 )
+                {
+                    // The key is in the right child
+                    start = -start;
+                }
+            }
+
+            for ( int pos = start; pos <= node.getNbElems(); pos++ )
+            {
+                if ( !step.exhausted && ( step.copiedPages.size() >= maxPagesPerStep ) && ( pos > start ) )
+                {
+                    // We are done for this step, the next one will start from this child
+                    step.exhausted = true;
+                    step.resumeKey = node.getKey( pos - 1 );
+                }
+
+                if ( step.exhausted )
+                {
+                    break;
+                }
+
+                Page<K, V> newChild = relocate( step, node.getPage( pos ) );
+
+                if ( newChild != null )
+                {
+                    if ( newPage == null )
+                    {
+                        newPage = copy( step, node );
+                    }
+
+                    newPage.setPageHolder( pos, rm.writePage( step.btree, newChild, step.revision ) );
+                }
+            }
+
+            // If the step is exhausted, this node will be visited again by the next step
+            if ( ( newPage == null ) && !step.exhausted && isStoredAfter( node, step.limit ) )
+            {
+                newPage = copy( step, node );
+            }
+        }
+        else if ( isStoredAfter( ( AbstractPage<K, V> ) page, step.limit ) )
+        {
+            newPage = copy( step, page );
+        }
+
+        return newPage;
+    }
+
+
+    /**
+     * Copy a page with the step revision, and add it to the replaced pages
+     */
+    private <K, V> AbstractPage<K, V> copy( Step<K, V> step, Page<K, V> page )
+    {
+        step.copiedPages.add( page );
+
+        if ( page.isNode() )
+        {
+            return ( ( PersistedNode<K, V> ) page ).copy( step.revision );
+        }
+        else
+        {
+            return ( AbstractPage<K, V> ) ( ( PersistedLeaf<K, V> ) page ).copy( step.revision );
+        }
+    }
+
+
+    /**
+     * Tells if a page is stored, even partially, after the limit
+     */
+    private <K, V> boolean isStoredAfter( AbstractPage<K, V> page, long limit ) throws IOException
+    {
+        return rm.isStoredAfter( page.getOffset(), page.getLastOffset(), limit );
+    }
+
+
+    /**
+     * Release the free pages at the end of the file
+     *
+     * @return The number of released bytes
+     */
+    private long truncate() throws IOException
+    {
+        rm.beginTransaction();
+
+        try
+        {
+            long released = rm.truncate();
+            rm.commit();
+
+            return released;
+        }
+        catch ( IOException ioe )
+        {
+            rm.rollback();
+            throw ioe;
+        }
+    }
+
+
+    /**
+     * Wait between two transactions, if needed
+     */
+    private void pause()
+    {
+        if ( pause <= 0L )
+        {
+            return;
+        }
+
+        try
+        {
+            Thread.sleep( pause );
+        }
+        catch ( InterruptedException ie )
+        {
+            Thread.currentThread().interrupt();
+            stopped = true;
+        }
+    }
+
+
+    /**
+     * @return The maximum number of pages moved in a single transaction
+     */
+    public int getMaxPagesPerStep()
+    {
+        return maxPagesPerStep;
+    }
+
+
+    /**
+     * @param maxPagesPerStep The maximum number of pages moved in a single transaction
+     */
+    public void setMaxPagesPerStep( int maxPagesPerStep )
+    {
+        if ( maxPagesPerStep < 1 )
+        {
+            throw new IllegalArgumentException( "The number of pages per step must be above 0" );
+        }
+
+        this.maxPagesPerStep = maxPagesPerStep;
+    }
+
+
+    /**
+     * @return The delay to wait for between two transactions, in milliseconds
+     */
+    public long getPause()
+    {
+        return pause;
+    }
+
+
+    /**
+     * @param pause The delay to wait for between two transactions, in milliseconds
+     */
+    public void setPause( long pause )
+    {
+        this.pause = pause;
+    }
+}
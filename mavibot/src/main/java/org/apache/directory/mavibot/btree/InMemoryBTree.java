@@ -29,6 +29,8 @@ import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.StampedLock;
 
 import org.apache.directory.mavibot.btree.exception.InitializationException;
 import org.apache.directory.mavibot.btree.exception.KeyNotFoundException;
@@ -77,6 +79,18 @@ import org.slf4j.LoggerFactory;
     /** The Journal channel */
     private FileChannel journalChannel = null;
 
+    /** The arena the values are stored in, if they are stored off-heap */
+    private OffHeapArena offHeapArena;
+
+    /** A flag set when the pages are modified in place, without creating new revisions */
+    private boolean inPlaceUpdates;
+
+    /** The lock protecting the pages modified in place against the concurrent readers */
+    private final StampedLock pagesLock = new StampedLock();
+
+    /** The current B-tree header, when the writers publish their revisions with a compare-and-swap */
+    private AtomicReference<BTreeHeader<K, V>> publishedBtreeHeader;
+
 
     /**
      * Creates a new BTree, with no initialization.
@@ -127,6 +141,25 @@ import org.slf4j.LoggerFactory;
             throw new IllegalArgumentException( "Comparator should not be null" );
         }
 
+        if ( configuration.isOffHeapValues() )
+        {
+            if ( configuration.isAllowDuplicates() )
+            {
+                throw new IllegalArgumentException( "Off-heap values cannot be used with duplicate keys" );
+            }
+
+            offHeapArena = new OffHeapArena( configuration.getOffHeapSegmentSize() );
+        }
+
+        inPlaceUpdates = configuration.isInPlaceUpdates();
+
+        if ( configuration.isConcurrentWriters()
+            && ( inPlaceUpdates || ( offHeapArena != null ) || configuration.isAllowDuplicates() || ( envDir != null ) ) )
+        {
+            throw new IllegalArgumentException(
+                "Concurrent writers cannot be used with in place updates, off-heap values, duplicate keys or a journal" );
+        }
+
         // Create the B-tree header
         BTreeHeader<K, V> newBtreeHeader = new BTreeHeader<K, V>();
 
@@ -150,6 +183,11 @@ import org.slf4j.LoggerFactory;
         {
             throw new InitializationException( ioe.getMessage() );
         }
+
+        if ( configuration.isConcurrentWriters() )
+        {
+            publishedBtreeHeader = new AtomicReference<BTreeHeader<K, V>>( currentBtreeHeader );
+        }
     }
 
 
@@ -261,6 +299,316 @@ import org.slf4j.LoggerFactory;
     }
 
 
+    /**
+     * {@inheritDoc}
+     */
+    protected BTreeHeader<K, V> getBtreeHeader()
+    {
+        if ( publishedBtreeHeader != null )
+        {
+            return publishedBtreeHeader.get();
+        }
+
+        return super.getBtreeHeader();
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public V insert( K key, V value ) throws IOException
+    {
+        if ( publishedBtreeHeader == null )
+        {
+            return super.insert( key, value );
+        }
+
+        if ( key == null )
+        {
+            throw new IllegalArgumentException( "Key must not be null" );
+        }
+
+        InsertResult<K, V> result = null;
+
+        // Build the new revision out of the current one, and publish it unless another
+        // writer has published its own revision meanwhile. In this case, we start again
+        // from the revision it has published.
+        while ( true )
+        {
+            BTreeHeader<K, V> oldBtreeHeader = publishedBtreeHeader.get();
+            long revision = oldBtreeHeader.getRevision() + 1;
+            BTreeHeader<K, V> newBtreeHeader = createNewBtreeHeader( oldBtreeHeader, revision );
+            newBtreeHeader.setBtree( this );
+
+            result = insertInto( newBtreeHeader, key, value, revision );
+
+            if ( ( result instanceof ExistsResult ) || publishRevision( oldBtreeHeader, newBtreeHeader ) )
+            {
+                break;
+            }
+        }
+
+        if ( result instanceof ExistsResult )
+        {
+            return value;
+        }
+        else if ( result instanceof ModifyResult )
+        {
+            return ( ( ModifyResult<K, V> ) result ).getModifiedValue();
+        }
+
+        return null;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public Tuple<K, V> delete( K key ) throws IOException
+    {
+        if ( publishedBtreeHeader == null )
+        {
+            return super.delete( key );
+        }
+
+        if ( key == null )
+        {
+            throw new IllegalArgumentException( "Key must not be null" );
+        }
+
+        return deleteConcurrently( key, null );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public Tuple<K, V> delete( K key, V value ) throws IOException
+    {
+        if ( publishedBtreeHeader == null )
+        {
+            return super.delete( key, value );
+        }
+
+        if ( key == null )
+        {
+            throw new IllegalArgumentException( "Key must not be null" );
+        }
+
+        if ( value == null )
+        {
+            throw new IllegalArgumentException( "Value must not be null" );
+        }
+
+        return deleteConcurrently( key, value );
+    }
+
+
+    /**
+     * Deletes the given <key,value> pair in a new revision, retrying on the revision
+     * published by another writer if it has published one meanwhile.
+     *
+     * @param key The key to be removed
+     * @param value The value to be removed
+     * @return The removed tuple, if any
+     * @throws IOException If we had an issue while accessing the pages
+     */
+    private Tuple<K, V> deleteConcurrently( K key, V value ) throws IOException
+    {
+        while ( true )
+        {
+            BTreeHeader<K, V> oldBtreeHeader = publishedBtreeHeader.get();
+            long revision = oldBtreeHeader.getRevision() + 1;
+            BTreeHeader<K, V> newBtreeHeader = createNewBtreeHeader( oldBtreeHeader, revision );
+            newBtreeHeader.setBtree( this );
+
+            Tuple<K, V> tuple = deleteFrom( newBtreeHeader, key, value, revision );
+
+            if ( ( tuple == null ) || publishRevision( oldBtreeHeader, newBtreeHeader ) )
+            {
+                return tuple;
+            }
+        }
+    }
+
+
+    /**
+     * Publishes a new revision, if the revision it has been built from is still the
+     * current one.
+     *
+     * @param oldBtreeHeader The header of the revision the new one has been built from
+     * @param newBtreeHeader The header of the new revision
+     * @return true if the new revision has been published
+     */
+    private boolean publishRevision( BTreeHeader<K, V> oldBtreeHeader, BTreeHeader<K, V> newBtreeHeader )
+    {
+        if ( !publishedBtreeHeader.compareAndSet( oldBtreeHeader, newBtreeHeader ) )
+        {
+            return false;
+        }
+
+        btreeRevisions.put( newBtreeHeader.getRevision(), newBtreeHeader );
+
+        if ( oldBtreeHeader.getNbUsers() == 0 )
+        {
+            btreeRevisions.remove( oldBtreeHeader.getRevision() );
+        }
+
+        return true;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public V get( K key ) throws IOException, KeyNotFoundException
+    {
+        if ( !inPlaceUpdates )
+        {
+            return super.get( key );
+        }
+
+        // Search without any lock, and check that no writer has modified the pages meanwhile
+        long stamp = pagesLock.tryOptimisticRead();
+
+        if ( stamp != 0L )
+        {
+            try
+            {
+                V value = getRootPage().get( key );
+
+                if ( pagesLock.validate( stamp ) )
+                {
+                    return value;
+                }
+            }
+            catch ( KeyNotFoundException knfe )
+            {
+                if ( pagesLock.validate( stamp ) )
+                {
+                    throw knfe;
+                }
+            }
+            catch ( RuntimeException re )
+            {
+                // The pages may have been seen in an inconsistent state
+                if ( pagesLock.validate( stamp ) )
+                {
+                    throw re;
+                }
+            }
+        }
+
+        // A writer has modified the pages : search again, holding the read lock
+        stamp = pagesLock.readLock();
+
+        try
+        {
+            return getRootPage().get( key );
+        }
+        finally
+        {
+            pagesLock.unlockRead( stamp );
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean hasKey( K key ) throws IOException, KeyNotFoundException
+    {
+        if ( !inPlaceUpdates || ( key == null ) )
+        {
+            return super.hasKey( key );
+        }
+
+        // Search without any lock, and check that no writer has modified the pages meanwhile
+        long stamp = pagesLock.tryOptimisticRead();
+
+        if ( stamp != 0L )
+        {
+            try
+            {
+                boolean found = getRootPage().hasKey( key );
+
+                if ( pagesLock.validate( stamp ) )
+                {
+                    return found;
+                }
+            }
+            catch ( RuntimeException re )
+            {
+                // The pages may have been seen in an inconsistent state
+                if ( pagesLock.validate( stamp ) )
+                {
+                    throw re;
+                }
+            }
+        }
+
+        // A writer has modified the pages : search again, holding the read lock
+        stamp = pagesLock.readLock();
+
+        try
+        {
+            return getRootPage().hasKey( key );
+        }
+        finally
+        {
+            pagesLock.unlockRead( stamp );
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean contains( K key, V value ) throws IOException
+    {
+        if ( !inPlaceUpdates )
+        {
+            return super.contains( key, value );
+        }
+
+        // Search without any lock, and check that no writer has modified the pages meanwhile
+        long stamp = pagesLock.tryOptimisticRead();
+
+        if ( stamp != 0L )
+        {
+            try
+            {
+                boolean found = getRootPage().contains( key, value );
+
+                if ( pagesLock.validate( stamp ) )
+                {
+                    return found;
+                }
+            }
+            catch ( RuntimeException re )
+            {
+                // The pages may have been seen in an inconsistent state
+                if ( pagesLock.validate( stamp ) )
+                {
+                    throw re;
+                }
+            }
+        }
+
+        // A writer has modified the pages : search again, holding the read lock
+        stamp = pagesLock.readLock();
+
+        try
+        {
+            return getRootPage().contains( key, value );
+        }
+        finally
+        {
+            pagesLock.unlockRead( stamp );
+        }
+    }
+
+
     /**
      * Close the BTree, cleaning up all the data structure
      */
@@ -293,42 +641,62 @@ import org.slf4j.LoggerFactory;
      */
     protected Tuple<K, V> delete( K key, V value, long revision ) throws IOException
     {
-        if ( revision == -1L )
+        if ( !inPlaceUpdates )
         {
-            revision = currentRevision.get() + 1;
+            return processDelete( key, value, revision );
         }
 
-        BTreeHeader<K, V> oldBtreeHeader = getBtreeHeader();
-        BTreeHeader<K, V> newBtreeHeader = createNewBtreeHeader( oldBtreeHeader, revision );
-        newBtreeHeader.setBtree( this );
-
-        // If the key exists, the existing value will be replaced. We store it
-        // to return it to the caller.
-        Tuple<K, V> tuple = null;
-
-        // Try to delete the entry starting from the root page. Here, the root
-        // page may be either a Node or a Leaf
-        DeleteResult<K, V> result = getRootPage().delete( key, value, revision );
+        long stamp = pagesLock.writeLock();
 
-        if ( result instanceof NotPresentResult )
+        try
         {
-            // Key not found.
-            return null;
+            return processDelete( key, value, revision );
+        }
+        finally
+        {
+            pagesLock.unlockWrite( stamp );
         }
+    }
+
 
-        // Keep the oldRootPage so that we can later access it
-        //Page<K, V> oldRootPage = rootPage;
+    /**
+     * Deletes the given <key,value> pair, in a new revision, or in the current revision if
+     * the pages are modified in place.
+     *
+     * @param key The key to be removed
+     * @param value The value to be removed
+     * @param revision The revision to be associated with this operation
+     * @return The removed tuple, if any
+     * @throws IOException If we had an issue while accessing the pages
+     */
+    private Tuple<K, V> processDelete( K key, V value, long revision ) throws IOException
+    {
+        BTreeHeader<K, V> oldBtreeHeader = getBtreeHeader();
+        BTreeHeader<K, V> newBtreeHeader = null;
 
-        if ( result instanceof RemoveResult )
+        if ( inPlaceUpdates )
+        {
+            // The current revision and its header are modified in place
+            revision = oldBtreeHeader.getRevision();
+            newBtreeHeader = oldBtreeHeader;
+        }
+        else
         {
-            // The element was found, and removed
-            RemoveResult<K, V> removeResult = ( RemoveResult<K, V> ) result;
+            if ( revision == -1L )
+            {
+                revision = currentRevision.get() + 1;
+            }
 
-            Page<K, V> modifiedPage = removeResult.getModifiedPage();
+            newBtreeHeader = createNewBtreeHeader( oldBtreeHeader, revision );
+            newBtreeHeader.setBtree( this );
+        }
+
+        Tuple<K, V> tuple = deleteFrom( newBtreeHeader, key, value, revision );
 
-            // This is a new root
-            newBtreeHeader.setRootPage( modifiedPage );
-            tuple = removeResult.getRemovedElement();
+        if ( tuple == null )
+        {
+            // Key not found.
+            return null;
         }
 
         if ( withJournal )
@@ -337,10 +705,9 @@ import org.slf4j.LoggerFactory;
             writeToJournal( new Deletion<K, V>( key ) );
         }
 
-        // Decrease the number of elements in the current tree if the deletion is successful
-        if ( tuple != null )
+        if ( inPlaceUpdates )
         {
-            newBtreeHeader.decrementNbElems();
+            return tuple;
         }
 
         storeRevision( newBtreeHeader );
@@ -355,6 +722,43 @@ import org.slf4j.LoggerFactory;
     }
 
 
+    /**
+     * Deletes the given <key,value> pair from the pages of a B-tree header, updating its
+     * root page and its number of elements.
+     *
+     * @param btreeHeader The header of the revision to modify
+     * @param key The key to be removed
+     * @param value The value to be removed
+     * @param revision The revision to be associated with this operation
+     * @return The removed tuple, or null if it was not found
+     * @throws IOException If we had an issue while accessing the pages
+     */
+    private Tuple<K, V> deleteFrom( BTreeHeader<K, V> btreeHeader, K key, V value, long revision )
+        throws IOException
+    {
+        // Try to delete the entry starting from the root page. Here, the root
+        // page may be either a Node or a Leaf
+        DeleteResult<K, V> result = btreeHeader.getRootPage().delete( key, value, revision );
+
+        if ( !( result instanceof RemoveResult ) )
+        {
+            // Key not found.
+            return null;
+        }
+
+        // The element was found, and removed
+        RemoveResult<K, V> removeResult = ( RemoveResult<K, V> ) result;
+
+        // This is a new root
+        btreeHeader.setRootPage( removeResult.getModifiedPage() );
+
+        // Decrease the number of elements in the current tree
+        btreeHeader.decrementNbElems();
+
+        return removeResult.getRemovedElement();
+    }
+
+
     /**
      * Insert an entry in the BTree.
      * <p>
@@ -370,17 +774,106 @@ import org.slf4j.LoggerFactory;
      */
     /* no qualifier */InsertResult<K, V> insert( K key, V value, long revision ) throws IOException
     {
-        // We have to start a new transaction, which will be committed or rollbacked
-        // locally. This will duplicate the current BtreeHeader during this phase.
-        if ( revision == -1L )
+        if ( !inPlaceUpdates )
         {
-            revision = currentRevision.get() + 1;
+            return processInsert( key, value, revision );
         }
 
+        long stamp = pagesLock.writeLock();
+
+        try
+        {
+            return processInsert( key, value, revision );
+        }
+        finally
+        {
+            pagesLock.unlockWrite( stamp );
+        }
+    }
+
+
+    /**
+     * Insert an entry in a new revision of the BTree, or in the current revision if the
+     * pages are modified in place.
+     *
+     * @param key Inserted key
+     * @param value Inserted value
+     * @param revision The revision to use
+     * @return an instance of the InsertResult.
+     */
+    private InsertResult<K, V> processInsert( K key, V value, long revision ) throws IOException
+    {
         BTreeHeader<K, V> oldBtreeHeader = getBtreeHeader();
-        BTreeHeader<K, V> newBtreeHeader = createNewBtreeHeader( oldBtreeHeader, revision );
-        newBtreeHeader.setBtree( this );
+        BTreeHeader<K, V> newBtreeHeader = null;
 
+        if ( inPlaceUpdates )
+        {
+            // The current revision and its header are modified in place : the pages
+            // already belonging to this revision won't be copied
+            revision = oldBtreeHeader.getRevision();
+            newBtreeHeader = oldBtreeHeader;
+        }
+        else
+        {
+            // We have to start a new transaction, which will be committed or rollbacked
+            // locally. This will duplicate the current BtreeHeader during this phase.
+            if ( revision == -1L )
+            {
+                revision = currentRevision.get() + 1;
+            }
+
+            newBtreeHeader = createNewBtreeHeader( oldBtreeHeader, revision );
+            newBtreeHeader.setBtree( this );
+        }
+
+        InsertResult<K, V> result = insertInto( newBtreeHeader, key, value, revision );
+
+        if ( result instanceof ExistsResult )
+        {
+            return result;
+        }
+
+        // Inject the modification into the modification queue
+        if ( withJournal )
+        {
+            writeToJournal( new Addition<K, V>( key, value ) );
+        }
+
+        if ( inPlaceUpdates )
+        {
+            return result;
+        }
+
+        storeRevision( newBtreeHeader );
+
+        if ( oldBtreeHeader.getNbUsers() == 0 )
+        {
+            long oldRevision = oldBtreeHeader.getRevision();
+
+            if ( oldRevision < newBtreeHeader.getRevision() )
+            {
+                btreeRevisions.remove( oldBtreeHeader.getRevision() );
+            }
+        }
+
+        // Return the value we have found if it was modified
+        return result;
+    }
+
+
+    /**
+     * Inserts an entry in the pages of a B-tree header, updating its root page and its
+     * number of elements.
+     *
+     * @param btreeHeader The header of the revision to modify
+     * @param key Inserted key
+     * @param value Inserted value
+     * @param revision The revision to use
+     * @return an instance of the InsertResult.
+     */
+    private InsertResult<K, V> insertInto( BTreeHeader<K, V> btreeHeader, K key, V value, long revision )
+        throws IOException
+    {
         // If the key exists, the existing value will be replaced. We store it
         // to return it to the caller.
         V modifiedValue = null;
@@ -388,7 +881,7 @@ import org.slf4j.LoggerFactory;
         // Try to insert the new value in the tree at the right place,
         // starting from the root page. Here, the root page may be either
         // a Node or a Leaf
-        InsertResult<K, V> result = newBtreeHeader.getRootPage().insert( key, value, revision );
+        InsertResult<K, V> result = btreeHeader.getRootPage().insert( key, value, revision );
 
         if ( result instanceof ExistsResult )
         {
@@ -403,7 +896,7 @@ import org.slf4j.LoggerFactory;
 
             // The root has just been modified, we haven't split it
             // Get it and make it the current root page
-            newBtreeHeader.setRootPage( modifiedPage );
+            btreeHeader.setRootPage( modifiedPage );
 
             modifiedValue = modifyResult.getModifiedValue();
         }
@@ -418,35 +911,16 @@ import org.slf4j.LoggerFactory;
             Page<K, V> rightPage = splitResult.getRightPage();
 
             // Create the new rootPage
-            newBtreeHeader.setRootPage( new InMemoryNode<K, V>( this, revision, pivot, leftPage, rightPage ) );
-        }
-
-        // Inject the modification into the modification queue
-        if ( withJournal )
-        {
-            writeToJournal( new Addition<K, V>( key, value ) );
+            btreeHeader.setRootPage( new InMemoryNode<K, V>( this, revision, pivot, leftPage, rightPage ) );
         }
 
         // Increase the number of element in the current tree if the insertion is successful
         // and does not replace an element
         if ( modifiedValue == null )
         {
-            newBtreeHeader.incrementNbElems();
-        }
-
-        storeRevision( newBtreeHeader );
-
-        if ( oldBtreeHeader.getNbUsers() == 0 )
-        {
-            long oldRevision = oldBtreeHeader.getRevision();
-
-            if ( oldRevision < newBtreeHeader.getRevision() )
-            {
-                btreeRevisions.remove( oldBtreeHeader.getRevision() );
-            }
+            btreeHeader.incrementNbElems();
         }
 
-        // Return the value we have found if it was modified
         return result;
     }
 
@@ -717,6 +1191,24 @@ import org.slf4j.LoggerFactory;
     }
 
 
+    /**
+     * @return true if the pages are modified in place, instead of being copied in a new revision
+     */
+    /* no qualifier */boolean isInPlaceUpdates()
+    {
+        return inPlaceUpdates;
+    }
+
+
+    /**
+     * @return the arena the values are stored in, or null if they are stored on the heap
+     */
+    /* no qualifier */OffHeapArena getOffHeapArena()
+    {
+        return offHeapArena;
+    }
+
+
     /**
      * Flush the latest revision to disk. We will replace the current file by the new one, as
      * we flush in a temporary file.
@@ -87,6 +87,18 @@ public class InMemoryBTreeConfiguration<K, V>
     /** the type of BTree */
     private BTreeTypeEnum type;
 
+    /** Flag to store the values serialized, out of the Java heap */
+    private boolean offHeapValues;
+
+    /** The size of the direct memory segments the values are stored in */
+    private int offHeapSegmentSize = OffHeapArena.DEFAULT_SEGMENT_SIZE;
+
+    /** Flag to modify the pages in place, instead of creating a new revision for each update */
+    private boolean inPlaceUpdates;
+
+    /** Flag to let the writers work concurrently, publishing their revisions with a compare-and-swap */
+    private boolean concurrentWriters;
+
 
     /**
      * @return the pageSize
@@ -319,4 +331,96 @@ public class InMemoryBTreeConfiguration<K, V>
     {
         this.type = type;
     }
+
+
+    /**
+     * @return true if the values are stored serialized, out of the Java heap
+     */
+    public boolean isOffHeapValues()
+    {
+        return offHeapValues;
+    }
+
+
+    /**
+     * Enables the storage of the values in direct memory segments. The values are
+     * serialized when they are stored, and deserialized each time they are read.
+     * It can't be used on a B-tree allowing duplicate keys.
+     * 
+     * @param offHeapValues true to store the values out of the Java heap
+     */
+    public void setOffHeapValues( boolean offHeapValues )
+    {
+        this.offHeapValues = offHeapValues;
+    }
+
+
+    /**
+     * @return the size of the direct memory segments the values are stored in
+     */
+    public int getOffHeapSegmentSize()
+    {
+        return offHeapSegmentSize;
+    }
+
+
+    /**
+     * Sets the size of the direct memory segments the values are stored in. A value
+     * bigger than this size gets its own segment.
+     * 
+     * @param offHeapSegmentSize the size of a segment, in bytes
+     */
+    public void setOffHeapSegmentSize( int offHeapSegmentSize )
+    {
+        this.offHeapSegmentSize = offHeapSegmentSize;
+    }
+
+
+    /**
+     * @return true if the pages are modified in place, instead of being copied in a new revision
+     */
+    public boolean isInPlaceUpdates()
+    {
+        return inPlaceUpdates;
+    }
+
+
+    /**
+     * Enables the in place modification of the pages. The B-tree then has a single revision,
+     * which is updated by the writers holding a lock, and no page nor B-tree header is copied
+     * when the modified pages already exist. The get, hasKey and contains operations check
+     * that no writer has modified the pages while they were searched, and search again if
+     * needed. The cursors are not isolated from the writers : they must not be used while
+     * the B-tree is being modified.
+     * 
+     * @param inPlaceUpdates true to modify the pages in place
+     */
+    public void setInPlaceUpdates( boolean inPlaceUpdates )
+    {
+        this.inPlaceUpdates = inPlaceUpdates;
+    }
+
+
+    /**
+     * @return true if the writers modify the B-tree concurrently
+     */
+    public boolean isConcurrentWriters()
+    {
+        return concurrentWriters;
+    }
+
+
+    /**
+     * Lets the writers modify the B-tree concurrently, without holding the transaction lock.
+     * Each writer copies the pages it modifies into a new revision, and publishes it with a
+     * compare-and-swap on the current B-tree header. If another writer has published a revision
+     * in the meantime, the writer builds its revision again out of the published one.
+     * It can't be used with in place updates, off-heap values, duplicate keys nor a journal.
+     * 
+     * @param concurrentWriters true to let the writers work concurrently
+     */
+    public void setConcurrentWriters( boolean concurrentWriters )
+    {
+        this.concurrentWriters = concurrentWriters;
+    }
 }
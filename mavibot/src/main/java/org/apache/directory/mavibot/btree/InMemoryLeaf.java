@@ -176,6 +176,28 @@ import org.apache.directory.mavibot.btree.exception.KeyNotFoundException;
             }
         }
 
+        if ( keyRemoved && ( valueHolder instanceof OffHeapValueHolder ) )
+        {
+            // The value isn't used anymore by the new revision
+            ( ( OffHeapValueHolder<V> ) valueHolder ).release();
+        }
+
+        if ( ( this.revision == revision )
+            && ( ( parent == null ) || !keyRemoved || ( nbElems != btree.getPageSize() / 2 ) ) )
+        {
+            // The page has already been copied in this revision, and it won't be merged
+            // nor borrow an element : remove the element in place
+            if ( keyRemoved )
+            {
+                removeElement( index );
+            }
+
+            DeleteResult<K, V> result = new RemoveResult<K, V>( this, removedElement );
+            result.addCopiedPage( this );
+
+            return result;
+        }
+
         InMemoryLeaf<K, V> newLeaf = null;
 
         if ( keyRemoved )
@@ -432,6 +454,29 @@ import org.apache.directory.mavibot.btree.exception.KeyNotFoundException;
     }
 
 
+    /**
+     * Removes an element from the current page, which has already been copied in the
+     * current revision.
+     *
+     * @param pos The position into the page of the element to remove
+     */
+    @SuppressWarnings("unchecked")
+    private void removeElement( int pos )
+    {
+        KeyHolder<K>[] newKeys = ( KeyHolder<K>[] ) Array.newInstance( KeyHolder.class, nbElems - 1 );
+        ValueHolder<V>[] newValues = ( ValueHolder<V>[] ) Array.newInstance( InMemoryValueHolder.class, nbElems - 1 );
+
+        System.arraycopy( getKeys(), 0, newKeys, 0, pos );
+        System.arraycopy( values, 0, newValues, 0, pos );
+        System.arraycopy( getKeys(), pos + 1, newKeys, pos, nbElems - pos - 1 );
+        System.arraycopy( values, pos + 1, newValues, pos, nbElems - pos - 1 );
+
+        setKeys( newKeys );
+        values = newValues;
+        setNbElems( nbElems - 1 );
+    }
+
+
     /**
      * Copies the elements of the current page to a new page
      *
@@ -773,6 +818,15 @@ import org.apache.directory.mavibot.btree.exception.KeyNotFoundException;
         }
         else if ( !btree.isAllowDuplicates() )
         {
+            // The holder is modified in place, so the previous revision must keep its own.
+            // The copy of an off-heap holder shares the stored bytes, which are never
+            // overwritten : the new value is stored at another place in the arena
+            if ( newLeaf != this )
+            {
+                valueHolder = ( ( InMemoryValueHolder<V> ) valueHolder ).copy();
+                newLeaf.values[pos] = valueHolder;
+            }
+
             replacedValue = valueHolder.replaceValueArray( value );
         }
 
@@ -794,14 +848,40 @@ import org.apache.directory.mavibot.btree.exception.KeyNotFoundException;
      * @param pos The position into the page
      * @return The modified page with the <K,V> element added
      */
+    @SuppressWarnings("unchecked")
     private Page<K, V> addElement( long revision, K key, V value, int pos )
     {
+        // Atm, store the value in memory, or in the off-heap arena
+        ValueHolder<V> valueHolder = createValueHolder( value );
+
+        if ( this.revision == revision )
+        {
+            // The page has already been copied in this revision : add the element in place
+            KeyHolder<K>[] newKeys = ( KeyHolder<K>[] ) Array.newInstance( KeyHolder.class, nbElems + 1 );
+            ValueHolder<V>[] newValues = ( ValueHolder<V>[] ) Array.newInstance( InMemoryValueHolder.class,
+                nbElems + 1 );
+
+            if ( nbElems > 0 )
+            {
+                System.arraycopy( getKeys(), 0, newKeys, 0, pos );
+                System.arraycopy( values, 0, newValues, 0, pos );
+                System.arraycopy( getKeys(), pos, newKeys, pos + 1, nbElems - pos );
+                System.arraycopy( values, pos, newValues, pos + 1, nbElems - pos );
+            }
+
+            newKeys[pos] = new KeyHolder<K>( key );
+            newValues[pos] = valueHolder;
+
+            setKeys( newKeys );
+            values = newValues;
+            setNbElems( nbElems + 1 );
+
+            return this;
+        }
+
         // First copy the current page, but add one element in the copied page
         InMemoryLeaf<K, V> newLeaf = new InMemoryLeaf<K, V>( btree, revision, nbElems + 1 );
 
-        // Atm, store the value in memory
-        InMemoryValueHolder<V> valueHolder = new InMemoryValueHolder<V>( btree, value );
-
         // Deal with the special case of an empty page
         if ( nbElems == 0 )
         {
@@ -827,6 +907,25 @@ import org.apache.directory.mavibot.btree.exception.KeyNotFoundException;
     }
 
 
+    /**
+     * Creates the holder for a new value, stored in the B-tree's off-heap arena if it has one.
+     *
+     * @param value The value to store
+     * @return The created ValueHolder
+     */
+    private ValueHolder<V> createValueHolder( V value )
+    {
+        OffHeapArena arena = ( ( InMemoryBTree<K, V> ) btree ).getOffHeapArena();
+
+        if ( arena != null )
+        {
+            return new OffHeapValueHolder<V>( btree, arena, value );
+        }
+
+        return new InMemoryValueHolder<V>( btree, value );
+    }
+
+
     /**
      * Split a full page into two new pages, a left, a right and a pivot element. The new pages will
      * each contains half of the original elements. <br/>
@@ -847,7 +946,7 @@ import org.apache.directory.mavibot.btree.exception.KeyNotFoundException;
         int middle = btree.getPageSize() >> 1;
         InMemoryLeaf<K, V> leftLeaf = null;
         InMemoryLeaf<K, V> rightLeaf = null;
-        InMemoryValueHolder<V> valueHolder = new InMemoryValueHolder<V>( btree, value );
+        ValueHolder<V> valueHolder = createValueHolder( value );
 
         // Determinate where to store the new value
         if ( pos <= middle )
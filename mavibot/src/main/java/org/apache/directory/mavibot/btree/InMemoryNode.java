@@ -36,6 +36,10 @@ import java.util.List;
  */
 /* No qualifier */class InMemoryNode<K, V> extends AbstractPage<K, V>
 {
+    /** The children pages out of their holders, built on the first descent into this node */
+    private volatile Page<K, V>[] childPages;
+
+
     /**
      * Creates a new Node which will contain only one key, with references to
      * a left and right page. This is a specific constructor used by the btree
@@ -102,7 +106,7 @@ import java.util.List;
         }
 
         // Get the child page into which we will insert the <K, V> tuple
-        Page<K, V> child = children[pos].getValue();
+        Page<K, V> child = getChildPage( pos );
 
         // and insert the <K, V> into this child
         InsertResult<K, V> result = child.insert( key, value, revision );
@@ -153,23 +157,25 @@ import java.util.List;
      * @return The new result
      * @throws IOException If we have an error while trying to access the page
      */
-    private RemoveResult<K, V> handleRemoveResult( RemoveResult<K, V> removeResult, int index, int pos, boolean found )
+    private RemoveResult<K, V> handleRemoveResult( RemoveResult<K, V> removeResult, long revision, int index,
+        int pos, boolean found )
         throws IOException
     {
         // Simplest case : the element has been removed from the underlying page,
         // we just have to copy the current page an modify the reference to link to
-        // the modified page.
-        InMemoryNode<K, V> newPage = copy( revision );
+        // the modified page. If the page has already been copied in this revision,
+        // we modify it in place.
+        InMemoryNode<K, V> newPage = ( this.revision == revision ) ? this : copy( this.revision );
 
         Page<K, V> modifiedPage = removeResult.getModifiedPage();
 
         if ( found )
         {
-            newPage.children[index + 1] = new PageHolder<K, V>( btree, modifiedPage );
+            newPage.setValue( index + 1, modifiedPage );
         }
         else
         {
-            newPage.children[index] = new PageHolder<K, V>( btree, modifiedPage );
+            newPage.setValue( index, modifiedPage );
         }
 
         if ( pos < 0 )
@@ -537,12 +543,12 @@ import java.util.List;
         if ( found )
         {
             index = -( pos + 1 );
-            child = children[-pos].getValue();
+            child = getChildPage( -pos );
             deleteResult = ((AbstractPage<K, V>)child).delete( key, value, revision, this, -pos );
         }
         else
         {
-            child = children[pos].getValue();
+            child = getChildPage( pos );
             deleteResult = ((AbstractPage<K, V>)child).delete( key, value, revision, this, pos );
         }
 
@@ -556,8 +562,8 @@ import java.util.List;
         // If we just modified the child, return a modified page
         if ( deleteResult instanceof RemoveResult )
         {
-            RemoveResult<K, V> removeResult = handleRemoveResult( ( RemoveResult<K, V> ) deleteResult, index, pos,
-                found );
+            RemoveResult<K, V> removeResult = handleRemoveResult( ( RemoveResult<K, V> ) deleteResult, revision,
+                index, pos, found );
 
             return removeResult;
         }
@@ -787,6 +793,51 @@ import java.util.List;
     /* no qualifier */void setValue( int pos, Page<K, V> value )
     {
         children[pos] = new PageHolder<K, V>( btree, value );
+        childPages = null;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    /* no qualifier */void setPageHolder( int pos, PageHolder<K, V> pageHolder )
+    {
+        super.setPageHolder( pos, pageHolder );
+        childPages = null;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     * The children are read from a flat copy of the pages, built on the first descent, which
+     * lies next to the flat copy of the keys.
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    /* no qualifier */Page<K, V> getChildPage( int pos )
+    {
+        if ( isModifiedInPlace() )
+        {
+            // No copy of the children for a page which may be modified in place
+            return children[pos].getValue();
+        }
+
+        Page<K, V>[] pages = childPages;
+
+        if ( ( pages == null ) || ( pages.length != nbElems + 1 ) )
+        {
+            pages = ( Page<K, V>[] ) Array.newInstance( Page.class, nbElems + 1 );
+
+            for ( int i = 0; i <= nbElems; i++ )
+            {
+                pages[i] = children[i].getValue();
+            }
+
+            childPages = pages;
+        }
+
+        return pages[pos];
     }
 
 
@@ -803,14 +854,15 @@ import java.util.List;
      */
     private InsertResult<K, V> replaceChild( long revision, ModifyResult<K, V> result, int pos ) throws IOException
     {
-        // Just copy the current page and update its revision
-        Page<K, V> newPage = copy( revision );
+        // Just copy the current page and update its revision, unless the page
+        // has already been copied in this revision
+        InMemoryNode<K, V> newPage = ( this.revision == revision ) ? this : copy( revision );
 
         // Last, we update the children table of the newly created page
         // to point on the modified child
         Page<K, V> modifiedPage = result.getModifiedPage();
 
-        ( ( InMemoryNode<K, V> ) newPage ).children[pos] = new PageHolder<K, V>( btree, modifiedPage );
+        newPage.setValue( pos, modifiedPage );
 
         // We can return the result, where we update the modifiedPage,
         // to avoid the creation of a new object
@@ -839,6 +891,17 @@ import java.util.List;
         Page<K, V> rightPage, int pos )
         throws IOException
     {
+        if ( this.revision == revision )
+        {
+            // The page has already been copied in this revision : add the key in place
+            insertChild( key, leftPage, rightPage, pos );
+
+            InsertResult<K, V> result = new ModifyResult<K, V>( copiedPages, this, null );
+            result.addCopiedPage( this );
+
+            return result;
+        }
+
         // First copy the current page, but add one element in the copied page
         InMemoryNode<K, V> newNode = new InMemoryNode<K, V>( btree, revision, nbElems + 1 );
 
@@ -872,6 +935,38 @@ import java.util.List;
     }
 
 
+    /**
+     * Adds a new key into the current page, which has already been copied in the
+     * current revision.
+     *
+     * @param key The key to insert
+     * @param leftPage The left child
+     * @param rightPage The right child
+     * @param pos The position into the page
+     */
+    @SuppressWarnings("unchecked")
+    private void insertChild( K key, Page<K, V> leftPage, Page<K, V> rightPage, int pos )
+    {
+        KeyHolder<K>[] newKeys = ( KeyHolder<K>[] ) Array.newInstance( KeyHolder.class, nbElems + 1 );
+        PageHolder<K, V>[] newChildren = ( PageHolder<K, V>[] ) Array.newInstance( PageHolder.class, nbElems + 2 );
+
+        System.arraycopy( getKeys(), 0, newKeys, 0, pos );
+        System.arraycopy( children, 0, newChildren, 0, pos );
+
+        newKeys[pos] = new KeyHolder<K>( key );
+        newChildren[pos] = new PageHolder<K, V>( btree, leftPage );
+        newChildren[pos + 1] = new PageHolder<K, V>( btree, rightPage );
+
+        System.arraycopy( getKeys(), pos, newKeys, pos + 1, nbElems - pos );
+        System.arraycopy( children, pos + 1, newChildren, pos + 2, nbElems - pos );
+
+        setKeys( newKeys );
+        children = newChildren;
+        childPages = null;
+        setNbElems( nbElems + 1 );
+    }
+
+
     /**
      * Splits a full page into two new pages, a left, a right and a pivot element. The new pages will
      * each contains half of the original elements. <br/>
@@ -102,6 +102,33 @@ import org.apache.directory.mavibot.btree.exception.KeyNotFoundException;
     }
 
 
+    /**
+     * Copies this holder, so that its values can be replaced without modifying the values
+     * of the previous revisions.
+     *
+     * @return a copy of this holder
+     */
+    @SuppressWarnings("unchecked")
+    /* no qualifier */InMemoryValueHolder<V> copy()
+    {
+        try
+        {
+            InMemoryValueHolder<V> copy = ( InMemoryValueHolder<V> ) clone();
+
+            if ( valueArray != null )
+            {
+                copy.valueArray = valueArray.clone();
+            }
+
+            return copy;
+        }
+        catch ( CloneNotSupportedException cnse )
+        {
+            throw new BTreeOperationException( cnse );
+        }
+    }
+
+
     /**
      * {@inheritDoc}
      */
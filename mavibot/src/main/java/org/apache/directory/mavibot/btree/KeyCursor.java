@@ -513,6 +513,67 @@ public class KeyCursor<K>
     }
 
 
+    /**
+     * Moves the cursor so that the next call to next() returns the first key which is equal
+     * or above the given key. The B-tree is browsed again from the root page, in the revision
+     * this cursor is reading, so it costs a single descent whatever the distance to the key.
+     *
+     * @param key The key to move to
+     * @throws IOException If we had an issue while reading the B-tree from disk
+     */
+    public void seek( K key ) throws IOException
+    {
+        // First check that we have elements in the BTree
+        if ( ( stack == null ) || ( stack.length == 0 ) || ( stack[0].page == null ) )
+        {
+            return;
+        }
+
+        Page<K, K> page = stack[0].page;
+        int level = 0;
+
+        while ( page.isNode() )
+        {
+            int pos = ( ( AbstractPage<K, K> ) page ).findPos( key );
+
+            if ( pos < 0 )
+            {
+                // The key is the first one of the right child
+                pos = -pos;
+            }
+
+            stack[level++] = new ParentPos<K, K>( page, pos );
+            page = ( ( AbstractPage<K, K> ) page ).getPage( pos );
+        }
+
+        if ( page.getNbElems() == 0 )
+        {
+            return;
+        }
+
+        int pos = ( ( AbstractPage<K, K> ) page ).findPos( key );
+
+        if ( pos < 0 )
+        {
+            pos = -( pos + 1 );
+        }
+
+        // The cursor stands on the key before the found one, or before the first
+        // key of the leaf. If the key is above all the keys of the leaf, a next()
+        // will move to the next leaf
+        if ( pos == 0 )
+        {
+            stack[level] = new ParentPos<K, K>( page, BEFORE_FIRST );
+        }
+        else
+        {
+            stack[level] = new ParentPos<K, K>( page, pos - 1 );
+        }
+
+        depth = level;
+    }
+
+
     /**
      * Tells if there is a next ParentPos
      *
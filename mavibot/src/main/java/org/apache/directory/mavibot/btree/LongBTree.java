@@ -0,0 +1,157 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.mavibot.btree;
+
+
+import java.io.IOException;
+
+import org.apache.directory.mavibot.btree.exception.KeyNotFoundException;
+import org.apache.directory.mavibot.btree.serializer.LongSerializer;
+
+
+/**
+ * A view on a B-tree which keys are Longs, exposing methods taking primitive longs.
+ * The key is boxed once, when it's given to the wrapped B-tree. Only the search inside
+ * each page is done on primitive values : the pages of such a B-tree keep a primitive
+ * copy of their keys (see {@link AbstractPage#findPos(long)}), so the binary searches
+ * don't unbox any Long while going down the tree. The pages of an in-memory B-tree
+ * modified in place can't keep such a copy, and are searched through their key holders.
+ * <p>
+ * The wrapped B-tree can be either an in-memory or a persisted B-tree, and can still
+ * be used directly.
+ *
+ * @param <V> The type for the stored values
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class LongBTree<V>
+{
+    /** The wrapped B-tree */
+    private final BTree<Long, V> btree;
+
+
+    /**
+     * Creates a new LongBTree wrapping the given B-tree.
+     *
+     * @param btree The B-tree to wrap. Its key serializer must be the {@link LongSerializer}
+     * @throws IllegalArgumentException If the B-tree does not use the LongSerializer for its keys
+     */
+    public LongBTree( BTree<Long, V> btree )
+    {
+        if ( btree.getKeySerializer() != LongSerializer.INSTANCE )
+        {
+            throw new IllegalArgumentException( "The B-tree " + btree.getName()
+                + " does not use the LongSerializer for its keys" );
+        }
+
+        this.btree = btree;
+    }
+
+
+    /**
+     * @return The wrapped B-tree
+     */
+    public BTree<Long, V> getBTree()
+    {
+        return btree;
+    }
+
+
+    /**
+     * Inserts an entry in the B-tree.
+     *
+     * @see BTree#insert(Object, Object)
+     * @param key Inserted key
+     * @param value Inserted value
+     * @return Existing value, if any.
+     * @throws IOException If we weren't able to insert the entry
+     */
+    public V insert( long key, V value ) throws IOException
+    {
+        return btree.insert( key, value );
+    }
+
+
+    /**
+     * Deletes the key and all of its values from the B-tree.
+     *
+     * @see BTree#delete(Object)
+     * @param key The key to delete
+     * @return The removed tuple, or null if the key was not present
+     * @throws IOException If we weren't able to delete the key
+     */
+    public Tuple<Long, V> delete( long key ) throws IOException
+    {
+        return btree.delete( key );
+    }
+
+
+    /**
+     * Finds a value in the B-tree given its key.
+     *
+     * @see BTree#get(Object)
+     * @param key The key we are looking for
+     * @return The value associated with the given key
+     * @throws KeyNotFoundException If the key is not present in the B-tree
+     * @throws IOException If we weren't able to read a page
+     */
+    public V get( long key ) throws IOException, KeyNotFoundException
+    {
+        return btree.get( key );
+    }
+
+
+    /**
+     * Checks if the given key exists.
+     *
+     * @see BTree#hasKey(Object)
+     * @param key The key we are looking at
+     * @return true if the key is present, false otherwise
+     * @throws IOException If we weren't able to read a page
+     * @throws KeyNotFoundException Never thrown
+     */
+    public boolean hasKey( long key ) throws IOException, KeyNotFoundException
+    {
+        return btree.hasKey( key );
+    }
+
+
+    /**
+     * Creates a cursor starting at the given key.
+     *
+     * @see BTree#browseFrom(Object)
+     * @param key The key to start from
+     * @return A cursor on the B-tree
+     * @throws IOException If we weren't able to read a page
+     */
+    public TupleCursor<Long, V> browseFrom( long key ) throws IOException
+    {
+        return btree.browseFrom( key );
+    }
+
+
+    /**
+     * @return The number of elements in the B-tree
+     */
+    public long getNbElems()
+    {
+        return btree.getNbElems();
+    }
+}
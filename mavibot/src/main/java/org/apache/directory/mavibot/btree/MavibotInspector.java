@@ -39,6 +39,7 @@ import org.apache.directory.mavibot.btree.exception.InvalidBTreeException;
 import org.apache.directory.mavibot.btree.serializer.ElementSerializer;
 import org.apache.directory.mavibot.btree.serializer.LongSerializer;
 import org.apache.directory.mavibot.btree.serializer.StringSerializer;
+import org.apache.directory.mavibot.btree.serializer.VarLongSerializer;
 import org.apache.directory.mavibot.btree.util.Strings;
 
 
@@ -414,6 +415,16 @@ public class MavibotInspector
      */
     private static <K, V> void checkBtree( RecordManager recordManager, long btreeOffset,
         Map<String, int[]> checkedPages ) throws Exception
+    {
+        checkBtree( recordManager, btreeOffset, checkedPages, false );
+    }
+
+
+    /**
+     * Check a B-tree, which may be a sub-btree : its leaves have no values
+     */
+    private static <K, V> void checkBtree( RecordManager recordManager, long btreeOffset,
+        Map<String, int[]> checkedPages, boolean subBtree ) throws Exception
     {
         // Read the B-tree header
         PageIO[] btreeHeaderPageIos = recordManager.readPageIOs( btreeOffset, Long.MAX_VALUE );
@@ -441,6 +452,7 @@ public class MavibotInspector
         checkOffset( recordManager, btreeInfoOffset );
 
         BtreeInfo<K, V> btreeInfo = checkBtreeInfo( recordManager, checkedPages, btreeInfoOffset, btreeRevision );
+        btreeInfo.subBtree = subBtree;
 
         // Update the checked pages
         updateCheckedPages( checkedPages.get( btreeInfo.btreeName ), recordManager.pageSize, btreeHeaderPageIos );
@@ -549,8 +561,11 @@ public class MavibotInspector
 
         dataPos += RecordManager.INT_SIZE + valueSerializerBytes.limit();
 
-        // The B-tree allowDuplicates flag
-        recordManager.readInt( btreeInfoPagesIos, dataPos );
+        // The B-tree flags
+        int flags = recordManager.readInt( btreeInfoPagesIos, dataPos );
+        btreeInfo.subtreeCounts = ( flags & RecordManager.SUBTREE_COUNTS_FLAG ) != 0;
+        btreeInfo.compactPages = ( flags & RecordManager.COMPACT_PAGES_FLAG ) != 0;
+        btreeInfo.slottedLeaves = ( flags & RecordManager.SLOTTED_LEAVES_FLAG ) != 0;
         dataPos += RecordManager.INT_SIZE;
 
         // update the checkedPages
@@ -758,6 +773,17 @@ public class MavibotInspector
         Map<String, int[]> checkedPages, int nbElems, long revision, ByteBuffer byteBuffer, PageIO[] pageIos )
         throws Exception
     {
+        int[] keyOffsets = readKeyOffsets( btreeInfo, nbElems, byteBuffer );
+        int entriesStart = ( keyOffsets != null ) ? byteBuffer.position() : 0;
+
+        if ( btreeInfo.compactPages )
+        {
+            checkCompactBtreeLeaf( recordManager, btreeInfo, checkedPages, nbElems, byteBuffer, keyOffsets,
+                entriesStart );
+
+            return;
+        }
+
         // Read each key and value
         for ( int i = 0; i < nbElems; i++ )
         {
@@ -776,6 +802,7 @@ public class MavibotInspector
 
                     // Now, process the key
                     // The key length
+                    checkKeyOffset( keyOffsets, entriesStart, i, byteBuffer );
                     byteBuffer.getInt();
 
                     // The key itself
@@ -783,12 +810,15 @@ public class MavibotInspector
                 }
                 else
                 {
-                    // just deserialize the keys and values
-                    // The value
-                    byteBuffer.getInt();
-                    btreeInfo.valueSerializer.deserialize( byteBuffer );
+                    // just deserialize the keys, and skip the values, if any
+                    if ( nbValues > 0 )
+                    {
+                        int valuesLength = byteBuffer.getInt();
+                        byteBuffer.position( byteBuffer.position() + valuesLength );
+                    }
 
                     // the key
+                    checkKeyOffset( keyOffsets, entriesStart, i, byteBuffer );
                     byteBuffer.getInt();
 
                     btreeInfo.keySerializer.deserialize( byteBuffer );
@@ -802,6 +832,95 @@ public class MavibotInspector
     }
 
 
+    /**
+     * Check a Btree leaf stored in the compact format. The values and the keys are skipped.
+     */
+    private static <K, V> void checkCompactBtreeLeaf( RecordManager recordManager, BtreeInfo<K, V> btreeInfo,
+        Map<String, int[]> checkedPages, int nbElems, ByteBuffer byteBuffer, int[] keyOffsets, int entriesStart )
+        throws Exception
+    {
+        for ( int i = 0; i < nbElems; i++ )
+        {
+            try
+            {
+                if ( !btreeInfo.subBtree )
+                {
+                    // Read the number of values
+                    long nbValues = VarLongSerializer.decodeZigZag( VarLongSerializer.readVarLong( byteBuffer ) );
+
+                    if ( nbValues < 0 )
+                    {
+                        // This is a sub-btree. Read the offset, and process the sub-btree
+                        checkBtree( recordManager, VarLongSerializer.readVarLong( byteBuffer ), checkedPages, true );
+                    }
+                    else if ( nbValues > 0 )
+                    {
+                        // Skip the values
+                        int valuesLength = ( int ) VarLongSerializer.readVarLong( byteBuffer );
+                        byteBuffer.position( byteBuffer.position() + valuesLength );
+                    }
+                }
+
+                // Skip the key
+                checkKeyOffset( keyOffsets, entriesStart, i, byteBuffer );
+                int keyLength = ( int ) VarLongSerializer.readVarLong( byteBuffer );
+                byteBuffer.position( byteBuffer.position() + keyLength );
+            }
+            catch ( BufferUnderflowException bue )
+            {
+                throw new InvalidBTreeException( "The leaf byte buffer is too short : " + bue.getMessage() );
+            }
+            catch ( IllegalArgumentException iae )
+            {
+                throw new InvalidBTreeException( "The leaf byte buffer is too short : " + iae.getMessage() );
+            }
+        }
+    }
+
+
+    /**
+     * Reads the table of the keys offsets at the head of a slotted leaf
+     *
+     * @return The keys offsets, or null if the leaves are not slotted
+     */
+    private static <K, V> int[] readKeyOffsets( BtreeInfo<K, V> btreeInfo, int nbElems, ByteBuffer byteBuffer )
+    {
+        if ( !btreeInfo.slottedLeaves || ( nbElems == 0 ) )
+        {
+            return null;
+        }
+
+        int[] keyOffsets = new int[nbElems];
+
+        try
+        {
+            for ( int i = 0; i < nbElems; i++ )
+            {
+                keyOffsets[i] = byteBuffer.getInt();
+            }
+        }
+        catch ( BufferUnderflowException bue )
+        {
+            throw new InvalidBTreeException( "The leaf keys offsets table is too short : " + bue.getMessage() );
+        }
+
+        return keyOffsets;
+    }
+
+
+    /**
+     * Checks that a key is stored at the offset given by the keys offsets table of a slotted leaf
+     */
+    private static void checkKeyOffset( int[] keyOffsets, int entriesStart, int pos, ByteBuffer byteBuffer )
+    {
+        if ( ( keyOffsets != null ) && ( keyOffsets[pos] != byteBuffer.position() - entriesStart ) )
+        {
+            throw new InvalidBTreeException( "The offset of the key " + pos + " is invalid : " + keyOffsets[pos]
+                + ", expected " + ( byteBuffer.position() - entriesStart ) );
+        }
+    }
+
+
     /**
      * Check a Btree of Btrees Node
      */
@@ -878,6 +997,11 @@ public class MavibotInspector
     {
         long[] children = new long[nbElems + 1];
 
+        if ( btreeInfo.compactPages )
+        {
+            return checkCompactBtreeNode( recordManager, btreeInfo, nbElems, byteBuffer );
+        }
+
         // Read each key and value
         for ( int i = 0; i < nbElems; i++ )
         {
@@ -892,6 +1016,12 @@ public class MavibotInspector
 
                 checkOffset( recordManager, lastOffset );
 
+                if ( btreeInfo.subtreeCounts )
+                {
+                    // The number of keys in the child
+                    byteBuffer.getLong();
+                }
+
                 children[i] = firstOffset;
 
                 // Now, read the key
@@ -917,12 +1047,66 @@ public class MavibotInspector
 
         checkOffset( recordManager, lastOffset );
 
+        if ( btreeInfo.subtreeCounts )
+        {
+            byteBuffer.getLong();
+        }
+
         children[nbElems] = firstOffset;
 
         return children;
     }
 
 
+    /**
+     * Check a Btree node stored in the compact format.
+     */
+    private static <K, V> long[] checkCompactBtreeNode( RecordManager recordManager, BtreeInfo<K, V> btreeInfo,
+        int nbElems, ByteBuffer byteBuffer ) throws Exception
+    {
+        long[] children = new long[nbElems + 1];
+        long firstOffset = 0L;
+
+        // Read each value and key. The last value has no key
+        for ( int i = 0; i <= nbElems; i++ )
+        {
+            try
+            {
+                // The offsets of the child, delta-encoded
+                firstOffset += VarLongSerializer.decodeZigZag( VarLongSerializer.readVarLong( byteBuffer ) );
+
+                checkOffset( recordManager, firstOffset );
+
+                long lastOffset = firstOffset
+                    + VarLongSerializer.decodeZigZag( VarLongSerializer.readVarLong( byteBuffer ) );
+
+                checkOffset( recordManager, lastOffset );
+
+                if ( btreeInfo.subtreeCounts )
+                {
+                    // The number of keys in the child
+                    VarLongSerializer.readVarLong( byteBuffer );
+                }
+
+                children[i] = firstOffset;
+
+                if ( i < nbElems )
+                {
+                    // The key length, and the key itself
+                    VarLongSerializer.readVarLong( byteBuffer );
+                    btreeInfo.keySerializer.deserialize( byteBuffer );
+                }
+            }
+            catch ( BufferUnderflowException bue )
+            {
+                throw new InvalidBTreeException( "The node byte buffer is too short : " + bue.getMessage() );
+            }
+        }
+
+        return children;
+    }
+
+
     /**
      * Create an array of bits for pages 
      */
@@ -1442,6 +1626,18 @@ final class BtreeInfo<K, V>
     // The value serializer
     /* no qualifier */ElementSerializer<V> valueSerializer;
 
+    // Tells if the nodes store the number of keys of each child
+    /* no qualifier */boolean subtreeCounts;
+
+    // Tells if the pages are stored in the compact format
+    /* no qualifier */boolean compactPages;
+
+    // Tells if the leaves start with a table of their keys offsets
+    /* no qualifier */boolean slottedLeaves;
+
+    // Tells if the B-tree is a sub-btree, which leaves have no values
+    /* no qualifier */boolean subBtree;
+
 
     public String toString()
     {
@@ -0,0 +1,369 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.mavibot.btree;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.directory.mavibot.btree.exception.BTreeAlreadyManagedException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * An offline tool rewriting a whole Mavibot database file into a new one. Only the latest
+ * revision of each managed B-tree is copied, and the B-tree of B-trees of the new file
+ * contains a single revision per B-tree.<br/>
+ * The pages of each B-tree are written in sequence at the end of the new file : first the
+ * leaves, in key order, then the nodes, the root page being the last one. The pages are
+ * gathered in large extents before being written. As a node refers to the offsets of its
+ * children, it is written after them.<br/>
+ * The target RecordManager must be a new one, and no other thread should use the two
+ * RecordManagers while the rewrite is in progress.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class MavibotRewriter
+{
+    /** The LoggerFactory used by this class */
+    protected static final Logger LOG = LoggerFactory.getLogger( MavibotRewriter.class );
+
+    /** The RecordManager we read from */
+    private RecordManager source;
+
+    /** The RecordManager we write into */
+    private RecordManager target;
+
+    /** The writer gathering the pages */
+    private ExtentWriter writer;
+
+    /** The first and last offsets, and the number of keys, of the leaves of the B-tree being rewritten */
+    private long[] leafOffsets = new long[1536];
+
+    /** The number of leaves written */
+    private int nbLeaves;
+
+    /** The number of leaves already referenced by a node */
+    private int leafPos;
+
+
+    /**
+     * Creates a new MavibotRewriter
+     *
+     * @param source The RecordManager to read
+     * @param target The new RecordManager to write into
+     */
+    public MavibotRewriter( RecordManager source, RecordManager target )
+    {
+        if ( source.getPageSize() != target.getPageSize() )
+        {
+            throw new IllegalArgumentException( "The source and target RecordManagers must have the same page size" );
+        }
+
+        this.source = source;
+        this.target = target;
+    }
+
+
+    /**
+     * Rewrites all the B-trees managed by the source RecordManager into the target RecordManager.
+     *
+     * @throws IOException If we had an issue while reading or writing the files
+     * @throws BTreeAlreadyManagedException If a B-tree already exists in the target RecordManager
+     */
+    public void rewrite() throws IOException, BTreeAlreadyManagedException
+    {
+        writer = new ExtentWriter( target, ExtentWriter.DEFAULT_EXTENT_SIZE );
+
+        List<String> names = new ArrayList<String>( source.getManagedTrees() );
+        Collections.sort( names );
+
+        for ( String name : names )
+        {
+            BTree<Object, Object> btree = source.getManagedTree( name );
+
+            // The sub-btrees are rewritten with the values of their parent
+            if ( btree.getType() == BTreeTypeEnum.PERSISTED )
+            {
+                rewrite( ( PersistedBTree<Object, Object> ) btree );
+            }
+        }
+    }
+
+
+    /**
+     * Rewrites one B-tree.
+     */
+    private <K, V> void rewrite( PersistedBTree<K, V> btree ) throws IOException, BTreeAlreadyManagedException
+    {
+        String name = btree.getName();
+
+        if ( target.getManagedTrees().contains( name ) )
+        {
+            throw new BTreeAlreadyManagedException( name );
+        }
+
+        LOG.debug( "Rewriting the B-tree {}", name );
+
+        PersistedBTree<K, V> copy = ( PersistedBTree<K, V> ) BTreeFactory.createPersistedBTree( name,
+            btree.getKeySerializer(), btree.getValueSerializer(), btree.getPageSize(), btree.isAllowDuplicates() );
+        copy.setSubtreeCounts( btree.isSubtreeCounts() );
+        copy.setBloomFilterEnabled( btree.hasBloomFilter() );
+        copy.setCompressedValues( btree.isCompressedValues() );
+        copy.setCompactPages( btree.isCompactPages() );
+        copy.setSlottedLeaves( btree.isSlottedLeaves() );
+        copy.setMaxPageIOs( btree.getMaxPageIOs() );
+
+        Page<K, V> rootPage = btree.getRootPage();
+
+        if ( rootPage.getNbElems() == 0 )
+        {
+            // Nothing to copy, the B-tree will get an empty root page
+            target.manage( copy );
+
+            return;
+        }
+
+        BTreeFactory.setRecordManager( copy, target );
+        nbLeaves = 0;
+        leafPos = 0;
+
+        target.beginTransaction();
+
+        try
+        {
+            // First write the leaves, then the nodes
+            Page<K, V> newRootPage = writeLeaves( copy, rootPage );
+
+            if ( rootPage.isNode() )
+            {
+                newRootPage = writeNodes( copy, rootPage, getHeight( rootPage ) );
+            }
+
+            writer.flush();
+
+            BTreeHeader<K, V> btreeHeader = copy.getBtreeHeader();
+            btreeHeader.setRootPage( newRootPage );
+            btreeHeader.setNbElems( btree.getNbElems() );
+
+            target.manage( copy, false );
+            target.commit();
+        }
+        catch ( IOException ioe )
+        {
+            target.rollback();
+            throw ioe;
+        }
+
+        // The Bloom filter will be written when the target is closed
+        copy.rebuildBloomFilter();
+    }
+
+
+    /**
+     * Writes all the leaves under the given page, in key order, and returns the last one.
+     */
+    private <K, V> Page<K, V> writeLeaves( PersistedBTree<K, V> copy, Page<K, V> page ) throws IOException
+    {
+        if ( page.isNode() )
+        {
+            Page<K, V> lastLeaf = null;
+
+            for ( int pos = 0; pos <= page.getNbElems(); pos++ )
+            {
+                lastLeaf = writeLeaves( copy, ( ( AbstractPage<K, V> ) page ).getReference( pos ) );
+            }
+
+            return lastLeaf;
+        }
+
+        PersistedLeaf<K, V> leaf = ( PersistedLeaf<K, V> ) page;
+        int nbElems = leaf.getNbElems();
+        Page<K, V> newLeaf = BTreeFactory.createLeaf( copy, 0L, nbElems );
+
+        for ( int pos = 0; pos < nbElems; pos++ )
+        {
+            byte[] key = ( ( PersistedKeyHolder<K> ) leaf.getKeyHolder( pos ) ).getRaw();
+            BTreeFactory.setKey( copy, newLeaf, pos, key );
+            BTreeFactory.setValue( copy, newLeaf, pos, copyValues( copy, leaf.getValue( pos ) ) );
+        }
+
+        write( copy, newLeaf );
+
+        // Keep the leaf offsets and size for its parent
+        if ( nbLeaves * 3 == leafOffsets.length )
+        {
+            leafOffsets = Arrays.copyOf( leafOffsets, leafOffsets.length * 2 );
+        }
+
+        leafOffsets[nbLeaves * 3] = ( ( AbstractPage<K, V> ) newLeaf ).getOffset();
+        leafOffsets[nbLeaves * 3 + 1] = ( ( AbstractPage<K, V> ) newLeaf ).getLastOffset();
+        leafOffsets[nbLeaves * 3 + 2] = nbElems;
+        nbLeaves++;
+
+        return newLeaf;
+    }
+
+
+    /**
+     * Copies the values of a leaf element
+     */
+    private <K, V> ValueHolder<V> copyValues( PersistedBTree<K, V> copy, ValueHolder<V> valueHolder )
+        throws IOException
+    {
+        V[] values = ( V[] ) Array.newInstance( copy.getValueSerializer().getType(), valueHolder.size() );
+        ValueCursor<V> cursor = valueHolder.getCursor();
+        int pos = 0;
+
+        while ( cursor.hasNext() )
+        {
+            values[pos++] = cursor.next();
+        }
+
+        cursor.close();
+
+        if ( values.length >= copy.getValueThresholdUp() )
+        {
+            // The values will be stored in a sub-btree, which pages are directly
+            // written : we have to flush the pending pages first
+            writer.flush();
+        }
+
+        return new PersistedValueHolder<V>( copy, values );
+    }
+
+
+    /**
+     * Writes the nodes under the given page, and the page itself. The leaves have already
+     * been written.
+     *
+     * @param height The number of node levels, including the given page
+     */
+    private <K, V> Page<K, V> writeNodes( PersistedBTree<K, V> copy, Page<K, V> page, int height )
+        throws IOException
+    {
+        PersistedNode<K, V> node = ( PersistedNode<K, V> ) page;
+        int nbElems = node.getNbElems();
+        PersistedNode<K, V> newNode = ( PersistedNode<K, V> ) BTreeFactory.createNode( copy, 0L, nbElems );
+
+        for ( int pos = 0; pos < nbElems; pos++ )
+        {
+            byte[] key = ( ( PersistedKeyHolder<K> ) node.getKeyHolder( pos ) ).getRaw();
+            BTreeFactory.setKey( copy, newNode, pos, key );
+        }
+
+        for ( int pos = 0; pos <= nbElems; pos++ )
+        {
+            PersistedPageHolder<K, V> holder;
+
+            if ( height == 1 )
+            {
+                // The children are leaves : we just need their offsets and size
+                holder = new PersistedPageHolder<K, V>( copy, null, leafOffsets[leafPos * 3],
+                    leafOffsets[leafPos * 3 + 1], leafOffsets[leafPos * 3 + 2] );
+                leafPos++;
+            }
+            else
+            {
+                Page<K, V> child = writeNodes( copy, node.getReference( pos ), height - 1 );
+                holder = new PersistedPageHolder<K, V>( copy, child );
+            }
+
+            newNode.setValue( pos, holder );
+        }
+
+        write( copy, newNode );
+
+        return newNode;
+    }
+
+
+    /**
+     * Serializes a page, and adds it to the current extent
+     */
+    private <K, V> void write( PersistedBTree<K, V> copy, Page<K, V> page ) throws IOException
+    {
+        PageIO[] pageIos = target.serializePage( copy, 0L, page );
+        writer.write( pageIos );
+
+        ( ( AbstractPage<K, V> ) page ).setOffset( pageIos[0].getOffset() );
+        ( ( AbstractPage<K, V> ) page ).setLastOffset( pageIos[pageIos.length - 1].getOffset() );
+    }
+
+
+    /**
+     * Computes the number of node levels under the given page, including this page
+     */
+    private <K, V> int getHeight( Page<K, V> page ) throws IOException
+    {
+        int height = 0;
+
+        while ( page.isNode() )
+        {
+            height++;
+            page = ( ( AbstractPage<K, V> ) page ).getReference( 0 );
+        }
+
+        return height;
+    }
+
+
+    /**
+     * Rewrites a Mavibot database file into a new file.
+     */
+    public static void main( String[] args ) throws Exception
+    {
+        if ( args.length < 2 )
+        {
+            System.out.println( "Usage java MavibotRewriter <db-file-path> <new-db-file-path>" );
+            System.exit( 0 );
+        }
+
+        File targetFile = new File( args[1] );
+
+        if ( targetFile.exists() )
+        {
+            System.out.println( "The file " + targetFile + " already exists" );
+            System.exit( 1 );
+        }
+
+        RecordManager source = new RecordManager( args[0] );
+        RecordManager target = new RecordManager( targetFile.getPath(), source.getPageSize() );
+
+        try
+        {
+            new MavibotRewriter( source, target ).rewrite();
+        }
+        finally
+        {
+            target.close();
+            source.close();
+        }
+
+        System.out.println( "Rewrote " + args[0] + " (" + new File( args[0] ).length() + " bytes) into "
+            + args[1] + " (" + targetFile.length() + " bytes)" );
+    }
+}
@@ -98,6 +98,16 @@ import java.util.List;
     }
 
 
+    /**
+     * Set the modified value
+     * @param modifiedValue The new modified value
+     */
+    public void setModifiedValue( V modifiedValue )
+    {
+        this.modifiedValue = modifiedValue;
+    }
+
+
     /**
      * @see Object#toString()
      */
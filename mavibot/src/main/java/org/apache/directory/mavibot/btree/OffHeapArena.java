@@ -0,0 +1,189 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.mavibot.btree;
+
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * An arena allocator storing serialized elements in direct memory, out of the Java heap.
+ * The memory is allocated in segments, and the elements are appended to the current
+ * segment until it's full. A stored element is never moved nor overwritten, so it can be
+ * read without any lock, using absolute positions.
+ * <br/>
+ * The arena only references its current segment : the other segments are referenced by
+ * the holders of the elements they contain, and their memory is released when the last
+ * of those holders is garbage collected. Each segment is tracked with a phantom reference,
+ * so the allocated size is decreased once a segment has been collected.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+/* No qualifier */class OffHeapArena
+{
+    /** The default size of a segment : 1Mb */
+    /* no qualifier */static final int DEFAULT_SEGMENT_SIZE = 1024 * 1024;
+
+    /** The size of the segments */
+    private final int segmentSize;
+
+    /** The segment the elements are currently appended to */
+    private ByteBuffer segment;
+
+    /** The position of the first free byte in the current segment */
+    private int end;
+
+    /** The number of bytes allocated in direct memory, for the segments not yet collected */
+    private final AtomicLong allocatedSize = new AtomicLong();
+
+    /** The queue the references of the collected segments are added to */
+    private final ReferenceQueue<ByteBuffer> collectedSegments = new ReferenceQueue<ByteBuffer>();
+
+    /** The references of the segments not yet collected, kept so that they are enqueued */
+    private final Set<SegmentReference> segmentReferences = Collections
+        .synchronizedSet( Collections.newSetFromMap( new IdentityHashMap<SegmentReference, Boolean>() ) );
+
+
+    /**
+     * A reference to a segment, enqueued once the segment has been garbage collected
+     */
+    private static class SegmentReference extends PhantomReference<ByteBuffer>
+    {
+        /** The segment capacity */
+        private final int capacity;
+
+
+        private SegmentReference( ByteBuffer segment, ReferenceQueue<ByteBuffer> queue )
+        {
+            super( segment, queue );
+            capacity = segment.capacity();
+        }
+    }
+
+    /** The number of bytes used by the elements still stored in the arena */
+    private final AtomicLong liveSize = new AtomicLong();
+
+
+    /**
+     * Creates a new arena
+     *
+     * @param segmentSize The size of the segments
+     */
+    /* no qualifier */OffHeapArena( int segmentSize )
+    {
+        if ( segmentSize <= 0 )
+        {
+            throw new IllegalArgumentException( "The segment size must be positive : " + segmentSize );
+        }
+
+        this.segmentSize = segmentSize;
+    }
+
+
+    /**
+     * Allocates some room in the current segment, creating a new segment if needed. An
+     * element larger than the segment size gets its own segment. The caller must hold
+     * the arena lock until it has read the segment with {@link #getSegment()}.
+     *
+     * @param length The number of bytes to allocate
+     * @return The position of the allocated bytes in the current segment
+     */
+    /* no qualifier */synchronized int allocate( int length )
+    {
+        if ( ( segment == null ) || ( end + length > segment.capacity() ) )
+        {
+            expungeCollectedSegments();
+            segment = ByteBuffer.allocateDirect( Math.max( length, segmentSize ) );
+            end = 0;
+            allocatedSize.addAndGet( segment.capacity() );
+            segmentReferences.add( new SegmentReference( segment, collectedSegments ) );
+        }
+
+        int position = end;
+        end += length;
+        liveSize.addAndGet( length );
+
+        return position;
+    }
+
+
+    /**
+     * @return the segment the last allocation has been done in
+     */
+    /* no qualifier */synchronized ByteBuffer getSegment()
+    {
+        return segment;
+    }
+
+
+    /**
+     * Tells the arena some bytes are not used anymore. They are not reused, but they are
+     * not accounted in the live size anymore.
+     *
+     * @param length The number of released bytes
+     */
+    /* no qualifier */void release( int length )
+    {
+        liveSize.addAndGet( -length );
+    }
+
+
+    /**
+     * Removes the size of the collected segments from the allocated size
+     */
+    private void expungeCollectedSegments()
+    {
+        Reference<? extends ByteBuffer> reference;
+
+        while ( ( reference = collectedSegments.poll() ) != null )
+        {
+            segmentReferences.remove( reference );
+            allocatedSize.addAndGet( -( ( SegmentReference ) reference ).capacity );
+        }
+    }
+
+
+    /**
+     * @return the number of bytes allocated in direct memory by this arena, for the segments
+     * which have not been garbage collected yet
+     */
+    /* no qualifier */long getAllocatedSize()
+    {
+        expungeCollectedSegments();
+
+        return allocatedSize.get();
+    }
+
+
+    /**
+     * @return the number of bytes used by the elements still stored in this arena
+     */
+    /* no qualifier */long getLiveSize()
+    {
+        return liveSize.get();
+    }
+}
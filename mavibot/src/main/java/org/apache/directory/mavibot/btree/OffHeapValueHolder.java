@@ -0,0 +1,241 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.mavibot.btree;
+
+
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+
+import org.apache.directory.mavibot.btree.exception.BTreeOperationException;
+
+
+/**
+ * A holder storing the single value of an in-memory B-tree element in an {@link OffHeapArena},
+ * in its serialized form. The value is deserialized each time it's read, so only the holder
+ * stays on the heap.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ * @param <V> The value type
+ */
+/* No qualifier */class OffHeapValueHolder<V> extends InMemoryValueHolder<V>
+{
+    /** The arena the value is stored in */
+    private final OffHeapArena arena;
+
+    /** The segment containing the serialized value, null if the value is null */
+    private ByteBuffer segment;
+
+    /** The position of the serialized value in its segment */
+    private int position;
+
+    /** The length of the serialized value */
+    private int length;
+
+
+    /**
+     * Creates a new instance of a ValueHolder, storing a value in an arena.
+     *
+     * @param parentBtree The parent BTree
+     * @param arena The arena to store the value in
+     * @param value The value to store
+     */
+    OffHeapValueHolder( BTree<?, V> parentBtree, OffHeapArena arena, V value )
+    {
+        super( parentBtree, 0 );
+        this.arena = arena;
+        valueArray = null;
+        store( value );
+    }
+
+
+    /**
+     * Serializes a value into the arena
+     */
+    private void store( V value )
+    {
+        nbArrayElems = 1;
+
+        if ( value == null )
+        {
+            segment = null;
+
+            return;
+        }
+
+        length = valueSerializer.serializedSize( value );
+
+        synchronized ( arena )
+        {
+            position = arena.allocate( length );
+            segment = arena.getSegment();
+        }
+
+        ByteBuffer buffer = segment.duplicate();
+        buffer.position( position );
+        valueSerializer.serialize( value, buffer );
+    }
+
+
+    /**
+     * Deserializes the value from the arena
+     */
+    private V read()
+    {
+        if ( segment == null )
+        {
+            return null;
+        }
+
+        try
+        {
+            return valueSerializer.fromBytes( segment, position );
+        }
+        catch ( IOException ioe )
+        {
+            throw new BTreeOperationException( ioe );
+        }
+    }
+
+
+    /**
+     * Tells the arena the stored value is not used anymore by the current revision. The
+     * previous revisions may still read it.
+     */
+    /* no qualifier */void release()
+    {
+        if ( ( nbArrayElems > 0 ) && ( segment != null ) )
+        {
+            arena.release( length );
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int size()
+    {
+        return nbArrayElems;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public ValueCursor<V> getCursor()
+    {
+        V[] values = ( V[] ) Array.newInstance( valueSerializer.getType(), nbArrayElems );
+
+        if ( nbArrayElems > 0 )
+        {
+            values[0] = read();
+        }
+
+        return new ValueArrayCursor<V>( values, valueSerializer.getComparator() );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    /* no qualifier */ValueCursor<V> getCursor( ValueCursor<V> cursor )
+    {
+        // The value is deserialized in a new array anyway
+        return getCursor();
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean contains( V checkedValue )
+    {
+        return ( nbArrayElems > 0 ) && ( valueSerializer.getComparator().compare( checkedValue, read() ) == 0 );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public V remove( V value )
+    {
+        if ( !contains( value ) )
+        {
+            return null;
+        }
+
+        V removedValue = read();
+        release();
+        nbArrayElems = 0;
+
+        return removedValue;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void add( V value )
+    {
+        replaceValueArray( value );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public V replaceValueArray( V newValue )
+    {
+        V replacedValue = ( nbArrayElems > 0 ) ? read() : null;
+        release();
+        store( newValue );
+
+        return replacedValue;
+    }
+
+
+    /**
+     * @see Object#toString()
+     */
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder();
+
+        sb.append( "OffHeapValueHolder[" ).append( valueSerializer.getClass().getSimpleName() );
+        sb.append( ", {" );
+
+        if ( nbArrayElems != 0 )
+        {
+            sb.append( read() );
+        }
+
+        sb.append( "}]" );
+
+        return sb.toString();
+    }
+}
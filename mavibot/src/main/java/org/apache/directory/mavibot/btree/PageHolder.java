@@ -36,6 +36,9 @@ package org.apache.directory.mavibot.btree;
     /** The stored page */
     private Page<K, V> page;
 
+    /** The number of keys stored in the page and its children, -1 if not yet known */
+    protected long count = -1L;
+
 
     /**
      * Create a new holder storing an offset and a SoftReference containing the element.
@@ -57,4 +60,19 @@ package org.apache.directory.mavibot.btree;
     {
         return page;
     }
+
+
+    /**
+     * @return the number of keys stored in the page and its children. It's computed
+     * the first time it's requested.
+     */
+    /* no qualifier */long getCount()
+    {
+        if ( count < 0 )
+        {
+            count = ( ( AbstractPage<K, V> ) getValue() ).getCount();
+        }
+
+        return count;
+    }
 }
@@ -133,18 +133,26 @@ public class PageReclaimer
                     NameRevision nr = new NameRevision( name, latestRev );
                     TupleCursor<NameRevision, Long> cursor = rm.btreeOfBtrees.browseFrom( nr );
                     
+                    List<NameRevision> btreeHeaderKeys = new ArrayList<NameRevision>();
                     List<Long> btreeHeaderOffsets = new ArrayList<Long>();
                     
                     while ( cursor.hasPrev() )
                     {
                         Tuple<NameRevision, Long> t = cursor.prev();
-                        //System.out.println( "deleting BoB rev " + t.getKey()  + " latest rev " + latestRev );
-                        rm.btreeOfBtrees.delete( t.getKey() );
+                        btreeHeaderKeys.add( t.getKey() );
                         btreeHeaderOffsets.add( t.value );
                     }
 
                     cursor.close();
                     
+                    // The BoB pages are freed as soon as they are copied, so the
+                    // entries are deleted once the cursor is done with them
+                    for ( NameRevision key : btreeHeaderKeys )
+                    {
+                        //System.out.println( "deleting BoB rev " + key  + " latest rev " + latestRev );
+                        rm.btreeOfBtrees.delete( key );
+                    }
+
                     for( Long l : btreeHeaderOffsets )
                     {
                         // the offset may have already been present while
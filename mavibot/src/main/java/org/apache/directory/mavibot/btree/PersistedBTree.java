@@ -24,10 +24,14 @@ import java.io.Closeable;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import java.util.concurrent.ConcurrentLinkedQueue;
 
 import org.apache.commons.collections.map.LRUMap;
 import org.apache.directory.mavibot.btree.exception.KeyNotFoundException;
+import org.apache.directory.mavibot.btree.serializer.LongSerializer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -66,12 +70,48 @@ public class PersistedBTree<K, V> extends AbstractBTree<K, V> implements Closeab
     /*No qualifier*/static int valueThresholdUp = DEFAULT_VALUE_THRESHOLD_UP;
     /*No qualifier*/static int valueThresholdLow = DEFAULT_VALUE_THRESHOLD_LOW;
 
+    /** The number of stored Values before we switch to a B-tree, when the values are compressed */
+    public static final int COMPRESSED_VALUE_THRESHOLD_UP = 4096;
+
     /** The BtreeInfo offset */
     private long btreeInfoOffset = RecordManager.NO_PAGE;
 
     /** The internal recordManager */
     private RecordManager recordManager;
 
+    /** Tells if the nodes store the number of keys of each child */
+    private boolean subtreeCounts;
+
+    /** The number of leaves the cursors read ahead, 0 if they don't */
+    private int prefetchDepth;
+
+    /** The number of PageIOs a leaf can span before it is split, 0 if there is no limit */
+    private int maxPageIOs;
+
+    /** Tells if the lookups are filtered by a Bloom filter */
+    private boolean bloomFilterEnabled;
+
+    /** The number of keys the Bloom filter is initially sized for */
+    private long bloomFilterCapacity;
+
+    /** The Bloom filter, loaded or built when first used */
+    private volatile BloomFilter<K> bloomFilter;
+
+    /** Tells if the Bloom filter has been modified since it has been written on disk */
+    private volatile boolean bloomFilterDirty;
+
+    /** The offset of the last Bloom filter written on disk */
+    private long bloomFilterOffset = RecordManager.NO_PAGE;
+
+    /** Tells if the duplicate Long values are stored delta-encoded */
+    private boolean compressedValues;
+
+    /** Tells if the pages are stored in the compact, variable length, format */
+    private boolean compactPages;
+
+    /** Tells if the leaves are stored with a table of their keys offsets */
+    private boolean slottedLeaves;
+
 
     /**
      * Creates a new BTree, with no initialization.
@@ -103,11 +143,19 @@ public class PersistedBTree<K, V> extends AbstractBTree<K, V> implements Closeab
         setKeySerializer( configuration.getKeySerializer() );
         setValueSerializer( configuration.getValueSerializer() );
         setAllowDuplicates( configuration.isAllowDuplicates() );
+        setSubtreeCounts( configuration.isSubtreeCounts() );
         setType( configuration.getBtreeType() );
 
         readTimeOut = configuration.getReadTimeOut();
         writeBufferSize = configuration.getWriteBufferSize();
         cacheSize = configuration.getCacheSize();
+        prefetchDepth = configuration.getPrefetchDepth();
+        maxPageIOs = configuration.getMaxPageIOs();
+        bloomFilterCapacity = configuration.getBloomFilterCapacity();
+        bloomFilterEnabled = bloomFilterCapacity > 0;
+        setCompressedValues( configuration.isCompressedValues() );
+        compactPages = configuration.isCompactPages();
+        slottedLeaves = configuration.isSlottedLeaves();
 
         if ( keySerializer.getComparator() == null )
         {
@@ -181,6 +229,368 @@ public class PersistedBTree<K, V> extends AbstractBTree<K, V> implements Closeab
     }
 
 
+    /**
+     * @return true if the nodes store the number of keys of each child
+     */
+    public boolean isSubtreeCounts()
+    {
+        return subtreeCounts;
+    }
+
+
+    /**
+     * @param subtreeCounts Tells if the nodes store the number of keys of each child
+     */
+    /* no qualifier */void setSubtreeCounts( boolean subtreeCounts )
+    {
+        this.subtreeCounts = subtreeCounts;
+    }
+
+
+    /**
+     * @return true if the duplicate values are stored delta-encoded
+     */
+    public boolean isCompressedValues()
+    {
+        return compressedValues;
+    }
+
+
+    /**
+     * Sets the compression of the duplicate values. It's only enabled when duplicate values
+     * are allowed and the values are Longs.
+     *
+     * @param compressedValues Tells if the duplicate Long values are stored delta-encoded
+     */
+    /* no qualifier */void setCompressedValues( boolean compressedValues )
+    {
+        this.compressedValues = compressedValues && isAllowDuplicates()
+            && ( getValueSerializer() == LongSerializer.INSTANCE );
+    }
+
+
+    /**
+     * @return true if the pages are stored in the compact format
+     */
+    public boolean isCompactPages()
+    {
+        return compactPages;
+    }
+
+
+    /**
+     * @param compactPages Tells if the pages are stored in the compact format
+     */
+    /* no qualifier */void setCompactPages( boolean compactPages )
+    {
+        this.compactPages = compactPages;
+    }
+
+
+    /**
+     * @return true if the leaves are stored with a table of their keys offsets
+     */
+    public boolean isSlottedLeaves()
+    {
+        return slottedLeaves;
+    }
+
+
+    /**
+     * @param slottedLeaves Tells if the leaves are stored with a table of their keys offsets
+     */
+    /* no qualifier */void setSlottedLeaves( boolean slottedLeaves )
+    {
+        this.slottedLeaves = slottedLeaves;
+    }
+
+
+    /**
+     * @return the number of values stored in an array before we switch to a sub-btree
+     */
+    /* no qualifier */int getValueThresholdUp()
+    {
+        if ( compressedValues )
+        {
+            return COMPRESSED_VALUE_THRESHOLD_UP;
+        }
+
+        return valueThresholdUp;
+    }
+
+
+    /**
+     * @return true if the lookups are filtered by a Bloom filter
+     */
+    public boolean hasBloomFilter()
+    {
+        return bloomFilterEnabled;
+    }
+
+
+    /**
+     * @param bloomFilterEnabled Tells if the lookups are filtered by a Bloom filter
+     */
+    /* no qualifier */void setBloomFilterEnabled( boolean bloomFilterEnabled )
+    {
+        this.bloomFilterEnabled = bloomFilterEnabled;
+    }
+
+
+    /**
+     * @return The offset of the last Bloom filter written on disk
+     */
+    /* no qualifier */long getBloomFilterOffset()
+    {
+        return bloomFilterOffset;
+    }
+
+
+    /**
+     * @param bloomFilterOffset The offset of the last Bloom filter written on disk
+     */
+    /* no qualifier */void setBloomFilterOffset( long bloomFilterOffset )
+    {
+        this.bloomFilterOffset = bloomFilterOffset;
+    }
+
+
+    /**
+     * @return true if the Bloom filter has been modified since it has been written on disk
+     */
+    /* no qualifier */boolean isBloomFilterDirty()
+    {
+        return bloomFilterDirty;
+    }
+
+
+    /**
+     * @param bloomFilterDirty Tells if the Bloom filter has to be written on disk
+     */
+    /* no qualifier */void setBloomFilterDirty( boolean bloomFilterDirty )
+    {
+        this.bloomFilterDirty = bloomFilterDirty;
+    }
+
+
+    /**
+     * Gets the Bloom filter. It's read from disk when first used, or built from the keys
+     * if the one stored on disk does not match the current revision.
+     *
+     * @return The Bloom filter, or null if this B-tree does not have one
+     * @throws IOException If we had an issue while reading the B-tree
+     */
+    /* no qualifier */BloomFilter<K> getBloomFilter() throws IOException
+    {
+        if ( !bloomFilterEnabled )
+        {
+            return null;
+        }
+
+        BloomFilter<K> filter = bloomFilter;
+
+        if ( filter == null )
+        {
+            synchronized ( this )
+            {
+                if ( bloomFilter == null )
+                {
+                    bloomFilter = recordManager.readBloomFilter( this );
+
+                    if ( bloomFilter == null )
+                    {
+                        rebuildBloomFilter();
+                    }
+                }
+
+                filter = bloomFilter;
+            }
+        }
+
+        return filter;
+    }
+
+
+    /**
+     * Creates a new Bloom filter containing the keys of the current revision. The deleted
+     * keys are removed from the filter this way, and its size is adapted to the number of
+     * keys. The filter will be written on disk with the next B-tree header, or when the
+     * RecordManager is closed.
+     *
+     * @throws IOException If we had an issue while reading the B-tree
+     */
+    /* no qualifier */synchronized void rebuildBloomFilter() throws IOException
+    {
+        if ( !bloomFilterEnabled )
+        {
+            return;
+        }
+
+        BloomFilter<K> filter = new BloomFilter<K>( keySerializer, Math.max( bloomFilterCapacity, getNbElems() ) );
+        TupleCursor<K, V> cursor = null;
+
+        try
+        {
+            cursor = browse();
+
+            while ( cursor.hasNext() )
+            {
+                filter.add( cursor.next().getKey() );
+            }
+        }
+        catch ( KeyNotFoundException knfe )
+        {
+            throw new IOException( knfe.getMessage() );
+        }
+        finally
+        {
+            if ( cursor != null )
+            {
+                cursor.close();
+            }
+        }
+
+        bloomFilter = filter;
+        bloomFilterDirty = true;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public V get( K key ) throws IOException, KeyNotFoundException
+    {
+        BloomFilter<K> filter = getBloomFilter();
+
+        if ( ( filter != null ) && ( key != null ) && !filter.mightContain( key ) )
+        {
+            throw KeyNotFoundException.INSTANCE;
+        }
+
+        return super.get( key );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public List<Tuple<K, V>> getAll( Collection<K> keys ) throws IOException
+    {
+        BloomFilter<K> filter = getBloomFilter();
+
+        if ( filter == null )
+        {
+            return super.getAll( keys );
+        }
+
+        // Don't look for the keys we know are missing
+        List<K> candidates = new ArrayList<K>( keys.size() );
+
+        for ( K key : keys )
+        {
+            if ( ( key != null ) && filter.mightContain( key ) )
+            {
+                candidates.add( key );
+            }
+        }
+
+        return super.getAll( candidates );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean hasKey( K key ) throws IOException, KeyNotFoundException
+    {
+        BloomFilter<K> filter = getBloomFilter();
+
+        if ( ( filter != null ) && ( key != null ) && !filter.mightContain( key ) )
+        {
+            return false;
+        }
+
+        return super.hasKey( key );
+    }
+
+
+    /**
+     * @return the number of leaves the cursors read ahead
+     */
+    public int getPrefetchDepth()
+    {
+        return prefetchDepth;
+    }
+
+
+    /**
+     * Sets the number of leaves the cursors load in the cache, in a background thread,
+     * when they move to a new leaf.
+     *
+     * @param prefetchDepth The number of leaves to read ahead, 0 to disable the read-ahead
+     */
+    public void setPrefetchDepth( int prefetchDepth )
+    {
+        this.prefetchDepth = prefetchDepth;
+    }
+
+
+    /**
+     * @return the number of PageIOs a leaf can span before it is split, 0 if there is no limit
+     */
+    public int getMaxPageIOs()
+    {
+        return maxPageIOs;
+    }
+
+
+    /**
+     * Sets the number of PageIOs a leaf can span. A leaf which would be serialized in more
+     * PageIOs once an element is added is split, even if it contains less than pageSize
+     * elements. The nodes are still split when they are full. The limit is stored with the
+     * B-tree when it's managed by the RecordManager.
+     *
+     * @param maxPageIOs The number of PageIOs a leaf can span, 0 to only split full leaves
+     */
+    public void setMaxPageIOs( int maxPageIOs )
+    {
+        this.maxPageIOs = maxPageIOs;
+    }
+
+
+    /**
+     * Loads in the cache the children of a node which are next to a given position. Only
+     * the children of this node are read : the following node will be processed when the
+     * cursor reaches it.
+     *
+     * @param node The node containing the current page
+     * @param pos The position of the current page in the node
+     * @param forward Tells if we read the pages on the right or on the left
+     * @param transaction The transaction of the cursor asking for the pages
+     */
+    /* no qualifier */void prefetch( Page<K, V> node, int pos, boolean forward, ReadTransaction<K, V> transaction )
+    {
+        if ( ( prefetchDepth <= 0 ) || ( recordManager == null ) )
+        {
+            return;
+        }
+
+        AbstractPage<K, V> parent = ( AbstractPage<K, V> ) node;
+
+        for ( int i = 1; i <= prefetchDepth; i++ )
+        {
+            int childPos = forward ? pos + i : pos - i;
+
+            if ( ( childPos < 0 ) || ( childPos > parent.getNbElems() ) )
+            {
+                break;
+            }
+
+            recordManager.prefetch( ( PersistedPageHolder<K, V> ) parent.children[childPos], transaction );
+        }
+    }
+
+
     /**
      * Return the cache we use in this BTree
      */
@@ -209,7 +619,10 @@ public class PersistedBTree<K, V> extends AbstractBTree<K, V> implements Closeab
         // readTransactions.clear();
 
         // Clean the cache
-        cache.clear();
+        synchronized ( cache )
+        {
+            cache.clear();
+        }
     }
 
 
@@ -368,6 +781,13 @@ public class PersistedBTree<K, V> extends AbstractBTree<K, V> implements Closeab
         newBtreeHeader.setRootPage( newRootPage );
         newBtreeHeader.setRevision( revision );
 
+        // The deleted key stays in the Bloom filter, but the filter is written with the
+        // new revision, so that it can be read back with the B-tree header
+        if ( bloomFilter != null )
+        {
+            bloomFilterDirty = true;
+        }
+
         // Write down the data on disk
         long newBtreeHeaderOffset = recordManager.writeBtreeHeader( this, newBtreeHeader );
 
@@ -451,6 +871,15 @@ public class PersistedBTree<K, V> extends AbstractBTree<K, V> implements Closeab
             revision = currentRevision.get() + 1;
         }
 
+        // The key must be in the Bloom filter before it's visible in the B-tree
+        BloomFilter<K> filter = getBloomFilter();
+
+        if ( filter != null )
+        {
+            filter.add( key );
+            bloomFilterDirty = true;
+        }
+
         try
         {
             // Try to insert the new value in the tree at the right place,
@@ -505,9 +934,12 @@ public class PersistedBTree<K, V> extends AbstractBTree<K, V> implements Closeab
      */
     private InsertResult<K, V> processInsert( K key, V value, long revision ) throws IOException
     {
-        // Get the current B-tree header, and insert the value into it
+        // Get the current B-tree header, and insert the value into it. We first try
+        // to append it on the rightmost path : the keys above all the keys of the
+        // B-tree are added with one comparison per page, and fill the leaves.
         BTreeHeader<K, V> btreeHeader = getBTreeHeader( getName() );
-        InsertResult<K, V> result = btreeHeader.getRootPage().insert( key, value, revision );
+        InsertResult<K, V> result = ( ( AbstractPage<K, V> ) btreeHeader.getRootPage() ).append( key, value,
+            revision );
 
         if ( result instanceof ExistsResult )
         {
@@ -562,8 +994,12 @@ public class PersistedBTree<K, V> extends AbstractBTree<K, V> implements Closeab
             // Create the new rootPage
             newRootPage = new PersistedNode<K, V>( this, revision, pivot, holderLeft, holderRight );
 
-            // Always increment the counter : we have added a new value
-            newBtreeHeader.incrementNbElems();
+            // Increment the counter if we have inserted a new value, and not
+            // replaced a value in a leaf which has been split
+            if ( splitResult.getModifiedValue() == null )
+            {
+                newBtreeHeader.incrementNbElems();
+            }
         }
 
         // Write the new root page on disk
@@ -636,6 +1072,93 @@ public class PersistedBTree<K, V> extends AbstractBTree<K, V> implements Closeab
     }
 
 
+    /**
+     * Store a new revision of this B-tree, using a root page whose content is unchanged
+     * but which, or whose children, have been moved to some other place in the file. The
+     * replaced pages are handled as the copied pages of a modification.
+     *
+     * @param newRootPage The new root page
+     * @param revision The new revision
+     * @param copiedPages The pages which have been replaced
+     * @throws IOException If we weren't able to write the new pages on disk
+     */
+    /* no qualifier */void relocateRootPage( Page<K, V> newRootPage, long revision, List<Page<K, V>> copiedPages )
+        throws IOException
+    {
+        if ( btreeType == BTreeTypeEnum.PERSISTED_SUB )
+        {
+            throw new IllegalArgumentException( "Cannot relocate the pages of the sub-btree " + getName() );
+        }
+
+        BTreeHeader<K, V> btreeHeader = getBTreeHeader( getName() );
+        BTreeHeader<K, V> newBtreeHeader = btreeHeader.copy();
+
+        // Inject the old B-tree header into the pages to be freed
+        // if we are relocating a management BTree
+        if ( ( btreeType == BTreeTypeEnum.BTREE_OF_BTREES ) || ( btreeType == BTreeTypeEnum.COPIED_PAGES_BTREE ) )
+        {
+            PageIO[] pageIos = recordManager.readPageIOs( btreeHeader.getBTreeHeaderOffset(), -1L );
+
+            for ( PageIO pageIo : pageIos )
+            {
+                recordManager.freedPages.add( pageIo );
+            }
+        }
+
+        // Write the new root page on disk
+        writePage( newRootPage, revision );
+
+        // Update the new B-tree header
+        newBtreeHeader.setRootPage( newRootPage );
+        newBtreeHeader.setRevision( revision );
+
+        // Write down the data on disk
+        long newBtreeHeaderOffset = recordManager.writeBtreeHeader( this, newBtreeHeader );
+
+        switch ( btreeType )
+        {
+            case PERSISTED:
+                // We have a new B-tree header to inject into the B-tree of btrees
+                recordManager.addInBtreeOfBtrees( getName(), revision, newBtreeHeaderOffset );
+
+                recordManager.addInCopiedPagesBtree( getName(), revision, copiedPages );
+
+                // Store the new revision
+                storeRevision( newBtreeHeader, recordManager.isKeepRevisions() );
+
+                break;
+
+            case BTREE_OF_BTREES:
+                // The B-tree of B-trees has been updated, update the RMheader parameters
+                recordManager.updateRecordManagerHeader( newBtreeHeaderOffset, -1L );
+
+                // We can free the copied pages
+                recordManager.freePages( this, revision, copiedPages );
+
+                // Store the new revision
+                storeRevision( newBtreeHeader, recordManager.isKeepRevisions() );
+
+                break;
+
+            case COPIED_PAGES_BTREE:
+                // The copiedPages B-tree has been updated, update the RMheader parameters
+                recordManager.updateRecordManagerHeader( -1L, newBtreeHeaderOffset );
+
+                // We can free the copied pages
+                recordManager.freePages( this, revision, copiedPages );
+
+                // Store the new revision
+                storeRevision( newBtreeHeader, recordManager.isKeepRevisions() );
+
+                break;
+
+            default:
+                // Nothing to do for sub-btrees
+                break;
+        }
+    }
+
+
     /**
      * Write the data in the ByteBuffer, and eventually on disk if needed.
      *
@@ -720,6 +1243,41 @@ public class PersistedBTree<K, V> extends AbstractBTree<K, V> implements Closeab
     }
 
 
+    /**
+     * Replaces the whole content of the B-tree by an already written root page, in one new
+     * revision : the readers either see the previous content, or the new one. The caller must
+     * hold the transaction lock.
+     *
+     * @param newRootPage The new root page, already written on disk
+     * @param nbElems The number of elements stored under the new root page
+     * @param copiedPages The offsets of the pages of the previous revision, which can be reclaimed
+     * @throws IOException If we can't write the new B-tree header
+     */
+    /* no qualifier */void switchRootPage( Page<K, V> newRootPage, long nbElems, long[] copiedPages )
+        throws IOException
+    {
+        long revision = currentRevision.get() + 1;
+
+        BTreeHeader<K, V> btreeHeader = getBTreeHeader( getName() );
+        BTreeHeader<K, V> newBtreeHeader = btreeHeader.copy();
+
+        newBtreeHeader.setRootPage( newRootPage );
+        newBtreeHeader.setNbElems( nbElems );
+        newBtreeHeader.setRevision( revision );
+
+        // Write down the data on disk
+        long newBtreeHeaderOffset = recordManager.writeBtreeHeader( this, newBtreeHeader );
+
+        // We have a new B-tree header to inject into the B-tree of btrees
+        recordManager.addInBtreeOfBtrees( getName(), revision, newBtreeHeaderOffset );
+
+        recordManager.addInCopiedPagesBtree( getName(), revision, copiedPages );
+
+        // Store the new revision
+        storeRevision( newBtreeHeader, recordManager.isKeepRevisions() );
+    }
+
+
     /**
      * @return the btreeInfoOffset
      */
@@ -66,12 +66,33 @@ public class PersistedBTreeConfiguration<K, V>
     /** Flag to enable duplicate key support */
     private boolean allowDuplicates;
 
+    /** Flag to store the number of keys of each child in the nodes */
+    private boolean subtreeCounts;
+
     /** The B-tree type */
     private BTreeTypeEnum btreeType = BTreeTypeEnum.PERSISTED;
 
     /** The cache size, if it's <= 0, we don't have cache */
     private int cacheSize;
 
+    /** The number of leaves a cursor reads ahead, 0 to disable the read-ahead */
+    private int prefetchDepth;
+
+    /** The number of PageIOs a leaf can span before it is split, 0 if there is no limit */
+    private int maxPageIOs;
+
+    /** The number of keys the Bloom filter is sized for, 0 if there is no Bloom filter */
+    private long bloomFilterCapacity;
+
+    /** Tells if the duplicate Long values are stored delta-encoded */
+    private boolean compressedValues;
+
+    /** Tells if the pages are stored in the compact, variable length, format */
+    private boolean compactPages;
+
+    /** Tells if the leaves are stored with a table of their keys offsets */
+    private boolean slottedLeaves;
+
     /** The inherited B-tree if we create a sub B-tree */
     private BTree<?, V> parentBTree;
 
@@ -235,6 +256,167 @@ public class PersistedBTreeConfiguration<K, V>
     }
 
 
+    /**
+     * @return true if the nodes store the number of keys of each child
+     */
+    public boolean isSubtreeCounts()
+    {
+        return subtreeCounts;
+    }
+
+
+    /**
+     * Tells the B-tree to store the number of keys of each child in its nodes. This
+     * makes the count, rank and browseAt operations cost O(log n) page reads.
+     *
+     * @param subtreeCounts true to store the subtree counts
+     */
+    public void setSubtreeCounts( boolean subtreeCounts )
+    {
+        this.subtreeCounts = subtreeCounts;
+    }
+
+
+    /**
+     * @return the number of keys the Bloom filter is initially sized for, 0 if the B-tree
+     * does not have a Bloom filter
+     */
+    public long getBloomFilterCapacity()
+    {
+        return bloomFilterCapacity;
+    }
+
+
+    /**
+     * Adds a Bloom filter to the B-tree. It's checked by the get() and hasKey() methods
+     * before reading any page, so that looking for a missing key is cheap. The filter is
+     * rebuilt to fit the number of keys after a bulk load or a compaction.
+     *
+     * @param bloomFilterCapacity The number of keys the filter is initially sized for, 0
+     * for no Bloom filter
+     */
+    public void setBloomFilterCapacity( long bloomFilterCapacity )
+    {
+        this.bloomFilterCapacity = bloomFilterCapacity;
+    }
+
+
+    /**
+     * @return true if the duplicate Long values are stored delta-encoded
+     */
+    public boolean isCompressedValues()
+    {
+        return compressedValues;
+    }
+
+
+    /**
+     * Stores the values of a key as a delta-encoded sorted set, instead of an array
+     * of length prefixed values. This is only used when duplicate values are allowed and
+     * the values are serialized by the LongSerializer. Such a set is kept in the leaf
+     * until it contains {@link PersistedBTree#COMPRESSED_VALUE_THRESHOLD_UP} values, and
+     * is only moved into a sub-btree above.
+     *
+     * @param compressedValues Tells if the duplicate Long values are stored delta-encoded
+     */
+    public void setCompressedValues( boolean compressedValues )
+    {
+        this.compressedValues = compressedValues;
+    }
+
+
+    /**
+     * @return true if the pages are stored in the compact format
+     */
+    public boolean isCompactPages()
+    {
+        return compactPages;
+    }
+
+
+    /**
+     * Stores the pages in the compact format : the lengths, the number of values and the
+     * children offsets are written as variable length integers, the offsets being
+     * delta-encoded, instead of fixed size ints and longs. The sub-btrees inherit this
+     * format from their parent B-tree.
+     *
+     * @param compactPages Tells if the pages are stored in the compact format
+     */
+    public void setCompactPages( boolean compactPages )
+    {
+        this.compactPages = compactPages;
+    }
+
+
+    /**
+     * @return true if the leaves are stored with a table of their keys offsets
+     */
+    public boolean isSlottedLeaves()
+    {
+        return slottedLeaves;
+    }
+
+
+    /**
+     * Stores the leaves with a table of the offsets of their keys at the head of their
+     * data. A leaf read from disk is then not deserialized : the keys are searched in
+     * its serialized form, and only the found elements are deserialized. The sub-btrees
+     * inherit this format from their parent B-tree.
+     *
+     * @param slottedLeaves Tells if the leaves are stored with a table of their keys offsets
+     */
+    public void setSlottedLeaves( boolean slottedLeaves )
+    {
+        this.slottedLeaves = slottedLeaves;
+    }
+
+
+    /**
+     * @return the number of leaves a cursor reads ahead
+     */
+    public int getPrefetchDepth()
+    {
+        return prefetchDepth;
+    }
+
+
+    /**
+     * Tells the cursors to load the next leaves in the cache, in a background thread,
+     * when they move to a new leaf. This hides the disk latency on long scans.
+     *
+     * @param prefetchDepth The number of leaves to read ahead, 0 to disable the read-ahead
+     */
+    public void setPrefetchDepth( int prefetchDepth )
+    {
+        this.prefetchDepth = prefetchDepth;
+    }
+
+
+    /**
+     * @return the number of PageIOs a leaf can span before it is split
+     */
+    public int getMaxPageIOs()
+    {
+        return maxPageIOs;
+    }
+
+
+    /**
+     * Splits the leaves as soon as they would not fit in a given number of PageIOs, even
+     * if they don't contain pageSize elements. This keeps the leaves holding large keys
+     * or values readable in a few disk accesses. The limit is stored with the B-tree, so it
+     * still applies once the B-tree is reloaded. The nodes are still split when they are full,
+     * and an in-memory B-tree, which pages are not serialized, splits its leaves when they
+     * are full.
+     *
+     * @param maxPageIOs The number of PageIOs a leaf can span, 0 to only split full leaves
+     */
+    public void setMaxPageIOs( int maxPageIOs )
+    {
+        this.maxPageIOs = maxPageIOs;
+    }
+
+
     /**
      * @return the cacheSize
      */
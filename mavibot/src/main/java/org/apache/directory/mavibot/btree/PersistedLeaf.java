@@ -24,9 +24,13 @@ import static org.apache.directory.mavibot.btree.BTreeTypeEnum.PERSISTED_SUB;
 
 import java.io.IOException;
 import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
 
 import org.apache.directory.mavibot.btree.exception.EndOfFileExceededException;
 import org.apache.directory.mavibot.btree.exception.KeyNotFoundException;
+import org.apache.directory.mavibot.btree.serializer.LongSerializer;
+import org.apache.directory.mavibot.btree.serializer.StringSerializer;
+import org.apache.directory.mavibot.btree.serializer.VarLongSerializer;
 
 
 /**
@@ -42,6 +46,22 @@ import org.apache.directory.mavibot.btree.exception.KeyNotFoundException;
     /** Values associated with keys */
     protected ValueHolder<V>[] values;
 
+    /** The data block of a slotted leaf read from disk, the keys and values being decoded from it on demand */
+    private ByteBuffer slottedData;
+
+    /** The position of the first entry in the slotted data, right after the key offsets table */
+    private int entriesStart;
+
+    /** Tells if the slotted entries are stored in the compact format */
+    private boolean compactEntries;
+
+    /**
+     * The serialized size of the elements, used to check the number of PageIOs the leaf
+     * spans. It's computed on the first check, then carried over to the leaf created by
+     * adding an element. -1 when it's not known.
+     */
+    private int elementsSize = -1;
+
 
     /**
      * Constructor used to create a new Leaf when we read it from a file.
@@ -77,6 +97,8 @@ import org.apache.directory.mavibot.btree.exception.KeyNotFoundException;
      */
     public InsertResult<K, V> insert( K key, V value, long revision ) throws IOException
     {
+        materialize();
+
         // Find the key into this leaf
         int pos = findPos( key );
 
@@ -100,11 +122,13 @@ import org.apache.directory.mavibot.btree.exception.KeyNotFoundException;
         }
 
         // The key is not present in the leaf. We have to add it in the page
-        if ( nbElems < btree.getPageSize() )
+        int addedSize = getAddedSize( key, value );
+
+        if ( ( nbElems < btree.getPageSize() ) && !exceedsPageIOs( 1, addedSize ) )
         {
             // The current page is not full, it can contain the added element.
             // We insert it into a copied page and return the result
-            Page<K, V> modifiedPage = null;
+            PersistedLeaf<K, V> modifiedPage = null;
 
             if ( isSubTree )
             {
@@ -115,6 +139,8 @@ import org.apache.directory.mavibot.btree.exception.KeyNotFoundException;
                 modifiedPage = addElement( revision, key, value, pos );
             }
 
+            modifiedPage.carryElementsSize( this, addedSize );
+
             InsertResult<K, V> result = new ModifyResult<K, V>( modifiedPage, null );
             result.addCopiedPage( this );
 
@@ -122,8 +148,9 @@ import org.apache.directory.mavibot.btree.exception.KeyNotFoundException;
         }
         else
         {
-            // The Page is already full : we split it and return the overflow element,
-            // after having created two pages.
+            // The Page is already full, or too big to be stored in the allowed number
+            // of PageIOs : we split it and return the overflow element, after having
+            // created two pages.
             InsertResult<K, V> result = null;
 
             if ( isSubTree )
@@ -142,6 +169,63 @@ import org.apache.directory.mavibot.btree.exception.KeyNotFoundException;
     }
 
 
+    /**
+     * {@inheritDoc}
+     */
+    /* no qualifier */InsertResult<K, V> append( K key, V value, long revision ) throws IOException
+    {
+        materialize();
+
+        // If the key is not above the last key, it's not an append : do a standard insertion
+        if ( ( nbElems == 0 ) || ( compare( key, keys[nbElems - 1].getKey() ) <= 0 ) )
+        {
+            return insert( key, value, revision );
+        }
+
+        boolean isSubTree = ( btree.getType() == PERSISTED_SUB );
+        int addedSize = getAddedSize( key, value );
+
+        if ( ( nbElems < btree.getPageSize() ) && !exceedsPageIOs( 1, addedSize ) )
+        {
+            // The current page is not full, add the element at the end of a copied page
+            PersistedLeaf<K, V> modifiedPage = null;
+
+            if ( isSubTree )
+            {
+                modifiedPage = addSubTreeElement( revision, key, nbElems );
+            }
+            else
+            {
+                modifiedPage = addElement( revision, key, value, nbElems );
+            }
+
+            modifiedPage.carryElementsSize( this, addedSize );
+
+            InsertResult<K, V> result = new ModifyResult<K, V>( modifiedPage, null );
+            result.addCopiedPage( this );
+
+            return result;
+        }
+
+        // The page is full. Instead of splitting it in two halves, we keep all its
+        // elements in the left page, and the right page only contains the new element :
+        // the next increasing keys will be added into it, and the left page stays full.
+        PersistedLeaf<K, V> leftLeaf = ( PersistedLeaf<K, V> ) copy( revision );
+        PersistedLeaf<K, V> rightLeaf = new PersistedLeaf<K, V>( btree, revision, 1 );
+        rightLeaf.keys[0] = new PersistedKeyHolder<K>( btree.getKeySerializer(), key );
+
+        if ( !isSubTree )
+        {
+            rightLeaf.values[0] = new PersistedValueHolder<V>( btree, value );
+        }
+
+        InsertResult<K, V> result = new SplitResult<K, V>( key, leftLeaf, rightLeaf );
+        result.addCopiedPage( this );
+
+        return result;
+    }
+
+
     /**
      * {@inheritDoc}
      */
@@ -156,6 +240,8 @@ import org.apache.directory.mavibot.btree.exception.KeyNotFoundException;
             return NotPresentResult.NOT_PRESENT;
         }
 
+        materialize();
+
         // Find the key in the page
         int pos = findPos( key );
 
@@ -240,7 +326,7 @@ import org.apache.directory.mavibot.btree.exception.KeyNotFoundException;
             // elements
             int halfSize = btree.getPageSize() / 2;
 
-            if ( nbElems == halfSize )
+            if ( nbElems <= halfSize )
             {
                 // We have to find a sibling now, and either borrow an entry from it
                 // if it has more than N/2 elements, or to merge the two pages.
@@ -250,9 +336,18 @@ import org.apache.directory.mavibot.btree.exception.KeyNotFoundException;
                 PersistedLeaf<K, V> sibling = ( PersistedLeaf<K, V> ) ( ( ( PersistedNode<K, V> ) parent )
                     .getPage( siblingPos ) );
 
-                if ( sibling.getNbElems() == halfSize )
+                if ( sibling.getNbElems() <= halfSize )
                 {
-                    // We will merge the current page with its sibling
+                    // We will merge the current page with its sibling. The parent expects the
+                    // left sibling to be used, unless the page is the leftmost one : when the
+                    // leaves have been split on their size, the siblings may not have the
+                    // same number of elements, and the biggest one may be on the right.
+                    if ( ( parentPos > 0 ) && ( siblingPos > parentPos ) )
+                    {
+                        siblingPos = parentPos - 1;
+                        sibling = ( PersistedLeaf<K, V> ) ( ( ( PersistedNode<K, V> ) parent ).getPage( siblingPos ) );
+                    }
+
                     DeleteResult<K, V> result = mergeWithSibling( removedElement, revision, sibling,
                         ( siblingPos < parentPos ), index );
 
@@ -333,11 +428,13 @@ import org.apache.directory.mavibot.btree.exception.KeyNotFoundException;
         boolean isLeft, int pos )
         throws EndOfFileExceededException, IOException
     {
+        sibling.materialize();
         boolean isNotSubTree = ( btree.getType() != PERSISTED_SUB );
 
-        // Create the new page. It will contain N - 1 elements (the maximum number)
-        // as we merge two pages that contain N/2 elements minus the one we remove
-        PersistedLeaf<K, V> newLeaf = new PersistedLeaf<K, V>( btree, revision, btree.getPageSize() - 1 );
+        // Create the new page. It will contain at most N - 1 elements, as we merge two
+        // pages that contain at most N/2 elements, minus the one we remove. Leaves split
+        // on their serialized size may contain less than N/2 elements.
+        PersistedLeaf<K, V> newLeaf = new PersistedLeaf<K, V>( btree, revision, nbElems + sibling.nbElems - 1 );
 
         if ( isLeft )
         {
@@ -413,6 +510,7 @@ import org.apache.directory.mavibot.btree.exception.KeyNotFoundException;
         int pos )
         throws IOException
     {
+        sibling.materialize();
         boolean isNotSubTree = ( btree.getType() != PERSISTED_SUB );
 
         // The sibling is on the left, borrow the rightmost element
@@ -476,6 +574,7 @@ import org.apache.directory.mavibot.btree.exception.KeyNotFoundException;
         int pos )
         throws IOException
     {
+        sibling.materialize();
         boolean isNotSubTree = ( btree.getType() != PERSISTED_SUB );
 
         // The sibling is on the left, borrow the rightmost element
@@ -602,7 +701,7 @@ import org.apache.directory.mavibot.btree.exception.KeyNotFoundException;
 
         if ( pos < 0 )
         {
-            ValueHolder<V> valueHolder = values[-( pos + 1 )];
+            ValueHolder<V> valueHolder = getValue( -( pos + 1 ) );
 
             ValueCursor<V> cursor = valueHolder.getCursor();
 
@@ -633,6 +732,11 @@ import org.apache.directory.mavibot.btree.exception.KeyNotFoundException;
     {
         if ( pos < nbElems )
         {
+            if ( ( slottedData != null ) && ( keys[pos] == null ) )
+            {
+                readSlottedKey( pos );
+            }
+
             return keys[pos];
         }
         else
@@ -657,7 +761,7 @@ import org.apache.directory.mavibot.btree.exception.KeyNotFoundException;
 
         if ( pos < 0 )
         {
-            ValueHolder<V> valueHolder = values[-( pos + 1 )];
+            ValueHolder<V> valueHolder = getValue( -( pos + 1 ) );
 
             return valueHolder.getCursor();
         }
@@ -691,7 +795,7 @@ import org.apache.directory.mavibot.btree.exception.KeyNotFoundException;
 
         if ( pos < 0 )
         {
-            ValueHolder<V> valueHolder = values[-( pos + 1 )];
+            ValueHolder<V> valueHolder = getValue( -( pos + 1 ) );
 
             return valueHolder.contains( value );
         }
@@ -709,6 +813,11 @@ import org.apache.directory.mavibot.btree.exception.KeyNotFoundException;
     {
         if ( pos < nbElems )
         {
+            if ( ( slottedData != null ) && ( values[pos] == null ) )
+            {
+                readSlottedValue( pos );
+            }
+
             return values[pos];
         }
         else
@@ -726,6 +835,272 @@ import org.apache.directory.mavibot.btree.exception.KeyNotFoundException;
     /* no qualifier */void setValue( int pos, ValueHolder<V> value )
     {
         values[pos] = value;
+        elementsSize = -1;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public K getKey( int pos )
+    {
+        if ( ( slottedData != null ) && ( pos < nbElems ) && ( keys[pos] == null ) )
+        {
+            readSlottedKey( pos );
+        }
+
+        return super.getKey( pos );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int findPos( K key )
+    {
+        if ( ( slottedData == null ) || ( key == null ) )
+        {
+            return super.findPos( key );
+        }
+
+        // The keys are searched in the serialized leaf
+        byte[] raw = null;
+
+        if ( btree.getKeySerializer() == StringSerializer.INSTANCE )
+        {
+            raw = StringSerializer.INSTANCE.serialize( ( String ) key );
+        }
+
+        int min = 0;
+        int max = nbElems - 1;
+
+        while ( min <= max )
+        {
+            int middle = ( min + max ) >>> 1;
+            int comp = compareSlottedKey( middle, key, raw );
+
+            if ( comp < 0 )
+            {
+                min = middle + 1;
+            }
+            else if ( comp > 0 )
+            {
+                max = middle - 1;
+            }
+            else
+            {
+                return -( middle + 1 );
+            }
+        }
+
+        return min;
+    }
+
+
+    /**
+     * Sets the data block of a slotted leaf read from disk. The block starts with the
+     * offsets of the keys, one int per element, relative to the end of this table. The
+     * keys and values are only deserialized when they are accessed, so a lookup only
+     * creates the value holder of the element it has found.
+     *
+     * @param slottedData The data block of the leaf
+     * @param compactEntries Tells if the entries are stored in the compact format
+     */
+    /* no qualifier */void setSlottedData( ByteBuffer slottedData, boolean compactEntries )
+    {
+        this.slottedData = slottedData;
+        this.compactEntries = compactEntries;
+        entriesStart = slottedData.position() + nbElems * RecordManager.INT_SIZE;
+    }
+
+
+    /**
+     * Deserializes all the keys and values of a slotted leaf which have not been
+     * read yet. This has to be done before the leaf elements are copied.
+     */
+    /* no qualifier */void materialize()
+    {
+        if ( slottedData == null )
+        {
+            return;
+        }
+
+        for ( int pos = 0; pos < nbElems; pos++ )
+        {
+            if ( keys[pos] == null )
+            {
+                readSlottedKey( pos );
+            }
+
+            if ( ( values != null ) && ( values[pos] == null ) )
+            {
+                readSlottedValue( pos );
+            }
+        }
+    }
+
+
+    /**
+     * @return the position of the serialized key, after its length, of the element at a
+     * given position in the slotted data
+     */
+    private int getSlottedKeyStart( int pos )
+    {
+        int keyStart = entriesStart
+            + slottedData.getInt( entriesStart - ( nbElems - pos ) * RecordManager.INT_SIZE );
+
+        if ( compactEntries )
+        {
+            return keyStart + VarLongSerializer.varLongSize( VarLongSerializer.readVarLong( slottedData, keyStart ) );
+        }
+        else
+        {
+            return keyStart + RecordManager.INT_SIZE;
+        }
+    }
+
+
+    /**
+     * @return the length of the serialized key of the element at a given position in
+     * the slotted data
+     */
+    private int getSlottedKeyLength( int pos )
+    {
+        int keyStart = entriesStart
+            + slottedData.getInt( entriesStart - ( nbElems - pos ) * RecordManager.INT_SIZE );
+
+        if ( compactEntries )
+        {
+            return ( int ) VarLongSerializer.readVarLong( slottedData, keyStart );
+        }
+        else
+        {
+            return slottedData.getInt( keyStart );
+        }
+    }
+
+
+    /**
+     * Compares the key of the element at a given position in the slotted data with a
+     * key. The String keys are compared on their serialized form, the Long keys on
+     * their primitive value, the other keys are deserialized.
+     */
+    private int compareSlottedKey( int pos, K key, byte[] raw )
+    {
+        if ( keys[pos] != null )
+        {
+            return compare( keys[pos].getKey(), key );
+        }
+
+        int start = getSlottedKeyStart( pos );
+
+        if ( raw != null )
+        {
+            return StringSerializer.compare( slottedData.array(), start, raw, 0 );
+        }
+
+        if ( btree.getKeySerializer() == LongSerializer.INSTANCE )
+        {
+            long value = slottedData.getLong( start );
+            long searched = ( ( Long ) key ).longValue();
+
+            return ( value < searched ) ? -1 : ( ( value == searched ) ? 0 : 1 );
+        }
+
+        try
+        {
+            return compare( btree.getKeySerializer().fromBytes( slottedData, start ), key );
+        }
+        catch ( IOException ioe )
+        {
+            // We can't compare the key, deserialize it the usual way
+            readSlottedKey( pos );
+
+            return compare( keys[pos].getKey(), key );
+        }
+    }
+
+
+    /**
+     * Reads the key of the element at a given position in the slotted data
+     */
+    private void readSlottedKey( int pos )
+    {
+        byte[] raw = new byte[getSlottedKeyLength( pos )];
+        System.arraycopy( slottedData.array(), getSlottedKeyStart( pos ), raw, 0, raw.length );
+        keys[pos] = new PersistedKeyHolder<K>( btree.getKeySerializer(), raw );
+    }
+
+
+    /**
+     * Reads the value of the element at a given position in the slotted data. The value
+     * is stored right before the element key, after the previous element key.
+     */
+    private void readSlottedValue( int pos )
+    {
+        int start = entriesStart;
+
+        if ( pos > 0 )
+        {
+            start = getSlottedKeyStart( pos - 1 ) + getSlottedKeyLength( pos - 1 );
+        }
+
+        ValueHolder<V> valueHolder = null;
+
+        if ( compactEntries )
+        {
+            long nbValues = VarLongSerializer.decodeZigZag( VarLongSerializer.readVarLong( slottedData, start ) );
+            start += VarLongSerializer.varLongSize( VarLongSerializer.encodeZigZag( nbValues ) );
+
+            if ( nbValues < 0 )
+            {
+                // This is a sub-btree
+                long btreeOffset = VarLongSerializer.readVarLong( slottedData, start );
+                valueHolder = new PersistedValueHolder<V>( btree, ( int ) ( 1 - nbValues ),
+                    LongSerializer.serialize( btreeOffset ) );
+            }
+            else if ( nbValues == 0 )
+            {
+                valueHolder = new PersistedValueHolder<V>( btree, 0, new byte[0] );
+            }
+            else
+            {
+                int length = ( int ) VarLongSerializer.readVarLong( slottedData, start );
+                start += VarLongSerializer.varLongSize( length );
+                byte[] arrayBytes = new byte[length];
+                System.arraycopy( slottedData.array(), start, arrayBytes, 0, length );
+                valueHolder = new PersistedValueHolder<V>( btree, ( int ) nbValues, arrayBytes );
+            }
+        }
+        else
+        {
+            int nbValues = slottedData.getInt( start );
+            start += RecordManager.INT_SIZE;
+
+            if ( nbValues < 0 )
+            {
+                // This is a sub-btree
+                byte[] btreeOffsetBytes = new byte[RecordManager.LONG_SIZE];
+                System.arraycopy( slottedData.array(), start, btreeOffsetBytes, 0, RecordManager.LONG_SIZE );
+                valueHolder = new PersistedValueHolder<V>( btree, 1 - nbValues, btreeOffsetBytes );
+            }
+            else if ( nbValues == 0 )
+            {
+                valueHolder = new PersistedValueHolder<V>( btree, 0, new byte[0] );
+            }
+            else
+            {
+                int length = slottedData.getInt( start );
+                start += RecordManager.INT_SIZE;
+                byte[] arrayBytes = new byte[length];
+                System.arraycopy( slottedData.array(), start, arrayBytes, 0, length );
+                valueHolder = new PersistedValueHolder<V>( btree, nbValues, arrayBytes );
+            }
+        }
+
+        values[pos] = valueHolder;
     }
 
 
@@ -763,7 +1138,7 @@ import org.apache.directory.mavibot.btree.exception.KeyNotFoundException;
             ParentPos<K, V> parentPos = new ParentPos<K, V>( this, pos );
 
             // Create the value cursor
-            parentPos.valueCursor = values[pos].getCursor();
+            parentPos.valueCursor = getValue( pos ).getCursor();
 
             // And store this position in the stack
             stack[depth] = parentPos;
@@ -781,7 +1156,7 @@ import org.apache.directory.mavibot.btree.exception.KeyNotFoundException;
                 ParentPos<K, V> parentPos = new ParentPos<K, V>( this, pos );
 
                 // Create the value cursor
-                parentPos.valueCursor = values[pos].getCursor();
+                parentPos.valueCursor = getValue( pos ).getCursor();
 
                 stack[depth] = parentPos;
 
@@ -871,7 +1246,7 @@ import org.apache.directory.mavibot.btree.exception.KeyNotFoundException;
             ParentPos<K, V> parentPos = new ParentPos<K, V>( this, pos );
 
             // Create the value cursor
-            parentPos.valueCursor = values[0].getCursor();
+            parentPos.valueCursor = getValue( 0 ).getCursor();
 
             stack[depth] = parentPos;
 
@@ -882,6 +1257,18 @@ import org.apache.directory.mavibot.btree.exception.KeyNotFoundException;
     }
 
 
+    /**
+     * Copies the current page and all its keys and values, with a new revision.
+     *
+     * @param revision The new revision
+     * @return The copied page
+     */
+    /* no qualifier */Page<K, V> copy( long revision )
+    {
+        return copy( revision, nbElems );
+    }
+
+
     /**
      * Copy the current page and all of the keys, values and children, if it's not a leaf.
      *
@@ -891,6 +1278,8 @@ import org.apache.directory.mavibot.btree.exception.KeyNotFoundException;
      */
     private Page<K, V> copy( long revision, int nbElems )
     {
+        materialize();
+
         PersistedLeaf<K, V> newLeaf = new PersistedLeaf<K, V>( btree, revision, nbElems );
 
         // Copy the keys and the values
@@ -928,6 +1317,8 @@ import org.apache.directory.mavibot.btree.exception.KeyNotFoundException;
 
     /**
      * Copy the current page if needed, and replace the value at the position we have found the key.
+     * If the leaf, with the new value, is serialized in more PageIOs than the B-tree allows, it's
+     * split in two halves.
      *
      * @param revision The new page revision
      * @param key The new key
@@ -956,6 +1347,9 @@ import org.apache.directory.mavibot.btree.exception.KeyNotFoundException;
         valueHolder = newLeaf.values[pos];
         V replacedValue = null;
 
+        // The value holder is modified, the leaf size has to be computed again
+        newLeaf.elementsSize = -1;
+
         if ( !valueExists && btree.isAllowDuplicates() )
         {
             valueHolder.add( value );
@@ -975,13 +1369,50 @@ import org.apache.directory.mavibot.btree.exception.KeyNotFoundException;
         }
 
         // Create the result
-        InsertResult<K, V> result = new ModifyResult<K, V>( newLeaf, replacedValue );
+        InsertResult<K, V> result = null;
+
+        if ( newLeaf.exceedsPageIOs( 0, 0 ) )
+        {
+            result = newLeaf.split( revision, replacedValue );
+        }
+        else
+        {
+            result = new ModifyResult<K, V>( newLeaf, replacedValue );
+        }
+
         result.addCopiedPage( this );
 
         return result;
     }
 
 
+    /**
+     * Splits this leaf in two halves, after one of its values has been replaced by a bigger
+     * one. The replaced value is carried by the result.
+     *
+     * @param revision The revision of the new pages
+     * @param replacedValue The replaced value, null if a value has been added for an existing key
+     * @return A SplitResult containing the two new leaves and the pivot
+     */
+    private InsertResult<K, V> split( long revision, V replacedValue )
+    {
+        int middle = nbElems >> 1;
+
+        PersistedLeaf<K, V> leftLeaf = new PersistedLeaf<K, V>( btree, revision, middle );
+        System.arraycopy( keys, 0, leftLeaf.keys, 0, middle );
+        System.arraycopy( values, 0, leftLeaf.values, 0, middle );
+
+        PersistedLeaf<K, V> rightLeaf = new PersistedLeaf<K, V>( btree, revision, nbElems - middle );
+        System.arraycopy( keys, middle, rightLeaf.keys, 0, nbElems - middle );
+        System.arraycopy( values, middle, rightLeaf.values, 0, nbElems - middle );
+
+        SplitResult<K, V> result = new SplitResult<K, V>( rightLeaf.keys[0].getKey(), leftLeaf, rightLeaf );
+        result.setModifiedValue( replacedValue );
+
+        return result;
+    }
+
+
     /**
      * Adds a new <K, V> into a copy of the current page at a given position. We return the
      * modified page. The new page will have one more element than the current page.
@@ -992,7 +1423,7 @@ import org.apache.directory.mavibot.btree.exception.KeyNotFoundException;
      * @param pos The position into the page
      * @return The modified page with the <K,V> element added
      */
-    private Page<K, V> addElement( long revision, K key, V value, int pos )
+    private PersistedLeaf<K, V> addElement( long revision, K key, V value, int pos )
     {
         // First copy the current page, but add one element in the copied page
         PersistedLeaf<K, V> newLeaf = new PersistedLeaf<K, V>( btree, revision, nbElems + 1 );
@@ -1027,7 +1458,132 @@ import org.apache.directory.mavibot.btree.exception.KeyNotFoundException;
 
 
     /**
-     * Split a full page into two new pages, a left, a right and a pivot element. The new pages will
+     * Computes the serialized size of an element added in this leaf, the value being stored
+     * as a length prefixed array. The size is only needed when the B-tree limits the number
+     * of PageIOs a leaf can span, 0 is returned otherwise.
+     *
+     * @param key The key to add
+     * @param value The value to add
+     * @return The serialized size of the element
+     */
+    private int getAddedSize( K key, V value )
+    {
+        if ( ( ( PersistedBTree<K, V> ) btree ).getMaxPageIOs() <= 0 )
+        {
+            return 0;
+        }
+
+        int addedSize = RecordManager.INT_SIZE + btree.getKeySerializer().serialize( key ).length;
+
+        if ( btree.getType() != PERSISTED_SUB )
+        {
+            addedSize += RecordManager.INT_SIZE + RecordManager.INT_SIZE + RecordManager.INT_SIZE
+                + btree.getValueSerializer().serialize( value ).length;
+        }
+
+        return addedSize;
+    }
+
+
+    /**
+     * Sets the elements size of a leaf created by adding an element into another leaf,
+     * if the size of this other leaf is known.
+     *
+     * @param leaf The leaf the element has been added into
+     * @param addedSize The serialized size of the added element
+     */
+    private void carryElementsSize( PersistedLeaf<K, V> leaf, int addedSize )
+    {
+        if ( leaf.elementsSize >= 0 )
+        {
+            elementsSize = leaf.elementsSize + addedSize;
+        }
+    }
+
+
+    /**
+     * Computes the serialized size of the elements of this leaf, excluding the leaf header
+     *
+     * @return The elements serialized size
+     */
+    private int computeElementsSize()
+    {
+        boolean isNotSubTree = ( btree.getType() != PERSISTED_SUB );
+        int size = 0;
+
+        for ( int pos = 0; pos < nbElems; pos++ )
+        {
+            if ( isNotSubTree )
+            {
+                ValueHolder<V> valueHolder = values[pos];
+
+                if ( valueHolder.isSubBtree() )
+                {
+                    // The number of values and the sub-btree offset
+                    size += RecordManager.INT_SIZE + RecordManager.LONG_SIZE;
+                }
+                else if ( valueHolder.size() == 0 )
+                {
+                    size += RecordManager.INT_SIZE;
+                }
+                else
+                {
+                    // The number of values, the data length and the data
+                    size += RecordManager.INT_SIZE + RecordManager.INT_SIZE
+                        + ( ( PersistedValueHolder<V> ) valueHolder ).getRaw().length;
+                }
+            }
+
+            size += RecordManager.INT_SIZE + ( ( PersistedKeyHolder<K> ) keys[pos] ).getRaw().length;
+        }
+
+        return size;
+    }
+
+
+    /**
+     * Tells if this leaf, once an element added, would be serialized in more PageIOs
+     * than the B-tree allows. A leaf containing less than 2 elements is never considered
+     * as too big, as it can't be split. The size of the elements is only computed once
+     * for a leaf, then it's carried over to the leaves created by adding an element.
+     *
+     * @param nbAdded The number of added elements, 0 if a value has been replaced
+     * @param addedSize The serialized size of the added element
+     * @return <tt>true</tt> if the leaf has to be split
+     */
+    private boolean exceedsPageIOs( int nbAdded, int addedSize )
+    {
+        PersistedBTree<K, V> persistedBTree = ( PersistedBTree<K, V> ) btree;
+        int maxPageIOs = persistedBTree.getMaxPageIOs();
+        RecordManager recordManager = persistedBTree.getRecordManager();
+
+        if ( ( maxPageIOs <= 0 ) || ( nbElems < 2 ) || ( recordManager == null ) )
+        {
+            return false;
+        }
+
+        if ( elementsSize < 0 )
+        {
+            elementsSize = computeElementsSize();
+        }
+
+        // The revision, the number of elements and the data size
+        int serializedSize = RecordManager.LONG_SIZE + RecordManager.INT_SIZE + RecordManager.INT_SIZE;
+
+        if ( persistedBTree.isSlottedLeaves() )
+        {
+            // The keys offsets, including the added element
+            serializedSize += ( nbElems + nbAdded ) * RecordManager.INT_SIZE;
+        }
+
+        serializedSize += elementsSize + addedSize;
+
+        return recordManager.computeNbPages( serializedSize ) > maxPageIOs;
+    }
+
+
+    /**
+     * Split a page into two new pages, a left, a right and a pivot element. The new pages will
      * each contains half of the original elements. <br/>
      * The pivot will be computed, depending on the place
      * we will inject the newly added element. <br/>
@@ -1043,7 +1599,7 @@ import org.apache.directory.mavibot.btree.exception.KeyNotFoundException;
      */
     private InsertResult<K, V> addAndSplit( long revision, K key, V value, int pos )
     {
-        int middle = btree.getPageSize() >> 1;
+        int middle = nbElems >> 1;
         PersistedLeaf<K, V> leftLeaf = null;
         PersistedLeaf<K, V> rightLeaf = null;
         ValueHolder<V> valueHolder = new PersistedValueHolder<V>( btree, value );
@@ -1067,11 +1623,11 @@ import org.apache.directory.mavibot.btree.exception.KeyNotFoundException;
             System.arraycopy( values, pos, leftLeaf.values, pos + 1, middle - pos );
 
             // Now, create the right page
-            rightLeaf = new PersistedLeaf<K, V>( btree, revision, middle );
+            rightLeaf = new PersistedLeaf<K, V>( btree, revision, nbElems - middle );
 
             // Copy the keys and the values in the right page
-            System.arraycopy( keys, middle, rightLeaf.keys, 0, middle );
-            System.arraycopy( values, middle, rightLeaf.values, 0, middle );
+            System.arraycopy( keys, middle, rightLeaf.keys, 0, nbElems - middle );
+            System.arraycopy( values, middle, rightLeaf.values, 0, nbElems - middle );
         }
         else
         {
@@ -1083,7 +1639,7 @@ import org.apache.directory.mavibot.btree.exception.KeyNotFoundException;
             System.arraycopy( values, 0, leftLeaf.values, 0, middle );
 
             // Now, create the right page
-            rightLeaf = new PersistedLeaf<K, V>( btree, revision, middle + 1 );
+            rightLeaf = new PersistedLeaf<K, V>( btree, revision, nbElems - middle + 1 );
 
             int rightPos = pos - middle;
 
@@ -1115,7 +1671,7 @@ import org.apache.directory.mavibot.btree.exception.KeyNotFoundException;
      */
     public K getLeftMostKey()
     {
-        return keys[0].getKey();
+        return getKey( 0 );
     }
 
 
@@ -1124,7 +1680,7 @@ import org.apache.directory.mavibot.btree.exception.KeyNotFoundException;
      */
     public K getRightMostKey()
     {
-        return keys[nbElems - 1].getKey();
+        return getKey( nbElems - 1 );
     }
 
 
@@ -1133,7 +1689,7 @@ import org.apache.directory.mavibot.btree.exception.KeyNotFoundException;
      */
     public Tuple<K, V> findLeftMost() throws IOException
     {
-        K key = keys[0].getKey();
+        K key = getKey( 0 );
 
         boolean isSubTree = ( btree.getType() == PERSISTED_SUB );
 
@@ -1142,7 +1698,7 @@ import org.apache.directory.mavibot.btree.exception.KeyNotFoundException;
             return new Tuple<K, V>( key, null );
         }
 
-        ValueCursor<V> cursor = values[0].getCursor();
+        ValueCursor<V> cursor = getValue( 0 ).getCursor();
 
         try
         {
@@ -1169,8 +1725,7 @@ import org.apache.directory.mavibot.btree.exception.KeyNotFoundException;
      */
     public Tuple<K, V> findRightMost() throws EndOfFileExceededException, IOException
     {
-
-        K key = keys[nbElems - 1].getKey();
+        K key = getKey( nbElems - 1 );
 
         boolean isSubTree = ( btree.getType() == PERSISTED_SUB );
 
@@ -1179,7 +1734,7 @@ import org.apache.directory.mavibot.btree.exception.KeyNotFoundException;
             return new Tuple<K, V>( key, null );
         }
 
-        ValueCursor<V> cursor = values[nbElems - 1].getCursor();
+        ValueCursor<V> cursor = getValue( nbElems - 1 ).getCursor();
 
         try
         {
@@ -1225,6 +1780,8 @@ import org.apache.directory.mavibot.btree.exception.KeyNotFoundException;
      */
     public String toString()
     {
+        materialize();
+
         StringBuilder sb = new StringBuilder();
 
         sb.append( "Leaf[" );
@@ -1272,7 +1829,7 @@ import org.apache.directory.mavibot.btree.exception.KeyNotFoundException;
      * same as {@link #addElement(long, Object, Object, int)} except the values are not copied.
      * This method is only used while inserting an element into a sub-BTree.
      */
-    private Page<K, V> addSubTreeElement( long revision, K key, int pos )
+    private PersistedLeaf<K, V> addSubTreeElement( long revision, K key, int pos )
     {
         // First copy the current page, but add one element in the copied page
         PersistedLeaf<K, V> newLeaf = new PersistedLeaf<K, V>( btree, revision, nbElems + 1 );
@@ -1304,7 +1861,7 @@ import org.apache.directory.mavibot.btree.exception.KeyNotFoundException;
      */
     private InsertResult<K, V> addAndSplitSubTree( long revision, K key, int pos )
     {
-        int middle = btree.getPageSize() >> 1;
+        int middle = nbElems >> 1;
         PersistedLeaf<K, V> leftLeaf = null;
         PersistedLeaf<K, V> rightLeaf = null;
 
@@ -1324,10 +1881,10 @@ import org.apache.directory.mavibot.btree.exception.KeyNotFoundException;
             System.arraycopy( keys, pos, leftLeaf.keys, pos + 1, middle - pos );
 
             // Now, create the right page
-            rightLeaf = new PersistedLeaf<K, V>( btree, revision, middle );
+            rightLeaf = new PersistedLeaf<K, V>( btree, revision, nbElems - middle );
 
             // Copy the keys and the values in the right page
-            System.arraycopy( keys, middle, rightLeaf.keys, 0, middle );
+            System.arraycopy( keys, middle, rightLeaf.keys, 0, nbElems - middle );
         }
         else
         {
@@ -1338,7 +1895,7 @@ import org.apache.directory.mavibot.btree.exception.KeyNotFoundException;
             System.arraycopy( keys, 0, leftLeaf.keys, 0, middle );
 
             // Now, create the right page
-            rightLeaf = new PersistedLeaf<K, V>( btree, revision, middle + 1 );
+            rightLeaf = new PersistedLeaf<K, V>( btree, revision, nbElems - middle + 1 );
 
             int rightPos = pos - middle;
 
@@ -1406,6 +1963,7 @@ import org.apache.directory.mavibot.btree.exception.KeyNotFoundException;
      */
     public String dumpPage( String tabs )
     {
+        materialize();
         StringBuilder sb = new StringBuilder();
 
         sb.append( tabs );
@@ -138,6 +138,42 @@ import java.util.List;
         // and insert the <K, V> into this child
         InsertResult<K, V> result = child.insert( key, value, revision );
 
+        return handleInsertResult( result, revision, pos );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    /* no qualifier */InsertResult<K, V> append( K key, V value, long revision ) throws IOException
+    {
+        // If the key is below the last key, it's not an append : do a standard insertion
+        // from this page
+        if ( compare( key, keys[nbElems - 1].getKey() ) < 0 )
+        {
+            return insert( key, value, revision );
+        }
+
+        // Otherwise, the key goes into the rightmost child
+        AbstractPage<K, V> child = ( AbstractPage<K, V> ) children[nbElems].getValue();
+        InsertResult<K, V> result = child.append( key, value, revision );
+
+        return handleInsertResult( result, revision, nbElems );
+    }
+
+
+    /**
+     * Updates a copy of the current node after an insertion into one of its children.
+     *
+     * @param result The result of the insertion into the child
+     * @param revision The new revision for the modified pages
+     * @param pos The position of the child
+     * @return The result of the insertion into the current node
+     * @throws IOException If we have an error while trying to access the page
+     */
+    private InsertResult<K, V> handleInsertResult( InsertResult<K, V> result, long revision, int pos )
+        throws IOException
+    {
         // Ok, now, we have injected the <K, V> tuple down the tree. Let's check
         // the result to see if we have to split the current page
         if ( result instanceof ExistsResult )
@@ -161,15 +197,19 @@ import java.util.List;
             // We have to deal with the two cases :
             // - the current page is full, we have to split it
             // - the current page is not full, we insert the new pivot
+            //
+            // The value replaced in the child, if any, is carried up
             if ( nbElems == btree.getPageSize() )
             {
                 // The page is full
                 result = addAndSplit( splitResult.getCopiedPages(), revision, pivot, leftPage, rightPage, pos );
+                ( ( SplitResult<K, V> ) result ).setModifiedValue( splitResult.getModifiedValue() );
             }
             else
             {
                 // The page can contain the new pivot, let's insert it
                 result = insertChild( splitResult.getCopiedPages(), revision, pivot, leftPage, rightPage, pos );
+                ( ( ModifyResult<K, V> ) result ).setModifiedValue( splitResult.getModifiedValue() );
             }
 
             return result;
@@ -949,8 +989,8 @@ import java.util.List;
         // And copy the remaining keys and children
         if ( nbElems > 0 )
         {
-            System.arraycopy( keys, pos, newNode.keys, pos + 1, keys.length - pos );
-            System.arraycopy( children, pos + 1, newNode.children, pos + 2, children.length - pos - 1 );
+            System.arraycopy( keys, pos, newNode.keys, pos + 1, nbElems - pos );
+            System.arraycopy( children, pos + 1, newNode.children, pos + 2, nbElems - pos );
         }
 
         // Create the result
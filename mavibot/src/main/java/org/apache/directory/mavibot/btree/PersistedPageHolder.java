@@ -70,7 +70,10 @@ import org.apache.directory.mavibot.btree.exception.EndOfFileExceededException;
         ( ( AbstractPage<K, V> ) page ).setOffset( offset );
         ( ( AbstractPage<K, V> ) page ).setLastOffset( lastOffset );
 
-        cache.put( offset, page );
+        synchronized ( cache )
+        {
+            cache.put( offset, page );
+        }
     }
 
 
@@ -94,7 +97,24 @@ import org.apache.directory.mavibot.btree.exception.EndOfFileExceededException;
             ( ( AbstractPage<K, V> ) page ).setLastOffset( lastOffset );
         }
 
-        cache.put( offset, page );
+        synchronized ( cache )
+        {
+            cache.put( offset, page );
+        }
+    }
+
+
+    /**
+     * Create a new holder storing an offset, and the number of keys stored in the referenced
+     * page and its children.
+     *
+     * @param page The element to store into a SoftReference
+     * @param count The number of keys in the subtree, -1 if unknown
+     */
+    public PersistedPageHolder( BTree<K, V> btree, Page<K, V> page, long offset, long lastOffset, long count )
+    {
+        this( btree, page, offset, lastOffset );
+        this.count = count;
     }
 
 
@@ -105,7 +125,7 @@ import org.apache.directory.mavibot.btree.exception.EndOfFileExceededException;
      */
     public Page<K, V> getValue()
     {
-        Page<K, V> page = ( Page<K, V> ) cache.get( offset );
+        Page<K, V> page = getCachedValue();
 
         if ( page == null )
         {
@@ -115,13 +135,55 @@ import org.apache.directory.mavibot.btree.exception.EndOfFileExceededException;
             ( ( AbstractPage<K, V> ) page ).setOffset( offset );
             ( ( AbstractPage<K, V> ) page ).setLastOffset( lastOffset );
 
-            cache.put( offset, page );
+            synchronized ( cache )
+            {
+                cache.put( offset, page );
+            }
         }
 
         return page;
     }
 
 
+    /**
+     * Loads the page in the cache, if it's not already present. This is called by the
+     * thread reading the pages ahead : the page is not stored if it has been put in the
+     * cache in the meantime, as it's then at least as recent as the one we read.
+     */
+    /* no qualifier */void load()
+    {
+        if ( getCachedValue() != null )
+        {
+            return;
+        }
+
+        Page<K, V> page = fetchElement();
+
+        ( ( AbstractPage<K, V> ) page ).setOffset( offset );
+        ( ( AbstractPage<K, V> ) page ).setLastOffset( lastOffset );
+
+        synchronized ( cache )
+        {
+            if ( cache.get( offset ) == null )
+            {
+                cache.put( offset, page );
+            }
+        }
+    }
+
+
+    /**
+     * @return The page if it's in the cache, null otherwise
+     */
+    /* no qualifier */Page<K, V> getCachedValue()
+    {
+        synchronized ( cache )
+        {
+            return ( Page<K, V> ) cache.get( offset );
+        }
+    }
+
+
     /**
      * Retrieve the value from the disk, using the BTree and offset
      * @return The deserialized element (
@@ -22,6 +22,7 @@ package org.apache.directory.mavibot.btree;
 
 import java.io.IOException;
 import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
 import java.util.Comparator;
 import java.util.Iterator;
 import java.util.UUID;
@@ -59,6 +60,9 @@ import org.slf4j.LoggerFactory;
     /** A flag to signal that the raw value represent the serialized values in their last state */
     private boolean isRawUpToDate = false;
 
+    /** A flag set to true when the values are Longs stored delta-encoded */
+    private boolean isCompressed;
+
 
     /**
      * Creates a new instance of a ValueHolder, containing the serialized values.
@@ -74,7 +78,8 @@ import org.slf4j.LoggerFactory;
         this.valueSerializer = parentBtree.getValueSerializer();
         this.raw = raw;
         isRawUpToDate = true;
-        valueThresholdUp = PersistedBTree.valueThresholdUp;
+        isCompressed = this.parentBtree.isCompressedValues();
+        valueThresholdUp = this.parentBtree.getValueThresholdUp();
         valueThresholdLow = PersistedBTree.valueThresholdLow;
 
         // We create the array of values if they fit in an array. If they are stored in a
@@ -98,14 +103,15 @@ import org.slf4j.LoggerFactory;
     {
         this.parentBtree = ( PersistedBTree<V, V> ) parentBtree;
         this.valueSerializer = parentBtree.getValueSerializer();
-        valueThresholdUp = PersistedBTree.valueThresholdUp;
+        isCompressed = this.parentBtree.isCompressedValues();
+        valueThresholdUp = this.parentBtree.getValueThresholdUp();
         valueThresholdLow = PersistedBTree.valueThresholdLow;
 
         if ( values != null )
         {
             int nbValues = values.length;
 
-            if ( nbValues < PersistedBTree.valueThresholdUp )
+            if ( nbValues < valueThresholdUp )
             {
                 // Keep an array
                 valueArray = ( V[] ) Array.newInstance( valueSerializer.getType(), nbValues );
@@ -159,11 +165,24 @@ import org.slf4j.LoggerFactory;
     }
 
 
+    /**
+     * {@inheritDoc}
+     */
+    /* no qualifier */ValueCursor<V> getCursor( ValueCursor<V> cursor )
+    {
+        // Check that the values are deserialized before doing anything
+        checkAndDeserialize();
+
+        return super.getCursor( cursor );
+    }
+
+
     /**
      * @return the raw representation of the value holder. The serialized value will not be the same
      * if the values are stored in an array or in a btree. <br/>
      * If they are stored in a BTree, the raw value will contain the offset of the btree, otherwise
      * it will contain a byte[] which will contain each serialized value, prefixed by their length.
+     * Compressed Long values are delta-encoded instead (see {@link CompressedLongValues}).
      *
      */
     /* No qualifier*/byte[] getRaw()
@@ -180,38 +199,30 @@ import org.slf4j.LoggerFactory;
             long btreeOffset = ( ( PersistedBTree<V, V> ) valueBtree ).getBtreeOffset();
             raw = LongSerializer.serialize( btreeOffset );
         }
+        else if ( isCompressed )
+        {
+            raw = CompressedLongValues.encode( ( Long[] ) valueArray );
+        }
         else
         {
-            // Create as many byte[] as we have length and serialized values to store
-            byte[][] valueBytes = new byte[valueArray.length * 2][];
+            // Compute the size of each value, then serialize them, preceded by their size,
+            // into one single buffer
+            int[] sizes = new int[valueArray.length];
             int length = 0;
-            int pos = 0;
 
-            // Process each value now
-            for ( V value : valueArray )
+            for ( int i = 0; i < valueArray.length; i++ )
             {
-                // Serialize the value
-                byte[] bytes = valueSerializer.serialize( value );
-                length += bytes.length;
-
-                // Serialize the value's length
-                byte[] sizeBytes = IntSerializer.serialize( bytes.length );
-                length += sizeBytes.length;
-
-                // And store the two byte[]
-                valueBytes[pos++] = sizeBytes;
-                valueBytes[pos++] = bytes;
+                sizes[i] = valueSerializer.serializedSize( valueArray[i] );
+                length += sizes[i] + 4;
             }
 
-            // Last, not least, create a buffer large enough to contain all the created byte[],
-            // and copy all those byte[] into this buffer
             raw = new byte[length];
-            pos = 0;
+            ByteBuffer buffer = ByteBuffer.wrap( raw );
 
-            for ( byte[] bytes : valueBytes )
+            for ( int i = 0; i < valueArray.length; i++ )
             {
-                System.arraycopy( bytes, 0, raw, pos, bytes.length );
-                pos += bytes.length;
+                buffer.putInt( sizes[i] );
+                valueSerializer.serialize( valueArray[i], buffer );
             }
         }
 
@@ -252,6 +263,8 @@ import org.slf4j.LoggerFactory;
         configuration.setValueSerializer( valueSerializer );
         configuration.setParentBTree( parentBtree );
         configuration.setBtreeType( BTreeTypeEnum.PERSISTED_SUB );
+        configuration.setCompactPages( parentBtree.isCompactPages() );
+        configuration.setSlottedLeaves( parentBtree.isSlottedLeaves() );
 
         valueBtree = BTreeFactory.createPersistedBTree( configuration );
         ( ( PersistedBTree<V, V> ) valueBtree ).setRecordManager( parentBtree.getRecordManager() );
@@ -474,6 +487,12 @@ import org.slf4j.LoggerFactory;
      */
     public boolean contains( V checkedValue )
     {
+        // Compressed values can be checked without being deserialized
+        if ( isCompressed && !isDeserialized && ( valueArray != null ) )
+        {
+            return CompressedLongValues.contains( raw, ( Long ) checkedValue );
+        }
+
         // First, deserialize the value if it's still a byte[]
         checkAndDeserialize();
 
@@ -651,6 +670,13 @@ import org.slf4j.LoggerFactory;
      */
     private void deserializeArray()
     {
+        if ( isCompressed )
+        {
+            CompressedLongValues.decode( raw, ( Long[] ) valueArray );
+
+            return;
+        }
+
         // We haven't yet deserialized the values. Let's do it now. The values are
         // necessarily stored in an array at this point
         int index = 0;
@@ -704,6 +730,17 @@ import org.slf4j.LoggerFactory;
     }
 
 
+    /**
+     * @return The sub-btree storing the values, or null if they are stored in an array
+     */
+    /* No qualifier */BTree<V, V> getSubBtree()
+    {
+        checkAndDeserialize();
+
+        return valueBtree;
+    }
+
+
     /**
      * Constructs the sub-BTree using bulkload instead of performing sequential inserts.
      * 
@@ -0,0 +1,507 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.mavibot.btree;
+
+
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.util.Comparator;
+import java.util.NoSuchElementException;
+
+import org.apache.directory.mavibot.btree.exception.EndOfFileExceededException;
+
+
+/**
+ * A TupleCursor restricted to the keys between two bounds. The cursor checks the
+ * bounds before moving, so that it never returns a tuple out of the range. When the
+ * next key is stored in another leaf, the separator key found in the parent node is
+ * checked first : if it's already out of the range, the next leaf is not read at all.
+ *
+ * @param <K> The type for the Key
+ * @param <V> The type for the stored value
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+/* no qualifier */class RangeTupleCursor<K, V> extends TupleCursor<K, V>
+{
+    /** The root page of the revision we are browsing */
+    private Page<K, V> rootPage;
+
+    /** The key comparator */
+    private Comparator<K> comparator;
+
+    /** The lower bound, null if there is none */
+    private K from;
+
+    /** Tells if the lower bound is part of the range */
+    private boolean fromInclusive;
+
+    /** The upper bound, null if there is none */
+    private K to;
+
+    /** Tells if the upper bound is part of the range */
+    private boolean toInclusive;
+
+
+    /**
+     * Creates a new instance of RangeTupleCursor, positioned before the lower bound, or
+     * after the upper bound if the reverse flag is set.
+     *
+     * @param transaction The transaction this operation is protected by
+     * @param rootPage The root page of the revision to browse. It must not be empty
+     * @param from The lower bound, or null
+     * @param fromInclusive Tells if the lower bound is part of the range
+     * @param to The upper bound, or null
+     * @param toInclusive Tells if the upper bound is part of the range
+     * @param reverse Tells if the cursor is positioned after the upper bound
+     * @throws IOException If we had an issue while reading the B-tree from disk
+     */
+    /* no qualifier */RangeTupleCursor( ReadTransaction<K, V> transaction, Page<K, V> rootPage, K from,
+        boolean fromInclusive, K to, boolean toInclusive, boolean reverse ) throws IOException
+    {
+        this.transaction = transaction;
+        this.rootPage = rootPage;
+        this.comparator = ( ( AbstractPage<K, V> ) rootPage ).getBtree().getKeyComparator();
+        this.from = from;
+        this.fromInclusive = fromInclusive;
+        this.to = to;
+        this.toInclusive = toInclusive;
+
+        if ( reverse )
+        {
+            afterLast();
+        }
+        else
+        {
+            beforeFirst();
+        }
+    }
+
+
+    /**
+     * Change the position in the current cursor to set it after the upper bound
+     */
+    @Override
+    public void afterLast() throws IOException
+    {
+        if ( to == null )
+        {
+            TupleCursor<K, V> cursor = rootPage.browse( transaction, newStack(), 0 );
+            stack = cursor.stack;
+            depth = cursor.depth;
+            super.afterLast();
+        }
+        else
+        {
+            browse( to );
+
+            if ( toInclusive )
+            {
+                skipKey( to );
+            }
+        }
+    }
+
+
+    /**
+     * Change the position in the current cursor before the lower bound
+     */
+    @Override
+    public void beforeFirst() throws IOException
+    {
+        if ( from == null )
+        {
+            TupleCursor<K, V> cursor = rootPage.browse( transaction, newStack(), 0 );
+            stack = cursor.stack;
+            depth = cursor.depth;
+            super.beforeFirst();
+        }
+        else
+        {
+            browse( from );
+
+            if ( !fromInclusive )
+            {
+                skipKey( from );
+            }
+        }
+    }
+
+
+    /**
+     * Moves the cursor so that the next call to next() returns the first tuple which key
+     * is equal or above the given key, without going below the lower bound.
+     *
+     * @param key The key to move to
+     * @throws IOException If we had an issue while reading the B-tree from disk
+     */
+    @Override
+    public void seek( K key ) throws IOException
+    {
+        if ( ( from != null ) && !isAboveLowerBound( key ) )
+        {
+            beforeFirst();
+        }
+        else
+        {
+            super.seek( key );
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean hasNext() throws EndOfFileExceededException, IOException
+    {
+        return super.hasNext() && isNextInRange( false );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Tuple<K, V> next() throws EndOfFileExceededException, IOException
+    {
+        if ( !hasNext() )
+        {
+            throw new NoSuchElementException( "No more tuples present" );
+        }
+
+        return super.next();
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean hasNextKey() throws EndOfFileExceededException, IOException
+    {
+        return super.hasNextKey() && isNextInRange( true );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Tuple<K, V> nextKey() throws EndOfFileExceededException, IOException
+    {
+        if ( !hasNextKey() )
+        {
+            throw new NoSuchElementException( "No more tuples present" );
+        }
+
+        return super.nextKey();
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean hasPrev() throws EndOfFileExceededException, IOException
+    {
+        return super.hasPrev() && isPrevInRange( false );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Tuple<K, V> prev() throws EndOfFileExceededException, IOException
+    {
+        if ( !hasPrev() )
+        {
+            throw new NoSuchElementException( "No more tuples present" );
+        }
+
+        return super.prev();
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean hasPrevKey() throws EndOfFileExceededException, IOException
+    {
+        return super.hasPrevKey() && isPrevInRange( true );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Tuple<K, V> prevKey() throws EndOfFileExceededException, IOException
+    {
+        if ( !hasPrevKey() )
+        {
+            throw new NoSuchElementException( "No more tuples present" );
+        }
+
+        return super.prevKey();
+    }
+
+
+    /**
+     * Tells if the key the cursor will move to with a next() or a nextKey() is below the
+     * upper bound. The leaf may have been left exhausted when the cursor was positioned
+     * on a bound, so we also check that such a key exists, even when there is no upper bound.
+     *
+     * @param skipValues Tells if the remaining values of the current key are ignored
+     */
+    private boolean isNextInRange( boolean skipValues ) throws IOException
+    {
+        ParentPos<K, V> parentPos = stack[depth];
+        Page<K, V> leaf = parentPos.page;
+        int pos = parentPos.pos;
+
+        if ( pos == BEFORE_FIRST )
+        {
+            return isBelowUpperBound( leaf.getKey( 0 ) );
+        }
+
+        if ( ( pos >= 0 ) && ( pos < leaf.getNbElems() ) )
+        {
+            if ( !skipValues && ( parentPos.valueCursor != null ) && parentPos.valueCursor.hasNext() )
+            {
+                return isBelowUpperBound( leaf.getKey( pos ) );
+            }
+
+            if ( pos < leaf.getNbElems() - 1 )
+            {
+                return isBelowUpperBound( leaf.getKey( pos + 1 ) );
+            }
+        }
+
+        // The next key is in another leaf. The first parent which has a child on the right
+        // holds a separator which is lower or equal to this key : no need to go any further
+        // if it's already out of the range
+        for ( int i = depth - 1; i >= 0; i-- )
+        {
+            ParentPos<K, V> nodePos = stack[i];
+
+            if ( nodePos.pos < nodePos.page.getNbElems() )
+            {
+                if ( to == null )
+                {
+                    return true;
+                }
+
+                if ( !isBelowUpperBound( nodePos.page.getKey( nodePos.pos ) ) )
+                {
+                    return false;
+                }
+
+                Page<K, V> child = ( ( AbstractPage<K, V> ) nodePos.page ).getPage( nodePos.pos + 1 );
+
+                while ( child.isNode() )
+                {
+                    child = ( ( AbstractPage<K, V> ) child ).getPage( 0 );
+                }
+
+                return isBelowUpperBound( child.getKey( 0 ) );
+            }
+        }
+
+        return false;
+    }
+
+
+    /**
+     * Tells if the key the cursor will move to with a prev() or a prevKey() is above the
+     * lower bound. As for the next key, we also check that such a key exists, even when
+     * there is no lower bound.
+     *
+     * @param skipValues Tells if the remaining values of the current key are ignored
+     */
+    private boolean isPrevInRange( boolean skipValues ) throws IOException
+    {
+        ParentPos<K, V> parentPos = stack[depth];
+        Page<K, V> leaf = parentPos.page;
+        int pos = parentPos.pos;
+
+        if ( ( pos == AFTER_LAST ) || ( pos >= leaf.getNbElems() ) )
+        {
+            return isAboveLowerBound( leaf.getKey( leaf.getNbElems() - 1 ) );
+        }
+
+        if ( pos >= 0 )
+        {
+            if ( !skipValues && ( parentPos.valueCursor != null ) && parentPos.valueCursor.hasPrev() )
+            {
+                return isAboveLowerBound( leaf.getKey( pos ) );
+            }
+
+            if ( pos > 0 )
+            {
+                return isAboveLowerBound( leaf.getKey( pos - 1 ) );
+            }
+        }
+
+        // The previous key is in another leaf. The first parent which has a child on the
+        // left holds a separator which is above this key : if it's already lower or equal
+        // to the lower bound, the key is out of the range
+        for ( int i = depth - 1; i >= 0; i-- )
+        {
+            ParentPos<K, V> nodePos = stack[i];
+
+            if ( nodePos.pos > 0 )
+            {
+                if ( from == null )
+                {
+                    return true;
+                }
+
+                if ( comparator.compare( nodePos.page.getKey( nodePos.pos - 1 ), from ) <= 0 )
+                {
+                    return false;
+                }
+
+                Page<K, V> child = ( ( AbstractPage<K, V> ) nodePos.page ).getPage( nodePos.pos - 1 );
+
+                while ( child.isNode() )
+                {
+                    child = ( ( AbstractPage<K, V> ) child ).getPage( child.getNbElems() );
+                }
+
+                return isAboveLowerBound( child.getKey( child.getNbElems() - 1 ) );
+            }
+        }
+
+        return false;
+    }
+
+
+    /**
+     * Tells if a key is not above the upper bound, if any
+     */
+    private boolean isBelowUpperBound( K key )
+    {
+        if ( to == null )
+        {
+            return true;
+        }
+
+        int comp = comparator.compare( key, to );
+
+        return ( comp < 0 ) || ( toInclusive && ( comp == 0 ) );
+    }
+
+
+    /**
+     * Tells if a key is not below the lower bound, if any
+     */
+    private boolean isAboveLowerBound( K key )
+    {
+        if ( from == null )
+        {
+            return true;
+        }
+
+        int comp = comparator.compare( key, from );
+
+        return ( comp > 0 ) || ( fromInclusive && ( comp == 0 ) );
+    }
+
+
+    /**
+     * Moves the cursor right after the given key, if the leaf position is on it. The
+     * cursor is left before the next key, so that a prev() returns the given key.
+     */
+    private void skipKey( K key ) throws IOException
+    {
+        ParentPos<K, V> parentPos = stack[depth];
+        AbstractPage<K, V> leaf = ( AbstractPage<K, V> ) parentPos.page;
+        int pos = parentPos.pos;
+
+        if ( ( pos < 0 ) || ( pos >= leaf.getNbElems() ) || ( comparator.compare( leaf.getKey( pos ), key ) != 0 ) )
+        {
+            return;
+        }
+
+        if ( pos < leaf.getNbElems() - 1 )
+        {
+            parentPos.pos = pos + 1;
+            parentPos.valueCursor = leaf.getValue( pos + 1 ).getCursor();
+        }
+        else
+        {
+            parentPos.pos = leaf.getNbElems();
+            parentPos.valueCursor = leaf.getValue( pos ).getCursor();
+        }
+    }
+
+
+    /**
+     * Positions the cursor on the given key, or on the first key above it if it's not
+     * present. If this key is not in the leaf we reach, the cursor is set at the end of
+     * the leaf, so that a next() moves to the next leaf, and a prev() returns the last
+     * key of the leaf.
+     */
+    private void browse( K key ) throws IOException
+    {
+        stack = newStack();
+        depth = 0;
+        Page<K, V> page = rootPage;
+
+        while ( page.isNode() )
+        {
+            int pos = ( ( AbstractPage<K, V> ) page ).findPos( key );
+
+            if ( pos < 0 )
+            {
+                // The key is the first one of the right child
+                pos = -pos;
+            }
+
+            stack[depth++] = new ParentPos<K, V>( page, pos );
+            page = ( ( AbstractPage<K, V> ) page ).getPage( pos );
+        }
+
+        AbstractPage<K, V> leaf = ( AbstractPage<K, V> ) page;
+        int pos = leaf.findPos( key );
+
+        if ( pos < 0 )
+        {
+            pos = -( pos + 1 );
+        }
+
+        ParentPos<K, V> parentPos = new ParentPos<K, V>( leaf, pos );
+        parentPos.valueCursor = leaf.getValue( Math.min( pos, leaf.getNbElems() - 1 ) ).getCursor();
+        stack[depth] = parentPos;
+    }
+
+
+    /**
+     * @return A new stack to browse the B-tree
+     */
+    @SuppressWarnings("unchecked")
+    private ParentPos<K, V>[] newStack()
+    {
+        return ( ParentPos<K, V>[] ) Array.newInstance( ParentPos.class, AbstractBTree.MAX_STACK_DEPTH );
+    }
+}
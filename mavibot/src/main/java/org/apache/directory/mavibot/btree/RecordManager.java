@@ -25,7 +25,9 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
@@ -33,7 +35,14 @@ import java.util.List;
 import java.util.Map;
 import java.util.Queue;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -50,6 +59,7 @@ import org.apache.directory.mavibot.btree.serializer.ElementSerializer;
 import org.apache.directory.mavibot.btree.serializer.IntSerializer;
 import org.apache.directory.mavibot.btree.serializer.LongArraySerializer;
 import org.apache.directory.mavibot.btree.serializer.LongSerializer;
+import org.apache.directory.mavibot.btree.serializer.VarLongSerializer;
 import org.apache.directory.mavibot.btree.util.Strings;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -110,6 +120,27 @@ public class RecordManager extends AbstractTransactionManager
     /** A constant for an offset on a non existing page */
     public static final long NO_PAGE = -1L;
 
+    /** The flag set in the B-tree info when duplicate keys are allowed */
+    /* no qualifier */static final int ALLOW_DUPLICATES_FLAG = 0x01;
+
+    /** The flag set in the B-tree info when the nodes store the number of keys of each child */
+    /* no qualifier */static final int SUBTREE_COUNTS_FLAG = 0x02;
+
+    /** The flag set in the B-tree info when the B-tree has a Bloom filter */
+    /* no qualifier */static final int BLOOM_FILTER_FLAG = 0x04;
+
+    /** The flag set in the B-tree info when the duplicate values are delta-encoded */
+    /* no qualifier */static final int COMPRESSED_VALUES_FLAG = 0x08;
+
+    /** The flag set in the B-tree info when the pages are stored in the compact format */
+    /* no qualifier */static final int COMPACT_PAGES_FLAG = 0x10;
+
+    /** The flag set in the B-tree info when the leaves start with a table of their keys offsets */
+    /* no qualifier */static final int SLOTTED_LEAVES_FLAG = 0x20;
+
+    /** The flag set in the B-tree info when the leaves are split on their size, the limit following the flags */
+    /* no qualifier */static final int MAX_PAGE_IOS_FLAG = 0x40;
+
     /** The number of bytes used to store the size of a page */
     private static final int PAGE_SIZE = 4;
 
@@ -194,6 +225,12 @@ public class RecordManager extends AbstractTransactionManager
     /** The list of PageIO that can be freed after a roolback */
     private List<PageIO> allocatedPages = new ArrayList<PageIO>();
 
+    /** The offsets of the Bloom filters replaced by a new B-tree header, to be added to its copied pages */
+    private Map<String, List<Long>> replacedBloomFilters = new HashMap<String, List<Long>>();
+
+    /** The offsets of the Bloom filters before they have been written in the current transaction, restored on a rollback */
+    private Map<String, Long> previousBloomFilters = new HashMap<String, Long>();
+
     /** A Map keeping the latest revisions for each managed BTree */
     private Map<String, BTreeHeader<?, ?>> currentBTreeHeaders = new HashMap<String, BTreeHeader<?, ?>>();
 
@@ -209,6 +246,12 @@ public class RecordManager extends AbstractTransactionManager
     /** A lock to protect the freepage pointers */
     private ReentrantLock freePageLock = new ReentrantLock();
 
+    /** The maximum number of page buffers kept for reuse */
+    private static final int PAGE_BUFFER_POOL_SIZE = 256;
+
+    /** The page buffers released once their page has been written, ready to be reused */
+    private ArrayDeque<ByteBuffer> pageBufferPool = new ArrayDeque<ByteBuffer>( PAGE_BUFFER_POOL_SIZE );
+
     /** the space reclaimer */
     private PageReclaimer reclaimer;
 
@@ -223,6 +266,18 @@ public class RecordManager extends AbstractTransactionManager
     /* a flag used to disable the free page reclaimer (used for internal testing only) */
     private boolean disableReclaimer = false;
 
+    /** The number of threads reading pages ahead for the cursors */
+    private static final int NB_PREFETCH_THREADS = 2;
+
+    /** The executor reading pages ahead, created when a cursor first needs it */
+    private ExecutorService prefetchExecutor;
+
+    /** Set when the RecordManager is being closed : no page is read ahead anymore */
+    private volatile boolean closing = false;
+
+    /** The offsets of the pages being read ahead */
+    private Set<Long> prefetchedOffsets = Collections.newSetFromMap( new ConcurrentHashMap<Long, Boolean>() );
+
     public Map<Long, Integer> writeCounter = new HashMap<Long, Integer>();
 
 
@@ -711,6 +766,8 @@ public class RecordManager extends AbstractTransactionManager
                 // Release the allocated and freed pages list
                 freedPages.clear();
                 allocatedPages.clear();
+                replacedBloomFilters.clear();
+                previousBloomFilters.clear();
 
                 // And update the RMHeader again, removing the old references to BOB and CPB b-tree headers
                 // here, we have to erase the old references to keep only the new ones.
@@ -759,6 +816,10 @@ public class RecordManager extends AbstractTransactionManager
                 freedPages.clear();
                 allocatedPages.clear();
 
+                // The Bloom filters written so far are not freed by a rollback anymore. The
+                // replaced ones are still to be added to the copied pages of their revision
+                previousBloomFilters.clear();
+
                 // And update the RMHeader again, removing the old references to BOB and CPB b-tree headers
                 // here, we have to erase the old references to keep only the new ones.
                 updateRecordManagerHeader();
@@ -886,6 +947,22 @@ public class RecordManager extends AbstractTransactionManager
         freedPages.clear();
         allocatedPages.clear();
 
+        // The Bloom filters written in this transaction have been freed with the allocated
+        // pages : the B-trees get back their previous filter, and will write it again
+        for ( Map.Entry<String, Long> entry : previousBloomFilters.entrySet() )
+        {
+            BTree<Object, Object> btree = managedBtrees.get( entry.getKey() );
+
+            if ( btree instanceof PersistedBTree )
+            {
+                ( ( PersistedBTree<Object, Object> ) btree ).setBloomFilterOffset( entry.getValue() );
+                ( ( PersistedBTree<Object, Object> ) btree ).setBloomFilterDirty( true );
+            }
+        }
+
+        replacedBloomFilters.clear();
+        previousBloomFilters.clear();
+
         // And update the RMHeader
         updateRecordManagerHeader();
 
@@ -1033,6 +1110,8 @@ public class RecordManager extends AbstractTransactionManager
 
         // The B-tree information offset
         long btreeInfoOffset = readLong( pageIos, dataPos );
+        dataPos += LONG_SIZE;
+        long btreeHeaderEnd = dataPos;
 
         // Now, process the common informations
         PageIO[] infoPageIos = readPageIOs( btreeInfoOffset, Long.MAX_VALUE );
@@ -1076,11 +1155,29 @@ public class RecordManager extends AbstractTransactionManager
 
         BTreeFactory.setValueSerializer( btree, valueSerializerFqcn );
 
-        // The B-tree allowDuplicates flag
-        int allowDuplicates = readInt( infoPageIos, dataPos );
-        ( ( PersistedBTree<K, V> ) btree ).setAllowDuplicates( allowDuplicates != 0 );
+        // The B-tree flags
+        int flags = readInt( infoPageIos, dataPos );
+        ( ( PersistedBTree<K, V> ) btree ).setAllowDuplicates( ( flags & ALLOW_DUPLICATES_FLAG ) != 0 );
+        ( ( PersistedBTree<K, V> ) btree ).setSubtreeCounts( ( flags & SUBTREE_COUNTS_FLAG ) != 0 );
+        ( ( PersistedBTree<K, V> ) btree ).setBloomFilterEnabled( ( flags & BLOOM_FILTER_FLAG ) != 0 );
+        ( ( PersistedBTree<K, V> ) btree ).setCompressedValues( ( flags & COMPRESSED_VALUES_FLAG ) != 0 );
+        ( ( PersistedBTree<K, V> ) btree ).setCompactPages( ( flags & COMPACT_PAGES_FLAG ) != 0 );
+        ( ( PersistedBTree<K, V> ) btree ).setSlottedLeaves( ( flags & SLOTTED_LEAVES_FLAG ) != 0 );
         dataPos += INT_SIZE;
 
+        // The number of PageIOs a leaf can span
+        if ( ( flags & MAX_PAGE_IOS_FLAG ) != 0 )
+        {
+            ( ( PersistedBTree<K, V> ) btree ).setMaxPageIOs( readInt( infoPageIos, dataPos ) );
+            dataPos += INT_SIZE;
+        }
+
+        // The Bloom filter offset, stored at the end of the B-tree header
+        if ( ( flags & BLOOM_FILTER_FLAG ) != 0 )
+        {
+            ( ( PersistedBTree<K, V> ) btree ).setBloomFilterOffset( readLong( pageIos, btreeHeaderEnd ) );
+        }
+
         // Set the recordManager in the btree
         ( ( PersistedBTree<K, V> ) btree ).setRecordManager( this );
 
@@ -1126,6 +1223,83 @@ public class RecordManager extends AbstractTransactionManager
     }
 
 
+    /**
+     * Loads a page in the B-tree cache, in a background thread. Nothing is done if the page
+     * is already in the cache, or being loaded. The page is not read if the transaction
+     * which asked for it has been closed in the meantime.
+     *
+     * @param pageHolder The holder of the page to load
+     * @param transaction The transaction of the cursor which will read the page
+     */
+    /* no qualifier */<K, V> void prefetch( final PersistedPageHolder<K, V> pageHolder,
+        final ReadTransaction<K, V> transaction )
+    {
+        final Long offset = pageHolder.getOffset();
+
+        if ( closing || ( pageHolder.getCachedValue() != null ) || !prefetchedOffsets.add( offset ) )
+        {
+            return;
+        }
+
+        Runnable loader = new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    if ( !closing && ( ( transaction == null ) || !transaction.isClosed() ) )
+                    {
+                        pageHolder.load();
+                    }
+                }
+                catch ( Exception e )
+                {
+                    // The cursor will read the page by itself
+                    LOG.debug( "Cannot read the page at offset {} ahead : {}", offset, e.getMessage() );
+                }
+                finally
+                {
+                    prefetchedOffsets.remove( offset );
+                }
+            }
+        };
+
+        try
+        {
+            getPrefetchExecutor().execute( loader );
+        }
+        catch ( RejectedExecutionException ree )
+        {
+            // The RecordManager is being closed
+            prefetchedOffsets.remove( offset );
+        }
+    }
+
+
+    /**
+     * @return The executor reading pages ahead. Its threads are daemons, as they should not
+     * prevent the JVM to exit.
+     */
+    private synchronized ExecutorService getPrefetchExecutor()
+    {
+        if ( prefetchExecutor == null )
+        {
+            prefetchExecutor = Executors.newFixedThreadPool( NB_PREFETCH_THREADS, new ThreadFactory()
+            {
+                public Thread newThread( Runnable runnable )
+                {
+                    Thread thread = new Thread( runnable, "Mavibot-prefetch" );
+                    thread.setDaemon( true );
+
+                    return thread;
+                }
+            } );
+        }
+
+        return prefetchExecutor;
+    }
+
+
     /**
      * Read a page from some PageIO for a given B-tree
      * @param btree The B-tree we want to read a page for
@@ -1157,15 +1331,36 @@ public class RecordManager extends AbstractTransactionManager
         // Now, deserialize the data block. If the number of elements
         // is positive, it's a Leaf, otherwise it's a Node
         // Note that only a leaf can have 0 elements, and it's the root page then.
+        boolean compact = ( btree instanceof PersistedBTree ) && ( ( PersistedBTree<K, V> ) btree ).isCompactPages();
+        boolean slotted = ( btree instanceof PersistedBTree ) && ( ( PersistedBTree<K, V> ) btree ).isSlottedLeaves();
+
         if ( nbElems >= 0 )
         {
             // It's a leaf
-            page = readLeafKeysAndValues( btree, nbElems, revision, byteBuffer, pageIos );
+            if ( slotted && ( nbElems > 0 ) )
+            {
+                page = readSlottedLeaf( btree, nbElems, revision, byteBuffer, compact );
+            }
+            else if ( compact )
+            {
+                page = readCompactLeafKeysAndValues( btree, nbElems, revision, byteBuffer, pageIos );
+            }
+            else
+            {
+                page = readLeafKeysAndValues( btree, nbElems, revision, byteBuffer, pageIos );
+            }
         }
         else
         {
             // It's a node
-            page = readNodeKeysAndValues( btree, -nbElems, revision, byteBuffer, pageIos );
+            if ( compact )
+            {
+                page = readCompactNodeKeysAndValues( btree, -nbElems, revision, byteBuffer );
+            }
+            else
+            {
+                page = readNodeKeysAndValues( btree, -nbElems, revision, byteBuffer, pageIos );
+            }
         }
 
         ( ( AbstractPage<K, V> ) page ).setOffset( pageIos[0].getOffset() );
@@ -1241,6 +1436,20 @@ public class RecordManager extends AbstractTransactionManager
     }
 
 
+    /**
+     * Creates a Leaf from a slotted data block. The keys and the values are not deserialized
+     * here, but when they are accessed.
+     */
+    private <K, V> PersistedLeaf<K, V> readSlottedLeaf( BTree<K, V> btree, int nbElems, long revision,
+        ByteBuffer byteBuffer, boolean compact )
+    {
+        PersistedLeaf<K, V> leaf = ( PersistedLeaf<K, V> ) BTreeFactory.createLeaf( btree, revision, nbElems );
+        leaf.setSlottedData( byteBuffer, compact );
+
+        return leaf;
+    }
+
+
     /**
      * Deserialize a Node from some PageIos
      */
@@ -1248,6 +1457,8 @@ public class RecordManager extends AbstractTransactionManager
         ByteBuffer byteBuffer, PageIO[] pageIos ) throws IOException
     {
         PersistedNode<K, V> node = ( PersistedNode<K, V> ) BTreeFactory.createNode( btree, revision, nbElems );
+        boolean subtreeCounts = ( btree instanceof PersistedBTree )
+            && ( ( PersistedBTree<K, V> ) btree ).isSubtreeCounts();
 
         // Read each value and key
         for ( int i = 0; i < nbElems; i++ )
@@ -1255,8 +1466,10 @@ public class RecordManager extends AbstractTransactionManager
             // This is an Offset
             long offset = LongSerializer.INSTANCE.deserialize( byteBuffer );
             long lastOffset = LongSerializer.INSTANCE.deserialize( byteBuffer );
+            long count = subtreeCounts ? LongSerializer.INSTANCE.deserialize( byteBuffer ) : -1L;
 
-            PersistedPageHolder<K, V> valueHolder = new PersistedPageHolder<K, V>( btree, null, offset, lastOffset );
+            PersistedPageHolder<K, V> valueHolder = new PersistedPageHolder<K, V>( btree, null, offset, lastOffset,
+                count );
             node.setValue( i, valueHolder );
 
             // Read the key length
@@ -1276,14 +1489,115 @@ public class RecordManager extends AbstractTransactionManager
         // and read the last value, as it's a node
         long offset = LongSerializer.INSTANCE.deserialize( byteBuffer );
         long lastOffset = LongSerializer.INSTANCE.deserialize( byteBuffer );
+        long count = subtreeCounts ? LongSerializer.INSTANCE.deserialize( byteBuffer ) : -1L;
 
-        PersistedPageHolder<K, V> valueHolder = new PersistedPageHolder<K, V>( btree, null, offset, lastOffset );
+        PersistedPageHolder<K, V> valueHolder = new PersistedPageHolder<K, V>( btree, null, offset, lastOffset, count );
         node.setValue( nbElems, valueHolder );
 
         return node;
     }
 
 
+    /**
+     * Deserialize a Leaf stored in the compact format from some PageIOs
+     */
+    private <K, V> PersistedLeaf<K, V> readCompactLeafKeysAndValues( BTree<K, V> btree, int nbElems, long revision,
+        ByteBuffer byteBuffer, PageIO[] pageIos )
+    {
+        PersistedLeaf<K, V> leaf = ( PersistedLeaf<K, V> ) BTreeFactory.createLeaf( btree, revision, nbElems );
+
+        // Store the page offset on disk
+        leaf.setOffset( pageIos[0].getOffset() );
+        leaf.setLastOffset( pageIos[pageIos.length - 1].getOffset() );
+
+        boolean isNotSubTree = ( btree.getType() != BTreeTypeEnum.PERSISTED_SUB );
+
+        // Read each key and value
+        for ( int i = 0; i < nbElems; i++ )
+        {
+            if ( isNotSubTree )
+            {
+                // Read the number of values
+                int nbValues = ( int ) VarLongSerializer.decodeZigZag( VarLongSerializer.readVarLong( byteBuffer ) );
+                PersistedValueHolder<V> valueHolder = null;
+
+                if ( nbValues < 0 )
+                {
+                    // This is a sub-btree
+                    long btreeOffset = VarLongSerializer.readVarLong( byteBuffer );
+
+                    valueHolder = new PersistedValueHolder<V>( btree, 1 - nbValues,
+                        LongSerializer.serialize( btreeOffset ) );
+                }
+                else
+                {
+                    // This is an Array of values, read the byte[] associated with it. There
+                    // is no byte[] stored when we have no value
+                    byte[] arrayBytes = ( nbValues == 0 ) ? new byte[0] : readVarBytes( byteBuffer );
+                    valueHolder = new PersistedValueHolder<V>( btree, nbValues, arrayBytes );
+                }
+
+                BTreeFactory.setValue( btree, leaf, i, valueHolder );
+            }
+
+            BTreeFactory.setKey( btree, leaf, i, readVarBytes( byteBuffer ) );
+        }
+
+        return leaf;
+    }
+
+
+    /**
+     * Deserialize a Node stored in the compact format
+     */
+    private <K, V> PersistedNode<K, V> readCompactNodeKeysAndValues( BTree<K, V> btree, int nbElems, long revision,
+        ByteBuffer byteBuffer ) throws IOException
+    {
+        PersistedNode<K, V> node = ( PersistedNode<K, V> ) BTreeFactory.createNode( btree, revision, nbElems );
+        boolean subtreeCounts = ( ( PersistedBTree<K, V> ) btree ).isSubtreeCounts();
+        long offset = 0L;
+
+        // Read each value and key. The last value has no key
+        for ( int i = 0; i <= nbElems; i++ )
+        {
+            // The offsets are delta-encoded
+            offset += VarLongSerializer.decodeZigZag( VarLongSerializer.readVarLong( byteBuffer ) );
+            long lastOffset = offset + VarLongSerializer.decodeZigZag( VarLongSerializer.readVarLong( byteBuffer ) );
+            long count = subtreeCounts ? VarLongSerializer.decodeZigZag( VarLongSerializer.readVarLong( byteBuffer ) )
+                : -1L;
+
+            node.setValue( i, new PersistedPageHolder<K, V>( btree, null, offset, lastOffset, count ) );
+
+            if ( i < nbElems )
+            {
+                int keyLength = ( int ) VarLongSerializer.readVarLong( byteBuffer );
+                int currentPosition = byteBuffer.position();
+
+                K key = btree.getKeySerializer().deserialize( byteBuffer );
+
+                // Set the new position now
+                byteBuffer.position( currentPosition + keyLength );
+
+                BTreeFactory.setKey( btree, node, i, key );
+            }
+        }
+
+        return node;
+    }
+
+
+    /**
+     * Read a byte[] prefixed by its varint length from a ByteBuffer
+     */
+    private byte[] readVarBytes( ByteBuffer byteBuffer )
+    {
+        byte[] bytes = new byte[( int ) VarLongSerializer.readVarLong( byteBuffer )];
+        byteBuffer.get( bytes );
+
+        return bytes;
+    }
+
+
     /**
      * Read a byte[] from pages.
      *
@@ -1564,6 +1878,23 @@ public class RecordManager extends AbstractTransactionManager
      * @throws IOException if there was a problem while accessing the file
      */
     public synchronized <K, V> void manage( BTree<K, V> btree ) throws BTreeAlreadyManagedException, IOException
+    {
+        manage( btree, true );
+    }
+
+
+    /**
+     * Manage a B-tree. When the root page has already been written, the B-tree header
+     * refers to it instead of a new empty root page.
+     *
+     * @param btree The new B-tree to manage.
+     * @param serializeRootPage Tells if the root page has to be written, or if it has already been stored
+     *
+     * @throws BTreeAlreadyManagedException If the B-tree is already managed
+     * @throws IOException if there was a problem while accessing the file
+     */
+    /* no qualifier */synchronized <K, V> void manage( BTree<K, V> btree, boolean serializeRootPage )
+        throws BTreeAlreadyManagedException, IOException
     {
         beginTransaction();
 
@@ -1590,17 +1921,24 @@ public class RecordManager extends AbstractTransactionManager
             // Serialize the B-tree root page
             Page<K, V> rootPage = btreeHeader.getRootPage();
 
-            PageIO[] rootPageIos = serializePage( btree, btreeHeader.getRevision(), rootPage );
+            if ( serializeRootPage )
+            {
+                PageIO[] rootPageIos = serializePage( btree, btreeHeader.getRevision(), rootPage );
 
-            // Get the reference on the first page
-            long rootPageOffset = rootPageIos[0].getOffset();
+                // Get the reference on the first page
+                long rootPageOffset = rootPageIos[0].getOffset();
 
-            // Store the rootPageOffset into the Btree header and into the rootPage
-            btreeHeader.setRootPageOffset( rootPageOffset );
-            ( ( PersistedLeaf<K, V> ) rootPage ).setOffset( rootPageOffset );
+                // Store the rootPageOffset into the Btree header and into the rootPage
+                btreeHeader.setRootPageOffset( rootPageOffset );
+                ( ( PersistedLeaf<K, V> ) rootPage ).setOffset( rootPageOffset );
 
-            LOG.debug( "Flushing the newly managed '{}' btree rootpage", btree.getName() );
-            flushPages( rootPageIos );
+                LOG.debug( "Flushing the newly managed '{}' btree rootpage", btree.getName() );
+                flushPages( rootPageIos );
+            }
+            else
+            {
+                btreeHeader.setRootPageOffset( ( ( AbstractPage<K, V> ) rootPage ).getOffset() );
+            }
 
             // And the B-tree header
             long btreeHeaderOffset = writeBtreeHeader( btree, btreeHeader );
@@ -1730,7 +2068,27 @@ public class RecordManager extends AbstractTransactionManager
      * @return An array of pages containing the serialized node
      * @throws IOException
      */
-    private <K, V> PageIO[] serializePage( BTree<K, V> btree, long revision, Page<K, V> page ) throws IOException
+    /* no qualifier */<K, V> PageIO[] serializePage( BTree<K, V> btree, long revision, Page<K, V> page )
+        throws IOException
+    {
+        return serializePage( btree, revision, page, false );
+    }
+
+
+    /**
+     * Serialize a new Page, as {@link #serializePage(BTree, long, Page)} does. The PageIOs
+     * may be allocated at the end of the file, instead of being taken from the free pages :
+     * the pages serialized one after the other are then contiguous.
+     *
+     * @param btree The B-tree the page belongs to
+     * @param revision The page revision
+     * @param page The page to serialize
+     * @param atEndOfFile Tells if the PageIOs must be allocated at the end of the file
+     * @return An array of pages containing the serialized page
+     * @throws IOException If the page can't be serialized
+     */
+    /* no qualifier */<K, V> PageIO[] serializePage( BTree<K, V> btree, long revision, Page<K, V> page,
+        boolean atEndOfFile ) throws IOException
     {
         int nbElems = page.getNbElems();
 
@@ -1740,39 +2098,67 @@ public class RecordManager extends AbstractTransactionManager
         {
             return serializeRootPage( revision );
         }
+        else if ( ( ( PersistedBTree<K, V> ) btree ).isCompactPages() )
+        {
+            return serializeCompactPage( btree, revision, page, atEndOfFile );
+        }
         else
         {
-            // Prepare a list of byte[] that will contain the serialized page
-            int nbBuffers = 1 + 1 + 1 + nbElems * 3;
+            boolean isNode = page.isNode();
+
+            // The offsets of the keys, stored at the head of a slotted leaf data
+            int[] keyOffsets = getKeyOffsets( btree, page );
+
+            // First compute the size of the keys and values, so that we can allocate the pages
             int dataSize = 0;
-            int serializedSize = 0;
 
-            if ( page.isNode() )
+            for ( int pos = 0; pos < nbElems; pos++ )
             {
-                // A Node has one more value to store
-                nbBuffers++;
-            }
-
-            // Now, we can create the list with the right size
-            List<byte[]> serializedData = new ArrayList<byte[]>( nbBuffers );
+                if ( isNode )
+                {
+                    dataSize += getNodeValueSize( ( PersistedNode<K, V> ) page );
+                    dataSize += getKeySize( ( ( PersistedNode<K, V> ) page ).getKeyHolder( pos ) );
+                }
+                else
+                {
+                    if ( isNotSubTree )
+                    {
+                        dataSize += getLeafValueSize( ( PersistedLeaf<K, V> ) page, pos );
+                    }
 
-            // The revision
-            byte[] buffer = LongSerializer.serialize( revision );
-            serializedData.add( buffer );
-            serializedSize += buffer.length;
+                    if ( keyOffsets != null )
+                    {
+                        keyOffsets[pos] = dataSize;
+                    }
 
-            // The number of elements
-            // Make it a negative value if it's a Node
-            int pageNbElems = nbElems;
+                    dataSize += getKeySize( ( ( PersistedLeaf<K, V> ) page ).getKeyHolder( pos ) );
+                }
+            }
 
-            if ( page.isNode() )
+            // Nodes have one more value to serialize, slotted leaves have their keys offsets
+            if ( isNode )
+            {
+                dataSize += getNodeValueSize( ( PersistedNode<K, V> ) page );
+            }
+            else if ( keyOffsets != null )
             {
-                pageNbElems = -nbElems;
+                dataSize += nbElems * INT_SIZE;
             }
 
-            buffer = IntSerializer.serialize( pageNbElems );
-            serializedData.add( buffer );
-            serializedSize += buffer.length;
+            // The revision, the number of elements and the data size come first
+            int serializedSize = LONG_SIZE + INT_SIZE + INT_SIZE + dataSize;
+
+            // We are done. Allocate the pages we need to store the data
+            PageIO[] pageIos = getFreePageIOs( serializedSize, atEndOfFile );
+
+            // And store the data directly into those pages
+            long position = store( 0L, revision, pageIos );
+
+            // The number of elements
+            // Make it a negative value if it's a Node
+            position = store( position, isNode ? -nbElems : nbElems, pageIos );
+            position = store( position, dataSize, pageIos );
+            position = storeKeyOffsets( position, keyOffsets, pageIos );
 
             // Iterate on the keys and values. We first serialize the value, then the key
             // until we are done with all of them. If we are serializing a page, we have
@@ -1780,182 +2166,395 @@ public class RecordManager extends AbstractTransactionManager
             for ( int pos = 0; pos < nbElems; pos++ )
             {
                 // Start with the value
-                if ( page.isNode() )
+                if ( isNode )
                 {
-                    dataSize += serializeNodeValue( ( PersistedNode<K, V> ) page, pos, serializedData );
-                    dataSize += serializeNodeKey( ( PersistedNode<K, V> ) page, pos, serializedData );
+                    position = serializeNodeValue( ( PersistedNode<K, V> ) page, pos, position, pageIos );
+                    position = serializeKey( ( ( PersistedNode<K, V> ) page ).getKeyHolder( pos ), position, pageIos );
                 }
                 else
                 {
                     if ( isNotSubTree )
                     {
-                        dataSize += serializeLeafValue( ( PersistedLeaf<K, V> ) page, pos, serializedData );
+                        position = serializeLeafValue( ( PersistedLeaf<K, V> ) page, pos, position, pageIos );
                     }
 
-                    dataSize += serializeLeafKey( ( PersistedLeaf<K, V> ) page, pos, serializedData );
+                    position = serializeKey( ( ( PersistedLeaf<K, V> ) page ).getKeyHolder( pos ), position, pageIos );
                 }
             }
 
             // Nodes have one more value to serialize
-            if ( page.isNode() )
+            if ( isNode )
             {
-                dataSize += serializeNodeValue( ( PersistedNode<K, V> ) page, nbElems, serializedData );
+                serializeNodeValue( ( PersistedNode<K, V> ) page, nbElems, position, pageIos );
             }
 
-            // Store the data size
-            buffer = IntSerializer.serialize( dataSize );
-            serializedData.add( 2, buffer );
-            serializedSize += buffer.length;
+            return pageIos;
+        }
+    }
 
-            serializedSize += dataSize;
 
-            // We are done. Allocate the pages we need to store the data
-            PageIO[] pageIos = getFreePageIOs( serializedSize );
+    /**
+     * Serialize a page in the compact format. The revision, the number of elements and the
+     * data size are stored as in the default format, but in the data block :
+     * <ul>
+     * <li>the key lengths and the value lengths are unsigned varints</li>
+     * <li>the number of values is a zig-zag varint, negative for a sub-btree, which offset
+     * is an unsigned varlong</li>
+     * <li>the children first offset is the zig-zag varlong delta with the previous child
+     * first offset (0 for the first child), their last offset the delta with their first
+     * offset and their number of keys a zig-zag varlong</li>
+     * </ul>
+     */
+    private <K, V> PageIO[] serializeCompactPage( BTree<K, V> btree, long revision, Page<K, V> page,
+        boolean atEndOfFile ) throws IOException
+    {
+        int nbElems = page.getNbElems();
+        boolean isNotSubTree = ( btree.getType() != BTreeTypeEnum.PERSISTED_SUB );
+        boolean isNode = page.isNode();
+        int[] keyOffsets = getKeyOffsets( btree, page );
 
-            // And store the data into those pages
-            long position = 0L;
+        // First compute the size of the keys and values, so that we can allocate the pages
+        int dataSize = 0;
 
-            for ( byte[] bytes : serializedData )
+        for ( int pos = 0; pos < nbElems; pos++ )
+        {
+            if ( isNode )
             {
-                position = storeRaw( position, bytes, pageIos );
+                dataSize += getCompactNodeValueSize( ( PersistedNode<K, V> ) page, pos );
+                dataSize += getCompactKeySize( ( ( PersistedNode<K, V> ) page ).getKeyHolder( pos ) );
             }
+            else
+            {
+                if ( isNotSubTree )
+                {
+                    dataSize += getCompactLeafValueSize( ( PersistedLeaf<K, V> ) page, pos );
+                }
 
-            return pageIos;
+                if ( keyOffsets != null )
+                {
+                    keyOffsets[pos] = dataSize;
+                }
+
+                dataSize += getCompactKeySize( ( ( PersistedLeaf<K, V> ) page ).getKeyHolder( pos ) );
+            }
+        }
+
+        if ( isNode )
+        {
+            dataSize += getCompactNodeValueSize( ( PersistedNode<K, V> ) page, nbElems );
+        }
+        else if ( keyOffsets != null )
+        {
+            dataSize += nbElems * INT_SIZE;
         }
-    }
 
+        PageIO[] pageIos = getFreePageIOs( LONG_SIZE + INT_SIZE + INT_SIZE + dataSize, atEndOfFile );
 
-    /**
-     * Serialize a Node's key
-     */
-    private <K, V> int serializeNodeKey( PersistedNode<K, V> node, int pos, List<byte[]> serializedData )
-    {
-        KeyHolder<K> holder = node.getKeyHolder( pos );
-        byte[] buffer = ( ( PersistedKeyHolder<K> ) holder ).getRaw();
+        long position = store( 0L, revision, pageIos );
+        position = store( position, isNode ? -nbElems : nbElems, pageIos );
+        position = store( position, dataSize, pageIos );
+        position = storeKeyOffsets( position, keyOffsets, pageIos );
+
+        for ( int pos = 0; pos < nbElems; pos++ )
+        {
+            if ( isNode )
+            {
+                position = serializeCompactNodeValue( ( PersistedNode<K, V> ) page, pos, position, pageIos );
+                position = storeVarBytes( position,
+                    ( ( PersistedKeyHolder<K> ) ( ( PersistedNode<K, V> ) page ).getKeyHolder( pos ) ).getRaw(),
+                    pageIos );
+            }
+            else
+            {
+                if ( isNotSubTree )
+                {
+                    position = serializeCompactLeafValue( ( PersistedLeaf<K, V> ) page, pos, position, pageIos );
+                }
 
-        // We have to store the serialized key length
-        byte[] length = IntSerializer.serialize( buffer.length );
-        serializedData.add( length );
+                position = storeVarBytes( position,
+                    ( ( PersistedKeyHolder<K> ) ( ( PersistedLeaf<K, V> ) page ).getKeyHolder( pos ) ).getRaw(),
+                    pageIos );
+            }
+        }
 
-        // And store the serialized key now if not null
-        if ( buffer.length != 0 )
+        if ( isNode )
         {
-            serializedData.add( buffer );
+            serializeCompactNodeValue( ( PersistedNode<K, V> ) page, nbElems, position, pageIos );
         }
 
-        return buffer.length + INT_SIZE;
+        return pageIos;
     }
 
 
     /**
-     * Serialize a Node's Value. We store the two offsets of the child page.
+     * Compute the size of a key in the compact format : its varint length, followed by its bytes
      */
-    private <K, V> int serializeNodeValue( PersistedNode<K, V> node, int pos, List<byte[]> serializedData )
+    private <K> int getCompactKeySize( KeyHolder<K> keyHolder )
+    {
+        byte[] keyData = ( ( PersistedKeyHolder<K> ) keyHolder ).getRaw();
+
+        if ( keyData == null )
+        {
+            return 1;
+        }
+
+        return VarLongSerializer.varLongSize( keyData.length ) + keyData.length;
+    }
+
+
+    /**
+     * Compute the size of a Node's value in the compact format
+     */
+    private <K, V> int getCompactNodeValueSize( PersistedNode<K, V> node, int pos )
+    {
+        PersistedPageHolder<K, V> child = ( PersistedPageHolder<K, V> ) node.children[pos];
+        long previousOffset = ( pos == 0 ) ? 0L : ( ( PersistedPageHolder<K, V> ) node.children[pos - 1] ).getOffset();
+
+        int size = VarLongSerializer.varLongSize( VarLongSerializer.encodeZigZag( child.getOffset() - previousOffset ) )
+            + VarLongSerializer.varLongSize( VarLongSerializer.encodeZigZag( child.getLastOffset() - child.getOffset() ) );
+
+        if ( ( ( PersistedBTree<K, V> ) node.getBtree() ).isSubtreeCounts() )
+        {
+            size += VarLongSerializer.varLongSize( VarLongSerializer.encodeZigZag( child.getCount() ) );
+        }
+
+        return size;
+    }
+
+
+    /**
+     * Serialize a Node's value in the compact format
+     */
+    private <K, V> long serializeCompactNodeValue( PersistedNode<K, V> node, int pos, long position,
+        PageIO[] pageIos )
+    {
+        PersistedPageHolder<K, V> child = ( PersistedPageHolder<K, V> ) node.children[pos];
+        long previousOffset = ( pos == 0 ) ? 0L : ( ( PersistedPageHolder<K, V> ) node.children[pos - 1] ).getOffset();
+
+        position = storeVarLong( position, VarLongSerializer.encodeZigZag( child.getOffset() - previousOffset ),
+            pageIos );
+        position = storeVarLong( position, VarLongSerializer.encodeZigZag( child.getLastOffset() - child.getOffset() ),
+            pageIos );
+
+        if ( ( ( PersistedBTree<K, V> ) node.getBtree() ).isSubtreeCounts() )
+        {
+            position = storeVarLong( position, VarLongSerializer.encodeZigZag( child.getCount() ), pageIos );
+        }
+
+        return position;
+    }
+
+
+    /**
+     * Compute the size of a Leaf's value in the compact format
+     */
+    private <K, V> int getCompactLeafValueSize( PersistedLeaf<K, V> leaf, int pos )
+    {
+        ValueHolder<V> valueHolder = leaf.getValue( pos );
+        int nbValues = valueHolder.size();
+
+        if ( nbValues == 0 )
+        {
+            return 1;
+        }
+
+        if ( valueHolder.isSubBtree() )
+        {
+            return VarLongSerializer.varLongSize( VarLongSerializer.encodeZigZag( -( nbValues + 1 ) ) )
+                + VarLongSerializer.varLongSize( ( ( PersistedValueHolder<V> ) valueHolder ).getOffset() );
+        }
+
+        int length = ( ( PersistedValueHolder<V> ) valueHolder ).getRaw().length;
+
+        return VarLongSerializer.varLongSize( VarLongSerializer.encodeZigZag( nbValues ) )
+            + VarLongSerializer.varLongSize( length ) + length;
+    }
+
+
+    /**
+     * Serialize a Leaf's value in the compact format
+     */
+    private <K, V> long serializeCompactLeafValue( PersistedLeaf<K, V> leaf, int pos, long position,
+        PageIO[] pageIos )
+    {
+        ValueHolder<V> valueHolder = leaf.getValue( pos );
+        int nbValues = valueHolder.size();
+
+        if ( nbValues == 0 )
+        {
+            return storeVarLong( position, 0L, pageIos );
+        }
+
+        if ( valueHolder.isSubBtree() )
+        {
+            // As in the default format, the number of values is stored as a negative number
+            position = storeVarLong( position, VarLongSerializer.encodeZigZag( -( nbValues + 1 ) ), pageIos );
+
+            return storeVarLong( position, ( ( PersistedValueHolder<V> ) valueHolder ).getOffset(), pageIos );
+        }
+
+        position = storeVarLong( position, VarLongSerializer.encodeZigZag( nbValues ), pageIos );
+
+        return storeVarBytes( position, ( ( PersistedValueHolder<V> ) valueHolder ).getRaw(), pageIos );
+    }
+
+
+    /**
+     * Compute the size of a serialized key : its length, followed by its bytes
+     */
+    private <K> int getKeySize( KeyHolder<K> keyHolder )
+    {
+        byte[] keyData = ( ( PersistedKeyHolder<K> ) keyHolder ).getRaw();
+
+        if ( keyData == null )
+        {
+            return INT_SIZE;
+        }
+
+        return INT_SIZE + keyData.length;
+    }
+
+
+    /**
+     * Serialize a key, storing its length and its bytes directly into the pages
+     */
+    private <K> long serializeKey( KeyHolder<K> keyHolder, long position, PageIO[] pageIos )
+    {
+        return store( position, ( ( PersistedKeyHolder<K> ) keyHolder ).getRaw(), pageIos );
+    }
+
+
+    /**
+     * Compute the size of a serialized Node's value : the two offsets of the child page,
+     * and its number of keys if the B-tree keeps track of it
+     */
+    private <K, V> int getNodeValueSize( PersistedNode<K, V> node )
+    {
+        if ( ( ( PersistedBTree<K, V> ) node.getBtree() ).isSubtreeCounts() )
+        {
+            return 3 * LONG_SIZE;
+        }
+
+        return 2 * LONG_SIZE;
+    }
+
+
+    /**
+     * Serialize a Node's Value. We store the two offsets of the child page.
+     */
+    private <K, V> long serializeNodeValue( PersistedNode<K, V> node, int pos, long position, PageIO[] pageIos )
         throws IOException
     {
-        // For a node, we just store the children's offsets
-        Page<K, V> child = node.getReference( pos );
+        // For a node, we just store the children's offsets. The holder knows them,
+        // there is no need to load the child
+        PersistedPageHolder<K, V> child = ( PersistedPageHolder<K, V> ) node.children[pos];
 
         // The first offset
-        byte[] buffer = LongSerializer.serialize( ( ( AbstractPage<K, V> ) child ).getOffset() );
-        serializedData.add( buffer );
-        int dataSize = buffer.length;
+        position = store( position, child.getOffset(), pageIos );
 
         // The last offset
-        buffer = LongSerializer.serialize( ( ( AbstractPage<K, V> ) child ).getLastOffset() );
-        serializedData.add( buffer );
-        dataSize += buffer.length;
+        position = store( position, child.getLastOffset(), pageIos );
 
-        return dataSize;
+        // The number of keys in the child, if the B-tree keeps track of it
+        if ( ( ( PersistedBTree<K, V> ) node.getBtree() ).isSubtreeCounts() )
+        {
+            position = store( position, child.getCount(), pageIos );
+        }
+
+        return position;
     }
 
 
     /**
-     * Serialize a Leaf's key
+     * Compute the size of a serialized Leaf's value
      */
-    private <K, V> int serializeLeafKey( PersistedLeaf<K, V> leaf, int pos, List<byte[]> serializedData )
+    private <K, V> int getLeafValueSize( PersistedLeaf<K, V> leaf, int pos )
     {
-        int dataSize = 0;
-        KeyHolder<K> keyHolder = leaf.getKeyHolder( pos );
-        byte[] keyData = ( ( PersistedKeyHolder<K> ) keyHolder ).getRaw();
+        ValueHolder<V> valueHolder = leaf.getValue( pos );
 
-        if ( keyData != null )
+        if ( valueHolder.size() == 0 )
         {
-            // We have to store the serialized key length
-            byte[] length = IntSerializer.serialize( keyData.length );
-            serializedData.add( length );
-
-            // And the key data
-            serializedData.add( keyData );
-            dataSize += keyData.length + INT_SIZE;
+            // Only the number of values
+            return INT_SIZE;
         }
-        else
+
+        if ( valueHolder.isSubBtree() )
         {
-            serializedData.add( IntSerializer.serialize( 0 ) );
-            dataSize += INT_SIZE;
+            // The number of values and the B-tree offset
+            return INT_SIZE + LONG_SIZE;
         }
 
-        return dataSize;
+        // The number of values, the data size and the data
+        return INT_SIZE + INT_SIZE + ( ( PersistedValueHolder<V> ) valueHolder ).getRaw().length;
     }
 
 
     /**
      * Serialize a Leaf's Value.
      */
-    private <K, V> int serializeLeafValue( PersistedLeaf<K, V> leaf, int pos, List<byte[]> serializedData )
+    private <K, V> long serializeLeafValue( PersistedLeaf<K, V> leaf, int pos, long position, PageIO[] pageIos )
         throws IOException
     {
         // The value can be an Array or a sub-btree, but we don't care
         // we just iterate on all the values
         ValueHolder<V> valueHolder = leaf.getValue( pos );
-        int dataSize = 0;
         int nbValues = valueHolder.size();
 
         if ( nbValues == 0 )
         {
             // No value.
-            byte[] buffer = IntSerializer.serialize( nbValues );
-            serializedData.add( buffer );
-
-            return buffer.length;
+            return store( position, nbValues, pageIos );
         }
 
         if ( !valueHolder.isSubBtree() )
         {
             // Write the nb elements first
-            byte[] buffer = IntSerializer.serialize( nbValues );
-            serializedData.add( buffer );
-            dataSize = INT_SIZE;
-
-            // We have a serialized value. Just flush it
-            byte[] data = ( ( PersistedValueHolder<V> ) valueHolder ).getRaw();
-            dataSize += data.length;
-
-            // Store the data size
-            buffer = IntSerializer.serialize( data.length );
-            serializedData.add( buffer );
-            dataSize += INT_SIZE;
+            position = store( position, nbValues, pageIos );
 
-            // and add the data if it's not 0
-            if ( data.length > 0 )
-            {
-                serializedData.add( data );
-            }
+            // We have a serialized value. Just flush it, with its size
+            return store( position, ( ( PersistedValueHolder<V> ) valueHolder ).getRaw(), pageIos );
         }
         else
         {
             // Store the nbVlues as a negative number. We add 1 so that 0 is not confused with an Array value
-            byte[] buffer = IntSerializer.serialize( -( nbValues + 1 ) );
-            serializedData.add( buffer );
-            dataSize += buffer.length;
+            position = store( position, -( nbValues + 1 ), pageIos );
 
             // the B-tree offset
-            buffer = LongSerializer.serialize( ( ( PersistedValueHolder<V> ) valueHolder ).getOffset() );
-            serializedData.add( buffer );
-            dataSize += buffer.length;
+            return store( position, ( ( PersistedValueHolder<V> ) valueHolder ).getOffset(), pageIos );
+        }
+    }
+
+
+    /**
+     * @return an array for the keys offsets if the page is a leaf stored in the slotted format,
+     * null otherwise
+     */
+    private <K, V> int[] getKeyOffsets( BTree<K, V> btree, Page<K, V> page )
+    {
+        if ( page.isLeaf() && ( ( PersistedBTree<K, V> ) btree ).isSlottedLeaves() )
+        {
+            return new int[page.getNbElems()];
         }
 
-        return dataSize;
+        return null;
+    }
+
+
+    /**
+     * Stores the keys offsets at the head of a slotted leaf data. The offsets are relative to
+     * the end of the table, so they don't depend on the data block position.
+     */
+    private long storeKeyOffsets( long position, int[] keyOffsets, PageIO[] pageIos ) throws IOException
+    {
+        if ( keyOffsets != null )
+        {
+            for ( int keyOffset : keyOffsets )
+            {
+                position = store( position, keyOffset, pageIos );
+            }
+        }
+
+        return position;
     }
 
 
@@ -2223,8 +2822,6 @@ public class RecordManager extends AbstractTransactionManager
     /* no qualifier */<K, V> void addInCopiedPagesBtree( String name, long revision, List<Page<K, V>> pages )
         throws IOException
     {
-        RevisionName revisionName = new RevisionName( revision, name );
-
         long[] pageOffsets = new long[pages.size()];
         int pos = 0;
 
@@ -2233,6 +2830,40 @@ public class RecordManager extends AbstractTransactionManager
             pageOffsets[pos++] = ( ( AbstractPage<K, V> ) page ).getOffset();
         }
 
+        addInCopiedPagesBtree( name, revision, pageOffsets );
+    }
+
+
+    /**
+     * Inserts the offsets of the pages copied by a revision into the copied pages B-tree.
+     *
+     * @param name The B-tree name
+     * @param revision The revision which has copied the pages
+     * @param pageOffsets The offsets of the copied pages
+     * @throws IOException If the copied pages B-tree can't be updated
+     */
+    /* no qualifier */void addInCopiedPagesBtree( String name, long revision, long[] pageOffsets )
+        throws IOException
+    {
+        RevisionName revisionName = new RevisionName( revision, name );
+
+        // The Bloom filters replaced by this revision can be reclaimed with its pages
+        List<Long> replacedFilters = replacedBloomFilters.remove( name );
+
+        if ( replacedFilters != null )
+        {
+            long[] offsets = new long[pageOffsets.length + replacedFilters.size()];
+            System.arraycopy( pageOffsets, 0, offsets, 0, pageOffsets.length );
+            int pos = pageOffsets.length;
+
+            for ( long replacedFilter : replacedFilters )
+            {
+                offsets[pos++] = replacedFilter;
+            }
+
+            pageOffsets = offsets;
+        }
+
         copiedPageBtree.insert( revisionName, pageOffsets );
 
         // Update the CopiedPageBtree offset
@@ -2264,7 +2895,13 @@ public class RecordManager extends AbstractTransactionManager
      * +------------+
      * | BtreeInfo  | The B-tree info offset
      * +------------+
+     * | filter     | The Bloom filter offset, only if the B-tree has a Bloom filter
+     * +------------+
      * </pre>
+     * If the Bloom filter has been modified, it's written first, so that the header refers to
+     * a filter computed for its revision. The previous filter is added to the pages copied by
+     * this revision, as the previous headers still refer to it.
+     *
      * @param btree The B-tree which header has to be written
      * @param btreeInfoOffset The offset of the B-tree informations
      * @return The B-tree header offset
@@ -2279,6 +2916,19 @@ public class RecordManager extends AbstractTransactionManager
                 LONG_SIZE + // The root page offset
                 LONG_SIZE; // The B-tree info page offset
 
+        boolean hasBloomFilter = ( btree instanceof PersistedBTree )
+            && ( ( PersistedBTree<K, V> ) btree ).hasBloomFilter();
+
+        if ( hasBloomFilter )
+        {
+            bufferSize += LONG_SIZE; // The Bloom filter offset
+
+            if ( ( ( PersistedBTree<K, V> ) btree ).isBloomFilterDirty() )
+            {
+                writeBloomFilter( ( PersistedBTree<K, V> ) btree, btreeHeader.getRevision() );
+            }
+        }
+
         // Get the pageIOs we need to store the data. We may need more than one.
         PageIO[] btreeHeaderPageIos = getFreePageIOs( bufferSize );
 
@@ -2305,6 +2955,12 @@ public class RecordManager extends AbstractTransactionManager
         // The B-tree info page offset
         position = store( position, ( ( PersistedBTree<K, V> ) btree ).getBtreeInfoOffset(), btreeHeaderPageIos );
 
+        // The Bloom filter offset
+        if ( hasBloomFilter )
+        {
+            position = store( position, ( ( PersistedBTree<K, V> ) btree ).getBloomFilterOffset(), btreeHeaderPageIos );
+        }
+
         // And flush the pages to disk now
         LOG.debug( "Flushing the newly managed '{}' btree header", btree.getName() );
 
@@ -2352,6 +3008,8 @@ public class RecordManager extends AbstractTransactionManager
      * +------------+
      * | dups       | The flags that tell if the dups are allowed
      * +------------+
+     * | maxPageIOs | The number of PageIOs a leaf can span, if the MAX_PAGE_IOS flag is set
+     * +------------+
      * </pre>
      * @param btree The B-tree which header has to be written
      * @return The B-tree header offset
@@ -2363,6 +3021,7 @@ public class RecordManager extends AbstractTransactionManager
         byte[] btreeNameBytes = Strings.getBytesUtf8( btree.getName() );
         byte[] keySerializerBytes = Strings.getBytesUtf8( btree.getKeySerializerFQCN() );
         byte[] valueSerializerBytes = Strings.getBytesUtf8( btree.getValueSerializerFQCN() );
+        int maxPageIOs = ( btree instanceof PersistedBTree ) ? ( ( PersistedBTree<K, V> ) btree ).getMaxPageIOs() : 0;
 
         int bufferSize =
             INT_SIZE + // The page size
@@ -2372,7 +3031,8 @@ public class RecordManager extends AbstractTransactionManager
                 keySerializerBytes.length + // The keySerializerBytes
                 INT_SIZE + // The valueSerializerBytes size
                 valueSerializerBytes.length + // The valueSerializerBytes
-                INT_SIZE; // The allowDuplicates flag
+                INT_SIZE + // The allowDuplicates flag
+                ( maxPageIOs > 0 ? INT_SIZE : 0 ); // The number of PageIOs a leaf can span
 
         // Get the pageIOs we need to store the data. We may need more than one.
         PageIO[] btreeHeaderPageIos = getFreePageIOs( bufferSize );
@@ -2401,14 +3061,227 @@ public class RecordManager extends AbstractTransactionManager
         // The valueSerialier FQCN
         position = store( position, valueSerializerBytes, btreeHeaderPageIos );
 
-        // The allowDuplicates flag
-        position = store( position, ( btree.isAllowDuplicates() ? 1 : 0 ), btreeHeaderPageIos );
+        // The flags
+        int flags = btree.isAllowDuplicates() ? ALLOW_DUPLICATES_FLAG : 0;
+
+        if ( ( btree instanceof PersistedBTree ) && ( ( PersistedBTree<K, V> ) btree ).isSubtreeCounts() )
+        {
+            flags |= SUBTREE_COUNTS_FLAG;
+        }
+
+        if ( ( btree instanceof PersistedBTree ) && ( ( PersistedBTree<K, V> ) btree ).hasBloomFilter() )
+        {
+            flags |= BLOOM_FILTER_FLAG;
+        }
+
+        if ( ( btree instanceof PersistedBTree ) && ( ( PersistedBTree<K, V> ) btree ).isCompressedValues() )
+        {
+            flags |= COMPRESSED_VALUES_FLAG;
+        }
+
+        if ( ( btree instanceof PersistedBTree ) && ( ( PersistedBTree<K, V> ) btree ).isCompactPages() )
+        {
+            flags |= COMPACT_PAGES_FLAG;
+        }
+
+        if ( ( btree instanceof PersistedBTree ) && ( ( PersistedBTree<K, V> ) btree ).isSlottedLeaves() )
+        {
+            flags |= SLOTTED_LEAVES_FLAG;
+        }
+
+        if ( maxPageIOs > 0 )
+        {
+            flags |= MAX_PAGE_IOS_FLAG;
+        }
+
+        position = store( position, flags, btreeHeaderPageIos );
+
+        // The number of PageIOs a leaf can span
+        if ( maxPageIOs > 0 )
+        {
+            position = store( position, maxPageIOs, btreeHeaderPageIos );
+        }
 
         // And flush the pages to disk now
         LOG.debug( "Flushing the newly managed '{}' btree header", btree.getName() );
         flushPages( btreeHeaderPageIos );
 
-        return btreeInfoOffset;
+        return btreeInfoOffset;
+    }
+
+
+    /**
+     * Write the Bloom filter of a B-tree on disk, when it has been modified without a new
+     * revision being written, typically after it has been rebuilt. The header of the current
+     * revision is written again, referring to the new filter, and replaces the previous one
+     * in the B-tree of B-trees. The previous header and filter are added to the pages copied
+     * by the current revision, so they are reclaimed once they are not used anymore. This
+     * method must be called inside a transaction.
+     *
+     * @param btree The B-tree which Bloom filter has to be written
+     * @throws IOException If we weren't able to write the Bloom filter
+     */
+    /* no qualifier */<K, V> void writeBloomFilter( PersistedBTree<K, V> btree ) throws IOException
+    {
+        if ( !btree.isBloomFilterDirty() )
+        {
+            return;
+        }
+
+        BTreeHeader<K, V> btreeHeader = btree.getBtreeHeader();
+        long revision = btreeHeader.getRevision();
+        long previousHeaderOffset = btreeHeader.getBTreeHeaderOffset();
+
+        long btreeHeaderOffset = writeBtreeHeader( btree, btreeHeader );
+        addInBtreeOfBtrees( btree.getName(), revision, btreeHeaderOffset );
+
+        // Keep the pages already copied by this revision
+        RevisionName revisionName = new RevisionName( revision, btree.getName() );
+        long[] copiedPages = new long[0];
+
+        try
+        {
+            if ( copiedPageBtree.hasKey( revisionName ) )
+            {
+                copiedPages = copiedPageBtree.get( revisionName );
+            }
+        }
+        catch ( KeyNotFoundException knfe )
+        {
+            // Nothing has been copied by this revision
+        }
+
+        long[] offsets = new long[copiedPages.length + 1];
+        System.arraycopy( copiedPages, 0, offsets, 0, copiedPages.length );
+        offsets[copiedPages.length] = previousHeaderOffset;
+
+        addInCopiedPagesBtree( btree.getName(), revision, offsets );
+    }
+
+
+    /**
+     * Write the Bloom filter of a B-tree on disk, for a new B-tree header. The previous filter
+     * is kept aside, to be added to the pages copied by the new revision. We write the
+     * following informations :
+     * <pre>
+     * +------------+
+     * | revision   | The B-tree revision the filter has been computed for
+     * +------------+
+     * | nbHashes   | The number of hash functions
+     * +------------+
+     * | nbLongs    | The number of longs storing the bits
+     * +------------+
+     * | bits       | The bits
+     * +------------+
+     * </pre>
+     * @param btree The B-tree which Bloom filter has to be written
+     * @param revision The revision of the B-tree header the filter is written for
+     * @throws IOException If we weren't able to write the Bloom filter
+     */
+    private <K, V> void writeBloomFilter( PersistedBTree<K, V> btree, long revision ) throws IOException
+    {
+        BloomFilter<K> filter = btree.getBloomFilter();
+
+        if ( filter == null )
+        {
+            return;
+        }
+
+        long[] bits = filter.getBits();
+
+        int bufferSize =
+            LONG_SIZE + // The revision
+                INT_SIZE + // The number of hash functions
+                INT_SIZE + // The number of longs
+                bits.length * LONG_SIZE; // The bits
+
+        PageIO[] filterPageIos = getFreePageIOs( bufferSize );
+        long position = 0L;
+
+        position = store( position, revision, filterPageIos );
+        position = store( position, filter.getNbHashes(), filterPageIos );
+        position = store( position, bits.length, filterPageIos );
+
+        for ( long bitsValue : bits )
+        {
+            position = store( position, bitsValue, filterPageIos );
+        }
+
+        LOG.debug( "Flushing the '{}' btree Bloom filter", btree.getName() );
+        flushPages( filterPageIos );
+
+        String name = btree.getName();
+        long previousOffset = btree.getBloomFilterOffset();
+
+        if ( !previousBloomFilters.containsKey( name ) )
+        {
+            previousBloomFilters.put( name, previousOffset );
+        }
+
+        if ( previousOffset != NO_PAGE )
+        {
+            List<Long> replacedFilters = replacedBloomFilters.get( name );
+
+            if ( replacedFilters == null )
+            {
+                replacedFilters = new ArrayList<Long>();
+                replacedBloomFilters.put( name, replacedFilters );
+            }
+
+            replacedFilters.add( previousOffset );
+        }
+
+        btree.setBloomFilterOffset( filterPageIos[0].getOffset() );
+        btree.setBloomFilterDirty( false );
+    }
+
+
+    /**
+     * Read the Bloom filter of a B-tree from disk.
+     *
+     * @param btree The B-tree which Bloom filter has to be read
+     * @return The Bloom filter, or null if there is none, or if it has not been written
+     * for the current revision
+     * @throws IOException If we weren't able to read the Bloom filter
+     */
+    /* no qualifier */<K, V> BloomFilter<K> readBloomFilter( PersistedBTree<K, V> btree ) throws IOException
+    {
+        long offset = btree.getBloomFilterOffset();
+
+        if ( offset == NO_PAGE )
+        {
+            return null;
+        }
+
+        PageIO[] filterPageIos = readPageIOs( offset, Long.MAX_VALUE );
+        long position = 0L;
+
+        long revision = readLong( filterPageIos, position );
+        position += LONG_SIZE;
+
+        if ( revision != btree.getRevision() )
+        {
+            // The B-tree has been modified after the filter has been written
+            LOG.debug( "The Bloom filter of the '{}' btree is outdated", btree.getName() );
+
+            return null;
+        }
+
+        int nbHashes = readInt( filterPageIos, position );
+        position += INT_SIZE;
+
+        int nbLongs = readInt( filterPageIos, position );
+        position += INT_SIZE;
+
+        long[] bits = new long[nbLongs];
+
+        for ( int i = 0; i < nbLongs; i++ )
+        {
+            bits[i] = readLong( filterPageIos, position );
+            position += LONG_SIZE;
+        }
+
+        return new BloomFilter<K>( btree.getKeySerializer(), nbHashes, bits );
     }
 
 
@@ -2603,20 +3476,11 @@ public class RecordManager extends AbstractTransactionManager
             pageIo.getData().rewind();
             long pos = pageIo.getOffset();
 
-            if ( fileChannel.size() < ( pageIo.getOffset() + pageSize ) )
-            {
-                LOG.debug( "Adding a page at the end of the file" );
-                // This is a page we have to add to the file
-                pos = fileChannel.size();
-                fileChannel.write( pageIo.getData(), pos );
-                //fileChannel.force( false );
-            }
-            else
-            {
-                LOG.debug( "Writing a page at position {}", pageIo.getOffset() );
-                fileChannel.write( pageIo.getData(), pageIo.getOffset() );
-                //fileChannel.force( false );
-            }
+            // The page is always written at its own offset, even when it's added to the file :
+            // some pages before it may not have been written yet, when they are gathered
+            // in an extent
+            LOG.debug( "Writing a page at position {}", pos );
+            fileChannel.write( pageIo.getData(), pos );
 
             //System.out.println( "Writing page at " + Long.toHexString( pos ) );
             writeCounter.put( pos, writeCounter.containsKey( pos ) ? writeCounter.get( pos ) + 1 : 1 );
@@ -2685,7 +3549,7 @@ public class RecordManager extends AbstractTransactionManager
             // And now, write the bytes until we have none
             while ( nbStored > 0 )
             {
-                if ( remaining > nbStored )
+                if ( remaining >= nbStored )
                 {
                     pageData.mark();
                     pageData.position( pagePos );
@@ -2793,6 +3657,68 @@ public class RecordManager extends AbstractTransactionManager
     }
 
 
+    /**
+     * Stores an unsigned varlong into one or more pageIO, one byte at a time.
+     *
+     * @param position The position in a virtual byte[] if all the pages were contiguous
+     * @param value The value to serialize, considered as unsigned
+     * @param pageIos The pageIOs we have to store the data in
+     * @return The new offset
+     */
+    private long storeVarLong( long position, long value, PageIO... pageIos )
+    {
+        while ( ( value & ~0x7FL ) != 0L )
+        {
+            position = storeByte( position, ( byte ) ( ( value & 0x7FL ) | 0x80L ), pageIos );
+            value >>>= 7;
+        }
+
+        return storeByte( position, ( byte ) value, pageIos );
+    }
+
+
+    /**
+     * Stores a byte[] into one or more pageIO, prefixed by its length as an unsigned varint.
+     * A null byte[] is stored as an empty one.
+     *
+     * @param position The position in a virtual byte[] if all the pages were contiguous
+     * @param bytes The byte[] to serialize
+     * @param pageIos The pageIOs we have to store the data in
+     * @return The new offset
+     */
+    private long storeVarBytes( long position, byte[] bytes, PageIO... pageIos )
+    {
+        if ( bytes == null )
+        {
+            return storeVarLong( position, 0L, pageIos );
+        }
+
+        position = storeVarLong( position, bytes.length, pageIos );
+
+        if ( bytes.length == 0 )
+        {
+            // Nothing more to store, and the position may be at the very end of the last page
+            return position;
+        }
+
+        return storeRaw( position, bytes, pageIos );
+    }
+
+
+    /**
+     * Stores a single byte into the pageIO it belongs to.
+     */
+    private long storeByte( long position, byte value, PageIO... pageIos )
+    {
+        int pageNb = computePageNb( position );
+        int pagePos = ( int ) ( position + ( pageNb + 1 ) * LONG_SIZE + INT_SIZE ) - pageNb * pageSize;
+
+        pageIos[pageNb].getData().put( pagePos, value );
+
+        return position + 1;
+    }
+
+
     /**
      * Stores an Integer into one ore more pageIO (depending if the int is stored
      * across a boundary or not)
@@ -3003,6 +3929,9 @@ public class RecordManager extends AbstractTransactionManager
         // Build the resulting reference
         long offset = pageIos[0].getOffset();
         long lastOffset = pageIos[pageIos.length - 1].getOffset();
+
+        // The PageIOs are not used anymore, their buffers can be reused
+        releasePageBuffers( pageIos );
         PersistedPageHolder<K, V> pageHolder = new PersistedPageHolder<K, V>( btree, newPage, offset,
             lastOffset );
 
@@ -3079,7 +4008,7 @@ public class RecordManager extends AbstractTransactionManager
      * @param dataSize The size of the data we want to store in pages
      * @return The number of pages needed
      */
-    private int computeNbPages( int dataSize )
+    /* no qualifier */int computeNbPages( int dataSize )
     {
         if ( dataSize <= 0 )
         {
@@ -3121,6 +4050,21 @@ public class RecordManager extends AbstractTransactionManager
      * @return An array of pages, enough to store the full data
      */
     private PageIO[] getFreePageIOs( int dataSize ) throws IOException
+    {
+        return getFreePageIOs( dataSize, false );
+    }
+
+
+    /**
+     * Get as many pages as needed to store the data of the given size. The returned
+     * PageIOs are all linked together.
+     *
+     * @param dataSize The data size
+     * @param atEndOfFile Tells if the pages must be created at the end of the file, even if
+     * we have some free pages
+     * @return An array of pages, enough to store the full data
+     */
+    private PageIO[] getFreePageIOs( int dataSize, boolean atEndOfFile ) throws IOException
     {
         if ( dataSize == 0 )
         {
@@ -3133,12 +4077,12 @@ public class RecordManager extends AbstractTransactionManager
         PageIO[] pageIOs = new PageIO[nbNeededPages];
 
         // The first page : set the size
-        pageIOs[0] = fetchNewPage();
+        pageIOs[0] = fetchNewPage( atEndOfFile );
         pageIOs[0].setSize( dataSize );
 
         for ( int i = 1; i < nbNeededPages; i++ )
         {
-            pageIOs[i] = fetchNewPage();
+            pageIOs[i] = fetchNewPage( atEndOfFile );
 
             // Create the link
             pageIOs[i - 1].setNextPage( pageIOs[i].getOffset() );
@@ -3155,9 +4099,22 @@ public class RecordManager extends AbstractTransactionManager
      * @return The fetched PageIO
      */
     private PageIO fetchNewPage() throws IOException
+    {
+        return fetchNewPage( false );
+    }
+
+
+    /**
+     * Return a new Page. We take one of the existing free pages, unless we are asked
+     * to create the page at the end of the file.
+     *
+     * @param atEndOfFile Tells if the page must be created at the end of the file
+     * @return The fetched PageIO
+     */
+    private PageIO fetchNewPage( boolean atEndOfFile ) throws IOException
     {
         //System.out.println( "Fetching new page" );
-        if ( firstFreePage == NO_PAGE )
+        if ( atEndOfFile || ( firstFreePage == NO_PAGE ) )
         {
             nbCreatedPages.incrementAndGet();
 
@@ -3167,7 +4124,7 @@ public class RecordManager extends AbstractTransactionManager
 
             endOfFileOffset += pageSize;
 
-            ByteBuffer data = ByteBuffer.allocateDirect( pageSize );
+            ByteBuffer data = allocatePageBuffer();
 
             newPage.setData( data );
             newPage.setNextPage( NO_PAGE );
@@ -3192,7 +4149,7 @@ public class RecordManager extends AbstractTransactionManager
                 freePageLock.unlock();
 
             // overwrite the data of old page
-            ByteBuffer data = ByteBuffer.allocateDirect( pageSize );
+            ByteBuffer data = allocatePageBuffer();
             pageIo.setData( data );
 
             pageIo.setNextPage( NO_PAGE );
@@ -3205,6 +4162,67 @@ public class RecordManager extends AbstractTransactionManager
     }
 
 
+    /**
+     * Gets a zeroed buffer for a new page, from the pool if it's not empty.
+     *
+     * @return A buffer which size is the page size
+     */
+    private ByteBuffer allocatePageBuffer()
+    {
+        ByteBuffer data = null;
+
+        synchronized ( pageBufferPool )
+        {
+            data = pageBufferPool.poll();
+        }
+
+        if ( ( data == null ) || ( data.capacity() != pageSize ) )
+        {
+            return ByteBuffer.allocateDirect( pageSize );
+        }
+
+        // Clear the previous content
+        data.clear();
+
+        while ( data.remaining() >= LONG_SIZE )
+        {
+            data.putLong( 0L );
+        }
+
+        while ( data.hasRemaining() )
+        {
+            data.put( ( byte ) 0 );
+        }
+
+        data.clear();
+
+        return data;
+    }
+
+
+    /**
+     * Gives back the buffers of some PageIOs which have been written, and won't be used
+     * anymore, so that they can be reused for new pages.
+     *
+     * @param pageIos The written PageIOs
+     */
+    private void releasePageBuffers( PageIO... pageIos )
+    {
+        synchronized ( pageBufferPool )
+        {
+            for ( PageIO pageIo : pageIos )
+            {
+                if ( pageBufferPool.size() == PAGE_BUFFER_POOL_SIZE )
+                {
+                    return;
+                }
+
+                pageBufferPool.push( pageIo.getData() );
+            }
+        }
+    }
+
+
     /**
      * fetch a page from disk, knowing its position in the file.
      *
@@ -3223,11 +4241,10 @@ public class RecordManager extends AbstractTransactionManager
         }
         else
         {
-            // Read the page
-            fileChannel.position( offset );
-
+            // Read the page. We don't move the channel position, as the pages
+            // may be read concurrently by the threads reading ahead
             ByteBuffer data = ByteBuffer.allocate( pageSize );
-            fileChannel.read( data );
+            fileChannel.read( data, offset );
             data.rewind();
 
             PageIO readPage = new PageIO( offset );
@@ -3270,6 +4287,55 @@ public class RecordManager extends AbstractTransactionManager
      */
     public void close() throws IOException
     {
+        // Stop reading pages ahead. The loaders are not interrupted : a thread interrupted
+        // while reading the file closes the FileChannel. We wait for the pages being read,
+        // the pending ones are skipped
+        ExecutorService executor = null;
+
+        synchronized ( this )
+        {
+            closing = true;
+            executor = prefetchExecutor;
+            prefetchExecutor = null;
+        }
+
+        if ( executor != null )
+        {
+            executor.shutdown();
+
+            try
+            {
+                executor.awaitTermination( Long.MAX_VALUE, TimeUnit.MILLISECONDS );
+            }
+            catch ( InterruptedException ie )
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        // Write the Bloom filters which have been modified. This is done in a transaction
+        // of its own, as the RecordManager header must be updated
+        beginTransaction();
+
+        try
+        {
+            for ( BTree<Object, Object> tree : managedBtrees.values() )
+            {
+                if ( ( tree instanceof PersistedBTree )
+                    && ( ( PersistedBTree<Object, Object> ) tree ).isBloomFilterDirty() )
+                {
+                    writeBloomFilter( ( PersistedBTree<Object, Object> ) tree );
+                }
+            }
+
+            commit();
+        }
+        catch ( IOException ioe )
+        {
+            rollback();
+            throw ioe;
+        }
+
         beginTransaction();
 
         // Close all the managed B-trees
@@ -3516,9 +4582,9 @@ public class RecordManager extends AbstractTransactionManager
         valueSerializerFqcn = Strings.utf8ToString( valueSerializerBytes );
         }
 
-        // The B-tree allowDuplicates flag
-        int allowDuplicates = readInt( pageIos, dataPos );
-        boolean dupsAllowed = allowDuplicates != 0;
+        // The B-tree flags
+        int flags = readInt( pageIos, dataPos );
+        boolean dupsAllowed = ( flags & ALLOW_DUPLICATES_FLAG ) != 0;
 
         dataPos += INT_SIZE;
 
@@ -3882,6 +4948,192 @@ public class RecordManager extends AbstractTransactionManager
     }
 
 
+    /**
+     * Read the free page list and rebuild it so that the free pages are linked in
+     * ascending offset order : the next allocations will then use the pages which are
+     * the closest to the beginning of the file. This method must be called inside a
+     * transaction.
+     *
+     * @return The number of free pages
+     * @throws IOException If we weren't able to update the free pages
+     */
+    /* no qualifier */int orderFreePages() throws IOException
+    {
+        freePageLock.lock();
+
+        try
+        {
+            TreeMap<Long, Long> freePages = readFreePages();
+
+            linkFreePages( freePages );
+
+            return freePages.size();
+        }
+        finally
+        {
+            freePageLock.unlock();
+        }
+    }
+
+
+    /**
+     * Release the free pages stored at the end of the file, and truncate the file. The
+     * remaining free pages are linked in ascending offset order. This method must be called
+     * inside a transaction.
+     *
+     * @return The number of bytes the file has been shrunk by
+     * @throws IOException If we weren't able to update the file
+     */
+    /* no qualifier */long truncate() throws IOException
+    {
+        freePageLock.lock();
+
+        try
+        {
+            TreeMap<Long, Long> freePages = readFreePages();
+            long newEndOfFileOffset = endOfFileOffset;
+
+            // Remove the free pages from the end of the file, as long as they are contiguous
+            while ( freePages.remove( newEndOfFileOffset - pageSize ) != null )
+            {
+                newEndOfFileOffset -= pageSize;
+            }
+
+            if ( newEndOfFileOffset == endOfFileOffset )
+            {
+                return 0L;
+            }
+
+            linkFreePages( freePages );
+
+            // The header must not reference the released pages anymore before we truncate the file
+            updateRecordManagerHeader();
+            fileChannel.truncate( newEndOfFileOffset );
+
+            long released = endOfFileOffset - newEndOfFileOffset;
+            endOfFileOffset = newEndOfFileOffset;
+
+            LOG.debug( "File truncated to {}, {} bytes released", endOfFileOffset, released );
+
+            return released;
+        }
+        finally
+        {
+            freePageLock.unlock();
+        }
+    }
+
+
+    /**
+     * Read the free page list. The freePageLock must be held.
+     *
+     * @return A Map containing the free pages offsets, associated with the offset of the next free page
+     */
+    private TreeMap<Long, Long> readFreePages() throws IOException
+    {
+        TreeMap<Long, Long> freePages = new TreeMap<Long, Long>();
+        long current = firstFreePage;
+
+        while ( current != NO_PAGE )
+        {
+            long next = fetchPage( current ).getNextPage();
+            freePages.put( current, next );
+            current = next;
+        }
+
+        return freePages;
+    }
+
+
+    /**
+     * Link the given free pages in ascending offset order, updating the first free page. Only
+     * the pages whose link has changed are written, the same way {@link #free(PageIO)} does,
+     * inside the current transaction : the new first free page is stored in the RecordManager
+     * header when the transaction is committed. A rollback keeps the new order, as the list
+     * still links the same pages. The freePageLock must be held.
+     *
+     * @param freePages The free pages offsets, associated with the offset of the next free page
+     */
+    private void linkFreePages( TreeMap<Long, Long> freePages ) throws IOException
+    {
+        if ( !transactionLock.isHeldByCurrentThread() )
+        {
+            TXN_LOG.error( "This thread does not hold the transactionLock" );
+            throw new RecordManagerException( "This thread does not hold the transactionLock" );
+        }
+
+        long next = NO_PAGE;
+
+        for ( Map.Entry<Long, Long> freePage : freePages.descendingMap().entrySet() )
+        {
+            if ( freePage.getValue() != next )
+            {
+                PageIO pageIo = fetchPage( freePage.getKey() );
+                pageIo.setNextPage( next );
+                flushPages( pageIo );
+            }
+
+            next = freePage.getKey();
+        }
+
+        firstFreePage = next;
+    }
+
+
+    /**
+     * Tells if some of the PageIOs used to store a page are stored at or after a given offset.
+     *
+     * @param offset The offset of the first PageIO
+     * @param lastOffset The offset of the last PageIO
+     * @param limit The offset we compare the PageIOs offsets with
+     * @return true if at least one of the PageIOs is stored at or after the limit
+     * @throws IOException If we weren't able to read the PageIOs
+     */
+    /* no qualifier */boolean isStoredAfter( long offset, long lastOffset, long limit ) throws IOException
+    {
+        if ( ( offset >= limit ) || ( lastOffset >= limit ) )
+        {
+            return true;
+        }
+
+        if ( lastOffset <= offset )
+        {
+            // The page is stored in a single PageIO
+            return false;
+        }
+
+        for ( PageIO pageIo : readPageIOs( offset, -1L ) )
+        {
+            if ( pageIo.getOffset() >= limit )
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+
+    /**
+     * Frees the copied pages of the revisions which are not used anymore by any read transaction.
+     */
+    /* no qualifier */void reclaimPages()
+    {
+        beginTransaction();
+        runReclaimer();
+        commit();
+    }
+
+
+    /**
+     * @return The offset of the end of the file
+     */
+    /* no qualifier */long getEndOfFileOffset()
+    {
+        return endOfFileOffset;
+    }
+
+
     /**
      * @return the keepRevisions flag
      */
@@ -3900,6 +5152,22 @@ public class RecordManager extends AbstractTransactionManager
     }
 
 
+    /**
+     * Compacts the file : the live pages stored at the end of the file are moved into
+     * the free pages, then the file is truncated. The work is done in small transactions,
+     * so the RecordManager can still be used while the compaction is running. The pages
+     * still used by an open read transaction are not released.
+     *
+     * @see FileCompactor
+     * @return The number of bytes the file has been shrunk by
+     * @throws IOException If the compaction failed
+     */
+    public long compact() throws IOException
+    {
+        return new FileCompactor( this ).compact();
+    }
+
+
     /**
      * Creates a B-tree and automatically adds it to the list of managed btrees
      *
@@ -43,6 +43,9 @@ import java.util.List;
     /** The key pivot */
     protected K pivot;
 
+    /** The value replaced in the split leaf, if the key was already present */
+    protected V modifiedValue;
+
 
     /**
      * The default constructor for SplitResult.
@@ -103,6 +106,25 @@ import java.util.List;
     }
 
 
+    /**
+     * @return the modifiedValue
+     */
+    public V getModifiedValue()
+    {
+        return modifiedValue;
+    }
+
+
+    /**
+     * Set the value replaced in the split leaf
+     * @param modifiedValue The replaced value
+     */
+    public void setModifiedValue( V modifiedValue )
+    {
+        this.modifiedValue = modifiedValue;
+    }
+
+
     /**
      * @see Object#toString()
      */
@@ -40,10 +40,10 @@ import org.apache.directory.mavibot.btree.exception.EndOfFileExceededException;
 public class TupleCursor<K, V>
 {
     /** A marker to tell that we are before the first element */
-    private static final int BEFORE_FIRST = -1;
+    /* no qualifier */static final int BEFORE_FIRST = -1;
 
     /** A marker to tell that we are after the last element */
-    private static final int AFTER_LAST = -2;
+    /* no qualifier */static final int AFTER_LAST = -2;
 
     /** The stack of pages from the root down to the leaf */
     protected ParentPos<K, V>[] stack;
@@ -54,6 +54,12 @@ public class TupleCursor<K, V>
     /** The transaction used for this cursor */
     protected ReadTransaction<K, V> transaction;
 
+    /** The key of the last element the cursor has moved to */
+    private K currentKey;
+
+    /** The value of the last element the cursor has moved to */
+    private V currentValue;
+
 
     /**
      * Creates a new instance of Cursor.
@@ -265,6 +271,87 @@ public class TupleCursor<K, V>
      * @throws EndOfFileExceededException
      */
     public Tuple<K, V> next() throws EndOfFileExceededException, IOException
+    {
+        moveToNext();
+
+        return new Tuple<K, V>( currentKey, currentValue );
+    }
+
+
+    /**
+     * Find the next key/value, and store them in a Tuple provided by the caller, so that
+     * a scan doesn't create a Tuple for each element.
+     *
+     * @param tuple The Tuple to fill
+     * @return The given Tuple, containing the found key and value
+     * @throws IOException
+     * @throws EndOfFileExceededException
+     */
+    public Tuple<K, V> next( Tuple<K, V> tuple ) throws EndOfFileExceededException, IOException
+    {
+        moveToNext();
+
+        tuple.setKey( currentKey );
+        tuple.setValue( currentValue );
+
+        return tuple;
+    }
+
+
+    /**
+     * Find the next key/values, and store them in the Tuples of an array. The Tuples present
+     * in the array are reused, a Tuple is only created for an empty slot.
+     *
+     * @param tuples The array to fill
+     * @return The number of stored key/values, lower than the array size when the end of
+     * the B-tree has been reached
+     * @throws IOException
+     * @throws EndOfFileExceededException
+     */
+    public int nextBatch( Tuple<K, V>[] tuples ) throws EndOfFileExceededException, IOException
+    {
+        int nbTuples = 0;
+
+        while ( ( nbTuples < tuples.length ) && hasNext() )
+        {
+            if ( tuples[nbTuples] == null )
+            {
+                tuples[nbTuples] = new Tuple<K, V>();
+            }
+
+            next( tuples[nbTuples] );
+            nbTuples++;
+        }
+
+        return nbTuples;
+    }
+
+
+    /**
+     * @return the key of the last element the cursor has moved to with next() or prev()
+     */
+    public K currentKey()
+    {
+        return currentKey;
+    }
+
+
+    /**
+     * @return the value of the last element the cursor has moved to with next() or prev()
+     */
+    public V currentValue()
+    {
+        return currentValue;
+    }
+
+
+    /**
+     * Moves to the next key/value, and stores them as the current element
+     *
+     * @throws IOException
+     * @throws EndOfFileExceededException
+     */
+    private void moveToNext() throws EndOfFileExceededException, IOException
     {
         // First check that we have elements in the BTree
         if ( ( stack == null ) || ( stack.length == 0 ) )
@@ -326,9 +413,7 @@ public class TupleCursor<K, V>
 
             try
             {
-                ValueHolder<V> valueHolder = ( ( AbstractPage<K, V> ) parentPos.page ).getValue( parentPos.pos );
-
-                parentPos.valueCursor = valueHolder.getCursor();
+                setValueCursor( parentPos );
 
                 value = parentPos.valueCursor.next();
             }
@@ -339,9 +424,8 @@ public class TupleCursor<K, V>
         }
 
         AbstractPage<K, V> leaf = ( AbstractPage<K, V> ) ( parentPos.page );
-        Tuple<K, V> tuple = new Tuple<K, V>( leaf.getKey( parentPos.pos ), value );
-
-        return tuple;
+        currentKey = leaf.getKey( parentPos.pos );
+        currentValue = value;
     }
 
 
@@ -537,6 +621,40 @@ public class TupleCursor<K, V>
      * @throws EndOfFileExceededException
      */
     public Tuple<K, V> prev() throws EndOfFileExceededException, IOException
+    {
+        moveToPrev();
+
+        return new Tuple<K, V>( currentKey, currentValue );
+    }
+
+
+    /**
+     * Find the previous key/value, and store them in a Tuple provided by the caller, so
+     * that a scan doesn't create a Tuple for each element.
+     *
+     * @param tuple The Tuple to fill
+     * @return The given Tuple, containing the found key and value
+     * @throws IOException
+     * @throws EndOfFileExceededException
+     */
+    public Tuple<K, V> prev( Tuple<K, V> tuple ) throws EndOfFileExceededException, IOException
+    {
+        moveToPrev();
+
+        tuple.setKey( currentKey );
+        tuple.setValue( currentValue );
+
+        return tuple;
+    }
+
+
+    /**
+     * Moves to the previous key/value, and stores them as the current element
+     *
+     * @throws IOException
+     * @throws EndOfFileExceededException
+     */
+    private void moveToPrev() throws EndOfFileExceededException, IOException
     {
         // First check that we have elements in the BTree
         if ( ( stack == null ) || ( stack.length == 0 ) )
@@ -597,9 +715,7 @@ public class TupleCursor<K, V>
 
                 try
                 {
-                    ValueHolder<V> valueHolder = ( ( AbstractPage<K, V> ) parentPos.page ).getValue( parentPos.pos );
-
-                    parentPos.valueCursor = valueHolder.getCursor();
+                    setValueCursor( parentPos );
                     parentPos.valueCursor.afterLast();
 
                     value = parentPos.valueCursor.prev();
@@ -612,9 +728,8 @@ public class TupleCursor<K, V>
         }
 
         AbstractPage<K, V> leaf = ( AbstractPage<K, V> ) ( parentPos.page );
-        Tuple<K, V> tuple = new Tuple<K, V>( leaf.getKey( parentPos.pos ), value );
-
-        return tuple;
+        currentKey = leaf.getKey( parentPos.pos );
+        currentValue = value;
     }
 
 
@@ -736,6 +851,76 @@ public class TupleCursor<K, V>
     }
 
 
+    /**
+     * Moves the cursor so that the next call to next() returns the first tuple which key
+     * is equal or above the given key, and a call to prev() returns the tuple before it.
+     * The B-tree is browsed again from the root page, in the revision this cursor is
+     * reading, so it costs a single descent whatever the distance to the key.
+     *
+     * @param key The key to move to
+     * @throws IOException If we had an issue while reading the B-tree from disk
+     */
+    public void seek( K key ) throws IOException
+    {
+        // First check that we have elements in the BTree
+        if ( ( stack == null ) || ( stack.length == 0 ) || ( stack[0].page == null ) )
+        {
+            return;
+        }
+
+        Page<K, V> page = stack[0].page;
+        int level = 0;
+
+        while ( page.isNode() )
+        {
+            int pos = ( ( AbstractPage<K, V> ) page ).findPos( key );
+
+            if ( pos < 0 )
+            {
+                // The key is the first one of the right child
+                pos = -pos;
+            }
+
+            stack[level++] = new ParentPos<K, V>( page, pos );
+            page = ( ( AbstractPage<K, V> ) page ).getPage( pos );
+        }
+
+        AbstractPage<K, V> leaf = ( AbstractPage<K, V> ) page;
+
+        if ( leaf.getNbElems() == 0 )
+        {
+            return;
+        }
+
+        int pos = leaf.findPos( key );
+
+        if ( pos < 0 )
+        {
+            pos = -( pos + 1 );
+        }
+
+        ParentPos<K, V> parentPos;
+
+        if ( pos < leaf.getNbElems() )
+        {
+            // Before the first value of the found key
+            parentPos = new ParentPos<K, V>( leaf, pos );
+            parentPos.valueCursor = leaf.getValue( pos ).getCursor();
+        }
+        else
+        {
+            // The key is above the last key of this leaf : we stand after the last
+            // value of the leaf, so that a next() moves to the next leaf
+            parentPos = new ParentPos<K, V>( leaf, pos - 1 );
+            parentPos.valueCursor = leaf.getValue( pos - 1 ).getCursor();
+            parentPos.valueCursor.afterLast();
+        }
+
+        stack[level] = parentPos;
+        depth = level;
+    }
+
+
     /**
      * Tells if there is a next ParentPos
      *
@@ -836,7 +1021,10 @@ public class TupleCursor<K, V>
                 parentPos = stack[depth];
                 parentPos.page = child;
                 parentPos.pos = 0;
-                parentPos.valueCursor = ( ( AbstractPage<K, V> ) child ).getValue( 0 ).getCursor();
+                setValueCursor( parentPos );
+
+                // Read the next leaves ahead, while this one is being consumed
+                prefetch( stack[depth - 1], true );
 
                 return parentPos;
             }
@@ -896,10 +1084,12 @@ public class TupleCursor<K, V>
                 parentPos = stack[depth];
                 parentPos.pos = child.getNbElems() - 1;
                 parentPos.page = child;
-                ValueHolder<V> valueHolder = ( ( AbstractPage<K, V> ) parentPos.page ).getValue( parentPos.pos );
-                parentPos.valueCursor = valueHolder.getCursor();
+                setValueCursor( parentPos );
                 parentPos.valueCursor.afterLast();
 
+                // Read the previous leaves ahead, while this one is being consumed
+                prefetch( stack[depth - 1], false );
+
                 return parentPos;
             }
         }
@@ -908,6 +1098,24 @@ public class TupleCursor<K, V>
     }
 
 
+    /**
+     * Asks the B-tree to load in its cache the leaves next to the one we just moved to, if
+     * it's a persisted B-tree configured to read pages ahead.
+     *
+     * @param parentPos The position in the node containing the current leaf
+     * @param forward Tells if we load the leaves on the right or on the left
+     */
+    private void prefetch( ParentPos<K, V> parentPos, boolean forward )
+    {
+        BTree<K, V> btree = ( ( AbstractPage<K, V> ) parentPos.page ).getBtree();
+
+        if ( btree instanceof PersistedBTree )
+        {
+            ( ( PersistedBTree<K, V> ) btree ).prefetch( parentPos.page, parentPos.pos, forward, transaction );
+        }
+    }
+
+
     /**
      * Tells if there is a prev ParentPos
      *
@@ -958,6 +1166,27 @@ public class TupleCursor<K, V>
     }
 
 
+    /**
+     * Sets the cursor on the values of the current element of a leaf, reusing the cursor
+     * on the values of the previous element when possible
+     *
+     * @param parentPos The leaf and the position of its current element
+     */
+    private void setValueCursor( ParentPos<K, V> parentPos )
+    {
+        ValueHolder<V> valueHolder = ( ( AbstractPage<K, V> ) parentPos.page ).getValue( parentPos.pos );
+
+        if ( valueHolder instanceof AbstractValueHolder )
+        {
+            parentPos.valueCursor = ( ( AbstractValueHolder<V> ) valueHolder ).getCursor( parentPos.valueCursor );
+        }
+        else
+        {
+            parentPos.valueCursor = valueHolder.getCursor();
+        }
+    }
+
+
     /**
      * {@inheritDoc}
      */
@@ -0,0 +1,196 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.mavibot.btree;
+
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Set;
+import java.util.TreeSet;
+
+
+/**
+ * Reads the tuples of a run file written by a {@link TupleRunWriter}. The file is read
+ * by large blocks.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+/* no qualifier */class TupleRunReader<K, V>
+{
+    /** The B-tree providing the serializers */
+    private BTree<K, V> btree;
+
+    /** The channel we read from */
+    private FileChannel channel;
+
+    /** The buffer containing the data read from the file, ready to be consumed */
+    private ByteBuffer buffer = ByteBuffer.allocate( TupleRunWriter.DEFAULT_BUFFER_SIZE );
+
+
+    /**
+     * Creates a new TupleRunReader
+     *
+     * @param btree The B-tree providing the serializers
+     * @param file The file to read
+     * @throws IOException If the file can't be opened
+     */
+    /* no qualifier */TupleRunReader( BTree<K, V> btree, File file ) throws IOException
+    {
+        this.btree = btree;
+        channel = FileChannel.open( file.toPath(), StandardOpenOption.READ );
+        buffer.flip();
+    }
+
+
+    /**
+     * Reads the next tuple.
+     *
+     * @return The next tuple, or null if the end of the file has been reached
+     * @throws IOException If the read failed
+     */
+    /* no qualifier */Tuple<K, Set<V>> read() throws IOException
+    {
+        if ( !fill( 1 ) )
+        {
+            return null;
+        }
+
+        K key = btree.getKeySerializer().fromBytes( readBytes() );
+        int nbValues = readVarInt();
+        Set<V> values = new TreeSet<V>( btree.getValueComparator() );
+
+        for ( int i = 0; i < nbValues; i++ )
+        {
+            values.add( btree.getValueSerializer().fromBytes( readBytes() ) );
+        }
+
+        return new Tuple<K, Set<V>>( key, values );
+    }
+
+
+    /**
+     * Closes the file.
+     *
+     * @throws IOException If the file can't be closed
+     */
+    /* no qualifier */void close() throws IOException
+    {
+        channel.close();
+    }
+
+
+    /**
+     * Reads a length prefixed byte array
+     */
+    private byte[] readBytes() throws IOException
+    {
+        int length = readVarInt();
+        byte[] bytes = new byte[length];
+
+        if ( length > buffer.capacity() )
+        {
+            // Too big for the buffer : read it directly
+            int nbRead = buffer.remaining();
+            buffer.get( bytes, 0, nbRead );
+            ByteBuffer data = ByteBuffer.wrap( bytes, nbRead, length - nbRead );
+
+            while ( data.hasRemaining() )
+            {
+                if ( channel.read( data ) < 0 )
+                {
+                    throw new EOFException();
+                }
+            }
+
+            return bytes;
+        }
+
+        if ( !fill( length ) )
+        {
+            throw new EOFException();
+        }
+
+        buffer.get( bytes );
+
+        return bytes;
+    }
+
+
+    /**
+     * Reads a varint
+     */
+    private int readVarInt() throws IOException
+    {
+        int value = 0;
+        int shift = 0;
+
+        while ( true )
+        {
+            if ( !fill( 1 ) )
+            {
+                throw new EOFException();
+            }
+
+            byte b = buffer.get();
+            value |= ( b & 0x7F ) << shift;
+
+            if ( ( b & 0x80 ) == 0 )
+            {
+                return value;
+            }
+
+            shift += 7;
+        }
+    }
+
+
+    /**
+     * Makes sure that the buffer contains at least the given number of bytes.
+     *
+     * @return false if the end of the file has been reached before
+     */
+    private boolean fill( int nbBytes ) throws IOException
+    {
+        if ( buffer.remaining() >= nbBytes )
+        {
+            return true;
+        }
+
+        buffer.compact();
+
+        while ( buffer.position() < nbBytes )
+        {
+            if ( channel.read( buffer ) < 0 )
+            {
+                buffer.flip();
+
+                return false;
+            }
+        }
+
+        buffer.flip();
+
+        return true;
+    }
+}
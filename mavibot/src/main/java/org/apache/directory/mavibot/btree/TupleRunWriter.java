@@ -0,0 +1,186 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.mavibot.btree;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Set;
+
+
+/**
+ * Writes sorted tuples into a run file used by the BulkLoader. The tuples are gathered
+ * in a buffer, which is written with a single call when it's full. Each tuple is stored as :
+ * <pre>
+ * [key length][key][nb values]([value length][value])*
+ * </pre>
+ * where the lengths and the number of values are varints.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+/* no qualifier */class TupleRunWriter<K, V>
+{
+    /** The default size of the buffer, in bytes */
+    /* no qualifier */static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    /** The B-tree providing the serializers */
+    private BTree<K, V> btree;
+
+    /** The channel we write into */
+    private FileChannel channel;
+
+    /** The buffer gathering the serialized tuples */
+    private ByteBuffer buffer = ByteBuffer.allocate( DEFAULT_BUFFER_SIZE );
+
+    /** The number of written tuples */
+    private int nbTuples;
+
+
+    /**
+     * Creates a new TupleRunWriter. The file is truncated.
+     *
+     * @param btree The B-tree providing the serializers
+     * @param file The file to write
+     * @throws IOException If the file can't be opened
+     */
+    /* no qualifier */TupleRunWriter( BTree<K, V> btree, File file ) throws IOException
+    {
+        this.btree = btree;
+        channel = FileChannel.open( file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING );
+    }
+
+
+    /**
+     * Writes a tuple and all its values.
+     *
+     * @param tuple The tuple to write
+     * @throws IOException If the write failed
+     */
+    /* no qualifier */void write( Tuple<K, Set<V>> tuple ) throws IOException
+    {
+        writeBytes( btree.getKeySerializer().serialize( tuple.getKey() ) );
+
+        Set<V> values = tuple.getValue();
+        writeVarInt( values.size() );
+
+        for ( V value : values )
+        {
+            writeBytes( btree.getValueSerializer().serialize( value ) );
+        }
+
+        nbTuples++;
+    }
+
+
+    /**
+     * @return The number of written tuples
+     */
+    /* no qualifier */int getNbTuples()
+    {
+        return nbTuples;
+    }
+
+
+    /**
+     * Writes the pending data and closes the file.
+     *
+     * @throws IOException If the write failed
+     */
+    /* no qualifier */void close() throws IOException
+    {
+        try
+        {
+            flush();
+        }
+        finally
+        {
+            channel.close();
+        }
+    }
+
+
+    /**
+     * Writes a length prefixed byte array
+     */
+    private void writeBytes( byte[] bytes ) throws IOException
+    {
+        writeVarInt( bytes.length );
+
+        if ( buffer.remaining() < bytes.length )
+        {
+            flush();
+
+            if ( bytes.length > buffer.capacity() )
+            {
+                // Too big for the buffer : write it directly
+                ByteBuffer data = ByteBuffer.wrap( bytes );
+
+                while ( data.hasRemaining() )
+                {
+                    channel.write( data );
+                }
+
+                return;
+            }
+        }
+
+        buffer.put( bytes );
+    }
+
+
+    /**
+     * Writes an int as a varint, 7 bits per byte
+     */
+    private void writeVarInt( int value ) throws IOException
+    {
+        if ( buffer.remaining() < 5 )
+        {
+            flush();
+        }
+
+        while ( ( value & ~0x7F ) != 0 )
+        {
+            buffer.put( ( byte ) ( ( value & 0x7F ) | 0x80 ) );
+            value >>>= 7;
+        }
+
+        buffer.put( ( byte ) value );
+    }
+
+
+    /**
+     * Writes the buffer content into the file
+     */
+    private void flush() throws IOException
+    {
+        buffer.flip();
+
+        while ( buffer.hasRemaining() )
+        {
+            channel.write( buffer );
+        }
+
+        buffer.clear();
+    }
+}
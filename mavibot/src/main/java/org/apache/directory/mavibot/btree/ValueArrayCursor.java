@@ -21,6 +21,7 @@ package org.apache.directory.mavibot.btree;
 
 
 import java.io.IOException;
+import java.util.Comparator;
 
 import org.apache.directory.mavibot.btree.exception.EndOfFileExceededException;
 
@@ -38,15 +39,31 @@ import org.apache.directory.mavibot.btree.exception.EndOfFileExceededException;
     /** The array storing values (1 to N) */
     private V[] valueArray;
 
+    /** The comparator used to seek a value */
+    private Comparator<V> comparator;
+
 
     /**
      * Create an instance
      */
-    public ValueArrayCursor( V[] valueArray )
+    public ValueArrayCursor( V[] valueArray, Comparator<V> comparator )
     {
         // Start at -1 to be positioned before the first element
         currentPos = BEFORE_FIRST;
         this.valueArray = valueArray;
+        this.comparator = comparator;
+    }
+
+
+    /**
+     * Moves this cursor onto another array of values, positioned before its first element.
+     *
+     * @param valueArray The new array of values
+     */
+    /* no qualifier */void reset( V[] valueArray )
+    {
+        currentPos = BEFORE_FIRST;
+        this.valueArray = valueArray;
     }
 
 
@@ -163,6 +180,35 @@ import org.apache.directory.mavibot.btree.exception.EndOfFileExceededException;
     }
 
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void seek( V value ) throws IOException
+    {
+        // Find the first value which is equal or above the given one
+        int low = 0;
+        int high = valueArray.length;
+
+        while ( low < high )
+        {
+            int middle = ( low + high ) >>> 1;
+
+            if ( comparator.compare( valueArray[middle], value ) < 0 )
+            {
+                low = middle + 1;
+            }
+            else
+            {
+                high = middle;
+            }
+        }
+
+        // Stand right before it. If it's the first one, we are before the first element
+        currentPos = low - 1;
+    }
+
+
     /**
      * {@inheritDoc}
      */
@@ -213,6 +213,19 @@ import org.apache.directory.mavibot.btree.BTree;
     }
 
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void seek( V value ) throws IOException
+    {
+        if ( cursor != null )
+        {
+            cursor.seek( value );
+        }
+    }
+
+
     /**
      * {@inheritDoc}
      */
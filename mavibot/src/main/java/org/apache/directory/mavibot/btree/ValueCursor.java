@@ -57,6 +57,18 @@ public interface ValueCursor<V> extends Cursor<V>
     V prev() throws EndOfFileExceededException, IOException;
 
 
+    /**
+     * Moves the cursor so that the next call to next() returns the first value which is
+     * equal or above the given value, using the values comparator. It's done with a binary
+     * search when the values are stored in an array, and with a single descent when they
+     * are stored in a sub-btree.
+     *
+     * @param value The value to move to
+     * @throws IOException If we had an issue while reading the values from disk
+     */
+    void seek( V value ) throws IOException;
+
+
     /**
      * @return The number of elements stored in the cursor
      */
@@ -0,0 +1,525 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.mavibot.btree;
+
+
+import java.io.IOException;
+import java.util.Comparator;
+import java.util.NoSuchElementException;
+
+import org.apache.directory.mavibot.btree.exception.BTreeOperationException;
+import org.apache.directory.mavibot.btree.exception.EndOfFileExceededException;
+
+
+/**
+ * A cursor returning the values present in all the given value cursors, in ascending
+ * order. This is typically used to evaluate an AND filter, each cursor being the values
+ * of a key in an index with duplicate values :
+ *
+ * <pre>
+ * ValueCursor&lt;Long&gt; cursor = new ValueIntersectionCursor&lt;Long&gt;( LongComparator.INSTANCE,
+ *     index1.getValues( key1 ), index2.getValues( key2 ) );
+ * </pre>
+ *
+ * The cursors are walked in turn : each of them is moved with a seek() to the current
+ * candidate, so a cursor never browses the values which are below the values of the other
+ * cursors. The cost depends on the smallest set, not on the largest one.
+ * <p>
+ * The cursor can also be browsed backward. As the underlying cursors can only seek forward,
+ * they are then moved from their last value with prev() until they reach the candidate, so
+ * a backward browsing costs the size of all the sets. Changing the direction repositions
+ * all the underlying cursors. The size() method counts the values with a full browsing.
+ * <p>
+ * Closing this cursor closes the underlying cursors.
+ *
+ * @param <V> The type for the stored values
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class ValueIntersectionCursor<V> implements ValueCursor<V>
+{
+    /** The cursor is on the current value */
+    private static final int ON_VALUE = 0;
+
+    /** The cursor has been moved before the current value by a seek() */
+    private static final int SEEKED = 1;
+
+    /** The underlying cursors have to be repositioned before being browsed */
+    private static final int NONE = 0;
+
+    /** The underlying cursors are positioned to be browsed forward */
+    private static final int FORWARD = 1;
+
+    /** The underlying cursors are positioned to be browsed backward */
+    private static final int BACKWARD = 2;
+
+    /** The intersected cursors */
+    private ValueCursor<V>[] cursors;
+
+    /** The values comparator */
+    private Comparator<V> comparator;
+
+    /** The cursor position : BEFORE_FIRST, AFTER_LAST, ON_VALUE or SEEKED */
+    private int position = BEFORE_FIRST;
+
+    /** The last returned value, or the seeked value */
+    private V current;
+
+    /** The direction the underlying cursors are positioned for */
+    private int direction = NONE;
+
+    /** The next value to return */
+    private V nextValue;
+
+    /** Tells if the next value has been searched for */
+    private boolean isFetched;
+
+    /** Tells if there is a next value */
+    private boolean hasNextValue;
+
+    /** The previous value to return */
+    private V prevValue;
+
+    /** Tells if the previous value has been searched for */
+    private boolean isPrevFetched;
+
+    /** Tells if there is a previous value */
+    private boolean hasPrevValue;
+
+    /** The value each cursor stands on when browsing backward */
+    private V[] tails;
+
+    /** Tells if each cursor has been browsed backward to its first value */
+    private boolean[] isExhausted;
+
+
+    /**
+     * Creates a new instance of ValueIntersectionCursor
+     *
+     * @param comparator The comparator the values of all the cursors are sorted with
+     * @param cursors The cursors to intersect
+     */
+    @SuppressWarnings("unchecked")
+    public ValueIntersectionCursor( Comparator<V> comparator, ValueCursor<V>... cursors )
+    {
+        if ( ( cursors == null ) || ( cursors.length == 0 ) )
+        {
+            throw new IllegalArgumentException( "At least one cursor is needed" );
+        }
+
+        this.comparator = comparator;
+        this.cursors = cursors;
+        tails = ( V[] ) new Object[cursors.length];
+        isExhausted = new boolean[cursors.length];
+    }
+
+
+    /**
+     * Finds the next value present in all the cursors
+     */
+    private void fetch() throws IOException
+    {
+        isFetched = true;
+        hasNextValue = false;
+        nextValue = null;
+
+        if ( !cursors[0].hasNext() )
+        {
+            return;
+        }
+
+        V candidate = cursors[0].next();
+        int nbMatches = 1;
+        int pos = 1;
+
+        while ( nbMatches < cursors.length )
+        {
+            ValueCursor<V> cursor = cursors[pos];
+            cursor.seek( candidate );
+
+            if ( !cursor.hasNext() )
+            {
+                // One of the cursors is exhausted : we are done
+                return;
+            }
+
+            V value = cursor.next();
+
+            if ( comparator.compare( value, candidate ) == 0 )
+            {
+                nbMatches++;
+            }
+            else
+            {
+                // The value is above the candidate, it's the new candidate
+                candidate = value;
+                nbMatches = 1;
+            }
+
+            pos = ( pos + 1 ) % cursors.length;
+        }
+
+        nextValue = candidate;
+        hasNextValue = true;
+    }
+
+
+    /**
+     * Finds the previous value present in all the cursors. This is the symmetric of fetch(),
+     * the backward moves being done with prev() instead of seek().
+     */
+    private void fetchPrev() throws IOException
+    {
+        isPrevFetched = true;
+        hasPrevValue = false;
+        prevValue = null;
+
+        V bound = ( position == ON_VALUE ) || ( position == SEEKED ) ? current : null;
+        V candidate = retreat( 0, bound, true );
+
+        if ( candidate == null )
+        {
+            return;
+        }
+
+        int nbMatches = 1;
+        int pos = 1 % cursors.length;
+
+        while ( nbMatches < cursors.length )
+        {
+            V value = retreat( pos, candidate, false );
+
+            if ( value == null )
+            {
+                // One of the cursors is exhausted : we are done
+                return;
+            }
+
+            if ( comparator.compare( value, candidate ) == 0 )
+            {
+                nbMatches++;
+            }
+            else
+            {
+                // The value is below the candidate, it's the new candidate
+                candidate = value;
+                nbMatches = 1;
+            }
+
+            pos = ( pos + 1 ) % cursors.length;
+        }
+
+        prevValue = candidate;
+        hasPrevValue = true;
+    }
+
+
+    /**
+     * Moves a cursor backward until it stands on a value below the given bound
+     *
+     * @param pos The cursor position in the cursors array
+     * @param bound The bound, or null if the last value is wanted
+     * @param strict Tells if the value must be strictly below the bound
+     * @return The value the cursor stands on, or null if there is none below the bound
+     */
+    private V retreat( int pos, V bound, boolean strict ) throws IOException
+    {
+        V value = tails[pos];
+
+        while ( ( value == null ) || ( ( bound != null ) && isAbove( value, bound, strict ) ) )
+        {
+            if ( isExhausted[pos] || !cursors[pos].hasPrev() )
+            {
+                isExhausted[pos] = true;
+                tails[pos] = null;
+
+                return null;
+            }
+
+            value = cursors[pos].prev();
+            tails[pos] = value;
+
+            if ( value == null )
+            {
+                isExhausted[pos] = true;
+
+                return null;
+            }
+        }
+
+        return value;
+    }
+
+
+    /**
+     * Tells if a value is above a bound, or equal to it if the comparison is strict
+     */
+    private boolean isAbove( V value, V bound, boolean strict )
+    {
+        int comparison = comparator.compare( value, bound );
+
+        return ( comparison > 0 ) || ( strict && ( comparison == 0 ) );
+    }
+
+
+    /**
+     * Positions the underlying cursors to be browsed forward, from the current position
+     */
+    private void forward() throws IOException
+    {
+        if ( direction == FORWARD )
+        {
+            return;
+        }
+
+        direction = FORWARD;
+
+        switch ( position )
+        {
+            case BEFORE_FIRST:
+                for ( ValueCursor<V> cursor : cursors )
+                {
+                    cursor.beforeFirst();
+                }
+
+                isFetched = false;
+                break;
+
+            case AFTER_LAST:
+                isFetched = true;
+                hasNextValue = false;
+                nextValue = null;
+                break;
+
+            default:
+                for ( ValueCursor<V> cursor : cursors )
+                {
+                    cursor.seek( current );
+                }
+
+                isFetched = false;
+
+                if ( position == ON_VALUE )
+                {
+                    // The current value has already been returned : skip it
+                    fetch();
+
+                    if ( hasNextValue && ( comparator.compare( nextValue, current ) == 0 ) )
+                    {
+                        fetch();
+                    }
+                }
+
+                break;
+        }
+    }
+
+
+    /**
+     * Positions the underlying cursors to be browsed backward, from the current position
+     */
+    private void backward() throws IOException
+    {
+        if ( direction == BACKWARD )
+        {
+            return;
+        }
+
+        direction = BACKWARD;
+
+        for ( int i = 0; i < cursors.length; i++ )
+        {
+            cursors[i].afterLast();
+            tails[i] = null;
+            isExhausted[i] = false;
+        }
+
+        if ( position == BEFORE_FIRST )
+        {
+            isPrevFetched = true;
+            hasPrevValue = false;
+            prevValue = null;
+        }
+        else
+        {
+            isPrevFetched = false;
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean hasNext() throws EndOfFileExceededException, IOException
+    {
+        forward();
+
+        if ( !isFetched )
+        {
+            fetch();
+        }
+
+        return hasNextValue;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public V next() throws EndOfFileExceededException, IOException
+    {
+        if ( !hasNext() )
+        {
+            throw new NoSuchElementException( "No more values present" );
+        }
+
+        isFetched = false;
+        position = ON_VALUE;
+        current = nextValue;
+
+        return nextValue;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void seek( V value ) throws IOException
+    {
+        for ( ValueCursor<V> cursor : cursors )
+        {
+            cursor.seek( value );
+        }
+
+        position = SEEKED;
+        current = value;
+        direction = FORWARD;
+        isFetched = false;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean hasPrev() throws EndOfFileExceededException, IOException
+    {
+        backward();
+
+        if ( !isPrevFetched )
+        {
+            fetchPrev();
+        }
+
+        return hasPrevValue;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public V prev() throws EndOfFileExceededException, IOException
+    {
+        if ( !hasPrev() )
+        {
+            throw new NoSuchElementException( "No more values present" );
+        }
+
+        isPrevFetched = false;
+        position = ON_VALUE;
+        current = prevValue;
+
+        return prevValue;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void beforeFirst() throws IOException
+    {
+        position = BEFORE_FIRST;
+        current = null;
+        direction = NONE;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void afterLast() throws IOException
+    {
+        position = AFTER_LAST;
+        current = null;
+        direction = NONE;
+    }
+
+
+    /**
+     * Counts the values by browsing them all, then moves the cursor back to its position
+     */
+    @Override
+    public int size()
+    {
+        int savedPosition = position;
+        V savedCurrent = current;
+        int size = 0;
+
+        try
+        {
+            beforeFirst();
+
+            while ( hasNext() )
+            {
+                next();
+                size++;
+            }
+        }
+        catch ( IOException ioe )
+        {
+            throw new BTreeOperationException( ioe );
+        }
+
+        position = savedPosition;
+        current = savedCurrent;
+        direction = NONE;
+
+        return size;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close()
+    {
+        for ( ValueCursor<V> cursor : cursors )
+        {
+            cursor.close();
+        }
+    }
+}
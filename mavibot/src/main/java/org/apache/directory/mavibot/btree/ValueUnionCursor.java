@@ -0,0 +1,477 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.mavibot.btree;
+
+
+import java.io.IOException;
+import java.util.Comparator;
+import java.util.NoSuchElementException;
+
+import org.apache.directory.mavibot.btree.exception.BTreeOperationException;
+import org.apache.directory.mavibot.btree.exception.EndOfFileExceededException;
+
+
+/**
+ * A cursor returning the values present in any of the given value cursors, in ascending
+ * order and without duplicates. This is typically used to evaluate an OR filter, each
+ * cursor being the values of a key in an index with duplicate values. Seeking this cursor
+ * seeks all the underlying cursors, so it can be intersected with other cursors in a
+ * {@link ValueIntersectionCursor}.
+ * <p>
+ * The cursor can also be browsed backward, in which case the highest value of the
+ * underlying cursors is returned first. Changing the direction repositions all the
+ * underlying cursors. The size() method counts the values with a full browsing.
+ * <p>
+ * Closing this cursor closes the underlying cursors.
+ *
+ * @param <V> The type for the stored values
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class ValueUnionCursor<V> implements ValueCursor<V>
+{
+    /** The cursor is on the current value */
+    private static final int ON_VALUE = 0;
+
+    /** The cursor has been moved before the current value by a seek() */
+    private static final int SEEKED = 1;
+
+    /** The underlying cursors have to be repositioned before being browsed */
+    private static final int NONE = 0;
+
+    /** The underlying cursors are positioned to be browsed forward */
+    private static final int FORWARD = 1;
+
+    /** The underlying cursors are positioned to be browsed backward */
+    private static final int BACKWARD = 2;
+
+    /** The merged cursors */
+    private ValueCursor<V>[] cursors;
+
+    /** The values comparator */
+    private Comparator<V> comparator;
+
+    /** The cursor position : BEFORE_FIRST, AFTER_LAST, ON_VALUE or SEEKED */
+    private int position = BEFORE_FIRST;
+
+    /** The last returned value, or the seeked value */
+    private V current;
+
+    /** The direction the underlying cursors are positioned for */
+    private int direction = NONE;
+
+    /** The next value of each cursor, read ahead */
+    private V[] heads;
+
+    /** Tells if each cursor has a value read ahead */
+    private boolean[] hasHead;
+
+    /** Tells if the heads have to be read */
+    private boolean isLoaded;
+
+    /** The previous value of each cursor, read ahead when browsing backward */
+    private V[] tails;
+
+    /** Tells if each cursor has a previous value read ahead */
+    private boolean[] hasTail;
+
+
+    /**
+     * Creates a new instance of ValueUnionCursor
+     *
+     * @param comparator The comparator the values of all the cursors are sorted with
+     * @param cursors The cursors to merge
+     */
+    @SuppressWarnings("unchecked")
+    public ValueUnionCursor( Comparator<V> comparator, ValueCursor<V>... cursors )
+    {
+        if ( ( cursors == null ) || ( cursors.length == 0 ) )
+        {
+            throw new IllegalArgumentException( "At least one cursor is needed" );
+        }
+
+        this.comparator = comparator;
+        this.cursors = cursors;
+        heads = ( V[] ) new Object[cursors.length];
+        hasHead = new boolean[cursors.length];
+        tails = ( V[] ) new Object[cursors.length];
+        hasTail = new boolean[cursors.length];
+    }
+
+
+    /**
+     * Reads the next value of each cursor
+     */
+    private void load() throws IOException
+    {
+        for ( int i = 0; i < cursors.length; i++ )
+        {
+            advance( i );
+        }
+
+        isLoaded = true;
+    }
+
+
+    /**
+     * Reads the next value of a cursor
+     */
+    private void advance( int pos ) throws IOException
+    {
+        if ( cursors[pos].hasNext() )
+        {
+            heads[pos] = cursors[pos].next();
+            hasHead[pos] = true;
+        }
+        else
+        {
+            heads[pos] = null;
+            hasHead[pos] = false;
+        }
+    }
+
+
+    /**
+     * Reads the previous value of a cursor
+     */
+    private void retreat( int pos ) throws IOException
+    {
+        if ( cursors[pos].hasPrev() )
+        {
+            tails[pos] = cursors[pos].prev();
+            hasTail[pos] = tails[pos] != null;
+        }
+        else
+        {
+            tails[pos] = null;
+            hasTail[pos] = false;
+        }
+    }
+
+
+    /**
+     * @return The position of the cursor having the lowest value, or -1 if they are all exhausted
+     */
+    private int findLowest()
+    {
+        int lowest = -1;
+
+        for ( int i = 0; i < cursors.length; i++ )
+        {
+            if ( hasHead[i] && ( ( lowest == -1 ) || ( comparator.compare( heads[i], heads[lowest] ) < 0 ) ) )
+            {
+                lowest = i;
+            }
+        }
+
+        return lowest;
+    }
+
+
+    /**
+     * @return The position of the cursor having the highest previous value, or -1 if they are all exhausted
+     */
+    private int findHighest()
+    {
+        int highest = -1;
+
+        for ( int i = 0; i < cursors.length; i++ )
+        {
+            if ( hasTail[i] && ( ( highest == -1 ) || ( comparator.compare( tails[i], tails[highest] ) > 0 ) ) )
+            {
+                highest = i;
+            }
+        }
+
+        return highest;
+    }
+
+
+    /**
+     * Positions the underlying cursors to be browsed forward, from the current position
+     */
+    private void forward() throws IOException
+    {
+        if ( direction == FORWARD )
+        {
+            return;
+        }
+
+        direction = FORWARD;
+
+        switch ( position )
+        {
+            case BEFORE_FIRST:
+                for ( ValueCursor<V> cursor : cursors )
+                {
+                    cursor.beforeFirst();
+                }
+
+                isLoaded = false;
+                break;
+
+            case AFTER_LAST:
+                for ( int i = 0; i < cursors.length; i++ )
+                {
+                    heads[i] = null;
+                    hasHead[i] = false;
+                }
+
+                isLoaded = true;
+                break;
+
+            default:
+                for ( ValueCursor<V> cursor : cursors )
+                {
+                    cursor.seek( current );
+                }
+
+                isLoaded = false;
+
+                if ( position == ON_VALUE )
+                {
+                    // The current value has already been returned : skip it
+                    load();
+
+                    for ( int i = 0; i < cursors.length; i++ )
+                    {
+                        if ( hasHead[i] && ( comparator.compare( heads[i], current ) == 0 ) )
+                        {
+                            advance( i );
+                        }
+                    }
+                }
+
+                break;
+        }
+    }
+
+
+    /**
+     * Positions the underlying cursors to be browsed backward, from the current position
+     */
+    private void backward() throws IOException
+    {
+        if ( direction == BACKWARD )
+        {
+            return;
+        }
+
+        direction = BACKWARD;
+
+        for ( int i = 0; i < cursors.length; i++ )
+        {
+            tails[i] = null;
+            hasTail[i] = false;
+
+            if ( position == BEFORE_FIRST )
+            {
+                continue;
+            }
+
+            cursors[i].afterLast();
+            retreat( i );
+
+            if ( position != AFTER_LAST )
+            {
+                // Skip the values which are not below the current value
+                while ( hasTail[i] && ( comparator.compare( tails[i], current ) >= 0 ) )
+                {
+                    retreat( i );
+                }
+            }
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean hasNext() throws EndOfFileExceededException, IOException
+    {
+        forward();
+
+        if ( !isLoaded )
+        {
+            load();
+        }
+
+        return findLowest() != -1;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public V next() throws EndOfFileExceededException, IOException
+    {
+        if ( !hasNext() )
+        {
+            throw new NoSuchElementException( "No more values present" );
+        }
+
+        V value = heads[findLowest()];
+
+        // Move all the cursors standing on this value
+        for ( int i = 0; i < cursors.length; i++ )
+        {
+            if ( hasHead[i] && ( comparator.compare( heads[i], value ) == 0 ) )
+            {
+                advance( i );
+            }
+        }
+
+        position = ON_VALUE;
+        current = value;
+
+        return value;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void seek( V value ) throws IOException
+    {
+        for ( ValueCursor<V> cursor : cursors )
+        {
+            cursor.seek( value );
+        }
+
+        position = SEEKED;
+        current = value;
+        direction = FORWARD;
+        isLoaded = false;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean hasPrev() throws EndOfFileExceededException, IOException
+    {
+        backward();
+
+        return findHighest() != -1;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public V prev() throws EndOfFileExceededException, IOException
+    {
+        if ( !hasPrev() )
+        {
+            throw new NoSuchElementException( "No more values present" );
+        }
+
+        V value = tails[findHighest()];
+
+        // Move all the cursors standing on this value
+        for ( int i = 0; i < cursors.length; i++ )
+        {
+            if ( hasTail[i] && ( comparator.compare( tails[i], value ) == 0 ) )
+            {
+                retreat( i );
+            }
+        }
+
+        position = ON_VALUE;
+        current = value;
+
+        return value;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void beforeFirst() throws IOException
+    {
+        position = BEFORE_FIRST;
+        current = null;
+        direction = NONE;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void afterLast() throws IOException
+    {
+        position = AFTER_LAST;
+        current = null;
+        direction = NONE;
+    }
+
+
+    /**
+     * Counts the values by browsing them all, then moves the cursor back to its position
+     */
+    @Override
+    public int size()
+    {
+        int savedPosition = position;
+        V savedCurrent = current;
+        int size = 0;
+
+        try
+        {
+            beforeFirst();
+
+            while ( hasNext() )
+            {
+                next();
+                size++;
+            }
+        }
+        catch ( IOException ioe )
+        {
+            throw new BTreeOperationException( ioe );
+        }
+
+        position = savedPosition;
+        current = savedCurrent;
+        direction = NONE;
+
+        return size;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close()
+    {
+        for ( ValueCursor<V> cursor : cursors )
+        {
+            cursor.close();
+        }
+    }
+}
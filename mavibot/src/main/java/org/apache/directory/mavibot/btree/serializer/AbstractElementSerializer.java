@@ -20,10 +20,12 @@
 package org.apache.directory.mavibot.btree.serializer;
 
 
+import java.io.IOException;
 import java.lang.reflect.Array;
 import java.lang.reflect.GenericArrayType;
 import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
+import java.nio.ByteBuffer;
 import java.util.Comparator;
 
 
@@ -79,6 +81,42 @@ public abstract class AbstractElementSerializer<T> implements ElementSerializer<
     }
 
 
+    /**
+     * {@inheritDoc}
+     * <br/>
+     * The default implementation copies the result of {@link #serialize(Object)}.
+     */
+    public void serialize( T element, ByteBuffer buffer )
+    {
+        buffer.put( serialize( element ) );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     * <br/>
+     * The default implementation serializes the element.
+     */
+    public int serializedSize( T element )
+    {
+        return serialize( element ).length;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     * <br/>
+     * The default implementation reads the element from a duplicate of the buffer.
+     */
+    public T fromBytes( ByteBuffer buffer, int pos ) throws IOException
+    {
+        ByteBuffer duplicate = buffer.duplicate();
+        duplicate.position( pos );
+
+        return deserialize( duplicate );
+    }
+
+
     /**
      * {@inheritDoc}
      */
@@ -166,4 +166,34 @@ public class BooleanSerializer extends AbstractElementSerializer<Boolean>
 
         return deserialize( in );
     }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void serialize( Boolean element, ByteBuffer buffer )
+    {
+        buffer.put( element ? ( byte ) 0x01 : ( byte ) 0x00 );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int serializedSize( Boolean element )
+    {
+        return 1;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Boolean fromBytes( ByteBuffer buffer, int pos )
+    {
+        return buffer.get( pos ) != 0x00;
+    }
 }
@@ -341,4 +341,65 @@ public class ByteArraySerializer extends AbstractElementSerializer<byte[]>
                 return bytes;
         }
     }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void serialize( byte[] element, ByteBuffer buffer )
+    {
+        if ( element == null )
+        {
+            buffer.putInt( -1 );
+
+            return;
+        }
+
+        buffer.putInt( element.length );
+        buffer.put( element );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int serializedSize( byte[] element )
+    {
+        if ( element == null )
+        {
+            return 4;
+        }
+
+        return 4 + element.length;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public byte[] fromBytes( ByteBuffer buffer, int pos )
+    {
+        int len = buffer.getInt( pos );
+
+        switch ( len )
+        {
+            case 0:
+                return new byte[]
+                    {};
+
+            case -1:
+                return null;
+
+            default:
+                byte[] result = new byte[len];
+                ByteBuffer duplicate = buffer.duplicate();
+                duplicate.position( pos + 4 );
+                duplicate.get( result );
+
+                return result;
+        }
+    }
 }
@@ -161,4 +161,34 @@ public class ByteSerializer extends AbstractElementSerializer<Byte>
 
         return deserialize( in );
     }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void serialize( Byte element, ByteBuffer buffer )
+    {
+        buffer.put( element );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int serializedSize( Byte element )
+    {
+        return 1;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Byte fromBytes( ByteBuffer buffer, int pos )
+    {
+        return buffer.get( pos );
+    }
 }
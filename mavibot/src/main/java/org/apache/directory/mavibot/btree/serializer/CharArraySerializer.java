@@ -276,4 +276,71 @@ public class CharArraySerializer extends AbstractElementSerializer<char[]>
                 return result;
         }
     }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void serialize( char[] element, ByteBuffer buffer )
+    {
+        if ( element == null )
+        {
+            buffer.putInt( -1 );
+
+            return;
+        }
+
+        buffer.putInt( element.length );
+
+        for ( char c : element )
+        {
+            buffer.putChar( c );
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int serializedSize( char[] element )
+    {
+        if ( element == null )
+        {
+            return 4;
+        }
+
+        return 4 + element.length * 2;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public char[] fromBytes( ByteBuffer buffer, int pos )
+    {
+        int len = buffer.getInt( pos );
+
+        switch ( len )
+        {
+            case 0:
+                return new char[]
+                    {};
+
+            case -1:
+                return null;
+
+            default:
+                char[] result = new char[len];
+
+                for ( int i = 0; i < len; i++ )
+                {
+                    result[i] = buffer.getChar( pos + 4 + i * 2 );
+                }
+
+                return result;
+        }
+    }
 }
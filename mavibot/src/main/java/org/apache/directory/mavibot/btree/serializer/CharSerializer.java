@@ -164,4 +164,34 @@ public class CharSerializer extends AbstractElementSerializer<Character>
 
         return deserialize( in );
     }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void serialize( Character element, ByteBuffer buffer )
+    {
+        buffer.putChar( element );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int serializedSize( Character element )
+    {
+        return 2;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Character fromBytes( ByteBuffer buffer, int pos )
+    {
+        return buffer.getChar( pos );
+    }
 }
@@ -43,6 +43,26 @@ public interface ElementSerializer<T>
     byte[] serialize( T key );
 
 
+    /**
+     * Serialize an element into a ByteBuffer, at its current position. The written bytes are
+     * the same as the ones returned by {@link #serialize(Object)}.
+     * 
+     * @param element The element to serialize
+     * @param buffer The ByteBuffer to write into. It must have at least
+     * {@link #serializedSize(Object)} remaining bytes
+     */
+    void serialize( T element, ByteBuffer buffer );
+
+
+    /**
+     * Compute the number of bytes needed to serialize an element
+     * 
+     * @param element The element to serialize
+     * @return The size of the serialized element
+     */
+    int serializedSize( T element );
+
+
     /**
      * Deserialize an element from a BufferHandler
      * 
@@ -83,6 +103,18 @@ public interface ElementSerializer<T>
     T fromBytes( byte[] buffer, int pos ) throws IOException;
 
 
+    /**
+     * Deserialize an element serialized by {@link #serialize(Object)}, stored in a ByteBuffer
+     * at a given position. The buffer's position is not modified.
+     * 
+     * @param buffer The incoming ByteBuffer
+     * @param pos The position of the serialized element in the ByteBuffer
+     * @return The deserialized element
+     * @throws IOException If the deserialization failed
+     */
+    T fromBytes( ByteBuffer buffer, int pos ) throws IOException;
+
+
     /**
      * Returns the comparison of two types. <br/>
      * <ul>
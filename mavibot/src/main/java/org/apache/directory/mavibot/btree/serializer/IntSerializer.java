@@ -64,6 +64,20 @@ public class IntSerializer extends AbstractElementSerializer<Integer>
      * @return An Integer
      */
     public static Integer deserialize( byte[] in, int start )
+    {
+        return toInt( in, start );
+    }
+
+
+    /**
+     * A static method used to read a primitive int from a byte array, without
+     * creating an Integer instance.
+     *
+     * @param in The byte array containing the int
+     * @param start the position in the byte[] we will read the int from
+     * @return The int value
+     */
+    public static int toInt( byte[] in, int start )
     {
         if ( ( in == null ) || ( in.length < 4 + start ) )
         {
@@ -168,4 +182,34 @@ public class IntSerializer extends AbstractElementSerializer<Integer>
 
         return buffer;
     }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void serialize( Integer element, ByteBuffer buffer )
+    {
+        buffer.putInt( element );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int serializedSize( Integer element )
+    {
+        return 4;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Integer fromBytes( ByteBuffer buffer, int pos )
+    {
+        return buffer.getInt( pos );
+    }
 }
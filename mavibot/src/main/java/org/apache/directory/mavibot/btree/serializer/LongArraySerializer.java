@@ -331,4 +331,71 @@ public class LongArraySerializer extends AbstractElementSerializer<long[]>
                 return longs;
         }
     }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void serialize( long[] element, ByteBuffer buffer )
+    {
+        if ( element == null )
+        {
+            buffer.putInt( -1 );
+
+            return;
+        }
+
+        buffer.putInt( element.length );
+
+        for ( long value : element )
+        {
+            buffer.putLong( value );
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int serializedSize( long[] element )
+    {
+        if ( element == null )
+        {
+            return 4;
+        }
+
+        return 4 + element.length * 8;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long[] fromBytes( ByteBuffer buffer, int pos )
+    {
+        int len = buffer.getInt( pos );
+
+        switch ( len )
+        {
+            case 0:
+                return new long[]
+                    {};
+
+            case -1:
+                return null;
+
+            default:
+                long[] result = new long[len];
+
+                for ( int i = 0; i < len; i++ )
+                {
+                    result[i] = buffer.getLong( pos + 4 + i * 8 );
+                }
+
+                return result;
+        }
+    }
 }
@@ -111,6 +111,20 @@ public class LongSerializer extends AbstractElementSerializer<Long>
      * @return An Integer
      */
     public static Long deserialize( byte[] in, int start )
+    {
+        return toLong( in, start );
+    }
+
+
+    /**
+     * A static method used to read a primitive long from a byte array, without
+     * creating a Long instance.
+     *
+     * @param in The byte array containing the long
+     * @param start the position in the byte[] we will read the long from
+     * @return The long value
+     */
+    public static long toLong( byte[] in, int start )
     {
         if ( ( in == null ) || ( in.length < 8 + start ) )
         {
@@ -186,4 +200,34 @@ public class LongSerializer extends AbstractElementSerializer<Long>
     {
         return buffer.getLong();
     }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void serialize( Long element, ByteBuffer buffer )
+    {
+        buffer.putLong( element );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int serializedSize( Long element )
+    {
+        return 8;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Long fromBytes( ByteBuffer buffer, int pos )
+    {
+        return buffer.getLong( pos );
+    }
 }
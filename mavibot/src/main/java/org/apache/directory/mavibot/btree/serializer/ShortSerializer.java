@@ -162,4 +162,34 @@ public class ShortSerializer extends AbstractElementSerializer<Short>
 
         return deserialize( in );
     }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void serialize( Short element, ByteBuffer buffer )
+    {
+        buffer.putShort( element );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int serializedSize( Short element )
+    {
+        return 2;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Short fromBytes( ByteBuffer buffer, int pos )
+    {
+        return buffer.getShort( pos );
+    }
 }
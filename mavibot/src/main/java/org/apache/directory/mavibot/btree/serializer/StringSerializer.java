@@ -1,37 +1,41 @@
 /*
- *  Licensed to the Apache Software Foundation (ASF) under one
- *  or more contributor license agreements.  See the NOTICE file
- *  distributed with this work for additional information
- *  regarding copyright ownership.  The ASF licenses this file
- *  to you under the Apache License, Version 2.0 (the
- *  "License"); you may not use this file except in compliance
- *  with the License.  You may obtain a copy of the License at
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
  *
- *    http://www.apache.org/licenses/LICENSE-2.0
+ *     http://www.apache.org/licenses/LICENSE-2.0
  *
- *  Unless required by applicable law or agreed to in writing,
- *  software distributed under the License is distributed on an
- *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
- *  KIND, either express or implied.  See the License for the
- *  specific language governing permissions and limitations
- *  under the License.
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
  *
  */
 package org.apache.directory.mavibot.btree.serializer;
 
 
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
 import java.util.Comparator;
 
 import org.apache.directory.mavibot.btree.comparator.StringComparator;
 import org.apache.directory.mavibot.btree.exception.SerializerCreationException;
-import org.apache.directory.mavibot.btree.util.Strings;
 
 
 /**
- * The String serializer.
+ * The String serializer. A String is stored as its length on 4 bytes, -1 for a null
+ * String, followed by its chars, each of them encoded in UTF-8 on 1 to 3 bytes. The
+ * surrogate chars are encoded separately, so the serialized Strings can be compared
+ * byte per byte, in the same order as the String.compareTo() method does.
+ * <br/>
+ * The chars are encoded in, and decoded from, the target buffer in a single pass, ASCII
+ * Strings being copied without any conversion.
  *
  * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
  */
@@ -58,6 +62,156 @@ public class StringSerializer extends AbstractElementSerializer<String>
     }
 
 
+    /**
+     * Compute the number of bytes the chars of a String are encoded in, without its length
+     */
+    private static int encodedLength( String element )
+    {
+        int len = element.length();
+        int size = len;
+
+        for ( int i = 0; i < len; i++ )
+        {
+            char c = element.charAt( i );
+
+            if ( c >= 0x0080 )
+            {
+                size += ( c >= 0x0800 ) ? 2 : 1;
+            }
+        }
+
+        return size;
+    }
+
+
+    /**
+     * Encode the chars of a String into a byte[]. The encoded length has already been
+     * computed : if it's equal to the number of chars, the String is pure ASCII.
+     *
+     * @return The position following the last written byte
+     */
+    @SuppressWarnings("deprecation")
+    private static int encode( String element, int encodedLength, byte[] buffer, int pos )
+    {
+        int len = element.length();
+
+        if ( encodedLength == len )
+        {
+            // ASCII fast path : the chars are copied as is
+            element.getBytes( 0, len, buffer, pos );
+
+            return pos + len;
+        }
+
+        for ( int i = 0; i < len; i++ )
+        {
+            char c = element.charAt( i );
+
+            if ( c < 0x0080 )
+            {
+                buffer[pos++] = ( byte ) c;
+            }
+            else if ( c < 0x0800 )
+            {
+                buffer[pos++] = ( byte ) ( 0xC0 | ( c >> 6 ) );
+                buffer[pos++] = ( byte ) ( 0x80 | ( c & 0x3F ) );
+            }
+            else
+            {
+                buffer[pos++] = ( byte ) ( 0xE0 | ( c >> 12 ) );
+                buffer[pos++] = ( byte ) ( 0x80 | ( ( c >> 6 ) & 0x3F ) );
+                buffer[pos++] = ( byte ) ( 0x80 | ( c & 0x3F ) );
+            }
+        }
+
+        return pos;
+    }
+
+
+    /**
+     * Decode a String from a byte[]. The chars encoded on 4 bytes (which can be found in
+     * Strings serialized by the String.getBytes() method) are decoded as surrogate pairs.
+     */
+    @SuppressWarnings("deprecation")
+    private static String decode( byte[] in, int start, int length )
+    {
+        int end = start + length;
+        int pos = start;
+
+        // ASCII fast path : the bytes are copied as is
+        while ( ( pos < end ) && ( in[pos] >= 0 ) )
+        {
+            pos++;
+        }
+
+        if ( pos == end )
+        {
+            return new String( in, 0, start, length );
+        }
+
+        char[] chars = new char[length];
+        int clen = 0;
+
+        for ( int i = start; i < pos; i++ )
+        {
+            chars[clen++] = ( char ) in[i];
+        }
+
+        while ( pos < end )
+        {
+            int b = in[pos++];
+
+            if ( b >= 0 )
+            {
+                chars[clen++] = ( char ) b;
+            }
+            else if ( ( b & 0xE0 ) == 0xC0 )
+            {
+                // 2 bytes long char
+                chars[clen++] = ( char ) ( ( ( b & 0x1F ) << 6 ) | ( in[pos++] & 0x3F ) );
+            }
+            else if ( ( b & 0xF0 ) == 0xE0 )
+            {
+                // 3 bytes long char
+                chars[clen++] = ( char ) ( ( ( b & 0x0F ) << 12 ) | ( ( in[pos] & 0x3F ) << 6 ) | ( in[pos + 1] & 0x3F ) );
+                pos += 2;
+            }
+            else
+            {
+                // 4 bytes long char, stored as a surrogate pair
+                int codePoint = ( ( ( b & 0x07 ) << 18 ) | ( ( in[pos] & 0x3F ) << 12 ) | ( ( in[pos + 1] & 0x3F ) << 6 )
+                    | ( in[pos + 2] & 0x3F ) ) - 0x10000;
+                pos += 3;
+                chars[clen++] = ( char ) ( 0xD800 | ( codePoint >> 10 ) );
+                chars[clen++] = ( char ) ( 0xDC00 | ( codePoint & 0x3FF ) );
+            }
+        }
+
+        return new String( chars, 0, clen );
+    }
+
+
+    /**
+     * Decode a String from a ByteBuffer, at a given position. The buffer position is not
+     * modified.
+     */
+    private static String decode( ByteBuffer buffer, int start, int length )
+    {
+        if ( buffer.hasArray() )
+        {
+            return decode( buffer.array(), buffer.arrayOffset() + start, length );
+        }
+
+        // A direct buffer : copy the bytes at once
+        byte[] bytes = new byte[length];
+        ByteBuffer duplicate = buffer.duplicate();
+        duplicate.position( start );
+        duplicate.get( bytes );
+
+        return decode( bytes, 0, length );
+    }
+
+
     /**
      * A static method used to deserialize a String from a byte array.
      * @param in The byte array containing the String
@@ -88,7 +242,7 @@ public class StringSerializer extends AbstractElementSerializer<String>
             throw new SerializerCreationException( "Cannot extract a String from a buffer with not enough bytes" );
         }
 
-        return Strings.utf8ToString( in, start + 4, length );
+        return decode( in, start + 4, length );
     }
 
 
@@ -110,24 +264,58 @@ public class StringSerializer extends AbstractElementSerializer<String>
      */
     public String fromBytes( byte[] in, int start )
     {
-        int length = IntSerializer.deserialize( in, start );
+        return deserialize( in, start );
+    }
 
-        if ( length == 0xFFFFFFFF )
+
+    /**
+     * Compare two serialized Strings, byte per byte, without decoding them. The result is
+     * the same as the one the StringComparator would return on the decoded Strings, a null
+     * String being lower than any other String.
+     *
+     * @param in1 The byte[] containing the first serialized String
+     * @param start1 The position of the first String in its byte[]
+     * @param in2 The byte[] containing the second serialized String
+     * @param start2 The position of the second String in its byte[]
+     * @return -1, 0 or 1 if the first String is lower, equal or higher than the second one
+     */
+    public static int compare( byte[] in1, int start1, byte[] in2, int start2 )
+    {
+        int length1 = IntSerializer.deserialize( in1, start1 );
+        int length2 = IntSerializer.deserialize( in2, start2 );
+
+        if ( ( length1 == -1 ) || ( length2 == -1 ) )
         {
-            return null;
+            return ( length1 == length2 ) ? 0 : ( ( length1 == -1 ) ? -1 : 1 );
         }
 
-        if ( in.length < length + start )
+        int min = Math.min( length1, length2 );
+        start1 += 4;
+        start2 += 4;
+
+        for ( int i = 0; i < min; i++ )
         {
-            throw new SerializerCreationException( "Cannot extract a String from a buffer with not enough bytes" );
+            int b1 = in1[start1 + i] & 0xFF;
+            int b2 = in2[start2 + i] & 0xFF;
+
+            if ( b1 != b2 )
+            {
+                return ( b1 < b2 ) ? -1 : 1;
+            }
         }
 
-        return Strings.utf8ToString( in, start + 4, length );
+        if ( length1 == length2 )
+        {
+            return 0;
+        }
+
+        return ( length1 < length2 ) ? -1 : 1;
     }
 
 
     /**
-     * Serialize a String. We store the length on 4 bytes, then the String
+     * Serialize a String. We store the length on 4 bytes, then the String. The buffer
+     * must be big enough to contain the serialized String.
      *
      * @param buffer the Buffer that will contain the serialized value
      * @param start the position in the buffer we will store the serialized String
@@ -140,47 +328,14 @@ public class StringSerializer extends AbstractElementSerializer<String>
 
         if ( element != null )
         {
-            len = element.length();
+            len = encodedLength( element );
+            encode( element, len, buffer, start + 4 );
         }
 
-        switch ( len )
-        {
-            case 0:
-                buffer[start] = 0x00;
-                buffer[start + 1] = 0x00;
-                buffer[start + 2] = 0x00;
-                buffer[start + 3] = 0x00;
-
-                break;
-
-            case -1:
-                buffer[start] = ( byte ) 0xFF;
-                buffer[start + 1] = ( byte ) 0xFF;
-                buffer[start + 2] = ( byte ) 0xFF;
-                buffer[start + 3] = ( byte ) 0xFF;
-
-                break;
-
-            default:
-                try
-                {
-                    byte[] strBytes = element.getBytes( "UTF-8" );
-
-                    buffer = new byte[strBytes.length + 4];
-
-                    System.arraycopy( strBytes, 0, buffer, 4, strBytes.length );
-
-                    buffer[start] = ( byte ) ( strBytes.length >>> 24 );
-                    buffer[start + 1] = ( byte ) ( strBytes.length >>> 16 );
-                    buffer[start + 2] = ( byte ) ( strBytes.length >>> 8 );
-                    buffer[start + 3] = ( byte ) ( strBytes.length );
-                }
-                catch ( UnsupportedEncodingException uee )
-                {
-                    // if this happens something is really strange
-                    throw new SerializerCreationException( uee );
-                }
-        }
+        buffer[start] = ( byte ) ( len >>> 24 );
+        buffer[start + 1] = ( byte ) ( len >>> 16 );
+        buffer[start + 2] = ( byte ) ( len >>> 8 );
+        buffer[start + 3] = ( byte ) ( len );
 
         return buffer;
     }
@@ -191,74 +346,16 @@ public class StringSerializer extends AbstractElementSerializer<String>
      */
     public byte[] serialize( String element )
     {
-        int len = -1;
-
-        if ( element != null )
+        if ( element == null )
         {
-            len = element.length();
+            return new byte[]
+                { ( byte ) 0xFF, ( byte ) 0xFF, ( byte ) 0xFF, ( byte ) 0xFF };
         }
 
-        byte[] bytes = null;
-
-        switch ( len )
-        {
-            case 0:
-                bytes = new byte[4];
-
-                bytes[0] = 0x00;
-                bytes[1] = 0x00;
-                bytes[2] = 0x00;
-                bytes[3] = 0x00;
-
-                break;
-
-            case -1:
-                bytes = new byte[4];
-
-                bytes[0] = ( byte ) 0xFF;
-                bytes[1] = ( byte ) 0xFF;
-                bytes[2] = ( byte ) 0xFF;
-                bytes[3] = ( byte ) 0xFF;
-
-                break;
+        // Encode the chars directly in the resulting byte[]
+        byte[] bytes = new byte[4 + encodedLength( element )];
 
-            default:
-                char[] chars = element.toCharArray();
-                byte[] tmpBytes = new byte[chars.length * 2];
-
-                int pos = 0;
-                len = 0;
-
-                for ( char c : chars )
-                {
-                    if ( ( c & 0xFF80 ) == 0 )
-                    {
-                        tmpBytes[pos++] = ( byte ) c;
-                    }
-                    else if ( ( c & 0xF800 ) == 0 )
-                    {
-                        tmpBytes[pos++] = ( byte ) ( ( byte ) 0x00C0 | ( byte ) ( ( c & 0x07C0 ) >> 6 ) );
-                        tmpBytes[pos++] = ( byte ) ( ( byte ) 0x80 | ( byte ) ( c & 0x003F ) );
-                    }
-                    else
-                    {
-                        tmpBytes[pos++] = ( byte ) ( ( byte ) 0x80 | ( byte ) ( c & 0x001F ) );
-                        tmpBytes[pos++] = ( byte ) ( ( byte ) 0x80 | ( byte ) ( c & 0x07C0 ) );
-                        tmpBytes[pos++] = ( byte ) ( ( byte ) 0xE0 | ( byte ) ( c & 0x7800 ) );
-                    }
-                }
-
-                bytes = new byte[pos + 4];
-
-                bytes[0] = ( byte ) ( pos >>> 24 );
-                bytes[1] = ( byte ) ( pos >>> 16 );
-                bytes[2] = ( byte ) ( pos >>> 8 );
-                bytes[3] = ( byte ) ( pos );
-
-                System.arraycopy( tmpBytes, 0, bytes, 4, pos );
-        }
-
-        return bytes;
+        return serialize( bytes, 0, element );
     }
 
 
@@ -283,7 +380,7 @@ public class StringSerializer extends AbstractElementSerializer<String>
             default:
                 in = bufferHandler.read( len );
 
-                return Strings.utf8ToString( in );
+                return decode( in, 0, len );
         }
     }
 
@@ -304,42 +401,10 @@ public class StringSerializer extends AbstractElementSerializer<String>
                 return null;
 
             default:
-                byte[] bytes = new byte[len];
-
-                buffer.get( bytes );
-                char[] chars = new char[len];
-                int clen = 0;
-
-                for ( int i = 0; i < len; i++ )
-                {
-                    byte b = bytes[i];
-
-                    if ( b >= 0 )
-                    {
-                        chars[clen++] = ( char ) b;
-                    }
-                    else
-                    {
-                        if ( ( b & 0xE0 ) == 0 )
-                        {
-                            // 3 bytes long char
-                            i++;
-                            byte b2 = bytes[i];
-                            i++;
-                            byte b3 = bytes[i];
-                            chars[clen++] = ( char ) ( ( ( b & 0x000F ) << 12 ) | ( ( b2 & 0x003F ) << 6 ) | ( ( b3 & 0x003F ) ) );
-                        }
-                        else
-                        {
-                            // 2 bytes long char
-                            i++;
-                            byte b2 = bytes[i];
-                            chars[clen++] = ( char ) ( ( ( b & 0x001F ) << 6 ) | ( b2 & 0x003F ) );
-                        }
-                    }
-                }
-
-                return new String( chars, 0, clen );
+                String result = decode( buffer, buffer.position(), len );
+                buffer.position( buffer.position() + len );
+
+                return result;
         }
     }
 
@@ -378,4 +443,73 @@ public class StringSerializer extends AbstractElementSerializer<String>
             }
         }
     }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void serialize( String element, ByteBuffer buffer )
+    {
+        if ( element == null )
+        {
+            buffer.putInt( -1 );
+
+            return;
+        }
+
+        int len = encodedLength( element );
+        buffer.putInt( len );
+
+        if ( buffer.hasArray() )
+        {
+            // Encode the chars directly in the buffer's backing array
+            int pos = buffer.position();
+            encode( element, len, buffer.array(), buffer.arrayOffset() + pos );
+            buffer.position( pos + len );
+        }
+        else
+        {
+            byte[] bytes = new byte[len];
+            encode( element, len, bytes, 0 );
+            buffer.put( bytes );
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int serializedSize( String element )
+    {
+        if ( element == null )
+        {
+            return 4;
+        }
+
+        return 4 + encodedLength( element );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String fromBytes( ByteBuffer buffer, int pos )
+    {
+        int len = buffer.getInt( pos );
+
+        switch ( len )
+        {
+            case 0:
+                return "";
+
+            case -1:
+                return null;
+
+            default:
+                return decode( buffer, pos + 4, len );
+        }
+    }
 }
@@ -0,0 +1,165 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.mavibot.btree.serializer;
+
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.apache.directory.mavibot.btree.comparator.IntComparator;
+import org.apache.directory.mavibot.btree.exception.SerializerCreationException;
+
+
+/**
+ * An Integer serializer using a variable length encoding. The value is zig-zag encoded,
+ * then stored 7 bits per byte, like in the {@link VarLongSerializer}. A value is stored
+ * in 1 to 5 bytes.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class VarIntSerializer extends AbstractElementSerializer<Integer>
+{
+    /** A static instance of a VarIntSerializer */
+    public static final VarIntSerializer INSTANCE = new VarIntSerializer();
+
+    /**
+     * Create a new instance of VarIntSerializer
+     */
+    private VarIntSerializer()
+    {
+        super( IntComparator.INSTANCE );
+    }
+
+
+    /**
+     * Zig-zag encode an int. The result is an unsigned int, stored in a long.
+     */
+    private static long encode( int value )
+    {
+        return ( ( value << 1 ) ^ ( value >> 31 ) ) & 0xFFFFFFFFL;
+    }
+
+
+    /**
+     * Decode a zig-zag encoded int
+     */
+    private static int decode( long value )
+    {
+        if ( ( value & ~0xFFFFFFFFL ) != 0L )
+        {
+            throw new SerializerCreationException( "The VarInt value is out of range" );
+        }
+
+        return ( int ) ( value >>> 1 ) ^ -( int ) ( value & 1L );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public byte[] serialize( Integer element )
+    {
+        long value = encode( element );
+        byte[] bytes = new byte[VarLongSerializer.varLongSize( value )];
+
+        VarLongSerializer.writeVarLong( bytes, 0, value );
+
+        return bytes;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void serialize( Integer element, ByteBuffer buffer )
+    {
+        VarLongSerializer.writeVarLong( buffer, encode( element ) );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int serializedSize( Integer element )
+    {
+        return VarLongSerializer.varLongSize( encode( element ) );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public Integer deserialize( BufferHandler bufferHandler ) throws IOException
+    {
+        long result = 0L;
+
+        for ( int shift = 0; shift < 35; shift += 7 )
+        {
+            byte b = bufferHandler.read( 1 )[0];
+            result |= ( long ) ( b & 0x7F ) << shift;
+
+            if ( b >= 0 )
+            {
+                return decode( result );
+            }
+        }
+
+        throw new SerializerCreationException( "Malformed VarInt" );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public Integer deserialize( ByteBuffer buffer ) throws IOException
+    {
+        return decode( VarLongSerializer.readVarLong( buffer ) );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public Integer fromBytes( byte[] in ) throws IOException
+    {
+        return fromBytes( in, 0 );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public Integer fromBytes( byte[] in, int start ) throws IOException
+    {
+        return decode( VarLongSerializer.readVarLong( in, start ) );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Integer fromBytes( ByteBuffer buffer, int pos )
+    {
+        return decode( VarLongSerializer.readVarLong( buffer, pos ) );
+    }
+}
@@ -0,0 +1,314 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.mavibot.btree.serializer;
+
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.apache.directory.mavibot.btree.comparator.LongComparator;
+import org.apache.directory.mavibot.btree.exception.SerializerCreationException;
+
+
+/**
+ * A Long serializer using a variable length encoding. The value is first zig-zag
+ * encoded, so that small negative values are also small, then stored 7 bits per byte,
+ * the lowest bits first. The highest bit of each byte is set when another byte follows.
+ * A value is stored in 1 to 10 bytes.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class VarLongSerializer extends AbstractElementSerializer<Long>
+{
+    /** A static instance of a VarLongSerializer */
+    public final static VarLongSerializer INSTANCE = new VarLongSerializer();
+
+    /** The maximum number of bytes a varlong can be stored in */
+    public static final int MAX_VARLONG_SIZE = 10;
+
+    /**
+     * Create a new instance of VarLongSerializer
+     */
+    private VarLongSerializer()
+    {
+        super( LongComparator.INSTANCE );
+    }
+
+
+    /**
+     * Zig-zag encode a long : 0, -1, 1, -2, 2... are encoded as 0, 1, 2, 3, 4...
+     *
+     * @param value The value to encode
+     * @return The encoded value
+     */
+    public static long encodeZigZag( long value )
+    {
+        return ( value << 1 ) ^ ( value >> 63 );
+    }
+
+
+    /**
+     * Decode a zig-zag encoded long
+     *
+     * @param value The encoded value
+     * @return The decoded value
+     */
+    public static long decodeZigZag( long value )
+    {
+        return ( value >>> 1 ) ^ -( value & 1L );
+    }
+
+
+    /**
+     * Compute the number of bytes needed to store an unsigned varlong
+     *
+     * @param value The value, considered as unsigned
+     * @return The number of bytes the value will be stored in
+     */
+    public static int varLongSize( long value )
+    {
+        int size = 1;
+
+        while ( ( value & ~0x7FL ) != 0L )
+        {
+            value >>>= 7;
+            size++;
+        }
+
+        return size;
+    }
+
+
+    /**
+     * Write an unsigned varlong into a byte[]
+     *
+     * @param buffer The byte[] to write into
+     * @param start The position of the first byte
+     * @param value The value, considered as unsigned
+     * @return The position following the last written byte
+     */
+    public static int writeVarLong( byte[] buffer, int start, long value )
+    {
+        while ( ( value & ~0x7FL ) != 0L )
+        {
+            buffer[start++] = ( byte ) ( ( value & 0x7FL ) | 0x80L );
+            value >>>= 7;
+        }
+
+        buffer[start++] = ( byte ) value;
+
+        return start;
+    }
+
+
+    /**
+     * Write an unsigned varlong at the current position of a ByteBuffer
+     *
+     * @param buffer The ByteBuffer to write into
+     * @param value The value, considered as unsigned
+     */
+    public static void writeVarLong( ByteBuffer buffer, long value )
+    {
+        while ( ( value & ~0x7FL ) != 0L )
+        {
+            buffer.put( ( byte ) ( ( value & 0x7FL ) | 0x80L ) );
+            value >>>= 7;
+        }
+
+        buffer.put( ( byte ) value );
+    }
+
+
+    /**
+     * Read an unsigned varlong from a byte[]
+     *
+     * @param in The byte[] containing the varlong
+     * @param start The position of its first byte
+     * @return The value
+     */
+    public static long readVarLong( byte[] in, int start )
+    {
+        long result = 0L;
+
+        for ( int shift = 0; shift < 64; shift += 7 )
+        {
+            if ( ( in == null ) || ( start >= in.length ) )
+            {
+                throw new SerializerCreationException( "Cannot extract a VarLong from a buffer with not enough bytes" );
+            }
+
+            byte b = in[start++];
+            result |= ( long ) ( b & 0x7F ) << shift;
+
+            if ( b >= 0 )
+            {
+                return result;
+            }
+        }
+
+        throw new SerializerCreationException( "Malformed VarLong" );
+    }
+
+
+    /**
+     * Read an unsigned varlong at the current position of a ByteBuffer, moving the position
+     * after it
+     *
+     * @param buffer The ByteBuffer containing the varlong
+     * @return The value
+     */
+    public static long readVarLong( ByteBuffer buffer )
+    {
+        long result = 0L;
+
+        for ( int shift = 0; shift < 64; shift += 7 )
+        {
+            byte b = buffer.get();
+            result |= ( long ) ( b & 0x7F ) << shift;
+
+            if ( b >= 0 )
+            {
+                return result;
+            }
+        }
+
+        throw new SerializerCreationException( "Malformed VarLong" );
+    }
+
+
+    /**
+     * Read an unsigned varlong at a given position of a ByteBuffer, without moving the
+     * buffer position
+     *
+     * @param buffer The ByteBuffer containing the varlong
+     * @param pos The position of its first byte
+     * @return The value
+     */
+    public static long readVarLong( ByteBuffer buffer, int pos )
+    {
+        long result = 0L;
+
+        for ( int shift = 0; shift < 64; shift += 7 )
+        {
+            byte b = buffer.get( pos++ );
+            result |= ( long ) ( b & 0x7F ) << shift;
+
+            if ( b >= 0 )
+            {
+                return result;
+            }
+        }
+
+        throw new SerializerCreationException( "Malformed VarLong" );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public byte[] serialize( Long element )
+    {
+        long value = encodeZigZag( element );
+        byte[] bytes = new byte[varLongSize( value )];
+
+        writeVarLong( bytes, 0, value );
+
+        return bytes;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void serialize( Long element, ByteBuffer buffer )
+    {
+        writeVarLong( buffer, encodeZigZag( element ) );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int serializedSize( Long element )
+    {
+        return varLongSize( encodeZigZag( element ) );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public Long deserialize( BufferHandler bufferHandler ) throws IOException
+    {
+        long result = 0L;
+
+        for ( int shift = 0; shift < 64; shift += 7 )
+        {
+            byte b = bufferHandler.read( 1 )[0];
+            result |= ( long ) ( b & 0x7F ) << shift;
+
+            if ( b >= 0 )
+            {
+                return decodeZigZag( result );
+            }
+        }
+
+        throw new SerializerCreationException( "Malformed VarLong" );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public Long deserialize( ByteBuffer buffer ) throws IOException
+    {
+        return decodeZigZag( readVarLong( buffer ) );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public Long fromBytes( byte[] in ) throws IOException
+    {
+        return fromBytes( in, 0 );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public Long fromBytes( byte[] in, int start ) throws IOException
+    {
+        return decodeZigZag( readVarLong( in, start ) );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Long fromBytes( ByteBuffer buffer, int pos )
+    {
+        return decodeZigZag( readVarLong( buffer, pos ) );
+    }
+}
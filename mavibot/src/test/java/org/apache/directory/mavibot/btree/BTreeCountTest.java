@@ -0,0 +1,235 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.mavibot.btree;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.apache.directory.mavibot.btree.serializer.IntSerializer;
+import org.apache.directory.mavibot.btree.serializer.StringSerializer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+/**
+ * Tests for the count, rank and browseAt operations.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class BTreeCountTest
+{
+    private static final String TREE_NAME = "count-tree";
+
+    private RecordManager rm;
+
+    @Rule
+    public TemporaryFolder tmpDir;
+
+    private File dbFile;
+
+
+    @Before
+    public void setup() throws Exception
+    {
+        tmpDir = new TemporaryFolder();
+        tmpDir.create();
+
+        dbFile = tmpDir.newFile( "count.db" );
+    }
+
+
+    @After
+    public void cleanup() throws Exception
+    {
+        if ( rm != null )
+        {
+            rm.close();
+        }
+
+        dbFile.delete();
+        tmpDir.delete();
+    }
+
+
+    private BTree<Integer, String> createPersistedBTree( boolean subtreeCounts ) throws Exception
+    {
+        rm = new RecordManager( dbFile.getAbsolutePath() );
+
+        // The old revisions are kept
+        rm._disableReclaimer( true );
+
+        PersistedBTreeConfiguration<Integer, String> config = new PersistedBTreeConfiguration<Integer, String>();
+        config.setName( TREE_NAME );
+        config.setKeySerializer( IntSerializer.INSTANCE );
+        config.setValueSerializer( StringSerializer.INSTANCE );
+        config.setPageSize( 8 );
+        config.setSubtreeCounts( subtreeCounts );
+
+        BTree<Integer, String> btree = BTreeFactory.createPersistedBTree( config );
+        rm.manage( btree );
+
+        return btree;
+    }
+
+
+    private BTree<Integer, String> reopen() throws Exception
+    {
+        rm.close();
+        rm = new RecordManager( dbFile.getAbsolutePath() );
+        rm._disableReclaimer( true );
+
+        return rm.getManagedTree( TREE_NAME );
+    }
+
+
+    /**
+     * Inject some random keys, and remove some of them
+     */
+    private TreeSet<Integer> load( BTree<Integer, String> btree ) throws Exception
+    {
+        Random random = new Random( 42L );
+        TreeSet<Integer> expected = new TreeSet<Integer>();
+
+        for ( int i = 0; i < 1000; i++ )
+        {
+            int key = random.nextInt( 10000 );
+            btree.insert( key, String.valueOf( key ) );
+            expected.add( key );
+        }
+
+        List<Integer> keys = new ArrayList<Integer>( expected );
+
+        for ( int i = 0; i < keys.size(); i += 3 )
+        {
+            btree.delete( keys.get( i ) );
+            expected.remove( keys.get( i ) );
+        }
+
+        return expected;
+    }
+
+
+    private void check( BTree<Integer, String> btree, TreeSet<Integer> expected ) throws Exception
+    {
+        assertEquals( expected.size(), btree.count( null, null ) );
+
+        List<Integer> keys = new ArrayList<Integer>( expected );
+
+        for ( int key = -10; key < 10010; key += 37 )
+        {
+            assertEquals( expected.headSet( key ).size(), btree.rank( key ) );
+            assertEquals( expected.subSet( key, true, key + 500, true ).size(), btree.count( key, key + 500 ) );
+            assertEquals( expected.tailSet( key ).size(), btree.count( key, null ) );
+            assertEquals( expected.headSet( key, true ).size(), btree.count( null, key ) );
+        }
+
+        assertEquals( 0, btree.count( 500, 100 ) );
+
+        for ( int index = 0; index < keys.size(); index += 17 )
+        {
+            TupleCursor<Integer, String> cursor = btree.browseAt( index );
+
+            for ( int i = index; ( i < index + 3 ) && ( i < keys.size() ); i++ )
+            {
+                assertTrue( cursor.hasNext() );
+                assertEquals( keys.get( i ), cursor.next().getKey() );
+            }
+
+            cursor.close();
+        }
+
+        TupleCursor<Integer, String> cursor = btree.browseAt( keys.size() );
+        assertFalse( cursor.hasNext() );
+        assertTrue( cursor.hasPrev() );
+        assertEquals( keys.get( keys.size() - 1 ), cursor.prev().getKey() );
+        cursor.close();
+    }
+
+
+    @Test
+    public void testInMemoryCount() throws Exception
+    {
+        BTree<Integer, String> btree = BTreeFactory.createInMemoryBTree( TREE_NAME, IntSerializer.INSTANCE,
+            StringSerializer.INSTANCE );
+        btree.setPageSize( 8 );
+
+        TreeSet<Integer> expected = load( btree );
+
+        check( btree, expected );
+
+        btree.close();
+    }
+
+
+    @Test
+    public void testPersistedCount() throws Exception
+    {
+        BTree<Integer, String> btree = createPersistedBTree( false );
+        TreeSet<Integer> expected = load( btree );
+
+        check( btree, expected );
+        check( reopen(), expected );
+    }
+
+
+    @Test
+    public void testPersistedSubtreeCounts() throws Exception
+    {
+        BTree<Integer, String> btree = createPersistedBTree( true );
+        TreeSet<Integer> expected = load( btree );
+
+        check( btree, expected );
+
+        btree = reopen();
+        assertTrue( ( ( PersistedBTree<Integer, String> ) btree ).isSubtreeCounts() );
+        check( btree, expected );
+
+        // Modify the reloaded B-tree, and check again
+        btree.insert( -5, "-5" );
+        expected.add( -5 );
+        btree.delete( expected.last() );
+        expected.remove( expected.last() );
+
+        check( btree, expected );
+        check( reopen(), expected );
+    }
+
+
+    @Test
+    public void testEmptyBTree() throws Exception
+    {
+        BTree<Integer, String> btree = createPersistedBTree( true );
+
+        assertEquals( 0, btree.count( null, null ) );
+        assertEquals( 0, btree.rank( 5 ) );
+        assertFalse( btree.browseAt( 0 ).hasNext() );
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.mavibot.btree;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.directory.mavibot.btree.serializer.IntSerializer;
+import org.apache.directory.mavibot.btree.serializer.StringSerializer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+/**
+ * Tests for the getAll() method, looking for many keys at once.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class BTreeGetAllTest
+{
+    private RecordManager rm;
+
+    @Rule
+    public TemporaryFolder tmpDir;
+
+    private File dbFile;
+
+
+    @Before
+    public void setup() throws Exception
+    {
+        tmpDir = new TemporaryFolder();
+        tmpDir.create();
+
+        dbFile = tmpDir.newFile( "getall.db" );
+
+        rm = new RecordManager( dbFile.getAbsolutePath() );
+        rm._disableReclaimer( true );
+    }
+
+
+    @After
+    public void cleanup() throws Exception
+    {
+        rm.close();
+        dbFile.delete();
+        tmpDir.delete();
+    }
+
+
+    /**
+     * Fills the B-tree with the multiples of 3 below 3000, and looks for random keys
+     */
+    private void checkGetAll( BTree<Integer, String> btree ) throws Exception
+    {
+        for ( int i = 0; i < 3000; i += 3 )
+        {
+            btree.insert( i, "V" + i );
+        }
+
+        Random random = new Random( 11L );
+        List<Integer> keys = new ArrayList<Integer>();
+
+        for ( int i = 0; i < 500; i++ )
+        {
+            keys.add( random.nextInt( 3100 ) - 50 );
+        }
+
+        // Some duplicated keys, and a null one
+        keys.add( keys.get( 0 ) );
+        keys.add( null );
+        Collections.shuffle( keys, random );
+
+        List<Tuple<Integer, String>> tuples = btree.getAll( keys );
+
+        List<Integer> expected = new ArrayList<Integer>();
+
+        for ( Integer key : keys )
+        {
+            if ( ( key != null ) && ( key >= 0 ) && ( key < 3000 ) && ( ( key % 3 ) == 0 )
+                && !expected.contains( key ) )
+            {
+                expected.add( key );
+            }
+        }
+
+        Collections.sort( expected );
+        assertEquals( expected.size(), tuples.size() );
+
+        for ( int i = 0; i < expected.size(); i++ )
+        {
+            assertEquals( expected.get( i ), tuples.get( i ).getKey() );
+            assertEquals( "V" + expected.get( i ), tuples.get( i ).getValue() );
+        }
+
+        // Every key
+        keys.clear();
+
+        for ( int i = 2999; i >= 0; i-- )
+        {
+            keys.add( i );
+        }
+
+        assertEquals( 1000, btree.getAll( keys ).size() );
+        assertTrue( btree.getAll( Arrays.asList( -1, 1, 3001 ) ).isEmpty() );
+        assertTrue( btree.getAll( new ArrayList<Integer>() ).isEmpty() );
+    }
+
+
+    @Test
+    public void testGetAllInMemory() throws Exception
+    {
+        BTree<Integer, String> btree = BTreeFactory.createInMemoryBTree( "test", IntSerializer.INSTANCE,
+            StringSerializer.INSTANCE );
+        btree.setPageSize( 8 );
+
+        checkGetAll( btree );
+    }
+
+
+    @Test
+    public void testGetAllPersisted() throws Exception
+    {
+        BTree<Integer, String> btree = rm.addBTree( "test", IntSerializer.INSTANCE, StringSerializer.INSTANCE,
+            false );
+
+        checkGetAll( btree );
+    }
+
+
+    @Test
+    public void testGetAllEmpty() throws Exception
+    {
+        BTree<Integer, String> btree = BTreeFactory.createInMemoryBTree( "test", IntSerializer.INSTANCE,
+            StringSerializer.INSTANCE );
+
+        assertTrue( btree.getAll( Arrays.asList( 1, 2, 3 ) ).isEmpty() );
+    }
+}
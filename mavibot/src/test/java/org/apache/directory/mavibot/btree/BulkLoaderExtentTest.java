@@ -0,0 +1,192 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.mavibot.btree;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.directory.mavibot.btree.serializer.LongSerializer;
+import org.apache.directory.mavibot.btree.serializer.StringSerializer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+/**
+ * Tests for the pages written in contiguous extents by the BulkLoader.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class BulkLoaderExtentTest
+{
+    private static final String TREE_NAME = "extent";
+
+    private RecordManager rm;
+
+    @Rule
+    public TemporaryFolder tmpDir;
+
+    private File dbFile;
+
+
+    @Before
+    public void setup() throws Exception
+    {
+        tmpDir = new TemporaryFolder();
+        tmpDir.create();
+
+        dbFile = tmpDir.newFile( "extent.db" );
+
+        rm = new RecordManager( dbFile.getAbsolutePath() );
+        rm._disableReclaimer( true );
+    }
+
+
+    @After
+    public void cleanup() throws Exception
+    {
+        rm.close();
+        dbFile.delete();
+        tmpDir.delete();
+    }
+
+
+    private PersistedBTree<Long, String> createBTree() throws Exception
+    {
+        PersistedBTreeConfiguration<Long, String> config = new PersistedBTreeConfiguration<Long, String>();
+        config.setName( TREE_NAME );
+        config.setKeySerializer( LongSerializer.INSTANCE );
+        config.setValueSerializer( StringSerializer.INSTANCE );
+        config.setPageSize( 16 );
+
+        PersistedBTree<Long, String> btree = ( PersistedBTree<Long, String> ) BTreeFactory
+            .createPersistedBTree( config );
+        rm.manage( btree );
+
+        return btree;
+    }
+
+
+    private List<Tuple<Long, String>> createTuples( int nbElems )
+    {
+        List<Tuple<Long, String>> tuples = new ArrayList<Tuple<Long, String>>( nbElems );
+
+        for ( long i = 0L; i < nbElems; i++ )
+        {
+            tuples.add( new Tuple<Long, String>( i, "V" + i ) );
+        }
+
+        return tuples;
+    }
+
+
+    /**
+     * Gathers the offsets of the leaves, in key order
+     */
+    private void collectLeafOffsets( Page<Long, String> page, List<Long> offsets ) throws Exception
+    {
+        if ( page.isLeaf() )
+        {
+            offsets.add( ( ( AbstractPage<Long, String> ) page ).getOffset() );
+
+            return;
+        }
+
+        for ( int i = 0; i <= page.getNbElems(); i++ )
+        {
+            collectLeafOffsets( ( ( AbstractPage<Long, String> ) page ).getReference( i ), offsets );
+        }
+    }
+
+
+    /**
+     * Check that the leaves are written one after the other, at the end of the file
+     */
+    @Test
+    public void testLeavesAreContiguous() throws Exception
+    {
+        PersistedBTree<Long, String> btree = createBTree();
+        long endOfFile = rm.getEndOfFileOffset();
+
+        BTree<Long, String> result = BulkLoader.load( btree, createTuples( 5000 ).iterator(), 1000 );
+
+        assertEquals( 5000L, result.getNbElems() );
+
+        List<Long> offsets = new ArrayList<Long>();
+        collectLeafOffsets( btree.getRootPage(), offsets );
+
+        assertTrue( offsets.size() > 1 );
+        assertTrue( offsets.get( 0 ) >= endOfFile );
+
+        for ( int i = 1; i < offsets.size(); i++ )
+        {
+            assertTrue( offsets.get( i ) > offsets.get( i - 1 ) );
+        }
+
+        assertTrue( rm.getEndOfFileOffset() <= dbFile.length() );
+    }
+
+
+    /**
+     * Check that the pages written in extents can be read back once the file is reopened
+     */
+    @Test
+    public void testReopenAfterMerge() throws Exception
+    {
+        PersistedBTree<Long, String> btree = createBTree();
+
+        BulkLoader.merge( btree, createTuples( 3000 ).iterator(), 500 );
+
+        rm.close();
+        rm = new RecordManager( dbFile.getAbsolutePath() );
+        rm._disableReclaimer( true );
+
+        BTree<Long, String> reloaded = rm.getManagedTree( TREE_NAME );
+
+        assertEquals( 3000L, reloaded.getNbElems() );
+
+        TupleCursor<Long, String> cursor = reloaded.browse();
+
+        try
+        {
+            for ( long i = 0L; i < 3000L; i++ )
+            {
+                assertTrue( cursor.hasNext() );
+                Tuple<Long, String> tuple = cursor.next();
+                assertEquals( Long.valueOf( i ), tuple.getKey() );
+                assertEquals( "V" + i, tuple.getValue() );
+            }
+
+            assertFalse( cursor.hasNext() );
+        }
+        finally
+        {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,376 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.mavibot.btree;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.apache.directory.mavibot.btree.serializer.LongSerializer;
+import org.apache.directory.mavibot.btree.serializer.StringSerializer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+/**
+ * Tests for the merge of sorted data into an existing B-tree by the BulkLoader.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class BulkLoaderMergeTest
+{
+    private static final String TREE_NAME = "abc";
+
+    private RecordManager rm;
+
+    @Rule
+    public TemporaryFolder tmpDir;
+
+    private File dbFile;
+
+
+    @Before
+    public void setup() throws Exception
+    {
+        tmpDir = new TemporaryFolder();
+        tmpDir.create();
+
+        dbFile = tmpDir.newFile( "merge.db" );
+
+        rm = new RecordManager( dbFile.getAbsolutePath() );
+        rm._disableReclaimer( true );
+    }
+
+
+    @After
+    public void cleanup() throws Exception
+    {
+        rm.close();
+        dbFile.delete();
+        tmpDir.delete();
+    }
+
+
+    private PersistedBTree<Long, String> createBTree( boolean allowDuplicates ) throws Exception
+    {
+        PersistedBTreeConfiguration<Long, String> config = new PersistedBTreeConfiguration<Long, String>();
+        config.setName( TREE_NAME );
+        config.setKeySerializer( LongSerializer.INSTANCE );
+        config.setValueSerializer( StringSerializer.INSTANCE );
+        config.setPageSize( 16 );
+        config.setAllowDuplicates( allowDuplicates );
+
+        PersistedBTree<Long, String> btree = ( PersistedBTree<Long, String> ) BTreeFactory
+            .createPersistedBTree( config );
+        rm.manage( btree );
+
+        return btree;
+    }
+
+
+    /**
+     * Check that the browsed tuples are the expected ones
+     */
+    private void checkContent( BTree<Long, String> btree, TreeMap<Long, TreeSet<String>> expected )
+        throws Exception
+    {
+        assertEquals( expected.size(), btree.getNbElems() );
+
+        TupleCursor<Long, String> cursor = btree.browse();
+
+        try
+        {
+            for ( Map.Entry<Long, TreeSet<String>> entry : expected.entrySet() )
+            {
+                for ( String value : entry.getValue() )
+                {
+                    assertTrue( cursor.hasNext() );
+                    Tuple<Long, String> tuple = cursor.next();
+                    assertEquals( entry.getKey(), tuple.getKey() );
+                    assertEquals( value, tuple.getValue() );
+                }
+            }
+
+            assertFalse( cursor.hasNext() );
+        }
+        finally
+        {
+            cursor.close();
+        }
+    }
+
+
+    private void addExpected( TreeMap<Long, TreeSet<String>> expected, Long key, String value, boolean replace )
+    {
+        TreeSet<String> values = expected.get( key );
+
+        if ( ( values == null ) || replace )
+        {
+            values = new TreeSet<String>();
+            expected.put( key, values );
+        }
+
+        values.add( value );
+    }
+
+
+    /**
+     * Merge random keys, some of them already present, into a B-tree
+     */
+    private void testMerge( int chunkSize ) throws Exception
+    {
+        PersistedBTree<Long, String> btree = createBTree( false );
+        TreeMap<Long, TreeSet<String>> expected = new TreeMap<Long, TreeSet<String>>();
+        Random random = new Random( 42L );
+
+        for ( int i = 0; i < 1000; i++ )
+        {
+            long key = random.nextInt( 5000 );
+            btree.insert( key, "old" + key );
+            addExpected( expected, key, "old" + key, true );
+        }
+
+        List<Tuple<Long, String>> tuples = new ArrayList<Tuple<Long, String>>();
+        TreeMap<Long, TreeSet<String>> incoming = new TreeMap<Long, TreeSet<String>>();
+
+        for ( int i = 0; i < 2000; i++ )
+        {
+            long key = random.nextInt( 5000 );
+
+            if ( !incoming.containsKey( key ) )
+            {
+                tuples.add( new Tuple<Long, String>( key, "new" + key ) );
+                addExpected( incoming, key, "new" + key, true );
+                addExpected( expected, key, "new" + key, true );
+            }
+        }
+
+        BulkLoader.merge( btree, tuples.iterator(), chunkSize );
+
+        checkContent( btree, expected );
+
+        for ( Long key : expected.keySet() )
+        {
+            assertEquals( expected.get( key ).first(), btree.get( key ) );
+        }
+
+        // The merged content must be there once the file is reopened
+        rm.close();
+        rm = new RecordManager( dbFile.getAbsolutePath() );
+        rm._disableReclaimer( true );
+
+        BTree<Long, String> reloaded = rm.<Long, String> getManagedTree( TREE_NAME );
+        checkContent( reloaded, expected );
+
+        // The merged B-tree can still be updated
+        for ( long key = 0L; key < 5000L; key += 3L )
+        {
+            reloaded.delete( key );
+            expected.remove( key );
+        }
+
+        for ( long key = 5000L; key < 5100L; key++ )
+        {
+            reloaded.insert( key, "v" + key );
+            addExpected( expected, key, "v" + key, true );
+        }
+
+        checkContent( reloaded, expected );
+    }
+
+
+    /**
+     * Merge data which can be sorted in memory
+     */
+    @Test
+    public void testMergeInMemory() throws Exception
+    {
+        testMerge( 10000 );
+    }
+
+
+    /**
+     * Merge data which have to be sorted in files
+     */
+    @Test
+    public void testMergeWithSortedFiles() throws Exception
+    {
+        testMerge( 100 );
+    }
+
+
+    /**
+     * Check that the values of the keys present in the B-tree and in the incoming data
+     * are gathered when duplicate values are allowed
+     */
+    @Test
+    public void testMergeDuplicateValues() throws Exception
+    {
+        PersistedBTree<Long, String> btree = createBTree( true );
+        TreeMap<Long, TreeSet<String>> expected = new TreeMap<Long, TreeSet<String>>();
+
+        for ( long i = 0L; i < 100L; i++ )
+        {
+            btree.insert( i * 2L, "a" );
+            btree.insert( i * 2L, "b" );
+            addExpected( expected, i * 2L, "a", false );
+            addExpected( expected, i * 2L, "b", false );
+        }
+
+        List<Tuple<Long, String>> tuples = new ArrayList<Tuple<Long, String>>();
+
+        for ( long i = 0L; i < 200L; i++ )
+        {
+            tuples.add( new Tuple<Long, String>( i, "b" ) );
+            tuples.add( new Tuple<Long, String>( i, "c" ) );
+            addExpected( expected, i, "b", false );
+            addExpected( expected, i, "c", false );
+        }
+
+        BulkLoader.merge( btree, tuples.iterator(), 1000 );
+
+        checkContent( btree, expected );
+    }
+
+
+    /**
+     * Check that the pages of the sub-btrees storing the values of the previous revision
+     * are reclaimed with the other pages
+     */
+    @Test
+    public void testMergeReclaimsSubBtrees() throws Exception
+    {
+        PersistedBTree<Long, String> btree = createBTree( true );
+        TreeMap<Long, TreeSet<String>> expected = new TreeMap<Long, TreeSet<String>>();
+
+        for ( long i = 0L; i < 5L; i++ )
+        {
+            for ( int j = 0; j < 20; j++ )
+            {
+                btree.insert( i, "v" + j );
+                addExpected( expected, i, "v" + j, false );
+            }
+        }
+
+        // The values are stored in sub-btrees
+        PersistedLeaf<Long, String> leaf = ( PersistedLeaf<Long, String> ) btree.getRootPage();
+        List<Long> subBtreeOffsets = new ArrayList<Long>();
+
+        for ( int pos = 0; pos < leaf.getNbElems(); pos++ )
+        {
+            PersistedBTree<String, String> subBtree = ( PersistedBTree<String, String> )
+                ( ( PersistedValueHolder<String> ) leaf.getValue( pos ) ).getSubBtree();
+            subBtreeOffsets.add( subBtree.getBtreeOffset() );
+            subBtreeOffsets.add( subBtree.getBtreeInfoOffset() );
+            subBtreeOffsets.add( subBtree.getRootPageOffset() );
+        }
+
+        List<Tuple<Long, String>> tuples = new ArrayList<Tuple<Long, String>>();
+
+        for ( long i = 0L; i < 10L; i++ )
+        {
+            tuples.add( new Tuple<Long, String>( i, "w" ) );
+            addExpected( expected, i, "w", false );
+        }
+
+        BulkLoader.merge( btree, tuples.iterator(), 1000 );
+
+        checkContent( btree, expected );
+
+        long[] copiedPages = rm.copiedPageBtree.get( new RevisionName( btree.getRevision(), TREE_NAME ) );
+        List<Long> copiedOffsets = new ArrayList<Long>();
+
+        for ( long offset : copiedPages )
+        {
+            copiedOffsets.add( offset );
+        }
+
+        assertTrue( copiedOffsets.containsAll( subBtreeOffsets ) );
+
+        // The reclaimed pages are reused, without damaging the new sub-btrees
+        rm._disableReclaimer( false );
+        rm.setPageReclaimerThreshold( 3 );
+
+        for ( long i = 100L; i < 120L; i++ )
+        {
+            btree.insert( i, "x" );
+        }
+
+        rm.close();
+        rm = new RecordManager( dbFile.getAbsolutePath() );
+        rm._disableReclaimer( true );
+
+        BTree<Long, String> reloaded = rm.<Long, String> getManagedTree( TREE_NAME );
+
+        for ( long i = 0L; i < 5L; i++ )
+        {
+            assertEquals( 21, reloaded.getValues( i ).size() );
+        }
+    }
+
+
+    /**
+     * Merge a few elements, the result fitting in one single page
+     */
+    @Test
+    public void testMergeSinglePage() throws Exception
+    {
+        PersistedBTree<Long, String> btree = createBTree( false );
+        TreeMap<Long, TreeSet<String>> expected = new TreeMap<Long, TreeSet<String>>();
+
+        for ( long i = 0L; i < 5L; i++ )
+        {
+            btree.insert( i, "old" + i );
+            addExpected( expected, i, "old" + i, true );
+        }
+
+        List<Tuple<Long, String>> tuples = new ArrayList<Tuple<Long, String>>();
+
+        for ( long i = 3L; i < 10L; i++ )
+        {
+            tuples.add( new Tuple<Long, String>( i, "new" + i ) );
+            addExpected( expected, i, "new" + i, true );
+        }
+
+        BulkLoader.merge( btree, tuples.iterator(), 1000 );
+
+        checkContent( btree, expected );
+
+        // The B-tree can still be updated
+        btree.insert( 100L, "v100" );
+        addExpected( expected, 100L, "v100", true );
+        btree.delete( 0L );
+        expected.remove( 0L );
+
+        checkContent( btree, expected );
+    }
+}
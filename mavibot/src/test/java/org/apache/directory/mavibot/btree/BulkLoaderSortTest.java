@@ -0,0 +1,272 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.mavibot.btree;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+
+import org.apache.directory.mavibot.btree.serializer.LongSerializer;
+import org.apache.directory.mavibot.btree.serializer.StringSerializer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+/**
+ * Tests for the sort of the chunks, the run files and the merge of the runs done by the BulkLoader.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class BulkLoaderSortTest
+{
+    private RecordManager rm;
+
+    @Rule
+    public TemporaryFolder tmpDir;
+
+    private File dbFile;
+
+
+    @Before
+    public void setup() throws Exception
+    {
+        tmpDir = new TemporaryFolder();
+        tmpDir.create();
+
+        dbFile = tmpDir.newFile( "sort.db" );
+
+        rm = new RecordManager( dbFile.getAbsolutePath() );
+        rm._disableReclaimer( true );
+    }
+
+
+    @After
+    public void cleanup() throws Exception
+    {
+        rm.close();
+        dbFile.delete();
+        tmpDir.delete();
+    }
+
+
+    private PersistedBTree<Long, String> createBTree( String name ) throws Exception
+    {
+        PersistedBTreeConfiguration<Long, String> config = new PersistedBTreeConfiguration<Long, String>();
+        config.setName( name );
+        config.setKeySerializer( LongSerializer.INSTANCE );
+        config.setValueSerializer( StringSerializer.INSTANCE );
+        config.setPageSize( 64 );
+        config.setAllowDuplicates( true );
+
+        PersistedBTree<Long, String> btree = ( PersistedBTree<Long, String> ) BTreeFactory
+            .createPersistedBTree( config );
+        rm.manage( btree );
+
+        return btree;
+    }
+
+
+    /**
+     * Create some random tuples, with duplicate keys, and store them in the expected map
+     */
+    private List<Tuple<Long, String>> createTuples( int nbElems, long maxKey, TreeMap<Long, TreeSet<String>> expected )
+    {
+        Random random = new Random( 42L );
+        List<Tuple<Long, String>> tuples = new ArrayList<Tuple<Long, String>>( nbElems );
+
+        for ( int i = 0; i < nbElems; i++ )
+        {
+            long key = ( long ) random.nextInt( ( int ) maxKey );
+            String value = "V" + random.nextInt( 4 );
+
+            tuples.add( new Tuple<Long, String>( key, value ) );
+
+            TreeSet<String> values = expected.get( key );
+
+            if ( values == null )
+            {
+                values = new TreeSet<String>();
+                expected.put( key, values );
+            }
+
+            values.add( value );
+        }
+
+        return tuples;
+    }
+
+
+    /**
+     * Check that the browsed tuples are the expected ones
+     */
+    private void checkContent( BTree<Long, String> btree, TreeMap<Long, TreeSet<String>> expected )
+        throws Exception
+    {
+        assertEquals( expected.size(), btree.getNbElems() );
+
+        TupleCursor<Long, String> cursor = btree.browse();
+
+        try
+        {
+            for ( Map.Entry<Long, TreeSet<String>> entry : expected.entrySet() )
+            {
+                for ( String value : entry.getValue() )
+                {
+                    assertTrue( cursor.hasNext() );
+                    Tuple<Long, String> tuple = cursor.next();
+                    assertEquals( entry.getKey(), tuple.getKey() );
+                    assertEquals( value, tuple.getValue() );
+                }
+            }
+
+            assertFalse( cursor.hasNext() );
+        }
+        finally
+        {
+            cursor.close();
+        }
+    }
+
+
+    /**
+     * Load some data in memory : the chunk is big enough to be sorted by many tasks
+     */
+    @Test
+    public void testLoadInMemory() throws Exception
+    {
+        PersistedBTree<Long, String> btree = createBTree( "inMemory" );
+        TreeMap<Long, TreeSet<String>> expected = new TreeMap<Long, TreeSet<String>>();
+        List<Tuple<Long, String>> tuples = createTuples( 40000, 30000L, expected );
+
+        BTree<Long, String> result = BulkLoader.load( btree, tuples.iterator(), 50000 );
+
+        checkContent( result, expected );
+    }
+
+
+    /**
+     * Load some data using many run files, a key being present in many of them
+     */
+    @Test
+    public void testLoadManyRuns() throws Exception
+    {
+        PersistedBTree<Long, String> btree = createBTree( "manyRuns" );
+        TreeMap<Long, TreeSet<String>> expected = new TreeMap<Long, TreeSet<String>>();
+        List<Tuple<Long, String>> tuples = createTuples( 30000, 5000L, expected );
+
+        BTree<Long, String> result = BulkLoader.load( btree, tuples.iterator(), 1000 );
+
+        checkContent( result, expected );
+    }
+
+
+    /**
+     * Load some values bigger than the run file buffers
+     */
+    @Test
+    public void testLoadBigValues() throws Exception
+    {
+        PersistedBTree<Long, String> btree = createBTree( "bigValues" );
+        TreeMap<Long, TreeSet<String>> expected = new TreeMap<Long, TreeSet<String>>();
+        List<Tuple<Long, String>> tuples = new ArrayList<Tuple<Long, String>>();
+        StringBuilder sb = new StringBuilder();
+
+        for ( int i = 0; i < 70000; i++ )
+        {
+            sb.append( ( char ) ( 'a' + ( i % 26 ) ) );
+        }
+
+        String big = sb.toString();
+
+        for ( long i = 0L; i < 20L; i++ )
+        {
+            String value = ( i % 2 == 0 ) ? ( big + i ) : ( "small" + i );
+            tuples.add( new Tuple<Long, String>( 19L - i, value ) );
+
+            TreeSet<String> values = new TreeSet<String>();
+            values.add( value );
+            expected.put( 19L - i, values );
+        }
+
+        BTree<Long, String> result = BulkLoader.load( btree, tuples.iterator(), 3 );
+
+        checkContent( result, expected );
+    }
+
+
+    /**
+     * Measure the load time depending on the number of cores used to sort the chunks
+     */
+    @Test
+    @Ignore("Benchmark")
+    public void testLoadTimeVsCores() throws Exception
+    {
+        int nbElems = 2000000;
+        int nbCores = Runtime.getRuntime().availableProcessors();
+        TreeMap<Long, TreeSet<String>> expected = new TreeMap<Long, TreeSet<String>>();
+        final List<Tuple<Long, String>> tuples = createTuples( nbElems, 1000000L, expected );
+
+        for ( int parallelism = 1; parallelism <= nbCores; parallelism++ )
+        {
+            final PersistedBTree<Long, String> btree = createBTree( "cores" + parallelism );
+            ForkJoinPool pool = new ForkJoinPool( parallelism );
+
+            try
+            {
+                long t0 = System.currentTimeMillis();
+
+                pool.submit( new Callable<BTree<Long, String>>()
+                {
+                    public BTree<Long, String> call() throws Exception
+                    {
+                        Iterator<Tuple<Long, String>> iterator = tuples.iterator();
+
+                        return BulkLoader.load( btree, iterator, 500000 );
+                    }
+                } ).get();
+
+                long t1 = System.currentTimeMillis();
+
+                System.out.println( "== " + parallelism + " core(s), Time to bulkoad the " + nbElems + " elements "
+                    + ( t1 - t0 ) + "ms" );
+            }
+            finally
+            {
+                pool.shutdown();
+            }
+        }
+    }
+}
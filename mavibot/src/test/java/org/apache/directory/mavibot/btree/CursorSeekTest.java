@@ -0,0 +1,430 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.mavibot.btree;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.directory.mavibot.btree.comparator.LongComparator;
+import org.apache.directory.mavibot.btree.serializer.IntSerializer;
+import org.apache.directory.mavibot.btree.serializer.LongSerializer;
+import org.apache.directory.mavibot.btree.serializer.StringSerializer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+/**
+ * Tests for the seek() method of the cursors, and for the intersection and union cursors.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class CursorSeekTest
+{
+    private RecordManager rm;
+
+    @Rule
+    public TemporaryFolder tmpDir;
+
+    private File dbFile;
+
+
+    @Before
+    public void setup() throws Exception
+    {
+        tmpDir = new TemporaryFolder();
+        tmpDir.create();
+
+        dbFile = tmpDir.newFile( "seek.db" );
+
+        rm = new RecordManager( dbFile.getAbsolutePath() );
+        rm._disableReclaimer( true );
+    }
+
+
+    @After
+    public void cleanup() throws Exception
+    {
+        rm.close();
+        dbFile.delete();
+        tmpDir.delete();
+    }
+
+
+    /**
+     * Checks the seek on a B-tree containing the even keys from 0 to 998
+     */
+    private void checkTupleSeek( BTree<Integer, String> btree ) throws Exception
+    {
+        for ( int i = 0; i < 1000; i += 2 )
+        {
+            btree.insert( i, Integer.toString( i ) );
+        }
+
+        TupleCursor<Integer, String> cursor = btree.browse();
+
+        try
+        {
+            // Forward, on existing and missing keys
+            for ( int i = -1; i < 998; i += 7 )
+            {
+                cursor.seek( i );
+                int expected = ( i + 1 ) & ~1;
+
+                assertTrue( cursor.hasNext() );
+                assertEquals( expected, cursor.next().getKey().intValue() );
+                assertEquals( expected + 2, cursor.next().getKey().intValue() );
+            }
+
+            // Backward
+            cursor.seek( 501 );
+            assertTrue( cursor.hasPrev() );
+            assertEquals( 500, cursor.prev().getKey().intValue() );
+            cursor.seek( 0 );
+            assertFalse( cursor.hasPrev() );
+            assertEquals( 0, cursor.next().getKey().intValue() );
+
+            // Above the last key
+            cursor.seek( 999 );
+            assertFalse( cursor.hasNext() );
+            assertTrue( cursor.hasPrev() );
+            assertEquals( 998, cursor.prev().getKey().intValue() );
+        }
+        finally
+        {
+            cursor.close();
+        }
+
+        KeyCursor<Integer> keyCursor = btree.browseKeys();
+
+        try
+        {
+            for ( int i = 997; i >= -1; i -= 5 )
+            {
+                keyCursor.seek( i );
+                int expected = ( i + 1 ) & ~1;
+
+                if ( expected < 1000 )
+                {
+                    assertTrue( keyCursor.hasNext() );
+                    assertEquals( expected, keyCursor.next().intValue() );
+                }
+            }
+
+            keyCursor.seek( 1000 );
+            assertFalse( keyCursor.hasNext() );
+        }
+        finally
+        {
+            keyCursor.close();
+        }
+    }
+
+
+    @Test
+    public void testSeekInMemory() throws Exception
+    {
+        BTree<Integer, String> btree = BTreeFactory.createInMemoryBTree( "test", IntSerializer.INSTANCE,
+            StringSerializer.INSTANCE );
+        btree.setPageSize( 8 );
+
+        checkTupleSeek( btree );
+    }
+
+
+    @Test
+    public void testSeekPersisted() throws Exception
+    {
+        BTree<Integer, String> btree = rm.addBTree( "test", IntSerializer.INSTANCE, StringSerializer.INSTANCE,
+            false );
+
+        checkTupleSeek( btree );
+    }
+
+
+    @Test
+    public void testSeekEmpty() throws Exception
+    {
+        BTree<Integer, String> btree = BTreeFactory.createInMemoryBTree( "test", IntSerializer.INSTANCE,
+            StringSerializer.INSTANCE );
+
+        TupleCursor<Integer, String> cursor = btree.browse();
+        cursor.seek( 5 );
+        assertFalse( cursor.hasNext() );
+        cursor.close();
+    }
+
+
+    /**
+     * Creates an in-memory B-tree with duplicate Long values : the values are stored
+     * in sub-btrees
+     */
+    private BTree<String, Long> createIndex() throws Exception
+    {
+        InMemoryBTreeConfiguration<String, Long> config = new InMemoryBTreeConfiguration<String, Long>();
+        config.setAllowDuplicates( true );
+        config.setName( "index" );
+        config.setSerializers( StringSerializer.INSTANCE, LongSerializer.INSTANCE );
+        config.setPageSize( 8 );
+
+        BTree<String, Long> btree = new InMemoryBTree<String, Long>( config );
+
+        for ( long i = 0; i < 300; i++ )
+        {
+            if ( ( i % 2 ) == 0 )
+            {
+                btree.insert( "even", i );
+            }
+
+            if ( ( i % 3 ) == 0 )
+            {
+                btree.insert( "three", i );
+            }
+
+            if ( ( i % 5 ) == 0 )
+            {
+                btree.insert( "five", i );
+            }
+        }
+
+        btree.insert( "one", 30L );
+
+        return btree;
+    }
+
+
+    private List<Long> readAll( ValueCursor<Long> cursor ) throws Exception
+    {
+        List<Long> values = new ArrayList<Long>();
+
+        while ( cursor.hasNext() )
+        {
+            values.add( cursor.next() );
+        }
+
+        cursor.close();
+
+        return values;
+    }
+
+
+    @Test
+    public void testValueSeek() throws Exception
+    {
+        BTree<String, Long> btree = createIndex();
+
+        // Values in a sub-btree
+        ValueCursor<Long> cursor = btree.getValues( "three" );
+        cursor.seek( 100L );
+        assertEquals( 102L, cursor.next().longValue() );
+        cursor.seek( 0L );
+        assertEquals( 0L, cursor.next().longValue() );
+        cursor.seek( 298L );
+        assertFalse( cursor.hasNext() );
+        cursor.close();
+
+        // Values in an array
+        ValueArrayCursor<Long> arrayCursor = new ValueArrayCursor<Long>( new Long[]
+            { 1L, 5L, 9L }, LongComparator.INSTANCE );
+        arrayCursor.seek( 0L );
+        assertEquals( 1L, arrayCursor.next().longValue() );
+        arrayCursor.seek( 5L );
+        assertEquals( 5L, arrayCursor.next().longValue() );
+        arrayCursor.seek( 6L );
+        assertEquals( 9L, arrayCursor.next().longValue() );
+        arrayCursor.seek( 10L );
+        assertFalse( arrayCursor.hasNext() );
+    }
+
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testIntersectionAndUnion() throws Exception
+    {
+        BTree<String, Long> btree = createIndex();
+
+        List<Long> expected = new ArrayList<Long>();
+
+        for ( long i = 0; i < 300; i += 30 )
+        {
+            expected.add( i );
+        }
+
+        assertEquals( expected, readAll( new ValueIntersectionCursor<Long>( LongComparator.INSTANCE,
+            btree.getValues( "even" ), btree.getValues( "three" ), btree.getValues( "five" ) ) ) );
+
+        assertEquals( 30L, readAll( new ValueIntersectionCursor<Long>( LongComparator.INSTANCE,
+            btree.getValues( "even" ), btree.getValues( "one" ) ) ).get( 0 ).longValue() );
+
+        // (three OR five) AND even
+        ValueCursor<Long> union = new ValueUnionCursor<Long>( LongComparator.INSTANCE, btree.getValues( "three" ),
+            btree.getValues( "five" ) );
+        List<Long> values = readAll( new ValueIntersectionCursor<Long>( LongComparator.INSTANCE, union,
+            btree.getValues( "even" ) ) );
+        expected.clear();
+
+        for ( long i = 0; i < 300; i += 2 )
+        {
+            if ( ( ( i % 3 ) == 0 ) || ( ( i % 5 ) == 0 ) )
+            {
+                expected.add( i );
+            }
+        }
+
+        assertEquals( expected, values );
+    }
+
+
+    private List<Long> readAllBackward( ValueCursor<Long> cursor ) throws Exception
+    {
+        List<Long> values = new ArrayList<Long>();
+        cursor.afterLast();
+
+        while ( cursor.hasPrev() )
+        {
+            values.add( 0, cursor.prev() );
+        }
+
+        return values;
+    }
+
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testIntersectionAndUnionBackward() throws Exception
+    {
+        BTree<String, Long> btree = createIndex();
+
+        List<Long> expected = new ArrayList<Long>();
+
+        for ( long i = 0; i < 300; i += 30 )
+        {
+            expected.add( i );
+        }
+
+        ValueCursor<Long> intersection = new ValueIntersectionCursor<Long>( LongComparator.INSTANCE,
+            btree.getValues( "even" ), btree.getValues( "three" ), btree.getValues( "five" ) );
+        assertEquals( expected, readAllBackward( intersection ) );
+
+        // Values in arrays
+        ValueCursor<Long> array1 = new ValueArrayCursor<Long>( new Long[]
+            { 1L, 3L, 5L, 7L, 9L }, LongComparator.INSTANCE );
+        ValueCursor<Long> array2 = new ValueArrayCursor<Long>( new Long[]
+            { 2L, 3L, 4L, 5L, 9L, 10L }, LongComparator.INSTANCE );
+        assertEquals( Arrays.asList( 3L, 5L, 9L ), readAllBackward( new ValueIntersectionCursor<Long>(
+            LongComparator.INSTANCE, array1, array2 ) ) );
+        assertEquals( Arrays.asList( 1L, 2L, 3L, 4L, 5L, 7L, 9L, 10L ), readAllBackward( new ValueUnionCursor<Long>(
+            LongComparator.INSTANCE, array1, array2 ) ) );
+
+        // (three OR five) AND even
+        ValueCursor<Long> union = new ValueUnionCursor<Long>( LongComparator.INSTANCE, btree.getValues( "three" ),
+            btree.getValues( "five" ) );
+        intersection = new ValueIntersectionCursor<Long>( LongComparator.INSTANCE, union, btree.getValues( "even" ) );
+        expected.clear();
+
+        for ( long i = 0; i < 300; i += 2 )
+        {
+            if ( ( ( i % 3 ) == 0 ) || ( ( i % 5 ) == 0 ) )
+            {
+                expected.add( i );
+            }
+        }
+
+        assertEquals( expected, readAllBackward( intersection ) );
+
+        // Change the direction while browsing
+        intersection.beforeFirst();
+        assertFalse( intersection.hasPrev() );
+        assertEquals( 0L, intersection.next().longValue() );
+        assertEquals( 6L, intersection.next().longValue() );
+        assertEquals( 10L, intersection.next().longValue() );
+        assertEquals( 6L, intersection.prev().longValue() );
+        assertEquals( 0L, intersection.prev().longValue() );
+        assertFalse( intersection.hasPrev() );
+        assertEquals( 6L, intersection.next().longValue() );
+
+        // A seek moves the cursor between the values below and above the seeked value
+        intersection.seek( 100L );
+        assertEquals( 96L, intersection.prev().longValue() );
+        assertEquals( 100L, intersection.next().longValue() );
+        intersection.seek( 100L );
+        assertEquals( 100L, intersection.next().longValue() );
+        assertEquals( 102L, intersection.next().longValue() );
+
+        union.seek( 100L );
+        assertEquals( 99L, union.prev().longValue() );
+        assertEquals( 100L, union.next().longValue() );
+        assertEquals( 102L, union.next().longValue() );
+        assertEquals( 100L, union.prev().longValue() );
+
+        intersection.afterLast();
+        assertFalse( intersection.hasNext() );
+        assertEquals( 294L, intersection.prev().longValue() );
+        assertEquals( 290L, intersection.prev().longValue() );
+        assertEquals( 294L, intersection.next().longValue() );
+        assertFalse( intersection.hasNext() );
+        intersection.close();
+    }
+
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testIntersectionAndUnionSize() throws Exception
+    {
+        BTree<String, Long> btree = createIndex();
+
+        ValueCursor<Long> intersection = new ValueIntersectionCursor<Long>( LongComparator.INSTANCE,
+            btree.getValues( "even" ), btree.getValues( "three" ), btree.getValues( "five" ) );
+        assertEquals( 10, intersection.size() );
+
+        // The size does not move the cursor
+        assertEquals( 0L, intersection.next().longValue() );
+        assertEquals( 30L, intersection.next().longValue() );
+        assertEquals( 10, intersection.size() );
+        assertEquals( 60L, intersection.next().longValue() );
+        assertEquals( 30L, intersection.prev().longValue() );
+        intersection.close();
+
+        ValueCursor<Long> union = new ValueUnionCursor<Long>( LongComparator.INSTANCE, btree.getValues( "three" ),
+            btree.getValues( "five" ) );
+
+        // 100 multiples of 3, 60 multiples of 5, 20 multiples of 15
+        assertEquals( 140, union.size() );
+        union.seek( 150L );
+        assertEquals( 140, union.size() );
+        assertEquals( 150L, union.next().longValue() );
+        assertEquals( 153L, union.next().longValue() );
+        union.close();
+
+        assertEquals( 0, new ValueIntersectionCursor<Long>( LongComparator.INSTANCE, new ValueArrayCursor<Long>(
+            new Long[]
+                { 1L }, LongComparator.INSTANCE ), new ValueArrayCursor<Long>( new Long[]
+            { 2L }, LongComparator.INSTANCE ) ).size() );
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.mavibot.btree;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+
+import org.apache.directory.mavibot.btree.exception.RecordManagerException;
+import org.apache.directory.mavibot.btree.serializer.IntSerializer;
+import org.apache.directory.mavibot.btree.serializer.StringSerializer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+/**
+ * Tests for the online file compactor.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class FileCompactorTest
+{
+    private static final String TREE_NAME = "uid-tree";
+
+    private RecordManager rm;
+
+    private PersistedBTree<Integer, String> uidTree;
+
+    @Rule
+    public TemporaryFolder tmpDir;
+
+    private File dbFile;
+
+
+    @Before
+    public void setup() throws Exception
+    {
+        tmpDir = new TemporaryFolder();
+        tmpDir.create();
+
+        dbFile = tmpDir.newFile( "compactor.db" );
+
+        rm = new RecordManager( dbFile.getAbsolutePath() );
+        rm.setPageReclaimerThreshold( 10 );
+
+        uidTree = ( PersistedBTree<Integer, String> ) rm.addBTree( TREE_NAME, IntSerializer.INSTANCE,
+            StringSerializer.INSTANCE, false );
+    }
+
+
+    @After
+    public void cleanup() throws Exception
+    {
+        rm.close();
+        dbFile.delete();
+        tmpDir.delete();
+    }
+
+
+    private void closeAndReopenRM() throws Exception
+    {
+        uidTree.close();
+        rm.close();
+        rm = new RecordManager( dbFile.getAbsolutePath() );
+        uidTree = ( PersistedBTree ) rm.getManagedTree( TREE_NAME );
+    }
+
+
+    /**
+     * Insert a lot of elements, and remove most of them, so that the file contains many free pages
+     */
+    private void fillAndDelete( int total ) throws Exception
+    {
+        for ( int i = 0; i < total; i++ )
+        {
+            uidTree.insert( i, String.valueOf( i ) );
+        }
+
+        for ( int i = 0; i < total; i++ )
+        {
+            if ( ( i % 10 ) != 0 )
+            {
+                uidTree.delete( i );
+            }
+        }
+    }
+
+
+    private void checkContent( int total ) throws Exception
+    {
+        int count = 0;
+        TupleCursor<Integer, String> cursor = uidTree.browse();
+
+        while ( cursor.hasNext() )
+        {
+            Tuple<Integer, String> t = cursor.next();
+            assertEquals( Integer.valueOf( count * 10 ), t.getKey() );
+            assertEquals( String.valueOf( count * 10 ), t.getValue() );
+            count++;
+        }
+
+        cursor.close();
+
+        assertEquals( total / 10, count );
+    }
+
+
+    @Test
+    public void testCompact() throws Exception
+    {
+        int total = 2000;
+        fillAndDelete( total );
+
+        long sizeBefore = dbFile.length();
+
+        long released = rm.compact();
+
+        assertTrue( released > 0 );
+        assertEquals( sizeBefore - released, dbFile.length() );
+        assertEquals( rm.getEndOfFileOffset(), dbFile.length() );
+
+        checkContent( total );
+
+        // The tree must still be updatable
+        uidTree.insert( total, String.valueOf( total ) );
+        uidTree.delete( total );
+
+        closeAndReopenRM();
+
+        checkContent( total );
+        assertEquals( total / 10, uidTree.getNbElems() );
+    }
+
+
+    @Test
+    public void testCompactInSmallSteps() throws Exception
+    {
+        int total = 2000;
+        fillAndDelete( total );
+
+        long sizeBefore = dbFile.length();
+
+        FileCompactor compactor = new FileCompactor( rm );
+        compactor.setMaxPagesPerStep( 2 );
+        compactor.compact();
+
+        assertTrue( dbFile.length() < sizeBefore );
+
+        closeAndReopenRM();
+
+        checkContent( total );
+    }
+
+
+    @Test
+    public void testCompactWithOpenReadTransaction() throws Exception
+    {
+        int total = 2000;
+        fillAndDelete( total );
+
+        // Keep a cursor open on the current revision
+        TupleCursor<Integer, String> cursor = uidTree.browse();
+
+        rm.compact();
+
+        // The cursor must still see its revision
+        int count = 0;
+
+        while ( cursor.hasNext() )
+        {
+            Tuple<Integer, String> t = cursor.next();
+            assertEquals( Integer.valueOf( count * 10 ), t.getKey() );
+            count++;
+        }
+
+        cursor.close();
+
+        assertEquals( total / 10, count );
+
+        closeAndReopenRM();
+
+        checkContent( total );
+    }
+
+
+    /**
+     * The free pages are linked again inside a transaction only. A rollback keeps a valid list
+     */
+    @Test
+    public void testOrderFreePagesInTransaction() throws Exception
+    {
+        int total = 1000;
+        fillAndDelete( total );
+
+        try
+        {
+            rm.orderFreePages();
+            fail();
+        }
+        catch ( RecordManagerException rme )
+        {
+            // Expected
+        }
+
+        rm.beginTransaction();
+        rm.orderFreePages();
+        rm.rollback();
+
+        // The free pages are checked when the file is loaded
+        closeAndReopenRM();
+
+        checkContent( total );
+    }
+
+
+    @Test
+    public void testCompactEmptyFreeList() throws Exception
+    {
+        uidTree.insert( 1, "1" );
+
+        rm.compact();
+
+        assertFalse( uidTree.browse().hasPrev() );
+        assertEquals( "1", uidTree.get( 1 ) );
+    }
+}
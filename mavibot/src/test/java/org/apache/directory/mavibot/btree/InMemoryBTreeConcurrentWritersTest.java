@@ -0,0 +1,184 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.mavibot.btree;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.directory.mavibot.btree.serializer.LongSerializer;
+import org.apache.directory.mavibot.btree.serializer.StringSerializer;
+import org.junit.Test;
+
+
+/**
+ * Tests for the in-memory B-tree modified by concurrent writers.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class InMemoryBTreeConcurrentWritersTest
+{
+    private static final int NB_WRITERS = 4;
+
+    private static final int NB_KEYS = 5000;
+
+
+    private InMemoryBTreeConfiguration<Long, String> createConfiguration()
+    {
+        InMemoryBTreeConfiguration<Long, String> config = new InMemoryBTreeConfiguration<Long, String>();
+        config.setName( "concurrent" );
+        config.setSerializers( LongSerializer.INSTANCE, StringSerializer.INSTANCE );
+        config.setPageSize( 8 );
+        config.setConcurrentWriters( true );
+
+        return config;
+    }
+
+
+    @Test
+    public void testConcurrentWriters() throws Exception
+    {
+        final InMemoryBTree<Long, String> btree = new InMemoryBTree<Long, String>( createConfiguration() );
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        Thread[] writers = new Thread[NB_WRITERS];
+
+        for ( int t = 0; t < NB_WRITERS; t++ )
+        {
+            final long writer = t;
+
+            writers[t] = new Thread()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        // Each writer inserts its own keys, interleaved with the other writers' keys,
+                        // replaces them, then removes one out of two
+                        for ( long i = 0; i < NB_KEYS; i++ )
+                        {
+                            btree.insert( i * NB_WRITERS + writer, "V" + i );
+                        }
+
+                        for ( long i = 0; i < NB_KEYS; i++ )
+                        {
+                            if ( !( "V" + i ).equals( btree.insert( i * NB_WRITERS + writer, "W" + i ) ) )
+                            {
+                                throw new IllegalStateException( "Value of " + i + " not replaced" );
+                            }
+                        }
+
+                        for ( long i = 0; i < NB_KEYS; i += 2 )
+                        {
+                            if ( btree.delete( i * NB_WRITERS + writer ) == null )
+                            {
+                                throw new IllegalStateException( "Key " + i + " not deleted" );
+                            }
+                        }
+                    }
+                    catch ( Throwable t )
+                    {
+                        error.set( t );
+                    }
+                }
+            };
+        }
+
+        for ( Thread writer : writers )
+        {
+            writer.start();
+        }
+
+        for ( Thread writer : writers )
+        {
+            writer.join();
+        }
+
+        assertEquals( null, error.get() );
+        assertEquals( ( long ) NB_WRITERS * NB_KEYS / 2, btree.getNbElems() );
+
+        TupleCursor<Long, String> cursor = btree.browse();
+
+        for ( long key = 0; key < ( long ) NB_WRITERS * NB_KEYS; key++ )
+        {
+            long i = key / NB_WRITERS;
+
+            if ( ( i % 2 ) == 1 )
+            {
+                assertTrue( cursor.hasNext() );
+                Tuple<Long, String> tuple = cursor.next();
+                assertEquals( Long.valueOf( key ), tuple.getKey() );
+                assertEquals( "W" + i, tuple.getValue() );
+            }
+            else
+            {
+                assertFalse( btree.hasKey( key ) );
+            }
+        }
+
+        assertFalse( cursor.hasNext() );
+        cursor.close();
+
+        btree.close();
+    }
+
+
+    @Test
+    public void testPreviousRevisionKeepsItsValues() throws Exception
+    {
+        InMemoryBTree<Long, String> btree = new InMemoryBTree<Long, String>( createConfiguration() );
+
+        for ( long i = 0; i < 100; i++ )
+        {
+            btree.insert( i, "old" + i );
+        }
+
+        long revision = btree.getRevision();
+        TupleCursor<Long, String> cursor = btree.browse();
+
+        for ( long i = 0; i < 100; i++ )
+        {
+            btree.insert( i, "new" + i );
+        }
+
+        assertEquals( revision + 100, btree.getRevision() );
+
+        for ( long i = 0; i < 100; i++ )
+        {
+            assertEquals( "old" + i, cursor.next().getValue() );
+            assertEquals( "new" + i, btree.get( i ) );
+        }
+
+        cursor.close();
+        btree.close();
+    }
+
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInPlaceUpdatesNotAllowed()
+    {
+        InMemoryBTreeConfiguration<Long, String> config = createConfiguration();
+        config.setInPlaceUpdates( true );
+
+        new InMemoryBTree<Long, String>( config );
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.mavibot.btree;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.apache.directory.mavibot.btree.serializer.IntSerializer;
+import org.apache.directory.mavibot.btree.serializer.StringSerializer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+/**
+ * Tests for the searches done on the flat copies of the keys and children of the
+ * in-memory pages, and on the primitive copies of Integer keys.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class InMemoryBTreeFlatKeysTest
+{
+    private RecordManager rm;
+
+    @Rule
+    public TemporaryFolder tmpDir;
+
+    private File dbFile;
+
+
+    @Before
+    public void setup() throws Exception
+    {
+        tmpDir = new TemporaryFolder();
+        tmpDir.create();
+
+        dbFile = tmpDir.newFile( "flat.db" );
+
+        rm = new RecordManager( dbFile.getAbsolutePath() );
+        rm._disableReclaimer( true );
+    }
+
+
+    @After
+    public void cleanup() throws Exception
+    {
+        rm.close();
+        dbFile.delete();
+        tmpDir.delete();
+    }
+
+
+    /**
+     * Inserts and deletes keys, checking every lookup and a browse against a TreeMap
+     */
+    private <K> void checkBTree( BTree<K, String> btree, K[] keys, K from ) throws Exception
+    {
+        TreeMap<K, String> expected = new TreeMap<K, String>();
+
+        for ( K key : keys )
+        {
+            btree.insert( key, "V" + key );
+            expected.put( key, "V" + key );
+        }
+
+        // Delete one key out of three, so that pages get merged and borrow elements
+        for ( int i = 0; i < keys.length; i += 3 )
+        {
+            btree.delete( keys[i] );
+            expected.remove( keys[i] );
+        }
+
+        assertEquals( expected.size(), btree.getNbElems() );
+
+        for ( int i = 0; i < keys.length; i++ )
+        {
+            assertEquals( expected.containsKey( keys[i] ), btree.hasKey( keys[i] ) );
+
+            if ( expected.containsKey( keys[i] ) )
+            {
+                assertEquals( "V" + keys[i], btree.get( keys[i] ) );
+            }
+        }
+
+        TupleCursor<K, String> cursor = btree.browseFrom( from );
+
+        for ( K key : expected.tailMap( from ).keySet() )
+        {
+            assertTrue( cursor.hasNext() );
+            assertEquals( key, cursor.next().getKey() );
+        }
+
+        assertFalse( cursor.hasNext() );
+        cursor.close();
+    }
+
+
+    @Test
+    public void testInMemoryStringKeys() throws Exception
+    {
+        BTree<String, String> btree = BTreeFactory.createInMemoryBTree( "test", StringSerializer.INSTANCE,
+            StringSerializer.INSTANCE );
+        btree.setPageSize( 8 );
+
+        Random random = new Random( 42L );
+        String[] keys = new String[3000];
+
+        for ( int i = 0; i < keys.length; i++ )
+        {
+            keys[i] = "K" + random.nextInt( 100000 );
+        }
+
+        checkBTree( btree, keys, "K5" );
+    }
+
+
+    @Test
+    public void testInMemoryIntegerKeys() throws Exception
+    {
+        BTree<Integer, String> btree = BTreeFactory.createInMemoryBTree( "test", IntSerializer.INSTANCE,
+            StringSerializer.INSTANCE );
+        btree.setPageSize( 8 );
+
+        Random random = new Random( 42L );
+        Integer[] keys = new Integer[3000];
+
+        for ( int i = 0; i < keys.length; i++ )
+        {
+            // Negative keys, and keys using the whole int range
+            keys[i] = ( i % 10 == 0 ) ? random.nextInt() : random.nextInt( 100000 ) - 50000;
+        }
+
+        checkBTree( btree, keys, 0 );
+    }
+
+
+    @Test
+    public void testPersistedIntegerKeys() throws Exception
+    {
+        BTree<Integer, String> btree = rm.addBTree( "test", IntSerializer.INSTANCE, StringSerializer.INSTANCE,
+            false );
+
+        Integer[] keys = new Integer[1000];
+
+        for ( int i = 0; i < keys.length; i++ )
+        {
+            keys[i] = ( i * 7919 ) % 1000 - 500;
+        }
+
+        checkBTree( btree, keys, -100 );
+
+        // Reload the B-tree, the keys are now read from their serialized form
+        rm.close();
+        rm = new RecordManager( dbFile.getAbsolutePath() );
+        rm._disableReclaimer( true );
+
+        btree = rm.getManagedTree( "test" );
+
+        for ( int i = 0; i < keys.length; i++ )
+        {
+            assertEquals( ( i % 3 ) != 0, btree.hasKey( keys[i] ) );
+        }
+
+        assertFalse( btree.hasKey( 500 ) );
+        assertFalse( btree.hasKey( Integer.MIN_VALUE ) );
+    }
+}
@@ -0,0 +1,343 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.mavibot.btree;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.directory.mavibot.btree.serializer.LongSerializer;
+import org.apache.directory.mavibot.btree.serializer.StringSerializer;
+import org.junit.Test;
+
+
+/**
+ * Tests for the in-memory B-tree modifying its pages in place.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class InMemoryBTreeInPlaceTest
+{
+    private InMemoryBTree<Long, String> createBTree()
+    {
+        InMemoryBTreeConfiguration<Long, String> config = new InMemoryBTreeConfiguration<Long, String>();
+        config.setName( "inplace" );
+        config.setSerializers( LongSerializer.INSTANCE, StringSerializer.INSTANCE );
+        config.setPageSize( 8 );
+        config.setInPlaceUpdates( true );
+
+        return new InMemoryBTree<Long, String>( config );
+    }
+
+
+    @Test
+    public void testInsertReplaceDelete() throws Exception
+    {
+        InMemoryBTree<Long, String> btree = createBTree();
+        TreeMap<Long, String> expected = new TreeMap<Long, String>();
+        Random random = new Random( 42L );
+
+        for ( int i = 0; i < 20000; i++ )
+        {
+            long key = random.nextInt( 3000 );
+            String value = "V" + key + "-" + i;
+
+            if ( i % 3 == 2 )
+            {
+                assertEquals( expected.remove( key ) != null, btree.delete( key ) != null );
+            }
+            else
+            {
+                assertEquals( expected.put( key, value ), btree.insert( key, value ) );
+            }
+        }
+
+        assertEquals( expected.size(), btree.getNbElems() );
+
+        for ( long key = 0; key < 3000; key++ )
+        {
+            assertEquals( expected.containsKey( key ), btree.hasKey( key ) );
+
+            if ( expected.containsKey( key ) )
+            {
+                assertEquals( expected.get( key ), btree.get( key ) );
+                assertTrue( btree.contains( key, expected.get( key ) ) );
+            }
+        }
+
+        TupleCursor<Long, String> cursor = btree.browse();
+
+        for ( Map.Entry<Long, String> entry : expected.entrySet() )
+        {
+            assertTrue( cursor.hasNext() );
+            Tuple<Long, String> tuple = cursor.next();
+            assertEquals( entry.getKey(), tuple.getKey() );
+            assertEquals( entry.getValue(), tuple.getValue() );
+        }
+
+        assertFalse( cursor.hasNext() );
+        cursor.close();
+
+        btree.close();
+    }
+
+
+    @Test
+    public void testPagesModifiedInPlace() throws Exception
+    {
+        InMemoryBTree<Long, String> btree = createBTree();
+
+        for ( long i = 0; i < 100; i++ )
+        {
+            btree.insert( i, "V" + i );
+        }
+
+        long revision = btree.getRevision();
+        Page<Long, String> root = btree.getRootPage();
+
+        // Neither the root page nor the revision change when no page is split nor merged
+        btree.insert( 50L, "W50" );
+        btree.delete( 99L );
+        btree.insert( 99L, "V99" );
+
+        assertSame( root, btree.getRootPage() );
+        assertEquals( revision, btree.getRevision() );
+        assertEquals( "W50", btree.get( 50L ) );
+        assertEquals( 100L, btree.getNbElems() );
+
+        btree.close();
+    }
+
+
+    @Test
+    public void testConcurrentReaders() throws Exception
+    {
+        final InMemoryBTree<Long, String> btree = createBTree();
+
+        // The even keys are never modified, the odd ones are added and removed
+        for ( long i = 0; i < 2000; i += 2 )
+        {
+            btree.insert( i, "V" + i );
+        }
+
+        final AtomicBoolean done = new AtomicBoolean( false );
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        Thread[] readers = new Thread[4];
+
+        for ( int t = 0; t < readers.length; t++ )
+        {
+            readers[t] = new Thread()
+            {
+                public void run()
+                {
+                    Random random = new Random();
+
+                    try
+                    {
+                        while ( !done.get() )
+                        {
+                            long key = random.nextInt( 1000 ) * 2L;
+
+                            if ( !( "V" + key ).equals( btree.get( key ) ) || !btree.hasKey( key ) )
+                            {
+                                throw new IllegalStateException( "Key " + key + " not found" );
+                            }
+                        }
+                    }
+                    catch ( Throwable t )
+                    {
+                        error.set( t );
+                    }
+                }
+            };
+
+            readers[t].start();
+        }
+
+        Random random = new Random( 42L );
+
+        for ( int i = 0; i < 50000; i++ )
+        {
+            long key = random.nextInt( 1000 ) * 2L + 1L;
+
+            if ( ( i & 1 ) == 0 )
+            {
+                btree.insert( key, "V" + key );
+            }
+            else
+            {
+                btree.delete( key );
+            }
+        }
+
+        done.set( true );
+
+        for ( Thread reader : readers )
+        {
+            reader.join();
+        }
+
+        assertEquals( null, error.get() );
+
+        btree.close();
+    }
+
+
+    /**
+     * A reader searching without lock must not keep copies of the keys or of the children
+     * of a page : they could have been taken while a writer was modifying the page.
+     * The page's arrays are modified here without going through the setters, like a
+     * writer modifying them while a reader copies them, and the searches must see the change.
+     */
+    @Test
+    public void testNoCopyOfModifiedPages() throws Exception
+    {
+        InMemoryBTree<Long, String> btree = createBTree();
+
+        for ( long i = 0; i < 100; i++ )
+        {
+            btree.insert( i * 10, "V" + i );
+        }
+
+        InMemoryNode<Long, String> root = ( InMemoryNode<Long, String> ) btree.getRootPage();
+
+        // Search all the pages, so that any copy would be built
+        for ( long i = 0; i < 100; i++ )
+        {
+            assertTrue( btree.hasKey( i * 10 ) );
+        }
+
+        long separator = root.getKey( 0 );
+        assertTrue( root.findPos( separator ) < 0 );
+
+        root.getKeys()[0] = new KeyHolder<Long>( separator + 1 );
+        assertTrue( root.findPos( separator + 1 ) < 0 );
+        assertTrue( root.findPos( separator ) >= 0 );
+
+        Page<Long, String> child = root.getChildPage( 1 );
+        Page<Long, String> newChild = new InMemoryLeaf<Long, String>( btree, 0L, 0 );
+        root.children[1] = new PageHolder<Long, String>( btree, newChild );
+        assertSame( newChild, root.getChildPage( 1 ) );
+        root.children[1] = new PageHolder<Long, String>( btree, child );
+    }
+
+
+    @Test
+    public void testConcurrentReadersAndDeleter() throws Exception
+    {
+        final InMemoryBTree<Long, String> btree = createBTree();
+        final int nbKeys = 4000;
+
+        // The keys multiple of 4 are never modified, the others are deleted and added again,
+        // so that the leaves get merged and borrow elements, and the nodes' keys change
+        for ( long i = 0; i < nbKeys; i++ )
+        {
+            btree.insert( i, "V" + i );
+        }
+
+        final AtomicBoolean done = new AtomicBoolean( false );
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        Thread[] readers = new Thread[4];
+
+        for ( int t = 0; t < readers.length; t++ )
+        {
+            readers[t] = new Thread()
+            {
+                public void run()
+                {
+                    Random random = new Random();
+
+                    try
+                    {
+                        while ( !done.get() )
+                        {
+                            long key = random.nextInt( nbKeys / 4 ) * 4L;
+
+                            if ( !( "V" + key ).equals( btree.get( key ) ) || !btree.hasKey( key )
+                                || !btree.contains( key, "V" + key ) )
+                            {
+                                throw new IllegalStateException( "Key " + key + " not found" );
+                            }
+                        }
+                    }
+                    catch ( Throwable t )
+                    {
+                        error.set( t );
+                    }
+                }
+            };
+
+            readers[t].start();
+        }
+
+        Random random = new Random( 42L );
+
+        for ( int round = 0; round < 10; round++ )
+        {
+            long start = random.nextInt( nbKeys );
+
+            for ( long i = 0; i < nbKeys; i++ )
+            {
+                long key = ( start + i ) % nbKeys;
+
+                if ( ( key % 4 ) != 0 )
+                {
+                    btree.delete( key );
+                }
+            }
+
+            for ( long i = 0; i < nbKeys; i++ )
+            {
+                long key = ( start + i * 7 ) % nbKeys;
+
+                if ( ( key % 4 ) != 0 )
+                {
+                    btree.insert( key, "V" + key );
+                }
+            }
+        }
+
+        done.set( true );
+
+        for ( Thread reader : readers )
+        {
+            reader.join();
+        }
+
+        assertEquals( null, error.get() );
+
+        // A stale copy of a page would still be used by the searches
+        for ( long i = 0; i < nbKeys; i++ )
+        {
+            assertEquals( "V" + i, btree.get( i ) );
+            assertTrue( btree.hasKey( i ) );
+        }
+
+        btree.close();
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.mavibot.btree;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.apache.directory.mavibot.btree.serializer.LongSerializer;
+import org.apache.directory.mavibot.btree.serializer.StringSerializer;
+import org.junit.Test;
+
+
+/**
+ * Tests for the in-memory B-tree storing its values off-heap.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class InMemoryBTreeOffHeapTest
+{
+    private InMemoryBTree<Long, String> createBTree( int segmentSize )
+    {
+        InMemoryBTreeConfiguration<Long, String> config = new InMemoryBTreeConfiguration<Long, String>();
+        config.setName( "offheap" );
+        config.setSerializers( LongSerializer.INSTANCE, StringSerializer.INSTANCE );
+        config.setPageSize( 8 );
+        config.setOffHeapValues( true );
+        config.setOffHeapSegmentSize( segmentSize );
+
+        return new InMemoryBTree<Long, String>( config );
+    }
+
+
+    @Test
+    public void testInsertReplaceDelete() throws Exception
+    {
+        InMemoryBTree<Long, String> btree = createBTree( 256 );
+        TreeMap<Long, String> expected = new TreeMap<Long, String>();
+        Random random = new Random( 42L );
+
+        for ( int i = 0; i < 5000; i++ )
+        {
+            long key = random.nextInt( 2000 );
+            String value = "V" + key + "-" + i;
+
+            if ( i % 5 == 4 )
+            {
+                assertEquals( expected.remove( key ) != null, btree.delete( key ) != null );
+            }
+            else
+            {
+                assertEquals( expected.put( key, value ), btree.insert( key, value ) );
+            }
+        }
+
+        assertEquals( expected.size(), btree.getNbElems() );
+
+        for ( Map.Entry<Long, String> entry : expected.entrySet() )
+        {
+            assertEquals( entry.getValue(), btree.get( entry.getKey() ) );
+        }
+
+        TupleCursor<Long, String> cursor = btree.browse();
+
+        for ( Map.Entry<Long, String> entry : expected.entrySet() )
+        {
+            assertTrue( cursor.hasNext() );
+            Tuple<Long, String> tuple = cursor.next();
+            assertEquals( entry.getKey(), tuple.getKey() );
+            assertEquals( entry.getValue(), tuple.getValue() );
+        }
+
+        assertFalse( cursor.hasNext() );
+        cursor.close();
+
+        btree.close();
+    }
+
+
+    @Test
+    public void testArenaSizes() throws Exception
+    {
+        InMemoryBTree<Long, String> btree = createBTree( 1024 );
+        OffHeapArena arena = btree.getOffHeapArena();
+
+        // A serialized String is its length followed by its bytes
+        btree.insert( 1L, "abcd" );
+        btree.insert( 2L, "efgh" );
+        assertEquals( 16L, arena.getLiveSize() );
+        assertEquals( 1024L, arena.getAllocatedSize() );
+
+        // Replacing a value stores the new one, the old one is released
+        btree.insert( 1L, "ijklmnop" );
+        assertEquals( 20L, arena.getLiveSize() );
+
+        btree.delete( 2L );
+        assertEquals( 12L, arena.getLiveSize() );
+
+        // A value bigger than a segment gets its own segment
+        StringBuilder sb = new StringBuilder();
+
+        for ( int i = 0; i < 2000; i++ )
+        {
+            sb.append( 'x' );
+        }
+
+        btree.insert( 3L, sb.toString() );
+        assertEquals( 1024L + 2004L, arena.getAllocatedSize() );
+        assertEquals( sb.toString(), btree.get( 3L ) );
+        assertEquals( "ijklmnop", btree.get( 1L ) );
+
+        btree.close();
+    }
+
+
+    @Test
+    public void testOldRevisionKeepsItsValue() throws Exception
+    {
+        InMemoryBTree<Long, String> btree = createBTree( 1024 );
+
+        for ( long i = 0; i < 100; i++ )
+        {
+            btree.insert( i, "old" + i );
+        }
+
+        TupleCursor<Long, String> cursor = btree.browse();
+
+        for ( long i = 0; i < 100; i++ )
+        {
+            btree.insert( i, "new" + i );
+        }
+
+        for ( long i = 0; i < 100; i++ )
+        {
+            assertEquals( "old" + i, cursor.next().getValue() );
+            assertEquals( "new" + i, btree.get( i ) );
+        }
+
+        cursor.close();
+        btree.close();
+    }
+
+
+    @Test
+    public void testReplaceCopiesTheHolder() throws Exception
+    {
+        InMemoryBTree<Long, String> btree = createBTree( 1024 );
+        btree.insert( 1L, "old" );
+
+        InMemoryLeaf<Long, String> oldLeaf = ( InMemoryLeaf<Long, String> ) btree.getRootPage();
+        ValueHolder<String> oldHolder = oldLeaf.getValue( 0 );
+
+        btree.insert( 1L, "new" );
+
+        InMemoryLeaf<Long, String> newLeaf = ( InMemoryLeaf<Long, String> ) btree.getRootPage();
+        ValueHolder<String> newHolder = newLeaf.getValue( 0 );
+
+        // The previous revision holder is left untouched
+        assertNotSame( oldHolder, newHolder );
+        assertEquals( "old", oldHolder.getCursor().next() );
+        assertEquals( "new", newHolder.getCursor().next() );
+
+        btree.close();
+    }
+
+
+    @Test
+    public void testCollectedSegmentsAreReleased() throws Exception
+    {
+        InMemoryBTree<Long, String> btree = createBTree( 256 );
+        OffHeapArena arena = btree.getOffHeapArena();
+
+        // Fill many segments, then replace all the values so that the first segments
+        // are not referenced anymore
+        for ( int round = 0; round < 2; round++ )
+        {
+            for ( long i = 0; i < 200; i++ )
+            {
+                btree.insert( i, "value-" + round + "-" + i );
+            }
+        }
+
+        long allocatedSize = arena.getAllocatedSize();
+
+        for ( int i = 0; ( i < 100 ) && ( arena.getAllocatedSize() >= allocatedSize ); i++ )
+        {
+            System.gc();
+            Thread.sleep( 10 );
+        }
+
+        assertTrue( arena.getAllocatedSize() < allocatedSize );
+
+        for ( long i = 0; i < 200; i++ )
+        {
+            assertEquals( "value-1-" + i, btree.get( i ) );
+        }
+
+        btree.close();
+    }
+
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDuplicatesNotAllowed()
+    {
+        InMemoryBTreeConfiguration<Long, String> config = new InMemoryBTreeConfiguration<Long, String>();
+        config.setName( "offheap" );
+        config.setSerializers( LongSerializer.INSTANCE, StringSerializer.INSTANCE );
+        config.setAllowDuplicates( true );
+        config.setOffHeapValues( true );
+
+        new InMemoryBTree<Long, String>( config );
+    }
+}
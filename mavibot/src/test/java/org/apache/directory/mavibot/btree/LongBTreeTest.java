@@ -0,0 +1,211 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.mavibot.btree;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.apache.directory.mavibot.btree.exception.KeyNotFoundException;
+import org.apache.directory.mavibot.btree.serializer.IntSerializer;
+import org.apache.directory.mavibot.btree.serializer.LongSerializer;
+import org.apache.directory.mavibot.btree.serializer.StringSerializer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+/**
+ * Tests for the LongBTree, and the primitive key search used by B-trees with Long keys.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class LongBTreeTest
+{
+    private RecordManager rm;
+
+    @Rule
+    public TemporaryFolder tmpDir;
+
+    private File dbFile;
+
+
+    @Before
+    public void setup() throws Exception
+    {
+        tmpDir = new TemporaryFolder();
+        tmpDir.create();
+
+        dbFile = tmpDir.newFile( "long.db" );
+
+        rm = new RecordManager( dbFile.getAbsolutePath() );
+        rm._disableReclaimer( true );
+    }
+
+
+    @After
+    public void cleanup() throws Exception
+    {
+        rm.close();
+        dbFile.delete();
+        tmpDir.delete();
+    }
+
+
+    /**
+     * Inserts random keys, including negative ones, then checks every lookup
+     * against a TreeMap, and removes half of the keys.
+     */
+    private void checkLongBTree( LongBTree<String> btree ) throws Exception
+    {
+        Map<Long, String> expected = new TreeMap<Long, String>();
+        Random random = new Random( 42L );
+
+        for ( int i = 0; i < 2000; i++ )
+        {
+            long key = random.nextLong() % 100000L;
+            btree.insert( key, "V" + key );
+            expected.put( key, "V" + key );
+        }
+
+        assertEquals( expected.size(), btree.getNbElems() );
+
+        for ( long key = -100000L; key < 100000L; key += 37L )
+        {
+            if ( expected.containsKey( key ) )
+            {
+                assertTrue( btree.hasKey( key ) );
+                assertEquals( "V" + key, btree.get( key ) );
+            }
+            else
+            {
+                assertFalse( btree.hasKey( key ) );
+
+                try
+                {
+                    btree.get( key );
+                    fail();
+                }
+                catch ( KeyNotFoundException knfe )
+                {
+                    // Expected
+                }
+            }
+        }
+
+        // The cursor must be positioned on the first key above or equal to the given one
+        TupleCursor<Long, String> cursor = btree.browseFrom( 0L );
+
+        try
+        {
+            for ( Long key : ( ( TreeMap<Long, String> ) expected ).tailMap( 0L ).keySet() )
+            {
+                assertTrue( cursor.hasNext() );
+                assertEquals( key, cursor.next().getKey() );
+            }
+
+            assertFalse( cursor.hasNext() );
+        }
+        finally
+        {
+            cursor.close();
+        }
+
+        int n = 0;
+
+        for ( Long key : expected.keySet() )
+        {
+            if ( ( n++ % 2 ) == 0 )
+            {
+                assertEquals( key, btree.delete( key.longValue() ).getKey() );
+                assertFalse( btree.hasKey( key.longValue() ) );
+            }
+            else
+            {
+                assertEquals( "V" + key, btree.get( key.longValue() ) );
+            }
+        }
+    }
+
+
+    @Test
+    public void testInMemoryLongBTree() throws Exception
+    {
+        BTree<Long, String> btree = BTreeFactory.createInMemoryBTree( "test", LongSerializer.INSTANCE,
+            StringSerializer.INSTANCE );
+        btree.setPageSize( 8 );
+
+        checkLongBTree( new LongBTree<String>( btree ) );
+    }
+
+
+    @Test
+    public void testPersistedLongBTree() throws Exception
+    {
+        BTree<Long, String> btree = rm.addBTree( "test", LongSerializer.INSTANCE, StringSerializer.INSTANCE, false );
+
+        checkLongBTree( new LongBTree<String>( btree ) );
+
+        // Reload the B-tree, the keys are now read from their serialized form
+        rm.close();
+        rm = new RecordManager( dbFile.getAbsolutePath() );
+        rm._disableReclaimer( true );
+
+        LongBTree<String> reloaded = new LongBTree<String>( rm.<Long, String> getManagedTree( "test" ) );
+        TupleCursor<Long, String> cursor = reloaded.getBTree().browse();
+        int nb = 0;
+
+        try
+        {
+            while ( cursor.hasNext() )
+            {
+                Tuple<Long, String> tuple = cursor.next();
+                assertEquals( "V" + tuple.getKey(), reloaded.get( tuple.getKey().longValue() ) );
+                assertFalse( reloaded.hasKey( tuple.getKey().longValue() + 200000L ) );
+                nb++;
+            }
+        }
+        finally
+        {
+            cursor.close();
+        }
+
+        assertEquals( reloaded.getNbElems(), nb );
+    }
+
+
+    @Test(expected = IllegalArgumentException.class)
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public void testNotLongKeys() throws Exception
+    {
+        BTree btree = BTreeFactory.createInMemoryBTree( "test", IntSerializer.INSTANCE, StringSerializer.INSTANCE );
+
+        new LongBTree<String>( btree );
+    }
+}
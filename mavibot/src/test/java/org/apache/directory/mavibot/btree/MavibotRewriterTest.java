@@ -0,0 +1,199 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.mavibot.btree;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.directory.mavibot.btree.serializer.IntSerializer;
+import org.apache.directory.mavibot.btree.serializer.StringSerializer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+/**
+ * Tests for the offline file rewriter.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class MavibotRewriterTest
+{
+    private static final String UID_TREE = "uid-tree";
+    private static final String DUP_TREE = "dup-tree";
+    private static final String EMPTY_TREE = "empty-tree";
+
+    private RecordManager rm;
+
+    @Rule
+    public TemporaryFolder tmpDir;
+
+    private File dbFile;
+
+    private File newDbFile;
+
+
+    @Before
+    public void setup() throws Exception
+    {
+        tmpDir = new TemporaryFolder();
+        tmpDir.create();
+
+        dbFile = tmpDir.newFile( "source.db" );
+        newDbFile = new File( tmpDir.getRoot(), "target.db" );
+
+        rm = new RecordManager( dbFile.getAbsolutePath() );
+
+        // The old revisions are kept in the source file
+        rm._disableReclaimer( true );
+    }
+
+
+    @After
+    public void cleanup() throws Exception
+    {
+        rm.close();
+        dbFile.delete();
+        newDbFile.delete();
+        tmpDir.delete();
+    }
+
+
+    /**
+     * Rewrite the source file, and open the new one
+     */
+    private void rewrite() throws Exception
+    {
+        RecordManager target = new RecordManager( newDbFile.getAbsolutePath(), rm.getPageSize() );
+
+        new MavibotRewriter( rm, target ).rewrite();
+        target.close();
+
+        rm.close();
+        rm = new RecordManager( newDbFile.getAbsolutePath() );
+    }
+
+
+    @Test
+    public void testRewrite() throws Exception
+    {
+        BTree<Integer, String> uidTree = rm.addBTree( UID_TREE, IntSerializer.INSTANCE, StringSerializer.INSTANCE,
+            false );
+        BTree<Integer, Integer> dupTree = rm.addBTree( DUP_TREE, IntSerializer.INSTANCE, IntSerializer.INSTANCE,
+            true );
+        rm.addBTree( EMPTY_TREE, IntSerializer.INSTANCE, IntSerializer.INSTANCE, false );
+
+        int total = 2000;
+
+        for ( int i = 0; i < total; i++ )
+        {
+            uidTree.insert( i, String.valueOf( i ) );
+        }
+
+        for ( int i = 0; i < total; i++ )
+        {
+            if ( ( i % 10 ) != 0 )
+            {
+                uidTree.delete( i );
+            }
+        }
+
+        for ( int i = 0; i < 100; i++ )
+        {
+            dupTree.insert( i, i );
+            dupTree.insert( i, i + 1000 );
+        }
+
+        long sizeBefore = dbFile.length();
+
+        rewrite();
+
+        assertTrue( newDbFile.length() < sizeBefore );
+
+        // Check the content
+        uidTree = rm.getManagedTree( UID_TREE );
+        assertEquals( total / 10, uidTree.getNbElems() );
+
+        int count = 0;
+        TupleCursor<Integer, String> cursor = uidTree.browse();
+
+        while ( cursor.hasNext() )
+        {
+            Tuple<Integer, String> t = cursor.next();
+            assertEquals( Integer.valueOf( count * 10 ), t.getKey() );
+            assertEquals( String.valueOf( count * 10 ), t.getValue() );
+            count++;
+        }
+
+        cursor.close();
+        assertEquals( total / 10, count );
+
+        dupTree = rm.getManagedTree( DUP_TREE );
+
+        assertEquals( 200, dupTree.getNbElems() );
+
+        for ( int i = 0; i < 100; i++ )
+        {
+            ValueCursor<Integer> values = dupTree.getValues( i );
+
+            assertTrue( values.hasNext() );
+            assertEquals( Integer.valueOf( i ), values.next() );
+            assertTrue( values.hasNext() );
+            assertEquals( Integer.valueOf( i + 1000 ), values.next() );
+            assertFalse( values.hasNext() );
+
+            values.close();
+        }
+
+        BTree<Integer, Integer> emptyTree = rm.getManagedTree( EMPTY_TREE );
+        assertEquals( 0, emptyTree.getNbElems() );
+
+        // The B-tree of B-trees contains one single revision per B-tree
+        Map<String, Integer> revisions = new HashMap<String, Integer>();
+        TupleCursor<NameRevision, Long> bobCursor = rm.btreeOfBtrees.browse();
+
+        while ( bobCursor.hasNext() )
+        {
+            String name = bobCursor.next().getKey().getName();
+            revisions.put( name, revisions.containsKey( name ) ? revisions.get( name ) + 1 : 1 );
+        }
+
+        bobCursor.close();
+
+        assertEquals( 3, revisions.size() );
+
+        for ( Integer nbRevisions : revisions.values() )
+        {
+            assertEquals( Integer.valueOf( 1 ), nbRevisions );
+        }
+
+        // The rewritten file can be modified as usual
+        uidTree.insert( 5, "5" );
+        assertEquals( "5", uidTree.get( 5 ) );
+    }
+}
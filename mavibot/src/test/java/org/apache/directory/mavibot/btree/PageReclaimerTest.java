@@ -96,6 +96,36 @@ public class PageReclaimerTest
     }
 
     
+    /**
+     * Check that the revisions of the B-tree in the B-tree of B-trees are consecutive,
+     * up to the current revision
+     */
+    private void checkBtreeOfBtrees() throws Exception
+    {
+        TupleCursor<NameRevision, Long> cursor = rm.btreeOfBtrees.browse();
+        long expected = -1L;
+
+        while ( cursor.hasNext() )
+        {
+            NameRevision nameRevision = cursor.next().getKey();
+
+            if ( TREE_NAME.equals( nameRevision.getName() ) )
+            {
+                if ( expected != -1L )
+                {
+                    assertEquals( expected, nameRevision.getRevision() );
+                }
+
+                expected = nameRevision.getRevision() + 1;
+            }
+        }
+
+        cursor.close();
+
+        assertEquals( uidTree.getRevision() + 1, expected );
+    }
+
+
     @Test
     public void testReclaimer() throws Exception
     {
@@ -123,6 +153,37 @@ public class PageReclaimerTest
     }
     
 
+    /**
+     * The B-tree of B-trees gets more than a page of revisions before the reclaimer
+     * runs, and its older revisions are removed while the latest one is kept
+     */
+    @Test
+    public void testReclaimerKeepsLatestRevision() throws Exception
+    {
+        rm.setPageReclaimerThreshold( 70 );
+
+        int total = 100;
+        for ( int i=0; i < total; i++ )
+        {
+            uidTree.insert( i, String.valueOf( i ) );
+
+            checkBtreeOfBtrees();
+        }
+
+        long revision = uidTree.getRevision();
+
+        closeAndReopenRM();
+
+        assertEquals( revision, uidTree.getRevision() );
+        assertEquals( total, uidTree.getNbElems() );
+
+        for ( int i=0; i < total; i++ )
+        {
+            assertEquals( String.valueOf( i ), uidTree.get( i ) );
+        }
+    }
+
+
     /**
      * with the reclaimer threshold 10 and total entries of 1120
      * there was a condition that resulted in OOM while reopening the RM
@@ -0,0 +1,238 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.mavibot.btree;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.apache.directory.mavibot.btree.serializer.LongSerializer;
+import org.apache.directory.mavibot.btree.serializer.StringSerializer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+/**
+ * Tests for the insertion of increasing keys on the rightmost path of a B-tree.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class PersistedBTreeAppendTest
+{
+    private static final String TREE_NAME = "abc";
+
+    private RecordManager rm;
+
+    @Rule
+    public TemporaryFolder tmpDir;
+
+    private File dbFile;
+
+
+    @Before
+    public void setup() throws Exception
+    {
+        tmpDir = new TemporaryFolder();
+        tmpDir.create();
+
+        dbFile = tmpDir.newFile( "append.db" );
+
+        rm = new RecordManager( dbFile.getAbsolutePath() );
+        rm._disableReclaimer( true );
+    }
+
+
+    @After
+    public void cleanup() throws Exception
+    {
+        rm.close();
+        dbFile.delete();
+        tmpDir.delete();
+    }
+
+
+    private PersistedBTree<Long, String> createBTree() throws Exception
+    {
+        PersistedBTreeConfiguration<Long, String> config = new PersistedBTreeConfiguration<Long, String>();
+        config.setName( TREE_NAME );
+        config.setKeySerializer( LongSerializer.INSTANCE );
+        config.setValueSerializer( StringSerializer.INSTANCE );
+        config.setPageSize( 16 );
+
+        PersistedBTree<Long, String> btree = ( PersistedBTree<Long, String> ) BTreeFactory
+            .createPersistedBTree( config );
+        rm.manage( btree );
+
+        return btree;
+    }
+
+
+    /**
+     * Gather the leaves of a page, from left to right
+     */
+    private void getLeaves( Page<Long, String> page, List<Page<Long, String>> leaves ) throws Exception
+    {
+        if ( page.isLeaf() )
+        {
+            leaves.add( page );
+
+            return;
+        }
+
+        for ( int i = 0; i <= page.getNbElems(); i++ )
+        {
+            getLeaves( ( ( AbstractPage<Long, String> ) page ).getPage( i ), leaves );
+        }
+    }
+
+
+    /**
+     * Check that the browsed tuples are the expected ones
+     */
+    private void checkContent( BTree<Long, String> btree, TreeMap<Long, String> expected ) throws Exception
+    {
+        assertEquals( expected.size(), btree.getNbElems() );
+
+        TupleCursor<Long, String> cursor = btree.browse();
+
+        try
+        {
+            for ( Long key : expected.keySet() )
+            {
+                assertTrue( cursor.hasNext() );
+                Tuple<Long, String> tuple = cursor.next();
+                assertEquals( key, tuple.getKey() );
+                assertEquals( expected.get( key ), tuple.getValue() );
+            }
+
+            assertFalse( cursor.hasNext() );
+        }
+        finally
+        {
+            cursor.close();
+        }
+    }
+
+
+    /**
+     * Check that increasing keys fill the leaves
+     */
+    @Test
+    public void testIncreasingKeysFillLeaves() throws Exception
+    {
+        PersistedBTree<Long, String> btree = createBTree();
+        TreeMap<Long, String> expected = new TreeMap<Long, String>();
+
+        for ( long i = 0L; i < 1000L; i++ )
+        {
+            btree.insert( i, "v" + i );
+            expected.put( i, "v" + i );
+        }
+
+        List<Page<Long, String>> leaves = new ArrayList<Page<Long, String>>();
+        getLeaves( btree.getRootPage(), leaves );
+
+        // All the leaves but the last one are full
+        assertEquals( ( 1000 + 15 ) / 16, leaves.size() );
+
+        for ( int i = 0; i < leaves.size() - 1; i++ )
+        {
+            assertEquals( 16, leaves.get( i ).getNbElems() );
+        }
+
+        checkContent( btree, expected );
+
+        for ( long i = 0L; i < 1000L; i++ )
+        {
+            assertEquals( "v" + i, btree.get( i ) );
+        }
+    }
+
+
+    /**
+     * Check that keys which are not above all the keys are still correctly inserted, and
+     * that the full leaves can be emptied
+     */
+    @Test
+    public void testMixedInsertionsAndDeletions() throws Exception
+    {
+        PersistedBTree<Long, String> btree = createBTree();
+        TreeMap<Long, String> expected = new TreeMap<Long, String>();
+
+        for ( long i = 0L; i < 500L; i++ )
+        {
+            btree.insert( i * 10L, "v" + i );
+            expected.put( i * 10L, "v" + i );
+        }
+
+        // Insert some keys in the middle, and replace some existing values
+        Random random = new Random( 42L );
+
+        for ( int i = 0; i < 300; i++ )
+        {
+            long key = random.nextInt( 5000 );
+            btree.insert( key, "w" + i );
+            expected.put( key, "w" + i );
+        }
+
+        // Replace the last value
+        btree.insert( 4990L, "last" );
+        expected.put( 4990L, "last" );
+
+        checkContent( btree, expected );
+
+        // Remove every other key
+        Long[] keys = expected.keySet().toArray( new Long[0] );
+
+        for ( int i = 0; i < keys.length; i += 2 )
+        {
+            btree.delete( keys[i] );
+            expected.remove( keys[i] );
+        }
+
+        checkContent( btree, expected );
+
+        // And append some more keys
+        for ( long i = 5000L; i < 5200L; i++ )
+        {
+            btree.insert( i, "v" + i );
+            expected.put( i, "v" + i );
+        }
+
+        checkContent( btree, expected );
+
+        for ( Long key : expected.keySet().toArray( new Long[0] ) )
+        {
+            btree.delete( key );
+        }
+
+        assertEquals( 0, btree.getNbElems() );
+    }
+}
@@ -0,0 +1,310 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.mavibot.btree;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.directory.mavibot.btree.exception.KeyNotFoundException;
+import org.apache.directory.mavibot.btree.serializer.IntSerializer;
+import org.apache.directory.mavibot.btree.serializer.StringSerializer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+/**
+ * Tests for the Bloom filter used by the lookups in a persisted B-tree.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class PersistedBTreeBloomFilterTest
+{
+    private static final String TREE_NAME = "abc";
+
+    private RecordManager rm;
+
+    @Rule
+    public TemporaryFolder tmpDir;
+
+    private File dbFile;
+
+
+    @Before
+    public void setup() throws Exception
+    {
+        tmpDir = new TemporaryFolder();
+        tmpDir.create();
+
+        dbFile = tmpDir.newFile( "bloom.db" );
+
+        rm = new RecordManager( dbFile.getAbsolutePath() );
+        rm._disableReclaimer( true );
+    }
+
+
+    @After
+    public void cleanup() throws Exception
+    {
+        rm.close();
+        dbFile.delete();
+        tmpDir.delete();
+    }
+
+
+    private PersistedBTree<Integer, String> createBTree() throws Exception
+    {
+        PersistedBTreeConfiguration<Integer, String> config = new PersistedBTreeConfiguration<Integer, String>();
+        config.setName( TREE_NAME );
+        config.setKeySerializer( IntSerializer.INSTANCE );
+        config.setValueSerializer( StringSerializer.INSTANCE );
+        config.setPageSize( 16 );
+        config.setBloomFilterCapacity( 1000 );
+
+        PersistedBTree<Integer, String> btree = ( PersistedBTree<Integer, String> ) BTreeFactory
+            .createPersistedBTree( config );
+        rm.manage( btree );
+
+        return btree;
+    }
+
+
+    private PersistedBTree<Integer, String> reopen() throws Exception
+    {
+        rm.close();
+        rm = new RecordManager( dbFile.getAbsolutePath() );
+        rm._disableReclaimer( true );
+
+        return ( PersistedBTree<Integer, String> ) rm.<Integer, String> getManagedTree( TREE_NAME );
+    }
+
+
+    /**
+     * Check that the even keys up to the limit are found, and not the odd ones
+     */
+    private void checkLookups( PersistedBTree<Integer, String> btree, int limit ) throws Exception
+    {
+        for ( int i = 0; i < limit; i++ )
+        {
+            if ( ( i % 2 ) == 0 )
+            {
+                assertTrue( btree.hasKey( i ) );
+                assertEquals( String.valueOf( i ), btree.get( i ) );
+            }
+            else
+            {
+                assertFalse( btree.hasKey( i ) );
+
+                try
+                {
+                    btree.get( i );
+                    fail();
+                }
+                catch ( KeyNotFoundException knfe )
+                {
+                    // Expected
+                }
+            }
+        }
+    }
+
+
+    /**
+     * @return the number of odd keys the filter considers as present
+     */
+    private int countFalsePositives( PersistedBTree<Integer, String> btree, int limit ) throws Exception
+    {
+        BloomFilter<Integer> filter = btree.getBloomFilter();
+        int nbFalsePositives = 0;
+
+        for ( int i = 1; i < limit; i += 2 )
+        {
+            if ( filter.mightContain( i ) )
+            {
+                nbFalsePositives++;
+            }
+        }
+
+        return nbFalsePositives;
+    }
+
+
+    @Test
+    public void testLookups() throws Exception
+    {
+        PersistedBTree<Integer, String> btree = createBTree();
+
+        for ( int i = 0; i < 2000; i += 2 )
+        {
+            btree.insert( i, String.valueOf( i ) );
+        }
+
+        checkLookups( btree, 2000 );
+
+        // Around 1% of false positives
+        assertTrue( countFalsePositives( btree, 2000 ) < 50 );
+    }
+
+
+    @Test
+    public void testFilterIsPersisted() throws Exception
+    {
+        PersistedBTree<Integer, String> btree = createBTree();
+
+        for ( int i = 0; i < 2000; i += 2 )
+        {
+            btree.insert( i, String.valueOf( i ) );
+        }
+
+        btree = reopen();
+
+        assertTrue( btree.hasBloomFilter() );
+        assertNotNull( rm.readBloomFilter( btree ) );
+        checkLookups( btree, 2000 );
+        assertFalse( btree.isBloomFilterDirty() );
+
+        // The filter is written again with each new revision
+        btree.insert( 3001, "3001" );
+        assertFalse( btree.isBloomFilterDirty() );
+        assertTrue( rm.readBloomFilter( btree ).mightContain( 3001 ) );
+        assertTrue( btree.hasKey( 3001 ) );
+
+        btree = reopen();
+        assertTrue( btree.hasKey( 3001 ) );
+        checkLookups( btree, 2000 );
+    }
+
+
+    @Test
+    public void testFilterIsWrittenOnCommit() throws Exception
+    {
+        PersistedBTree<Integer, String> btree = createBTree();
+
+        for ( int i = 0; i < 100; i += 2 )
+        {
+            btree.insert( i, String.valueOf( i ) );
+        }
+
+        long previousFilterOffset = btree.getBloomFilterOffset();
+        btree.insert( 100, "100" );
+        long filterOffset = btree.getBloomFilterOffset();
+        assertTrue( filterOffset != previousFilterOffset );
+
+        // The committed B-tree header refers to the new filter
+        PageIO[] headerPageIos = rm.readPageIOs( btree.getBtreeHeader().getBTreeHeaderOffset(), Long.MAX_VALUE );
+        assertEquals( filterOffset, rm.readLong( headerPageIos, 4 * RecordManager.LONG_SIZE ) );
+
+        // The previous filter is reclaimed with the pages copied by the new revision
+        long[] copiedPages = rm.copiedPageBtree.get( new RevisionName( btree.getRevision(), TREE_NAME ) );
+        boolean found = false;
+
+        for ( long copiedPage : copiedPages )
+        {
+            found |= ( copiedPage == previousFilterOffset );
+        }
+
+        assertTrue( found );
+
+        // A deletion writes the filter too, so that it matches the B-tree revision
+        btree.delete( 100 );
+        assertNotNull( rm.readBloomFilter( btree ) );
+        checkLookups( btree, 100 );
+    }
+
+
+    @Test
+    public void testReplacedFiltersAreReclaimed() throws Exception
+    {
+        rm._disableReclaimer( false );
+        PersistedBTree<Integer, String> btree = createBTree();
+
+        for ( int i = 0; i < 2000; i++ )
+        {
+            btree.insert( i, String.valueOf( i ) );
+        }
+
+        for ( int i = 1; i < 2000; i += 2 )
+        {
+            btree.delete( i );
+        }
+
+        // The free pages are checked when the file is loaded
+        btree = reopen();
+        assertNotNull( rm.readBloomFilter( btree ) );
+        checkLookups( btree, 2000 );
+    }
+
+
+    @Test
+    public void testBulkLoad() throws Exception
+    {
+        PersistedBTree<Integer, String> btree = createBTree();
+        List<Tuple<Integer, String>> tuples = new ArrayList<Tuple<Integer, String>>();
+
+        for ( int i = 0; i < 2000; i += 2 )
+        {
+            tuples.add( new Tuple<Integer, String>( i, String.valueOf( i ) ) );
+        }
+
+        BTree<Integer, String> result = BulkLoader.load( btree, tuples.iterator(), 128 );
+
+        checkLookups( ( PersistedBTree<Integer, String> ) result, 2000 );
+    }
+
+
+    @Test
+    public void testCompactionRemovesDeletedKeys() throws Exception
+    {
+        PersistedBTree<Integer, String> btree = createBTree();
+
+        for ( int i = 0; i < 4000; i++ )
+        {
+            btree.insert( i, String.valueOf( i ) );
+        }
+
+        for ( int i = 1; i < 4000; i += 2 )
+        {
+            btree.delete( i );
+        }
+
+        // The deleted keys are still in the filter
+        assertEquals( 2000, countFalsePositives( btree, 4000 ) );
+
+        new FileCompactor( rm ).compact();
+
+        assertTrue( countFalsePositives( btree, 4000 ) < 50 );
+        checkLookups( btree, 4000 );
+
+        btree = reopen();
+        assertNotNull( rm.readBloomFilter( btree ) );
+        checkLookups( btree, 4000 );
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.mavibot.btree;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Random;
+
+import org.apache.directory.mavibot.btree.serializer.LongSerializer;
+import org.apache.directory.mavibot.btree.serializer.StringSerializer;
+import org.apache.directory.mavibot.btree.serializer.VarLongSerializer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+/**
+ * Tests for the compact page format.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class PersistedBTreeCompactPagesTest
+{
+    private static final String TREE_NAME = "compact";
+
+    private RecordManager rm;
+
+    @Rule
+    public TemporaryFolder tmpDir;
+
+    private File dbFile;
+
+
+    @Before
+    public void setup() throws Exception
+    {
+        tmpDir = new TemporaryFolder();
+        tmpDir.create();
+
+        dbFile = tmpDir.newFile( "compact.db" );
+
+        rm = new RecordManager( dbFile.getAbsolutePath() );
+        rm._disableReclaimer( true );
+    }
+
+
+    @After
+    public void cleanup() throws Exception
+    {
+        rm.close();
+        dbFile.delete();
+        tmpDir.delete();
+    }
+
+
+    private <K, V> PersistedBTree<K, V> createBTree( RecordManager recordManager, String name,
+        PersistedBTreeConfiguration<K, V> config ) throws Exception
+    {
+        config.setName( name );
+
+        PersistedBTree<K, V> btree = ( PersistedBTree<K, V> ) BTreeFactory.createPersistedBTree( config );
+        recordManager.manage( btree );
+
+        return btree;
+    }
+
+
+    private void reopen() throws Exception
+    {
+        rm.close();
+        rm = new RecordManager( dbFile.getAbsolutePath() );
+        rm._disableReclaimer( true );
+    }
+
+
+    /**
+     * Store random keys, with the subtree counts, and read them back after having reopened the file
+     */
+    @Test
+    public void testCompactPages() throws Exception
+    {
+        PersistedBTreeConfiguration<Long, String> config = new PersistedBTreeConfiguration<Long, String>();
+        config.setKeySerializer( VarLongSerializer.INSTANCE );
+        config.setValueSerializer( StringSerializer.INSTANCE );
+        config.setSubtreeCounts( true );
+        config.setCompactPages( true );
+
+        BTree<Long, String> btree = createBTree( rm, TREE_NAME, config );
+        Random random = new Random( 42L );
+        long[] keys = new long[5000];
+
+        for ( int i = 0; i < keys.length; i++ )
+        {
+            // Positive and negative keys, some of them using the 10 bytes of a varlong
+            keys[i] = ( i % 10 == 0 ) ? random.nextLong() : random.nextInt( 1000000 ) - 500000;
+            btree.insert( keys[i], "V" + keys[i] );
+        }
+
+        long nbElems = btree.getNbElems();
+
+        reopen();
+
+        btree = rm.getManagedTree( TREE_NAME );
+
+        assertTrue( ( ( PersistedBTree<Long, String> ) btree ).isCompactPages() );
+        assertEquals( nbElems, btree.getNbElems() );
+
+        for ( long key : keys )
+        {
+            assertEquals( "V" + key, btree.get( key ) );
+        }
+
+        // The keys are browsed in order
+        TupleCursor<Long, String> cursor = btree.browse();
+        long previous = Long.MIN_VALUE;
+        long count = 0L;
+
+        while ( cursor.hasNext() )
+        {
+            long key = cursor.next().getKey();
+            assertTrue( count == 0 || key > previous );
+            previous = key;
+            count++;
+        }
+
+        cursor.close();
+
+        assertEquals( nbElems, count );
+
+        MavibotInspector.check( rm );
+    }
+
+
+    /**
+     * Store enough duplicate values to create sub-btrees, which inherit the compact format
+     */
+    @Test
+    public void testSubBtrees() throws Exception
+    {
+        PersistedBTreeConfiguration<String, Long> config = new PersistedBTreeConfiguration<String, Long>();
+        config.setKeySerializer( StringSerializer.INSTANCE );
+        config.setValueSerializer( LongSerializer.INSTANCE );
+        config.setAllowDuplicates( true );
+        config.setCompactPages( true );
+
+        BTree<String, Long> btree = createBTree( rm, TREE_NAME, config );
+
+        for ( int i = 0; i < 200; i++ )
+        {
+            // Key i has i values, so that we have both arrays and sub-btrees
+            for ( long value = 0L; value < i; value++ )
+            {
+                btree.insert( "K" + i, value * 1000L );
+            }
+        }
+
+        // A key with no value stored in an array
+        btree.insert( "", 0L );
+
+        reopen();
+
+        btree = rm.getManagedTree( TREE_NAME );
+
+        for ( int i = 1; i < 200; i++ )
+        {
+            ValueCursor<Long> values = btree.getValues( "K" + i );
+
+            assertEquals( i, values.size() );
+
+            for ( long value = 0L; value < i; value++ )
+            {
+                assertTrue( values.hasNext() );
+                assertEquals( Long.valueOf( value * 1000L ), values.next() );
+            }
+
+            assertFalse( values.hasNext() );
+            values.close();
+        }
+
+        assertEquals( Long.valueOf( 0L ), btree.get( "" ) );
+    }
+
+
+    /**
+     * Store the same elements in the default and in the compact format, and check that the
+     * compact file is smaller
+     */
+    @Test
+    public void testCompactPagesAreSmaller() throws Exception
+    {
+        File defaultFile = tmpDir.newFile( "default.db" );
+        RecordManager defaultRm = new RecordManager( defaultFile.getAbsolutePath() );
+        defaultRm._disableReclaimer( true );
+
+        PersistedBTreeConfiguration<Long, Long> defaultConfig = new PersistedBTreeConfiguration<Long, Long>();
+        defaultConfig.setKeySerializer( LongSerializer.INSTANCE );
+        defaultConfig.setValueSerializer( LongSerializer.INSTANCE );
+        defaultConfig.setSubtreeCounts( true );
+
+        PersistedBTreeConfiguration<Long, Long> compactConfig = new PersistedBTreeConfiguration<Long, Long>();
+        compactConfig.setKeySerializer( VarLongSerializer.INSTANCE );
+        compactConfig.setValueSerializer( VarLongSerializer.INSTANCE );
+        compactConfig.setSubtreeCounts( true );
+        compactConfig.setCompactPages( true );
+
+        BTree<Long, Long> defaultBtree = createBTree( defaultRm, TREE_NAME, defaultConfig );
+        BTree<Long, Long> compactBtree = createBTree( rm, TREE_NAME, compactConfig );
+
+        for ( long i = 0L; i < 2000L; i++ )
+        {
+            defaultBtree.insert( i, i );
+            compactBtree.insert( i, i );
+        }
+
+        long defaultSize = defaultRm.fileChannel.size();
+        long compactSize = rm.fileChannel.size();
+
+        defaultRm.close();
+
+        assertTrue( "compact : " + compactSize + ", default : " + defaultSize, compactSize < defaultSize );
+
+        reopen();
+
+        compactBtree = rm.getManagedTree( TREE_NAME );
+
+        for ( long i = 0L; i < 2000L; i++ )
+        {
+            assertEquals( Long.valueOf( i ), compactBtree.get( i ) );
+        }
+    }
+}
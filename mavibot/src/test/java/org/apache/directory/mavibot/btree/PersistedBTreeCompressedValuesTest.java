@@ -0,0 +1,225 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.mavibot.btree;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.apache.directory.mavibot.btree.serializer.LongSerializer;
+import org.apache.directory.mavibot.btree.serializer.StringSerializer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+/**
+ * Tests for the delta-encoded duplicate Long values.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class PersistedBTreeCompressedValuesTest
+{
+    private static final String TREE_NAME = "abc";
+
+    private RecordManager rm;
+
+    @Rule
+    public TemporaryFolder tmpDir;
+
+    private File dbFile;
+
+
+    @Before
+    public void setup() throws Exception
+    {
+        tmpDir = new TemporaryFolder();
+        tmpDir.create();
+
+        dbFile = tmpDir.newFile( "compressed.db" );
+
+        rm = new RecordManager( dbFile.getAbsolutePath() );
+        rm._disableReclaimer( true );
+    }
+
+
+    @After
+    public void cleanup() throws Exception
+    {
+        rm.close();
+        dbFile.delete();
+        tmpDir.delete();
+    }
+
+
+    private PersistedBTree<String, Long> createBTree() throws Exception
+    {
+        PersistedBTreeConfiguration<String, Long> config = new PersistedBTreeConfiguration<String, Long>();
+        config.setName( TREE_NAME );
+        config.setKeySerializer( StringSerializer.INSTANCE );
+        config.setValueSerializer( LongSerializer.INSTANCE );
+        config.setAllowDuplicates( true );
+        config.setCompressedValues( true );
+
+        PersistedBTree<String, Long> btree = ( PersistedBTree<String, Long> ) BTreeFactory
+            .createPersistedBTree( config );
+        rm.manage( btree );
+
+        return btree;
+    }
+
+
+    /**
+     * Check that the values of a key are the expected ones, in order
+     */
+    private void checkValues( BTree<String, Long> btree, String key, TreeSet<Long> expected ) throws Exception
+    {
+        ValueCursor<Long> cursor = btree.getValues( key );
+
+        try
+        {
+            for ( Long value : expected )
+            {
+                assertTrue( cursor.hasNext() );
+                assertEquals( value, cursor.next() );
+            }
+
+            assertFalse( cursor.hasNext() );
+        }
+        finally
+        {
+            cursor.close();
+        }
+    }
+
+
+    @Test
+    public void testEncodeDecode()
+    {
+        Long[] values = new Long[]
+            { Long.MIN_VALUE, -1000L, -1L, 0L, 1L, 127L, 128L, 100000L, Long.MAX_VALUE };
+
+        byte[] raw = CompressedLongValues.encode( values );
+        Long[] decoded = new Long[values.length];
+        CompressedLongValues.decode( raw, decoded );
+
+        for ( int i = 0; i < values.length; i++ )
+        {
+            assertEquals( values[i], decoded[i] );
+            assertTrue( CompressedLongValues.contains( raw, values[i] ) );
+        }
+
+        assertFalse( CompressedLongValues.contains( raw, -2L ) );
+        assertFalse( CompressedLongValues.contains( raw, 129L ) );
+        assertFalse( CompressedLongValues.contains( raw, Long.MAX_VALUE - 1 ) );
+
+        // Close values take one byte each
+        Long[] ids = new Long[1000];
+
+        for ( int i = 0; i < ids.length; i++ )
+        {
+            ids[i] = 1000000L + i * 3;
+        }
+
+        assertEquals( 3 + 999, CompressedLongValues.encode( ids ).length );
+    }
+
+
+    @Test
+    public void testManyValues() throws Exception
+    {
+        PersistedBTree<String, Long> btree = createBTree();
+        assertTrue( btree.isCompressedValues() );
+
+        TreeSet<Long> expected = new TreeSet<Long>();
+        Random random = new Random( 7L );
+
+        // Way above the threshold used for the uncompressed values
+        for ( int i = 0; i < 1000; i++ )
+        {
+            long value = random.nextInt( 100000 ) - 50000;
+            btree.insert( "key", value );
+            expected.add( value );
+        }
+
+        btree.insert( "other", 1L );
+
+        // The values are still stored in the leaf
+        ValueHolder<Long> valueHolder = ( ( AbstractPage<String, Long> ) btree.getRootPage() ).getValue( 0 );
+        assertFalse( valueHolder.isSubBtree() );
+        checkValues( btree, "key", expected );
+
+        // Remove some values
+        int n = 0;
+
+        for ( Long value : new TreeSet<Long>( expected ) )
+        {
+            if ( ( n++ % 3 ) == 0 )
+            {
+                btree.delete( "key", value );
+                expected.remove( value );
+            }
+        }
+
+        checkValues( btree, "key", expected );
+
+        rm.close();
+        rm = new RecordManager( dbFile.getAbsolutePath() );
+        rm._disableReclaimer( true );
+
+        PersistedBTree<String, Long> reloaded = ( PersistedBTree<String, Long> ) rm
+            .<String, Long> getManagedTree( TREE_NAME );
+
+        assertTrue( reloaded.isCompressedValues() );
+        checkValues( reloaded, "key", expected );
+        checkValues( reloaded, "other", new TreeSet<Long>( Collections.singleton( 1L ) ) );
+
+        for ( long value = -50000L; value < 50000L; value += 7 )
+        {
+            assertEquals( expected.contains( value ), reloaded.contains( "key", value ) );
+        }
+    }
+
+
+    @Test
+    public void testNotLongValues() throws Exception
+    {
+        PersistedBTreeConfiguration<Long, String> config = new PersistedBTreeConfiguration<Long, String>();
+        config.setName( TREE_NAME );
+        config.setKeySerializer( LongSerializer.INSTANCE );
+        config.setValueSerializer( StringSerializer.INSTANCE );
+        config.setAllowDuplicates( true );
+        config.setCompressedValues( true );
+
+        PersistedBTree<Long, String> btree = ( PersistedBTree<Long, String> ) BTreeFactory
+            .createPersistedBTree( config );
+
+        // Only Long values can be compressed
+        assertFalse( btree.isCompressedValues() );
+    }
+}
@@ -0,0 +1,371 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.mavibot.btree;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.apache.directory.mavibot.btree.serializer.StringSerializer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+/**
+ * Tests for the leaves split on their serialized size.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class PersistedBTreeMaxPageIOsTest
+{
+    private static final String TREE_NAME = "abc";
+
+    private RecordManager rm;
+
+    @Rule
+    public TemporaryFolder tmpDir;
+
+    private File dbFile;
+
+
+    @Before
+    public void setup() throws Exception
+    {
+        tmpDir = new TemporaryFolder();
+        tmpDir.create();
+
+        dbFile = tmpDir.newFile( "maxpageios.db" );
+
+        rm = new RecordManager( dbFile.getAbsolutePath() );
+        rm._disableReclaimer( true );
+    }
+
+
+    @After
+    public void cleanup() throws Exception
+    {
+        rm.close();
+        dbFile.delete();
+        tmpDir.delete();
+    }
+
+
+    private PersistedBTree<String, String> createBTree( int maxPageIOs ) throws Exception
+    {
+        return createBTree( maxPageIOs, false );
+    }
+
+
+    private PersistedBTree<String, String> createBTree( int maxPageIOs, boolean allowDuplicates )
+        throws Exception
+    {
+        PersistedBTreeConfiguration<String, String> config = new PersistedBTreeConfiguration<String, String>();
+        config.setName( TREE_NAME );
+        config.setKeySerializer( StringSerializer.INSTANCE );
+        config.setValueSerializer( StringSerializer.INSTANCE );
+        config.setPageSize( 16 );
+        config.setMaxPageIOs( maxPageIOs );
+        config.setAllowDuplicates( allowDuplicates );
+
+        PersistedBTree<String, String> btree = ( PersistedBTree<String, String> ) BTreeFactory
+            .createPersistedBTree( config );
+        rm.manage( btree );
+
+        return btree;
+    }
+
+
+    /**
+     * Creates a key long enough for a few of them to fill a PageIO
+     */
+    private String createKey( Random random )
+    {
+        return createString( random, 80 );
+    }
+
+
+    /**
+     * Creates a random string of the given length
+     */
+    private String createString( Random random, int length )
+    {
+        StringBuilder sb = new StringBuilder();
+
+        for ( int i = 0; i < length; i++ )
+        {
+            sb.append( ( char ) ( 'a' + random.nextInt( 26 ) ) );
+        }
+
+        return sb.toString();
+    }
+
+
+    /**
+     * Check that all the leaves of a page fit in the given number of PageIOs, and
+     * return the number of leaves
+     */
+    private int checkLeaves( BTree<String, String> btree, Page<String, String> page, int maxPageIOs )
+        throws Exception
+    {
+        if ( page.isLeaf() )
+        {
+            PageIO[] pageIos = rm.serializePage( btree, page.getRevision(), page );
+            assertTrue( pageIos.length <= maxPageIOs );
+
+            return 1;
+        }
+
+        int nbLeaves = 0;
+
+        for ( int i = 0; i <= page.getNbElems(); i++ )
+        {
+            nbLeaves += checkLeaves( btree, ( ( AbstractPage<String, String> ) page ).getPage( i ), maxPageIOs );
+        }
+
+        return nbLeaves;
+    }
+
+
+    /**
+     * Check that the leaves are split as soon as they don't fit in one PageIO
+     */
+    @Test
+    public void testLeavesFitInPageIOs() throws Exception
+    {
+        PersistedBTree<String, String> btree = createBTree( 1 );
+        Random random = new Random( 42L );
+        TreeMap<String, String> expected = new TreeMap<String, String>();
+
+        for ( int i = 0; i < 500; i++ )
+        {
+            String key = createKey( random );
+            btree.insert( key, "v" + i );
+            expected.put( key, "v" + i );
+        }
+
+        assertEquals( expected.size(), btree.getNbElems() );
+
+        // 16 keys of 80 chars don't fit in a 512 bytes PageIO, so we need more leaves
+        // than a count based split would create
+        int nbLeaves = checkLeaves( btree, btree.getRootPage(), 1 );
+        assertTrue( nbLeaves > expected.size() / 8 );
+
+        for ( String key : expected.keySet() )
+        {
+            assertEquals( expected.get( key ), btree.get( key ) );
+        }
+    }
+
+
+    /**
+     * Check that the leaves with less than pageSize/2 elements are correctly
+     * rebalanced when elements are removed
+     */
+    @Test
+    public void testDeleteWithSmallLeaves() throws Exception
+    {
+        PersistedBTree<String, String> btree = createBTree( 1 );
+        Random random = new Random( 7L );
+        TreeMap<String, String> expected = new TreeMap<String, String>();
+
+        for ( int i = 0; i < 300; i++ )
+        {
+            String key = createKey( random );
+            btree.insert( key, "v" + i );
+            expected.put( key, "v" + i );
+        }
+
+        String[] keys = expected.keySet().toArray( new String[0] );
+
+        for ( int i = 0; i < keys.length; i += 2 )
+        {
+            btree.delete( keys[i] );
+            expected.remove( keys[i] );
+        }
+
+        assertEquals( expected.size(), btree.getNbElems() );
+
+        for ( int i = 0; i < keys.length; i++ )
+        {
+            if ( ( i % 2 ) == 0 )
+            {
+                assertFalse( btree.hasKey( keys[i] ) );
+            }
+            else
+            {
+                assertEquals( expected.get( keys[i] ), btree.get( keys[i] ) );
+            }
+        }
+
+        TupleCursor<String, String> cursor = btree.browse();
+
+        try
+        {
+            for ( String key : expected.keySet() )
+            {
+                assertTrue( cursor.hasNext() );
+                assertEquals( key, cursor.next().getKey() );
+            }
+
+            assertFalse( cursor.hasNext() );
+        }
+        finally
+        {
+            cursor.close();
+        }
+
+        // Empty the tree
+        for ( String key : expected.keySet() )
+        {
+            btree.delete( key );
+        }
+
+        assertEquals( 0, btree.getNbElems() );
+    }
+
+
+    /**
+     * Check that the limit is still applied once the B-tree has been reloaded
+     */
+    @Test
+    public void testMaxPageIOsReloaded() throws Exception
+    {
+        PersistedBTree<String, String> btree = createBTree( 1 );
+        Random random = new Random( 11L );
+        TreeMap<String, String> expected = new TreeMap<String, String>();
+
+        for ( int i = 0; i < 100; i++ )
+        {
+            String key = createKey( random );
+            btree.insert( key, "v" + i );
+            expected.put( key, "v" + i );
+        }
+
+        rm.close();
+        rm = new RecordManager( dbFile.getAbsolutePath() );
+        rm._disableReclaimer( true );
+
+        btree = ( PersistedBTree<String, String> ) rm.<String, String> getManagedTree( TREE_NAME );
+        assertEquals( 1, btree.getMaxPageIOs() );
+
+        for ( int i = 100; i < 300; i++ )
+        {
+            String key = createKey( random );
+            btree.insert( key, "v" + i );
+            expected.put( key, "v" + i );
+        }
+
+        checkLeaves( btree, btree.getRootPage(), 1 );
+
+        for ( String key : expected.keySet() )
+        {
+            assertEquals( expected.get( key ), btree.get( key ) );
+        }
+    }
+
+
+    /**
+     * Check that a leaf is split when a value is replaced by a bigger one
+     */
+    @Test
+    public void testReplaceWithBiggerValues() throws Exception
+    {
+        PersistedBTree<String, String> btree = createBTree( 1 );
+        Random random = new Random( 13L );
+        TreeMap<String, String> expected = new TreeMap<String, String>();
+
+        for ( int i = 0; i < 300; i++ )
+        {
+            String key = String.format( "k%03d", i );
+            btree.insert( key, "v" + i );
+            expected.put( key, "v" + i );
+        }
+
+        for ( String key : expected.keySet() )
+        {
+            String value = createString( random, 150 );
+            assertEquals( expected.get( key ), btree.insert( key, value ) );
+            expected.put( key, value );
+        }
+
+        assertEquals( expected.size(), btree.getNbElems() );
+        checkLeaves( btree, btree.getRootPage(), 1 );
+
+        for ( String key : expected.keySet() )
+        {
+            assertEquals( expected.get( key ), btree.get( key ) );
+        }
+    }
+
+
+    /**
+     * Check that a leaf is split when values are added to an existing key
+     */
+    @Test
+    public void testAddDuplicateValues() throws Exception
+    {
+        PersistedBTree<String, String> btree = createBTree( 2, true );
+        Random random = new Random( 17L );
+        TreeMap<String, List<String>> expected = new TreeMap<String, List<String>>();
+
+        for ( int i = 0; i < 100; i++ )
+        {
+            String key = String.format( "k%03d", i );
+            String value = createString( random, 60 );
+            btree.insert( key, value );
+
+            List<String> values = new ArrayList<String>();
+            values.add( value );
+            expected.put( key, values );
+        }
+
+        for ( int i = 0; i < 4; i++ )
+        {
+            for ( String key : expected.keySet() )
+            {
+                String value = createString( random, 60 );
+                assertNull( btree.insert( key, value ) );
+                expected.get( key ).add( value );
+            }
+        }
+
+        assertEquals( 500, btree.getNbElems() );
+        checkLeaves( btree, btree.getRootPage(), 2 );
+
+        for ( String key : expected.keySet() )
+        {
+            for ( String value : expected.get( key ) )
+            {
+                assertTrue( btree.contains( key, value ) );
+            }
+        }
+    }
+}
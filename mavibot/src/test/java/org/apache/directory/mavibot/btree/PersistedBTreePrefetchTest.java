@@ -0,0 +1,210 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.mavibot.btree;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import org.apache.directory.mavibot.btree.serializer.LongSerializer;
+import org.apache.directory.mavibot.btree.serializer.StringSerializer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+/**
+ * Tests for the cursors reading the leaves ahead.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class PersistedBTreePrefetchTest
+{
+    private static final String TREE_NAME = "prefetch";
+
+    private static final int NB_ELEMS = 2000;
+
+    private RecordManager rm;
+
+    @Rule
+    public TemporaryFolder tmpDir;
+
+    private File dbFile;
+
+
+    @Before
+    public void setup() throws Exception
+    {
+        tmpDir = new TemporaryFolder();
+        tmpDir.create();
+
+        dbFile = tmpDir.newFile( "prefetch.db" );
+
+        rm = new RecordManager( dbFile.getAbsolutePath() );
+        rm._disableReclaimer( true );
+
+        BTree<Long, String> btree = BTreeFactory.createPersistedBTree( TREE_NAME, LongSerializer.INSTANCE,
+            StringSerializer.INSTANCE, 16, false );
+        rm.manage( btree );
+
+        for ( long i = 0; i < NB_ELEMS; i++ )
+        {
+            btree.insert( i, Long.toString( i ) );
+        }
+
+        // Reload the B-tree, so that its cache is empty
+        rm.close();
+        rm = new RecordManager( dbFile.getAbsolutePath() );
+        rm._disableReclaimer( true );
+    }
+
+
+    @After
+    public void cleanup() throws Exception
+    {
+        rm.close();
+        dbFile.delete();
+        tmpDir.delete();
+    }
+
+
+    @Test
+    public void testBrowseWithPrefetch() throws Exception
+    {
+        PersistedBTree<Long, String> btree = ( PersistedBTree<Long, String> ) rm.<Long, String> getManagedTree( TREE_NAME );
+        btree.setPrefetchDepth( 4 );
+
+        TupleCursor<Long, String> cursor = btree.browse();
+        long expected = 0;
+
+        while ( cursor.hasNext() )
+        {
+            Tuple<Long, String> tuple = cursor.next();
+            assertEquals( expected, tuple.getKey().longValue() );
+            assertEquals( Long.toString( expected ), tuple.getValue() );
+            expected++;
+        }
+
+        assertEquals( NB_ELEMS, expected );
+
+        // Now, browse backward
+        cursor.afterLast();
+
+        while ( cursor.hasPrev() )
+        {
+            expected--;
+            assertEquals( expected, cursor.prev().getKey().longValue() );
+        }
+
+        assertEquals( 0, expected );
+        cursor.close();
+    }
+
+
+    @Test
+    public void testLeavesAreReadAhead() throws Exception
+    {
+        PersistedBTree<Long, String> btree = ( PersistedBTree<Long, String> ) rm.<Long, String> getManagedTree( TREE_NAME );
+        btree.setPrefetchDepth( 3 );
+
+        // Find the node above the first leaf
+        AbstractPage<Long, String> node = ( AbstractPage<Long, String> ) btree.getRootPage();
+
+        while ( node.getPage( 0 ).isNode() )
+        {
+            node = ( AbstractPage<Long, String> ) node.getPage( 0 );
+        }
+
+        assertTrue( node.getNbElems() >= 5 );
+        PersistedPageHolder<Long, String> holder = ( PersistedPageHolder<Long, String> ) node.children[4];
+        assertNull( holder.getCachedValue() );
+
+        // Move to the second leaf : the 3 following ones are loaded in the cache
+        TupleCursor<Long, String> cursor = btree.browse();
+
+        for ( int i = 0; i <= node.getPage( 0 ).getNbElems(); i++ )
+        {
+            cursor.next();
+        }
+
+        for ( int i = 2; i <= 4; i++ )
+        {
+            holder = ( PersistedPageHolder<Long, String> ) node.children[i];
+
+            for ( int j = 0; ( j < 100 ) && ( holder.getCachedValue() == null ); j++ )
+            {
+                Thread.sleep( 10 );
+            }
+
+            assertNotNull( holder.getCachedValue() );
+        }
+
+        // But not the next one
+        holder = ( PersistedPageHolder<Long, String> ) node.children[5];
+        assertNull( holder.getCachedValue() );
+
+        cursor.close();
+    }
+
+
+    /**
+     * Close the RecordManager while pages are being read ahead : the file must still be
+     * written correctly, and be reopened
+     */
+    @Test
+    public void testCloseWhilePrefetching() throws Exception
+    {
+        for ( int i = 0; i < 10; i++ )
+        {
+            PersistedBTree<Long, String> btree = ( PersistedBTree<Long, String> ) rm.<Long, String> getManagedTree( TREE_NAME );
+            btree.setPrefetchDepth( 8 );
+
+            TupleCursor<Long, String> cursor = btree.browse();
+
+            for ( int j = 0; ( j < 1600 ) && cursor.hasNext(); j++ )
+            {
+                cursor.next();
+            }
+
+            btree.insert( ( long ) ( NB_ELEMS + i ), Long.toString( NB_ELEMS + i ) );
+
+            // Close with the cursor still open and the loaders running
+            rm.close();
+
+            rm = new RecordManager( dbFile.getAbsolutePath() );
+            rm._disableReclaimer( true );
+            btree = ( PersistedBTree<Long, String> ) rm.<Long, String> getManagedTree( TREE_NAME );
+
+            assertNotNull( btree );
+            assertEquals( NB_ELEMS + i + 1, btree.getNbElems() );
+
+            for ( long k = 0; k <= NB_ELEMS + i; k++ )
+            {
+                assertEquals( Long.toString( k ), btree.get( k ) );
+            }
+        }
+    }
+}
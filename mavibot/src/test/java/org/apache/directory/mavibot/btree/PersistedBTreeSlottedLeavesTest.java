@@ -0,0 +1,282 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.mavibot.btree;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.apache.directory.mavibot.btree.serializer.LongSerializer;
+import org.apache.directory.mavibot.btree.serializer.StringSerializer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+/**
+ * Tests for the slotted leaf format.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class PersistedBTreeSlottedLeavesTest
+{
+    private static final String TREE_NAME = "slotted";
+
+    private RecordManager rm;
+
+    @Rule
+    public TemporaryFolder tmpDir;
+
+    private File dbFile;
+
+
+    @Before
+    public void setup() throws Exception
+    {
+        tmpDir = new TemporaryFolder();
+        tmpDir.create();
+
+        dbFile = tmpDir.newFile( "slotted.db" );
+
+        rm = new RecordManager( dbFile.getAbsolutePath() );
+        rm._disableReclaimer( true );
+    }
+
+
+    @After
+    public void cleanup() throws Exception
+    {
+        rm.close();
+        dbFile.delete();
+        tmpDir.delete();
+    }
+
+
+    private <K, V> PersistedBTree<K, V> createBTree( PersistedBTreeConfiguration<K, V> config ) throws Exception
+    {
+        config.setName( TREE_NAME );
+        config.setSlottedLeaves( true );
+
+        PersistedBTree<K, V> btree = ( PersistedBTree<K, V> ) BTreeFactory.createPersistedBTree( config );
+        rm.manage( btree );
+
+        return btree;
+    }
+
+
+    private void reopen() throws Exception
+    {
+        rm.close();
+        rm = new RecordManager( dbFile.getAbsolutePath() );
+        rm._disableReclaimer( true );
+    }
+
+
+    /**
+     * Store random String keys, and read them back after having reopened the file, with
+     * lookups, browsing and modifications
+     */
+    @Test
+    public void testSlottedLeaves() throws Exception
+    {
+        PersistedBTreeConfiguration<String, Long> config = new PersistedBTreeConfiguration<String, Long>();
+        config.setKeySerializer( StringSerializer.INSTANCE );
+        config.setValueSerializer( LongSerializer.INSTANCE );
+
+        BTree<String, Long> btree = createBTree( config );
+        Random random = new Random( 42L );
+        TreeMap<String, Long> expected = new TreeMap<String, Long>();
+
+        for ( int i = 0; i < 3000; i++ )
+        {
+            long value = random.nextInt( 100000 );
+            String key = "K" + value + ( ( i % 7 == 0 ) ? "\u00e9\u4e2d" : "" );
+            btree.insert( key, value );
+            expected.put( key, value );
+        }
+
+        reopen();
+
+        btree = rm.getManagedTree( TREE_NAME );
+
+        assertTrue( ( ( PersistedBTree<String, Long> ) btree ).isSlottedLeaves() );
+        assertEquals( expected.size(), btree.getNbElems() );
+
+        for ( String key : expected.keySet() )
+        {
+            assertEquals( expected.get( key ), btree.get( key ) );
+        }
+
+        assertFalse( btree.hasKey( "A" ) );
+        assertFalse( btree.hasKey( "K" ) );
+        assertFalse( btree.hasKey( "Z" ) );
+
+        // Browse from a key which is not present
+        TupleCursor<String, Long> cursor = btree.browseFrom( "K5" );
+
+        for ( String key : expected.tailMap( "K5" ).keySet() )
+        {
+            assertTrue( cursor.hasNext() );
+            assertEquals( key, cursor.next().getKey() );
+        }
+
+        assertFalse( cursor.hasNext() );
+        cursor.close();
+
+        // Modify the leaves read from the disk
+        int i = 0;
+
+        for ( String key : expected.keySet().toArray( new String[0] ) )
+        {
+            if ( i++ % 3 == 0 )
+            {
+                btree.delete( key );
+                expected.remove( key );
+            }
+        }
+
+        btree.insert( "New", 1L );
+        expected.put( "New", 1L );
+
+        reopen();
+
+        btree = rm.getManagedTree( TREE_NAME );
+        cursor = btree.browse();
+
+        for ( String key : expected.keySet() )
+        {
+            assertTrue( cursor.hasNext() );
+            Tuple<String, Long> tuple = cursor.next();
+            assertEquals( key, tuple.getKey() );
+            assertEquals( expected.get( key ), tuple.getValue() );
+        }
+
+        assertFalse( cursor.hasNext() );
+        cursor.close();
+
+        MavibotInspector.check( rm );
+    }
+
+
+    /**
+     * Store enough duplicate values to create sub-btrees, in the compact format
+     */
+    @Test
+    public void testSlottedCompactLeaves() throws Exception
+    {
+        PersistedBTreeConfiguration<Long, Long> config = new PersistedBTreeConfiguration<Long, Long>();
+        config.setKeySerializer( LongSerializer.INSTANCE );
+        config.setValueSerializer( LongSerializer.INSTANCE );
+        config.setAllowDuplicates( true );
+        config.setCompactPages( true );
+
+        BTree<Long, Long> btree = createBTree( config );
+
+        for ( long i = -100L; i < 100L; i++ )
+        {
+            // Key i has |i| values, so that we have both arrays and sub-btrees
+            for ( long value = 0L; value < Math.abs( i ); value++ )
+            {
+                btree.insert( i, value * 1000L );
+            }
+        }
+
+        reopen();
+
+        btree = rm.getManagedTree( TREE_NAME );
+
+        for ( long i = -100L; i < 100L; i++ )
+        {
+            if ( i == 0L )
+            {
+                assertFalse( btree.hasKey( i ) );
+
+                continue;
+            }
+
+            ValueCursor<Long> values = btree.getValues( i );
+
+            assertEquals( Math.abs( i ), values.size() );
+
+            for ( long value = 0L; value < Math.abs( i ); value++ )
+            {
+                assertTrue( values.hasNext() );
+                assertEquals( Long.valueOf( value * 1000L ), values.next() );
+            }
+
+            assertFalse( values.hasNext() );
+            values.close();
+        }
+
+        assertTrue( btree.contains( 50L, 49000L ) );
+        assertFalse( btree.contains( 50L, 50000L ) );
+    }
+
+
+    /**
+     * Check that a lookup in a leaf read from disk only deserializes the found element
+     */
+    @Test
+    public void testLookupReadsOneElement() throws Exception
+    {
+        PersistedBTreeConfiguration<Long, String> config = new PersistedBTreeConfiguration<Long, String>();
+        config.setKeySerializer( LongSerializer.INSTANCE );
+        config.setValueSerializer( StringSerializer.INSTANCE );
+
+        BTree<Long, String> btree = createBTree( config );
+
+        for ( long i = 0L; i < 10L; i++ )
+        {
+            btree.insert( i, "V" + i );
+        }
+
+        reopen();
+
+        btree = rm.getManagedTree( TREE_NAME );
+        PersistedLeaf<Long, String> leaf = ( PersistedLeaf<Long, String> ) btree.getRootPage();
+
+        assertEquals( "V7", btree.get( 7L ) );
+        assertFalse( btree.hasKey( 10L ) );
+
+        for ( int pos = 0; pos < 10; pos++ )
+        {
+            assertNull( leaf.keys[pos] );
+
+            if ( pos != 7 )
+            {
+                assertNull( leaf.values[pos] );
+            }
+        }
+
+        // A copy deserializes all the elements
+        btree.insert( 10L, "V10" );
+
+        assertEquals( Long.valueOf( 0L ), btree.getRootPage().getLeftMostKey() );
+        assertEquals( Long.valueOf( 10L ), btree.getRootPage().getRightMostKey() );
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.mavibot.btree;
+
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+
+import org.apache.directory.mavibot.btree.serializer.IntSerializer;
+import org.apache.directory.mavibot.btree.serializer.StringSerializer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+/**
+ * Tests for the serialization of the pages directly into their PageIOs.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class PersistedPageSerializationTest
+{
+    private RecordManager rm;
+
+    @Rule
+    public TemporaryFolder tmpDir;
+
+    private File dbFile;
+
+
+    @Before
+    public void setup() throws Exception
+    {
+        tmpDir = new TemporaryFolder();
+        tmpDir.create();
+
+        dbFile = tmpDir.newFile( "serialization.db" );
+
+        rm = new RecordManager( dbFile.getAbsolutePath() );
+        rm._disableReclaimer( true );
+    }
+
+
+    @After
+    public void cleanup() throws Exception
+    {
+        rm.close();
+        dbFile.delete();
+        tmpDir.delete();
+    }
+
+
+    private String createValue( int length )
+    {
+        StringBuilder sb = new StringBuilder( length );
+
+        for ( int i = 0; i < length; i++ )
+        {
+            sb.append( ( char ) ( 'a' + ( ( length + i ) % 26 ) ) );
+        }
+
+        return sb.toString();
+    }
+
+
+    /**
+     * Store values of all the sizes up to a few PageIOs, so that some pages end exactly on
+     * a PageIO boundary, and read them back after having reopened the file
+     */
+    @Test
+    public void testValuesOfAllSizes() throws Exception
+    {
+        int pageIoSize = rm.getPageSize();
+        int nbValues = 3 * pageIoSize;
+
+        BTree<Integer, String> btree = rm.addBTree( "sizes", IntSerializer.INSTANCE, StringSerializer.INSTANCE,
+            false );
+
+        for ( int i = 0; i < nbValues; i++ )
+        {
+            btree.insert( i, createValue( i ) );
+        }
+
+        rm.close();
+        rm = new RecordManager( dbFile.getAbsolutePath() );
+        rm._disableReclaimer( true );
+
+        btree = rm.getManagedTree( "sizes" );
+
+        assertEquals( nbValues, btree.getNbElems() );
+
+        for ( int i = 0; i < nbValues; i++ )
+        {
+            assertEquals( createValue( i ), btree.get( i ) );
+        }
+    }
+}
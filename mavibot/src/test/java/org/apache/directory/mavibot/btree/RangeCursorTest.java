@@ -0,0 +1,331 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.mavibot.btree;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.apache.directory.mavibot.btree.serializer.IntSerializer;
+import org.apache.directory.mavibot.btree.serializer.StringSerializer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+/**
+ * Tests for the range cursors.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class RangeCursorTest
+{
+    private RecordManager rm;
+
+    @Rule
+    public TemporaryFolder tmpDir;
+
+    private File dbFile;
+
+
+    @Before
+    public void setup() throws Exception
+    {
+        tmpDir = new TemporaryFolder();
+        tmpDir.create();
+
+        dbFile = tmpDir.newFile( "range.db" );
+    }
+
+
+    @After
+    public void cleanup() throws Exception
+    {
+        if ( rm != null )
+        {
+            rm.close();
+        }
+
+        dbFile.delete();
+        tmpDir.delete();
+    }
+
+
+    /**
+     * Inject some random keys, with a gap between each of them
+     */
+    private TreeSet<Integer> load( BTree<Integer, String> btree ) throws Exception
+    {
+        Random random = new Random( 42L );
+        TreeSet<Integer> expected = new TreeSet<Integer>();
+
+        for ( int i = 0; i < 500; i++ )
+        {
+            int key = random.nextInt( 1000 ) * 2;
+            btree.insert( key, String.valueOf( key ) );
+            expected.add( key );
+        }
+
+        return expected;
+    }
+
+
+    private List<Integer> read( TupleCursor<Integer, String> cursor, boolean reverse ) throws Exception
+    {
+        List<Integer> keys = new ArrayList<Integer>();
+
+        if ( reverse )
+        {
+            while ( cursor.hasPrev() )
+            {
+                Tuple<Integer, String> tuple = cursor.prev();
+                assertEquals( String.valueOf( tuple.getKey() ), tuple.getValue() );
+                keys.add( tuple.getKey() );
+            }
+        }
+        else
+        {
+            while ( cursor.hasNext() )
+            {
+                Tuple<Integer, String> tuple = cursor.next();
+                assertEquals( String.valueOf( tuple.getKey() ), tuple.getValue() );
+                keys.add( tuple.getKey() );
+            }
+        }
+
+        return keys;
+    }
+
+
+    private void checkRange( BTree<Integer, String> btree, TreeSet<Integer> expected, Integer from,
+        boolean fromInclusive, Integer to, boolean toInclusive ) throws Exception
+    {
+        NavigableSet<Integer> range = expected;
+
+        if ( from != null )
+        {
+            range = range.tailSet( from, fromInclusive );
+        }
+
+        if ( to != null )
+        {
+            range = range.headSet( to, toInclusive );
+        }
+
+        TupleCursor<Integer, String> cursor = btree.browseRange( from, fromInclusive, to, toInclusive, false );
+        assertEquals( new ArrayList<Integer>( range ), read( cursor, false ) );
+        assertFalse( cursor.hasNext() );
+        cursor.close();
+
+        cursor = btree.browseRange( from, fromInclusive, to, toInclusive, true );
+        assertEquals( new ArrayList<Integer>( range.descendingSet() ), read( cursor, true ) );
+        assertFalse( cursor.hasPrev() );
+        cursor.close();
+    }
+
+
+    private void checkRanges( BTree<Integer, String> btree, TreeSet<Integer> expected ) throws Exception
+    {
+        // Open ranges
+        checkRange( btree, expected, null, true, null, true );
+        checkRange( btree, expected, null, true, 1000, false );
+        checkRange( btree, expected, 1000, false, null, true );
+
+        // Bounds out of the tree
+        checkRange( btree, expected, -10, true, -5, true );
+        checkRange( btree, expected, 5000, true, 6000, true );
+        checkRange( btree, expected, -10, true, 6000, true );
+
+        // A single bound out of the tree
+        checkRange( btree, expected, 5000, true, null, true );
+        checkRange( btree, expected, 5000, false, null, true );
+        checkRange( btree, expected, null, true, -10, true );
+        checkRange( btree, expected, null, true, -10, false );
+        checkRange( btree, expected, expected.last(), false, null, true );
+        checkRange( btree, expected, null, true, expected.first(), false );
+
+        // Bounds on the first and last keys
+        checkRange( btree, expected, expected.first(), false, expected.last(), false );
+        checkRange( btree, expected, expected.first(), true, expected.last(), true );
+
+        // Random bounds, existing or not
+        Random random = new Random( 7L );
+
+        for ( int i = 0; i < 200; i++ )
+        {
+            int from = random.nextInt( 2000 );
+            int to = from + random.nextInt( 300 );
+
+            checkRange( btree, expected, from, random.nextBoolean(), to, random.nextBoolean() );
+        }
+
+        // A range with a single key, and an empty one
+        Integer key = expected.higher( 1000 );
+        checkRange( btree, expected, key, true, key, true );
+        checkRange( btree, expected, key, true, key, false );
+    }
+
+
+    @Test
+    public void testInMemoryRange() throws Exception
+    {
+        BTree<Integer, String> btree = BTreeFactory.createInMemoryBTree( "range", IntSerializer.INSTANCE,
+            StringSerializer.INSTANCE );
+        btree.setPageSize( 8 );
+
+        TreeSet<Integer> expected = load( btree );
+
+        checkRanges( btree, expected );
+
+        btree.close();
+    }
+
+
+    @Test
+    public void testPersistedRange() throws Exception
+    {
+        rm = new RecordManager( dbFile.getAbsolutePath() );
+        rm._disableReclaimer( true );
+
+        BTree<Integer, String> btree = BTreeFactory.createPersistedBTree( "range", IntSerializer.INSTANCE,
+            StringSerializer.INSTANCE, 8, false );
+        rm.manage( btree );
+
+        TreeSet<Integer> expected = load( btree );
+
+        checkRanges( btree, expected );
+    }
+
+
+    /**
+     * Check that we can move back and forth in a range, and that the cursor does not go
+     * beyond the bounds
+     */
+    @Test
+    public void testRangeMoves() throws Exception
+    {
+        BTree<Integer, String> btree = BTreeFactory.createInMemoryBTree( "range", IntSerializer.INSTANCE,
+            StringSerializer.INSTANCE );
+        btree.setPageSize( 4 );
+
+        for ( int i = 0; i < 100; i++ )
+        {
+            btree.insert( i, String.valueOf( i ) );
+        }
+
+        TupleCursor<Integer, String> cursor = btree.browseRange( 10, true, 20, false, false );
+
+        assertFalse( cursor.hasPrev() );
+        assertEquals( 10, cursor.next().getKey().intValue() );
+        assertEquals( 11, cursor.nextKey().getKey().intValue() );
+        assertEquals( 10, cursor.prevKey().getKey().intValue() );
+        assertFalse( cursor.hasPrevKey() );
+
+        cursor.afterLast();
+        assertFalse( cursor.hasNextKey() );
+        assertEquals( 19, cursor.prev().getKey().intValue() );
+
+        assertFalse( cursor.hasNext() );
+        assertEquals( 18, cursor.prev().getKey().intValue() );
+        assertEquals( 19, cursor.next().getKey().intValue() );
+        assertFalse( cursor.hasNext() );
+
+        cursor.close();
+        btree.close();
+    }
+
+
+    /**
+     * The cursor must not go beyond the upper bound
+     */
+    @Test(expected = NoSuchElementException.class)
+    public void testNextBeyondRange() throws Exception
+    {
+        BTree<Integer, String> btree = BTreeFactory.createInMemoryBTree( "range", IntSerializer.INSTANCE,
+            StringSerializer.INSTANCE );
+        btree.setPageSize( 4 );
+
+        for ( int i = 0; i < 100; i++ )
+        {
+            btree.insert( i, String.valueOf( i ) );
+        }
+
+        TupleCursor<Integer, String> cursor = btree.browseRange( 10, false, 12, true, false );
+
+        assertEquals( 11, cursor.next().getKey().intValue() );
+        assertEquals( 12, cursor.next().getKey().intValue() );
+
+        cursor.next();
+    }
+
+
+    /**
+     * A lower bound above the last key, with no upper bound, gives an empty range
+     */
+    @Test
+    public void testLowerBoundAfterLastKey() throws Exception
+    {
+        BTree<Integer, String> btree = BTreeFactory.createInMemoryBTree( "range", IntSerializer.INSTANCE,
+            StringSerializer.INSTANCE );
+        btree.setPageSize( 4 );
+
+        for ( int i = 0; i < 100; i++ )
+        {
+            btree.insert( i, String.valueOf( i ) );
+        }
+
+        TupleCursor<Integer, String> cursor = btree.browseRange( 1000, true, null, false, false );
+        assertFalse( cursor.hasNext() );
+        assertFalse( cursor.hasNextKey() );
+        assertFalse( cursor.hasPrev() );
+        cursor.close();
+
+        cursor = btree.browseRange( 1000, false, null, false, false );
+        assertFalse( cursor.hasNext() );
+        cursor.close();
+
+        btree.close();
+    }
+
+
+    @Test
+    public void testEmptyTreeRange() throws Exception
+    {
+        BTree<Integer, String> btree = BTreeFactory.createInMemoryBTree( "range", IntSerializer.INSTANCE,
+            StringSerializer.INSTANCE );
+
+        TupleCursor<Integer, String> cursor = btree.browseRange( 1, true, 10, true, false );
+        assertFalse( cursor.hasNext() );
+        assertFalse( cursor.hasPrev() );
+        cursor.close();
+
+        btree.close();
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.mavibot.btree;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.directory.mavibot.btree.serializer.LongSerializer;
+import org.apache.directory.mavibot.btree.serializer.StringSerializer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+/**
+ * Tests for the cursor methods filling a Tuple provided by the caller.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class TupleCursorReuseTest
+{
+    private RecordManager rm;
+
+    @Rule
+    public TemporaryFolder tmpDir;
+
+    private File dbFile;
+
+
+    @Before
+    public void setup() throws Exception
+    {
+        tmpDir = new TemporaryFolder();
+        tmpDir.create();
+
+        dbFile = tmpDir.newFile( "reuse.db" );
+
+        rm = new RecordManager( dbFile.getAbsolutePath() );
+        rm._disableReclaimer( true );
+    }
+
+
+    @After
+    public void cleanup() throws Exception
+    {
+        rm.close();
+        dbFile.delete();
+        tmpDir.delete();
+    }
+
+
+    /**
+     * Browses the B-tree with every kind of method, checking they all see the same tuples
+     */
+    private void checkBrowse( BTree<Long, String> btree ) throws Exception
+    {
+        List<Tuple<Long, String>> expected = new ArrayList<Tuple<Long, String>>();
+        TupleCursor<Long, String> cursor = btree.browse();
+
+        while ( cursor.hasNext() )
+        {
+            expected.add( cursor.next() );
+        }
+
+        cursor.close();
+
+        // A single Tuple, reused for every element
+        cursor = btree.browse();
+        Tuple<Long, String> tuple = new Tuple<Long, String>();
+
+        for ( Tuple<Long, String> expectedTuple : expected )
+        {
+            assertTrue( cursor.hasNext() );
+            assertSame( tuple, cursor.next( tuple ) );
+            assertEquals( expectedTuple.getKey(), tuple.getKey() );
+            assertEquals( expectedTuple.getValue(), tuple.getValue() );
+            assertEquals( expectedTuple.getKey(), cursor.currentKey() );
+            assertEquals( expectedTuple.getValue(), cursor.currentValue() );
+        }
+
+        assertFalse( cursor.hasNext() );
+
+        // And backward
+        for ( int i = expected.size() - 2; i >= 0; i-- )
+        {
+            assertTrue( cursor.hasPrev() );
+            cursor.prev( tuple );
+            assertEquals( expected.get( i ).getKey(), tuple.getKey() );
+            assertEquals( expected.get( i ).getValue(), tuple.getValue() );
+        }
+
+        cursor.close();
+
+        // By batches, the Tuples being reused from one batch to the other
+        cursor = btree.browse();
+        @SuppressWarnings("unchecked")
+        Tuple<Long, String>[] batch = new Tuple[7];
+        int pos = 0;
+        int nbTuples = 0;
+
+        while ( ( nbTuples = cursor.nextBatch( batch ) ) > 0 )
+        {
+            Tuple<Long, String> first = batch[0];
+
+            for ( int i = 0; i < nbTuples; i++ )
+            {
+                assertEquals( expected.get( pos ).getKey(), batch[i].getKey() );
+                assertEquals( expected.get( pos ).getValue(), batch[i].getValue() );
+                pos++;
+            }
+
+            assertSame( first, batch[0] );
+        }
+
+        assertEquals( expected.size(), pos );
+        cursor.close();
+    }
+
+
+    @Test
+    public void testPersistedBTree() throws Exception
+    {
+        BTree<Long, String> btree = rm.addBTree( "test", LongSerializer.INSTANCE, StringSerializer.INSTANCE,
+            false );
+
+        for ( long i = 0; i < 1000; i++ )
+        {
+            btree.insert( ( i * 7919 ) % 1000, "V" + i );
+        }
+
+        checkBrowse( btree );
+    }
+
+
+    @Test
+    public void testInMemoryBTreeWithDuplicates() throws Exception
+    {
+        BTree<Long, String> btree = BTreeFactory.createInMemoryBTree( "test", LongSerializer.INSTANCE,
+            StringSerializer.INSTANCE, true );
+        btree.setPageSize( 8 );
+
+        for ( long i = 0; i < 300; i++ )
+        {
+            btree.insert( i % 100, "V" + i );
+        }
+
+        checkBrowse( btree );
+    }
+
+
+    @Test
+    public void testEmptyBTree() throws Exception
+    {
+        BTree<Long, String> btree = BTreeFactory.createInMemoryBTree( "test", LongSerializer.INSTANCE,
+            StringSerializer.INSTANCE );
+
+        TupleCursor<Long, String> cursor = btree.browse();
+        @SuppressWarnings("unchecked")
+        Tuple<Long, String>[] batch = new Tuple[4];
+
+        assertEquals( 0, cursor.nextBatch( batch ) );
+        cursor.close();
+    }
+}
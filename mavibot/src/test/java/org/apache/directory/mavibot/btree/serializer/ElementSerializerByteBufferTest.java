@@ -0,0 +1,121 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.mavibot.btree.serializer;
+
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+
+/**
+ * Test the serialization of the elements into ByteBuffers, and their deserialization from
+ * a position in a ByteBuffer
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class ElementSerializerByteBufferTest
+{
+    /**
+     * Serialize an element in a ByteBuffer, after a few other bytes, check that we get the
+     * same bytes as the serialize( T ) method, and read it back
+     */
+    private <T> T check( ElementSerializer<T> serializer, T element ) throws IOException
+    {
+        byte[] expected = serializer.serialize( element );
+        int size = serializer.serializedSize( element );
+
+        assertEquals( expected.length, size );
+
+        ByteBuffer buffer = ByteBuffer.allocate( size + 10 );
+        buffer.position( 3 );
+        serializer.serialize( element, buffer );
+
+        assertEquals( 3 + size, buffer.position() );
+
+        byte[] written = new byte[size];
+        buffer.position( 3 );
+        buffer.get( written );
+
+        assertArrayEquals( expected, written );
+
+        // Read it back, the position must not change
+        buffer.position( 0 );
+        T result = serializer.fromBytes( buffer, 3 );
+
+        assertEquals( 0, buffer.position() );
+
+        return result;
+    }
+
+
+    @Test
+    public void testFixedSizeSerializers() throws IOException
+    {
+        assertEquals( Boolean.TRUE, check( BooleanSerializer.INSTANCE, Boolean.TRUE ) );
+        assertEquals( Boolean.FALSE, check( BooleanSerializer.INSTANCE, Boolean.FALSE ) );
+        assertEquals( Byte.valueOf( ( byte ) -3 ), check( ByteSerializer.INSTANCE, ( byte ) -3 ) );
+        assertEquals( Character.valueOf( 'é' ), check( CharSerializer.INSTANCE, 'é' ) );
+        assertEquals( Short.valueOf( ( short ) -300 ), check( ShortSerializer.INSTANCE, ( short ) -300 ) );
+        assertEquals( Integer.valueOf( 0x12345678 ), check( IntSerializer.INSTANCE, 0x12345678 ) );
+        assertEquals( Integer.valueOf( -1 ), check( IntSerializer.INSTANCE, -1 ) );
+        assertEquals( Long.valueOf( 0x123456789ABCDEFL ), check( LongSerializer.INSTANCE, 0x123456789ABCDEFL ) );
+        assertEquals( Long.valueOf( Long.MIN_VALUE ), check( LongSerializer.INSTANCE, Long.MIN_VALUE ) );
+    }
+
+
+    @Test
+    public void testStringSerializer() throws IOException
+    {
+        assertEquals( null, check( StringSerializer.INSTANCE, null ) );
+        assertEquals( "", check( StringSerializer.INSTANCE, "" ) );
+        assertEquals( "abc", check( StringSerializer.INSTANCE, "abc" ) );
+        assertEquals( "Emmanuel Lécharny", check( StringSerializer.INSTANCE, "Emmanuel Lécharny" ) );
+    }
+
+
+    @Test
+    public void testArraySerializers() throws IOException
+    {
+        assertArrayEquals( null, check( ByteArraySerializer.INSTANCE, null ) );
+        assertArrayEquals( new byte[]
+            {}, check( ByteArraySerializer.INSTANCE, new byte[]
+            {} ) );
+        assertArrayEquals( new byte[]
+            { 1, -2, 3 }, check( ByteArraySerializer.INSTANCE, new byte[]
+            { 1, -2, 3 } ) );
+
+        assertEquals( null, check( CharArraySerializer.INSTANCE, null ) );
+        assertEquals( "aéz", new String( check( CharArraySerializer.INSTANCE, new char[]
+            { 'a', 'é', 'z' } ) ) );
+
+        assertArrayEquals( null, check( LongArraySerializer.INSTANCE, null ) );
+        assertArrayEquals( new long[]
+            {}, check( LongArraySerializer.INSTANCE, new long[]
+            {} ) );
+        assertArrayEquals( new long[]
+            { 1L, -2L, Long.MAX_VALUE }, check( LongArraySerializer.INSTANCE, new long[]
+            { 1L, -2L, Long.MAX_VALUE } ) );
+    }
+}
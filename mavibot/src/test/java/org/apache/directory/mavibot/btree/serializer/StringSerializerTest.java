@@ -21,9 +21,13 @@ package org.apache.directory.mavibot.btree.serializer;
 
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
 
+import org.junit.Ignore;
 import org.junit.Test;
 
 
@@ -100,4 +104,142 @@ public class StringSerializerTest
 
         assertEquals( value, serializer.deserialize( new BufferHandler( result ) ) );
     }
+
+
+    @Test
+    public void testNonAsciiChars() throws IOException
+    {
+        // 1, 2, 3 bytes long chars, and a surrogate pair
+        String value = "a\u00E9\u20AC\uD83D\uDE00z";
+        byte[] result = serializer.serialize( value );
+
+        assertEquals( 4 + 1 + 2 + 3 + 3 + 3 + 1, result.length );
+        assertEquals( ( byte ) 0xE2, result[7] );
+        assertEquals( ( byte ) 0x82, result[8] );
+        assertEquals( ( byte ) 0xAC, result[9] );
+
+        assertEquals( value, serializer.deserialize( new BufferHandler( result ) ) );
+        assertEquals( value, serializer.fromBytes( result ) );
+        assertEquals( value, serializer.deserialize( ByteBuffer.wrap( result ) ) );
+
+        // A direct buffer
+        ByteBuffer buffer = ByteBuffer.allocateDirect( result.length + 2 );
+        buffer.position( 2 );
+        serializer.serialize( value, buffer );
+        buffer.position( 2 );
+
+        assertEquals( value, serializer.deserialize( buffer ) );
+        assertEquals( value, serializer.fromBytes( buffer, 2 ) );
+    }
+
+
+    @Test
+    public void testUtf8Decoding() throws IOException
+    {
+        // A String serialized with String.getBytes( "UTF-8" ), where the supplementary
+        // chars are stored on 4 bytes
+        String value = "L\u00E9charny \u20AC \uD83D\uDE00";
+        byte[] utf8 = value.getBytes( "UTF-8" );
+        byte[] bytes = new byte[4 + utf8.length];
+        bytes[3] = ( byte ) utf8.length;
+        System.arraycopy( utf8, 0, bytes, 4, utf8.length );
+
+        assertEquals( value, StringSerializer.deserialize( bytes ) );
+    }
+
+
+    @Test
+    public void testSerializeInBuffer()
+    {
+        byte[] buffer = new byte[16];
+
+        StringSerializer.serialize( buffer, 3, "test" );
+
+        assertEquals( "test", StringSerializer.deserialize( buffer, 3 ) );
+
+        StringSerializer.serialize( buffer, 5, null );
+
+        assertNull( StringSerializer.deserialize( buffer, 5 ) );
+    }
+
+
+    /**
+     * The serialized Strings must be ordered as the Strings are
+     */
+    @Test
+    public void testCompareSerialized()
+    {
+        String[] values =
+            { null, "", "a", "ab", "abc", "b", "\u007F", "\u0080", "\u00E9", "\u07FF", "\u0800", "\uD83D\uDE00",
+                "\uE000", "\uFFFF" };
+
+        for ( String value1 : values )
+        {
+            for ( String value2 : values )
+            {
+                int expected = serializer.compare( value1, value2 );
+                expected = ( expected < 0 ) ? -1 : ( ( expected > 0 ) ? 1 : 0 );
+
+                assertEquals( value1 + " <> " + value2, expected,
+                    StringSerializer.compare( serializer.serialize( value1 ), 0, serializer.serialize( value2 ), 0 ) );
+            }
+        }
+    }
+
+
+    /**
+     * Compare the serialization and the deserialization of ASCII Strings with a
+     * String.getBytes( "UTF-8" ) and a new String( bytes, "UTF-8" ) based implementation.
+     */
+    @Test
+    @Ignore("Benchmark")
+    public void testPerf() throws IOException
+    {
+        String[] values = new String[1000];
+        Random random = new Random( 42L );
+
+        for ( int i = 0; i < values.length; i++ )
+        {
+            char[] chars = new char[8 + random.nextInt( 32 )];
+
+            for ( int j = 0; j < chars.length; j++ )
+            {
+                chars[j] = ( char ) ( 'a' + random.nextInt( 26 ) );
+            }
+
+            values[i] = new String( chars );
+        }
+
+        for ( int round = 0; round < 5; round++ )
+        {
+            long t0 = System.nanoTime();
+            int total = 0;
+
+            for ( int n = 0; n < 1000; n++ )
+            {
+                for ( String value : values )
+                {
+                    byte[] strBytes = value.getBytes( "UTF-8" );
+                    byte[] bytes = new byte[strBytes.length + 4];
+                    System.arraycopy( strBytes, 0, bytes, 4, strBytes.length );
+                    total += new String( bytes, 4, strBytes.length, "UTF-8" ).length();
+                }
+            }
+
+            long t1 = System.nanoTime();
+
+            for ( int n = 0; n < 1000; n++ )
+            {
+                for ( String value : values )
+                {
+                    total += StringSerializer.deserialize( serializer.serialize( value ) ).length();
+                }
+            }
+
+            long t2 = System.nanoTime();
+
+            System.out.println( "getBytes/new String : " + ( ( t1 - t0 ) / 1000000 ) + "ms, StringSerializer : "
+                + ( ( t2 - t1 ) / 1000000 ) + "ms (" + total + ")" );
+        }
+    }
 }
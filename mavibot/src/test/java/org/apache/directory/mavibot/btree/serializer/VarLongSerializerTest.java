@@ -0,0 +1,113 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.mavibot.btree.serializer;
+
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+
+/**
+ * Test the VarLongSerializer and the VarIntSerializer
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class VarLongSerializerTest
+{
+    private static VarLongSerializer serializer = VarLongSerializer.INSTANCE;
+
+    private static VarIntSerializer intSerializer = VarIntSerializer.INSTANCE;
+
+
+    @Test
+    public void testZigZag()
+    {
+        assertEquals( 0L, VarLongSerializer.encodeZigZag( 0L ) );
+        assertEquals( 1L, VarLongSerializer.encodeZigZag( -1L ) );
+        assertEquals( 2L, VarLongSerializer.encodeZigZag( 1L ) );
+        assertEquals( 3L, VarLongSerializer.encodeZigZag( -2L ) );
+        assertEquals( -1L, VarLongSerializer.encodeZigZag( Long.MIN_VALUE ) );
+
+        assertEquals( Long.MIN_VALUE, VarLongSerializer.decodeZigZag( -1L ) );
+        assertEquals( Long.MAX_VALUE, VarLongSerializer.decodeZigZag( -2L ) );
+    }
+
+
+    @Test
+    public void testVarLongSerializer() throws IOException
+    {
+        long[] values =
+            { 0L, 1L, -1L, 63L, -64L, 64L, 8191L, 8192L, Integer.MAX_VALUE, Integer.MIN_VALUE, Long.MAX_VALUE,
+                Long.MIN_VALUE };
+        int[] sizes =
+            { 1, 1, 1, 1, 1, 2, 2, 3, 5, 5, 10, 10 };
+
+        for ( int i = 0; i < values.length; i++ )
+        {
+            byte[] result = serializer.serialize( values[i] );
+
+            assertEquals( sizes[i], result.length );
+            assertEquals( sizes[i], serializer.serializedSize( values[i] ) );
+            assertEquals( values[i], serializer.deserialize( new BufferHandler( result ) ).longValue() );
+            assertEquals( values[i], serializer.fromBytes( result ).longValue() );
+
+            ByteBuffer buffer = ByteBuffer.allocate( 12 );
+            buffer.put( ( byte ) 0x7F );
+            serializer.serialize( values[i], buffer );
+
+            assertEquals( 1 + sizes[i], buffer.position() );
+            assertEquals( values[i], serializer.fromBytes( buffer, 1 ).longValue() );
+
+            buffer.position( 1 );
+            assertEquals( values[i], serializer.deserialize( buffer ).longValue() );
+            assertEquals( 1 + sizes[i], buffer.position() );
+        }
+    }
+
+
+    @Test
+    public void testVarIntSerializer() throws IOException
+    {
+        int[] values =
+            { 0, 1, -1, 63, -64, 64, 8191, 8192, Integer.MAX_VALUE, Integer.MIN_VALUE };
+        int[] sizes =
+            { 1, 1, 1, 1, 1, 2, 2, 3, 5, 5 };
+
+        for ( int i = 0; i < values.length; i++ )
+        {
+            byte[] result = intSerializer.serialize( values[i] );
+
+            assertEquals( sizes[i], result.length );
+            assertEquals( sizes[i], intSerializer.serializedSize( values[i] ) );
+            assertEquals( values[i], intSerializer.deserialize( new BufferHandler( result ) ).intValue() );
+            assertEquals( values[i], intSerializer.fromBytes( result ).intValue() );
+
+            ByteBuffer buffer = ByteBuffer.allocate( 6 );
+            intSerializer.serialize( values[i], buffer );
+            buffer.flip();
+
+            assertEquals( values[i], intSerializer.deserialize( buffer ).intValue() );
+        }
+    }
+}